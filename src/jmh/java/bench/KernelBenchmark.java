@@ -0,0 +1,154 @@
+package bench;
+
+import cpu.CpuTracer;
+import cpu.Sampling;
+import org.openjdk.jmh.annotations.*;
+import sampler.Sampler;
+import scene.Scene;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the single intersection and sampling routines ported from the shaders,
+ * each invocation processes a batch of {@link #BATCH} precomputed random rays
+ * so the scores are expressed in rays per second.
+ * The rays start inside the room of the reference scene and point in every direction.
+ *
+ * @author Marco Di Rienzo
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KernelBenchmark {
+	private static final int BATCH = 1024;
+
+	private Scene scene;
+	// origin(3), direction(3), normal(3), random numbers(3) of each ray
+	private final float[] rays = new float[12 * BATCH];
+	private final float[] out = new float[4];
+	private final float[] tVec = new float[3];
+	private final float[] rand = new float[3];
+
+	@Setup
+	public void setup() throws IOException {
+		scene = Scene.load(Scene.DEFAULT_SCENE);
+		Random random = new Random(42);
+		for (int i = 0; i < BATCH; i++) {
+			int o = 12 * i;
+			rays[o] = 6 * random.nextFloat();
+			rays[o + 1] = 5 * random.nextFloat();
+			rays[o + 2] = 15 * random.nextFloat();
+			randomDirection(random, o + 3);
+			randomDirection(random, o + 6);
+			for (int k = 0; k < 3; k++)
+				rays[o + 9 + k] = random.nextFloat();
+		}
+	}
+
+	private void randomDirection(Random random, int o) {
+		float x, y, z, length;
+		do {
+			x = 2 * random.nextFloat() - 1;
+			y = 2 * random.nextFloat() - 1;
+			z = 2 * random.nextFloat() - 1;
+			length = x * x + y * y + z * z;
+		} while (length > 1 || length < 1E-4f);
+		float inv = 1 / (float) Math.sqrt(length);
+		rays[o] = x * inv;
+		rays[o + 1] = y * inv;
+		rays[o + 2] = z * inv;
+	}
+
+	private void loadRandom(int o) {
+		rand[0] = rays[o + 9];
+		rand[1] = rays[o + 10];
+		rand[2] = rays[o + 11];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float intersectBox() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++) {
+			int o = 12 * i;
+			int box = (i % scene.numBoxes) * Scene.BOX_WORDS;
+			sum += CpuTracer.intersectBox(scene.boxesF, box,
+					rays[o], rays[o + 1], rays[o + 2], rays[o + 3], rays[o + 4], rays[o + 5],
+					CpuTracer.FAR, tVec);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float intersectSphere() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++) {
+			int o = 12 * i;
+			int sphere = (i % scene.numSpheres) * Scene.SPHERE_WORDS;
+			sum += CpuTracer.intersectSphere(scene.spheresF, sphere,
+					rays[o], rays[o + 1], rays[o + 2], rays[o + 3], rays[o + 4], rays[o + 5],
+					CpuTracer.NEAR, CpuTracer.FAR);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float sobol() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++) {
+			Sampler.sample(Sampler.SOBOL, i * 0x9e3779b9, i, i & 7, out);
+			sum += out[0];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float pcg() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++) {
+			Sampler.sample(Sampler.PCG, i * 0x9e3779b9, i, i & 7, out);
+			sum += out[0];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float diffuseReflect() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++) {
+			int o = 12 * i;
+			loadRandom(o);
+			Sampling.diffuseReflect(rays[o + 6], rays[o + 7], rays[o + 8], rand, out);
+			sum += out[0];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float idealSpecularTransmit() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++) {
+			int o = 12 * i;
+			float dx = rays[o + 3], dy = rays[o + 4], dz = rays[o + 5];
+			float nx = rays[o + 6], ny = rays[o + 7], nz = rays[o + 8];
+			boolean outToIn = dx * nx + dy * ny + dz * nz < 0;
+			if (!outToIn) {
+				nx = -nx; ny = -ny; nz = -nz;
+			}
+			loadRandom(o);
+			Sampling.idealSpecularTransmit(dx, dy, dz, nx, ny, nz, outToIn, rand, out);
+			sum += out[3];
+		}
+		return sum;
+	}
+}
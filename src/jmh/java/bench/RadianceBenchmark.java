@@ -0,0 +1,132 @@
+package bench;
+
+import cpu.CpuTracer;
+import org.openjdk.jmh.annotations.*;
+import render.TraceBackend;
+import scene.Scene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of whole paths traced by {@link CpuTracer} on the reference scene,
+ * on one thread and on all the cores. Each invocation traces the primary rays
+ * of a row of pixels, so the scores are expressed in paths (or rays) per second.
+ *
+ * @author Marco Di Rienzo
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RadianceBenchmark {
+	private static final int WIDTH = 128, HEIGHT = 96;
+
+	/**
+	 * The scene and its camera, shared by all the threads as in {@link cpu.CpuBackend}.
+	 */
+	@State(Scope.Benchmark)
+	public static class SceneState {
+		Scene scene;
+		CpuTracer tracer;
+		final float[] frameRays = new float[CpuTracer.FRAME_RAYS_SIZE];
+
+		@Setup
+		public void setup() throws IOException {
+			scene = Scene.load(Scene.DEFAULT_SCENE);
+			tracer = new CpuTracer(scene);
+			scene.camera.update(WIDTH, HEIGHT);
+			store(scene.camera.position.x, scene.camera.position.y, scene.camera.position.z, CpuTracer.EYE);
+			store(scene.camera.ray00.x, scene.camera.ray00.y, scene.camera.ray00.z, CpuTracer.RAY00);
+			store(scene.camera.ray01.x, scene.camera.ray01.y, scene.camera.ray01.z, CpuTracer.RAY01);
+			store(scene.camera.ray10.x, scene.camera.ray10.y, scene.camera.ray10.z, CpuTracer.RAY10);
+			store(scene.camera.ray11.x, scene.camera.ray11.y, scene.camera.ray11.z, CpuTracer.RAY11);
+		}
+
+		private void store(float x, float y, float z, int offset) {
+			frameRays[offset] = x;
+			frameRays[offset + 1] = y;
+			frameRays[offset + 2] = z;
+		}
+	}
+
+	/**
+	 * Scratch memory and framebuffer of a single thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+		final CpuTracer.PathState path = new CpuTracer.PathState();
+		final float[] framebuffer = new float[4 * WIDTH * HEIGHT];
+		final int[] counts = new int[WIDTH * HEIGHT];
+		final float[] reprojected = new float[4 * WIDTH * HEIGHT];
+		final float[] variance = new float[WIDTH * HEIGHT];
+		final float[] depth = new float[WIDTH * HEIGHT];
+		final float[] albedo = new float[4 * WIDTH * HEIGHT];
+		final float[] normal = new float[4 * WIDTH * HEIGHT];
+		int row;
+
+		/**
+		 * @return the next row to trace, moving to a new frame after the last one
+		 */
+		int nextRow() {
+			if (++row == HEIGHT) {
+				row = 0;
+				// the tracer stops adding samples to a pixel past the maximum
+				if (counts[0] >= TraceBackend.MAX_SAMPLES)
+					Arrays.fill(counts, 0);
+			}
+			return row;
+		}
+	}
+
+	private static float traceRow(SceneState scene, ThreadState thread) {
+		int y = thread.nextRow();
+		for (int x = 0; x < WIDTH; x++) {
+			scene.tracer.tracePixel(x, y, WIDTH, HEIGHT, scene.frameRays, 1, 0,
+					thread.framebuffer, thread.counts, thread.reprojected, thread.variance, thread.depth, thread.albedo, thread.normal, thread.path);
+		}
+		return thread.framebuffer[4 * y * WIDTH];
+	}
+
+	/**
+	 * Closest hit of the primary rays through the BVH, without bouncing.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(WIDTH)
+	@Threads(1)
+	public boolean intersect(SceneState scene, ThreadState thread) {
+		float[] rays = scene.frameRays;
+		int y = thread.nextRow();
+		boolean hit = false;
+		for (int x = 0; x < WIDTH; x++) {
+			float wx = (float) x / (WIDTH - 1);
+			float wy = (float) y / (HEIGHT - 1);
+			float dx = CpuTracer.mix(CpuTracer.mix(rays[CpuTracer.RAY00], rays[CpuTracer.RAY01], wy),
+					CpuTracer.mix(rays[CpuTracer.RAY10], rays[CpuTracer.RAY11], wy), wx);
+			float dy = CpuTracer.mix(CpuTracer.mix(rays[CpuTracer.RAY00 + 1], rays[CpuTracer.RAY01 + 1], wy),
+					CpuTracer.mix(rays[CpuTracer.RAY10 + 1], rays[CpuTracer.RAY11 + 1], wy), wx);
+			float dz = CpuTracer.mix(CpuTracer.mix(rays[CpuTracer.RAY00 + 2], rays[CpuTracer.RAY01 + 2], wy),
+					CpuTracer.mix(rays[CpuTracer.RAY10 + 2], rays[CpuTracer.RAY11 + 2], wy), wx);
+			float inv = 1.0f / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+			hit ^= scene.tracer.intersect(rays[CpuTracer.EYE], rays[CpuTracer.EYE + 1], rays[CpuTracer.EYE + 2],
+					dx * inv, dy * inv, dz * inv, thread.path);
+		}
+		return hit;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WIDTH)
+	@Threads(1)
+	public float radianceSingleThread(SceneState scene, ThreadState thread) {
+		return traceRow(scene, thread);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WIDTH)
+	@Threads(Threads.MAX)
+	public float radianceAllCores(SceneState scene, ThreadState thread) {
+		return traceRow(scene, thread);
+	}
+}
@@ -0,0 +1,476 @@
+package cpu;
+
+import org.joml.Vector3f;
+import render.Aovs;
+import render.Camera;
+import render.CameraSnapshot;
+import render.PixelReadback;
+import render.Snapshot;
+import render.TileScheduler;
+import render.TraceBackend;
+import scene.Scene;
+import scene.SceneUpdate;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import static org.lwjgl.opengl.GL11.*;
+
+/**
+ * {@link TraceBackend} tracing the scene on the CPU with a {@link CpuTracer}.
+ * The image is split in square tiles which are distributed among the threads
+ * of a {@link ForkJoinPool}: the list of tiles is recursively halved, so that
+ * idle threads can steal the unprocessed halves of the busy ones.
+ * After every frame the list is compacted to the tiles with pixels that did not converge yet.
+ * With a frame budget a frame only traces the next slice of the list, timed on the host,
+ * and the list is compacted once its last slice is traced.
+ * <p>
+ * When the camera moves the accumulation starts over, from the previous image
+ * reprojected by {@link CpuTracer#reprojectPixel} unless reprojection is disabled.
+ *
+ * @author Marco Di Rienzo
+ */
+public class CpuBackend implements TraceBackend {
+	public static final int TILE_SIZE = 32;
+
+	private int width, height;
+	private int tilesX, numTiles;
+	private Scene scene;
+	private final CpuTracer tracer;
+	private final ForkJoinPool pool;
+
+	// RGBA32F framebuffer, same layout of the texture of the GPU backend
+	private float[] framebuffer;
+	private int[] counts; // samples of each pixel, copied in the alpha channel of the framebuffer
+	private float[] variance;
+	private float[] depth;
+	private float[] albedo, normal; // guides of the denoiser, see Aovs
+	private CpuDenoiser denoiser; // created when first presenting a denoised image
+	private float[] denoised;
+	private float[] history, historyDepth; // copies of the framebuffer and depth to reproject
+	private float[] reprojected; // the history fading out as the new samples are traced, see CpuTracer.reprojectPixel
+	// copies of the framebuffer held by snapshots, at most PixelReadback.RING_SIZE like on the GPU
+	private final Queue<float[]> freeSnapshots = new ConcurrentLinkedQueue<>();
+	private int snapshotBuffers;
+	private final CameraSnapshot previousCamera = new CameraSnapshot();
+	private boolean reprojection = true;
+	private final float[] frameRays = new float[CpuTracer.FRAME_RAYS_SIZE];
+	private int frameNumber;
+
+	private int samplesPerDispatch = 1;
+	private float threshold;
+	private int[] activeTiles; // indices of the tiles to trace, the first numActiveTiles are valid
+	private int[] tileActivePixels; // active pixels of each tile after the last frame
+	private int numActiveTiles;
+	private int activePixels;
+	private TileScheduler scheduler; // null to trace all the active tiles every frame
+	private int nextTile; // index in the list of active tiles of the first tile of the next frame
+
+	private final AtomicLong samples = new AtomicLong(), rays = new AtomicLong();
+	private long traceTime = -1;
+
+	/**
+	 * @param scene the scene to trace
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param threads the number of worker threads
+	 */
+	public CpuBackend(Scene scene, int width, int height, int threads) {
+		this.scene = scene;
+		this.tracer = new CpuTracer(scene);
+		this.pool = new ForkJoinPool(threads);
+		allocate(width, height);
+	}
+
+	/**
+	 * Allocates the framebuffer, the auxiliary buffers and the tiles for the size of the image,
+	 * all zero, with all the tiles active.
+	 */
+	private void allocate(int width, int height) {
+		this.width = width;
+		this.height = height;
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		numTiles = tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE);
+		framebuffer = new float[width * height * 4];
+		counts = new int[width * height];
+		variance = new float[width * height];
+		depth = new float[width * height];
+		albedo = new float[framebuffer.length];
+		normal = new float[framebuffer.length];
+		history = new float[framebuffer.length];
+		historyDepth = new float[depth.length];
+		reprojected = new float[framebuffer.length];
+
+		activeTiles = new int[numTiles];
+		tileActivePixels = new int[numTiles];
+		activateAllTiles();
+	}
+
+	/**
+	 * The denoiser is created again when next needed. The snapshots still held keep
+	 * their buffers, which are dropped once released.
+	 */
+	@Override
+	public void resize(int width, int height) {
+		if (width == this.width && height == this.height)
+			return;
+		allocate(width, height);
+		denoiser = null;
+		denoised = null;
+		// the previous image cannot be reprojected
+		previousCamera.clear();
+		frameNumber = 0;
+	}
+
+	private void activateAllTiles() {
+		for (int i = 0; i < numTiles; i++)
+			activeTiles[i] = i;
+		numActiveTiles = numTiles;
+		activePixels = width * height;
+		nextTile = 0;
+	}
+
+	/**
+	 * Creates a backend using all the available processors.
+	 * @see #CpuBackend(Scene, int, int, int)
+	 */
+	public CpuBackend(Scene scene, int width, int height) {
+		this(scene, width, height, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Recursively splits the range [from, to) of the active tiles list until a single tile is left.
+	 */
+	private class TileTask extends RecursiveAction {
+		private final int from, to;
+
+		TileTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+				return;
+			}
+
+			CpuTracer.PathState state = new CpuTracer.PathState();
+			int tile = activeTiles[from];
+			int x0 = (tile % tilesX) * TILE_SIZE;
+			int y0 = (tile / tilesX) * TILE_SIZE;
+			int x1 = Math.min(x0 + TILE_SIZE, width);
+			int y1 = Math.min(y0 + TILE_SIZE, height);
+			int active = 0;
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					if (!tracer.tracePixel(x, y, width, height, frameRays, samplesPerDispatch, threshold,
+							framebuffer, counts, reprojected, variance, depth, albedo, normal, state))
+						active++;
+				}
+			}
+			tileActivePixels[tile] = active;
+			samples.addAndGet(state.samples);
+			rays.addAndGet(state.rays);
+		}
+	}
+
+	@Override
+	public boolean trace(Camera camera) {
+		// copy the camera rays once per frame, so the workers only read floats
+		store(camera.position, CpuTracer.EYE);
+		store(camera.ray00, CpuTracer.RAY00);
+		store(camera.ray01, CpuTracer.RAY01);
+		store(camera.ray10, CpuTracer.RAY10);
+		store(camera.ray11, CpuTracer.RAY11);
+
+		// the accumulated samples were seen from elsewhere, start again
+		if (previousCamera.differs(camera)) {
+			if (reprojection)
+				reproject();
+			else {
+				Arrays.fill(framebuffer, 0);
+				Arrays.fill(counts, 0);
+				Arrays.fill(reprojected, 0);
+				Arrays.fill(variance, 0);
+			}
+			restart();
+		}
+		previousCamera.set(camera);
+
+		if (numActiveTiles == 0)
+			return false;
+		if (nextTile == 0 && frameNumber < Integer.MAX_VALUE)
+			frameNumber++;
+
+		int first = nextTile;
+		int tiles = scheduler != null ? scheduler.tiles(numActiveTiles - first) : numActiveTiles - first;
+		long start = System.nanoTime();
+		pool.invoke(new TileTask(first, first + tiles));
+		traceTime = System.nanoTime() - start;
+		if (scheduler != null)
+			scheduler.record(traceTime, tiles);
+		nextTile += tiles;
+		if (nextTile < numActiveTiles)
+			return true;
+		nextTile = 0;
+
+		// keep only the tiles with active pixels, in the same order
+		int n = 0;
+		activePixels = 0;
+		for (int i = 0; i < numActiveTiles; i++) {
+			int tile = activeTiles[i];
+			if (tileActivePixels[tile] > 0) {
+				activeTiles[n++] = tile;
+				activePixels += tileActivePixels[tile];
+			}
+		}
+		numActiveTiles = n;
+		return true;
+	}
+
+	/**
+	 * Starts the accumulation again after the framebuffer was cleared or reprojected:
+	 * the guides are not reprojected, they restart with the new samples.
+	 */
+	private void restart() {
+		Arrays.fill(albedo, 0);
+		Arrays.fill(normal, 0);
+		activateAllTiles();
+		frameNumber = 0;
+	}
+
+	@Override
+	public void reset() {
+		Arrays.fill(framebuffer, 0);
+		Arrays.fill(counts, 0);
+		Arrays.fill(reprojected, 0);
+		Arrays.fill(variance, 0);
+		restart();
+	}
+
+	/**
+	 * The tracer reads the buffers of the scene directly, so nothing needs to be updated.
+	 */
+	@Override
+	public boolean setScene(Scene scene) {
+		boolean changed = !scene.sameContent(this.scene);
+		this.scene = scene;
+		tracer.setScene(scene);
+		if (changed)
+			reset();
+		return changed;
+	}
+
+	/**
+	 * The tracer reads the buffers of the scene, moved in place between two frames.
+	 */
+	@Override
+	public void updateScene(SceneUpdate update) {
+		if (!update.isEmpty())
+			reset();
+	}
+
+	@Override
+	public void setSampleOffset(int pixelX, int pixelY, int sample) {
+		tracer.setSampleOffset(pixelX, pixelY, sample);
+	}
+
+	/**
+	 * Replaces the framebuffer with the image seen from the previous camera
+	 * reprojected to the new one, rows are distributed among the threads.
+	 */
+	private void reproject() {
+		System.arraycopy(framebuffer, 0, history, 0, framebuffer.length);
+		System.arraycopy(depth, 0, historyDepth, 0, depth.length);
+		pool.submit(() -> IntStream.range(0, height).parallel().forEach(y -> {
+			CpuTracer.PathState state = new CpuTracer.PathState();
+			for (int x = 0; x < width; x++)
+				tracer.reprojectPixel(x, y, width, height, frameRays, previousCamera,
+						history, historyDepth, framebuffer, counts, reprojected, variance, depth, state);
+		})).join();
+	}
+
+	private void store(Vector3f v, int offset) {
+		frameRays[offset] = v.x;
+		frameRays[offset + 1] = v.y;
+		frameRays[offset + 2] = v.z;
+	}
+
+	/**
+	 * Uploads the framebuffer into the texture.
+	 */
+	@Override
+	public void present(int texture) {
+		glBindTexture(GL_TEXTURE_2D, texture);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, GL_RGBA, GL_FLOAT, framebuffer);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Filters the image with a {@link CpuDenoiser} on the threads of the backend
+	 * and uploads it into the texture.
+	 */
+	@Override
+	public int presentDenoised(int texture) {
+		if (denoiser == null) {
+			denoiser = new CpuDenoiser(width, height, pool);
+			denoised = new float[framebuffer.length];
+		}
+		readPixels(denoised);
+		denoiser.denoise(denoised, albedo, normal, depth, variance);
+		for (int i = 3; i < denoised.length; i += 4)
+			denoised[i] = 1;
+		glBindTexture(GL_TEXTURE_2D, texture);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, GL_RGBA, GL_FLOAT, denoised);
+		glBindTexture(GL_TEXTURE_2D, 0);
+		return texture;
+	}
+
+	@Override
+	public void readPixels(float[] pixels) {
+		readSums(pixels);
+		TraceBackend.normalize(pixels);
+	}
+
+	@Override
+	public void readSums(float[] pixels) {
+		System.arraycopy(framebuffer, 0, pixels, 0, framebuffer.length);
+	}
+
+	/**
+	 * The tracer keeps writing into the framebuffer, so it is copied, between two frames,
+	 * into a buffer recycled once the consumer releases the snapshot.
+	 */
+	@Override
+	public boolean snapshot(Consumer<Snapshot> consumer) {
+		float[] pixels;
+		// the buffers of the snapshots taken before a resize are dropped
+		while ((pixels = freeSnapshots.poll()) != null && pixels.length != framebuffer.length)
+			snapshotBuffers--;
+		if (pixels == null) {
+			if (snapshotBuffers == PixelReadback.RING_SIZE)
+				return false;
+			snapshotBuffers++;
+			pixels = new float[framebuffer.length];
+		}
+		System.arraycopy(framebuffer, 0, pixels, 0, framebuffer.length);
+		float[] buffer = pixels;
+		consumer.accept(new Snapshot(width, height, FloatBuffer.wrap(pixels), frameNumber,
+				() -> freeSnapshots.add(buffer)));
+		return true;
+	}
+
+	/**
+	 * The snapshots are handed to their consumers as soon as they are taken, nothing to do.
+	 */
+	@Override
+	public void flushSnapshots() {
+	}
+
+	@Override
+	public void readAovs(Aovs aovs) {
+		System.arraycopy(albedo, 0, aovs.albedo, 0, albedo.length);
+		System.arraycopy(normal, 0, aovs.normal, 0, normal.length);
+		System.arraycopy(depth, 0, aovs.depth, 0, depth.length);
+		System.arraycopy(variance, 0, aovs.variance, 0, variance.length);
+	}
+
+	/**
+	 * @return the RGBA framebuffer, rows ordered bottom to top, holding the sums of the samples
+	 */
+	public float[] getFramebuffer() {
+		return framebuffer;
+	}
+
+	@Override
+	public int getFrameNumber() {
+		return frameNumber;
+	}
+
+	@Override
+	public void setSamplesPerDispatch(int samples) {
+		samplesPerDispatch = samples;
+	}
+
+	@Override
+	public void setThreshold(float threshold) {
+		this.threshold = threshold;
+		// the converged tiles are checked again against the new threshold
+		activateAllTiles();
+	}
+
+	/**
+	 * @see CpuTracer#setLightSampling(boolean)
+	 */
+	public void setLightSampling(boolean lightSampling) {
+		tracer.setLightSampling(lightSampling);
+	}
+
+	/**
+	 * @see CpuTracer#setMaxBounces(int)
+	 */
+	public void setMaxBounces(int maxBounces) {
+		tracer.setMaxBounces(maxBounces);
+	}
+
+	/**
+	 * @see CpuTracer#setRouletteBounce(int)
+	 */
+	public void setRouletteBounce(int rouletteBounce) {
+		tracer.setRouletteBounce(rouletteBounce);
+	}
+
+	/**
+	 * @see CpuTracer#setSampler(int)
+	 */
+	public void setSampler(int sampler) {
+		tracer.setSampler(sampler);
+	}
+
+	@Override
+	public void setReprojection(boolean reprojection) {
+		this.reprojection = reprojection;
+	}
+
+	@Override
+	public int getActivePixels() {
+		return activePixels;
+	}
+
+	@Override
+	public void setFrameBudget(float milliseconds) {
+		scheduler = milliseconds > 0 ? new TileScheduler(milliseconds) : null;
+	}
+
+	@Override
+	public long pollTraceTime() {
+		long t = traceTime;
+		traceTime = -1;
+		return t;
+	}
+
+	@Override
+	public long getSamples() {
+		return samples.get();
+	}
+
+	@Override
+	public long getRays() {
+		return rays.get();
+	}
+
+	@Override
+	public void destroy() {
+		pool.shutdown();
+	}
+}
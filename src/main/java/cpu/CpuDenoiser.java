@@ -0,0 +1,180 @@
+package cpu;
+
+import render.Aovs;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Java port of <i>denoise.glsl</i>: an edge-avoiding à-trous wavelet filter
+ * guided by the albedo, normal and depth buffers of the tracer.
+ * Every iteration is a pass over the rows of the image, distributed among the threads of the pool.
+ *
+ * @author Marco Di Rienzo
+ */
+public class CpuDenoiser {
+	public static final int ITERATIONS = 5; // the taps of the last one are 2^(ITERATIONS-1) pixels apart
+
+	public static final float NORMAL_PHI = 128;    // exponent of the cosine between the normals
+	public static final float DEPTH_PHI = 0.02f;   // relative depth difference allowed per pixel of distance
+	public static final float LUMINANCE_PHI = 4;   // standard errors of the luminance allowed
+	public static final float MIN_ALBEDO = 1E-3f;  // smaller components of the albedo are not divided out
+
+	private static final float[] KERNEL = {3f / 8, 1f / 4, 1f / 16};
+	private static final float[] GAUSSIAN = {1f / 2, 1f / 4};
+
+	private final int width, height;
+	private final ForkJoinPool pool;
+	// rgb: the color divided by the albedo, a: the variance of its luminance
+	private final float[] ping, pong;
+	// average albedo and normal of each pixel, 3 floats each
+	private final float[] albedo, normal;
+
+	/**
+	 * @param pool the threads filtering the rows of the image
+	 */
+	public CpuDenoiser(int width, int height, ForkJoinPool pool) {
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+		this.ping = new float[width * height * 4];
+		this.pong = new float[width * height * 4];
+		this.albedo = new float[width * height * 3];
+		this.normal = new float[width * height * 3];
+	}
+
+	/**
+	 * Filters the image in place.
+	 * @param pixels RGBA image as returned by {@link render.TraceBackend#readPixels(float[])},
+	 *               the number of samples in the alpha channel is left untouched
+	 * @param aovs the guides accumulated along with the image
+	 */
+	public void denoise(float[] pixels, Aovs aovs) {
+		denoise(pixels, aovs.albedo, aovs.normal, aovs.depth, aovs.variance);
+	}
+
+	/**
+	 * @see #denoise(float[], Aovs)
+	 */
+	public void denoise(float[] pixels, float[] albedoSums, float[] normalSums, float[] depth, float[] variance) {
+		pool.submit(() -> IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x = 0, p = y * width; x < width; x++, p++)
+				demodulate(p, pixels, albedoSums, normalSums, variance);
+		})).join();
+
+		float[] input = ping, output = pong;
+		for (int i = 0; i < ITERATIONS; i++) {
+			int step = 1 << i;
+			float[] in = input, out = output;
+			pool.submit(() -> IntStream.range(0, height).parallel().forEach(y -> {
+				for (int x = 0; x < width; x++)
+					filter(x, y, step, in, out, depth);
+			})).join();
+			input = output;
+			output = in;
+		}
+
+		// multiply back by the albedo
+		float[] result = input;
+		for (int p = 0; p < width * height; p++) {
+			pixels[p * 4] = result[p * 4] * albedo[p * 3];
+			pixels[p * 4 + 1] = result[p * 4 + 1] * albedo[p * 3 + 1];
+			pixels[p * 4 + 2] = result[p * 4 + 2] * albedo[p * 3 + 2];
+		}
+	}
+
+	/**
+	 * Averages the guides of pixel <i>p</i> and divides its color by the albedo,
+	 * the variance of the mean luminance is M2 / (n-1) / n.
+	 */
+	private void demodulate(int p, float[] pixels, float[] albedoSums, float[] normalSums, float[] variance) {
+		float count = albedoSums[p * 4 + 3];
+		for (int c = 0; c < 3; c++) {
+			float a = count > 0 ? albedoSums[p * 4 + c] / count : 1;
+			albedo[p * 3 + c] = a < MIN_ALBEDO ? 1 : a;
+		}
+		float nx = normalSums[p * 4], ny = normalSums[p * 4 + 1], nz = normalSums[p * 4 + 2];
+		float length2 = nx * nx + ny * ny + nz * nz;
+		float inv = length2 > 0 ? 1 / (float) Math.sqrt(length2) : 0;
+		normal[p * 3] = nx * inv;
+		normal[p * 3 + 1] = ny * inv;
+		normal[p * 3 + 2] = nz * inv;
+
+		float n = pixels[p * 4 + 3];
+		if (n == 0) {
+			ping[p * 4] = ping[p * 4 + 1] = ping[p * 4 + 2] = ping[p * 4 + 3] = 0;
+			return;
+		}
+		// a single sample tells nothing about the variance, the luminance does not stop the filter
+		float v = n > 1 ? variance[p] / ((n - 1) * n) : 1E10f;
+		float l = CpuTracer.luminance(albedo[p * 3], albedo[p * 3 + 1], albedo[p * 3 + 2]);
+		ping[p * 4] = pixels[p * 4] / albedo[p * 3];
+		ping[p * 4 + 1] = pixels[p * 4 + 1] / albedo[p * 3 + 1];
+		ping[p * 4 + 2] = pixels[p * 4 + 2] / albedo[p * 3 + 2];
+		ping[p * 4 + 3] = v / (l * l);
+	}
+
+	/**
+	 * @return the variance around pixel (x, y) blurred by a 3x3 gaussian, so that a pixel whose few
+	 * samples happen to agree does not reject all its neighbours
+	 */
+	private float blurredVariance(int x, int y, float[] in) {
+		float variance = 0, weights = 0;
+		for (int dy = -1; dy <= 1; dy++) {
+			int qy = y + dy;
+			if (qy < 0 || qy >= height)
+				continue;
+			for (int dx = -1; dx <= 1; dx++) {
+				int qx = x + dx;
+				if (qx < 0 || qx >= width)
+					continue;
+				float w = GAUSSIAN[Math.abs(dx)] * GAUSSIAN[Math.abs(dy)];
+				variance += w * in[(qy * width + qx) * 4 + 3];
+				weights += w;
+			}
+		}
+		return variance / weights;
+	}
+
+	/**
+	 * An iteration of the filter at pixel (x, y), with the taps <i>step</i> pixels apart.
+	 */
+	private void filter(int x, int y, int step, float[] in, float[] out, float[] depth) {
+		int p = y * width + x;
+		float nx = normal[p * 3], ny = normal[p * 3 + 1], nz = normal[p * 3 + 2];
+		float z = depth[p];
+		float l = CpuTracer.luminance(in[p * 4], in[p * 4 + 1], in[p * 4 + 2]);
+		float sigma = LUMINANCE_PHI * (float) Math.sqrt(blurredVariance(x, y, in)) + 1E-6f;
+
+		float r = 0, g = 0, b = 0, variance = 0, weights = 0;
+		for (int dy = -2; dy <= 2; dy++) {
+			int qy = y + dy * step;
+			if (qy < 0 || qy >= height)
+				continue;
+			for (int dx = -2; dx <= 2; dx++) {
+				int qx = x + dx * step;
+				if (qx < 0 || qx >= width)
+					continue;
+				int q = qy * width + qx;
+				float w = KERNEL[Math.abs(dx)] * KERNEL[Math.abs(dy)];
+				if (dx != 0 || dy != 0) {
+					float pixels = (float) Math.sqrt(dx * dx + dy * dy) * step;
+					float cos = nx * normal[q * 3] + ny * normal[q * 3 + 1] + nz * normal[q * 3 + 2];
+					w *= (float) Math.pow(Math.max(cos, 0), NORMAL_PHI);
+					w *= (float) Math.exp(-Math.abs(z - depth[q]) / (DEPTH_PHI * Math.abs(z) * pixels + 1E-6f));
+					w *= (float) Math.exp(-Math.abs(l - CpuTracer.luminance(in[q * 4], in[q * 4 + 1], in[q * 4 + 2])) / sigma);
+				}
+				r += w * in[q * 4];
+				g += w * in[q * 4 + 1];
+				b += w * in[q * 4 + 2];
+				variance += w * w * in[q * 4 + 3];
+				weights += w;
+			}
+		}
+		// the center always has a positive weight
+		out[p * 4] = r / weights;
+		out[p * 4 + 1] = g / weights;
+		out[p * 4 + 2] = b / weights;
+		out[p * 4 + 3] = variance / (weights * weights);
+	}
+}
@@ -0,0 +1,919 @@
+package cpu;
+
+import org.joml.Matrix4f;
+import render.CameraSnapshot;
+import render.TraceBackend;
+import sampler.Sampler;
+import scene.Bvh;
+import scene.Environment;
+import scene.Scene;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static cpu.Sampling.*;
+import static scene.Bvh.*;
+import static scene.Scene.*;
+
+/**
+ * Java port of the path tracing routines of <i>raytracing.glsl</i>.
+ * Every method works on float components and on the scratch memory
+ * of a {@link PathState}, so tracing a ray does not allocate anything.
+ * The scene is read straight from the std430 buffers of the {@link Scene}.
+ *
+ * @author Marco Di Rienzo
+ */
+public class CpuTracer {
+	public static final float NEAR = 1E-3f;
+	public static final float FAR = 1E+10f;
+
+	// offsets of the frame rays array, see tracePixel(...)
+	public static final int EYE = 0, RAY00 = 3, RAY01 = 6, RAY10 = 9, RAY11 = 12;
+	public static final int FRAME_RAYS_SIZE = 15;
+
+	// samples of a pixel before trusting its variance estimate
+	public static final int MIN_SAMPLES = 16;
+
+	// first bounce at which russian roulette may end a path, ROULETTE_BOUNCE of path.glsl
+	public static final int ROULETTE_BOUNCE = 4;
+
+	// temporal reprojection, see reproject.glsl
+	public static final float HISTORY_SAMPLES = 8;
+	public static final float MAX_DISTANCE = 0.01f;
+
+	private Scene scene;
+	private boolean lightSampling = true;
+	private int maxBounces = -1, rouletteBounce = ROULETTE_BOUNCE;
+	private int sampler = Sampler.SOBOL;
+	private int pixelOffsetX, pixelOffsetY, sampleOffset;
+
+	/**
+	 * Scratch memory of a single thread, reused for every ray it traces.
+	 * Also holds the information about the last intersection, like the
+	 * HitInfo struct of the shader.
+	 */
+	public static final class PathState {
+		final float[] rand = new float[4]; // the last one decides the russian roulette
+		final float[] lightRand = new float[3];
+		final float[] dir = new float[4];
+		final float[] lightDir = new float[3];
+		final float[] light = new float[3]; // sampled by sampleLights(...)
+		final float[] tVec = new float[3];
+		final int[] stack = new int[Bvh.MAX_DEPTH];
+		final int[] instanceStack = new int[Bvh.MAX_DEPTH];
+		final float[] primary = new float[3];
+		public final float[] color = new float[3];
+		public float primaryDistance; // of the first hit of the last path, negative on a miss
+		// guides of the denoiser of the last path, the fourth component is 1 if it hit a guiding surface
+		public final float[] guideAlbedo = new float[4], guideNormal = new float[4];
+
+		float tNear;
+		float tVecX, tVecY, tVecZ;
+		int id;
+		int type; // Bvh.BOX, Bvh.SPHERE or Bvh.TRIANGLE
+		int instance; // of the triangle, -1 if it is not instanced
+
+		// samples and rays traced with this state, the shadow rays included, never reset by the tracer
+		public long samples, rays;
+	}
+
+	/**
+	 * @param scene the scene to trace
+	 */
+	public CpuTracer(Scene scene) {
+		this.scene = scene;
+	}
+
+	/**
+	 * Replaces the traced scene, between two frames.
+	 */
+	public void setScene(Scene scene) {
+		this.scene = scene;
+	}
+
+	/**
+	 * Sets whether the emissive spheres and the environment are sampled at every diffuse hit, as the
+	 * LIGHT_SAMPLING define of <i>path.glsl</i> does, true by default. Otherwise the paths find the lights
+	 * only by bouncing off the surfaces.
+	 */
+	public void setLightSampling(boolean lightSampling) {
+		this.lightSampling = lightSampling;
+	}
+
+	/**
+	 * Sets the maximum number of bounces of a path, as the MAX_BOUNCES define of <i>path.glsl</i> does.
+	 * @param maxBounces negative for no limit, the default, so that paths are only ended by russian roulette
+	 */
+	public void setMaxBounces(int maxBounces) {
+		this.maxBounces = maxBounces;
+	}
+
+	/**
+	 * Sets the first bounce at which russian roulette may end a path, as the ROULETTE_BOUNCE define
+	 * of <i>path.glsl</i> does, {@link #ROULETTE_BOUNCE} by default.
+	 */
+	public void setRouletteBounce(int rouletteBounce) {
+		this.rouletteBounce = rouletteBounce;
+	}
+
+	/**
+	 * Sets the random numbers of the paths, as the SAMPLER define of <i>sampler.glsl</i> does.
+	 * @param sampler {@link Sampler#SOBOL}, the default, or {@link Sampler#PCG}
+	 */
+	public void setSampler(int sampler) {
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Sets the offsets added to the pixels and to the sample indices, as the u_PixelOffset and
+	 * u_SampleOffset uniforms of <i>sampler.glsl</i> do, see {@link render.TraceBackend#setSampleOffset}.
+	 */
+	public void setSampleOffset(int pixelX, int pixelY, int sample) {
+		this.pixelOffsetX = pixelX;
+		this.pixelOffsetY = pixelY;
+		this.sampleOffset = sample;
+	}
+
+	/**
+	 * Slab test between a ray and the box starting at word <i>offset</i> in <i>boxes</i>.
+	 * @param tFar the maximum distance of a valid intersection
+	 * @param tVec the array in which to store the entry distance along each axis
+	 * @return the distance of the intersection, or a negative number if there is none
+	 */
+	public static float intersectBox(FloatBuffer boxes, int offset,
+									 float ox, float oy, float oz,
+									 float dx, float dy, float dz,
+									 float tFar, float[] tVec) {
+		float minX = (boxes.get(offset + BOX_MIN) - ox) / dx;
+		float minY = (boxes.get(offset + BOX_MIN + 1) - oy) / dy;
+		float minZ = (boxes.get(offset + BOX_MIN + 2) - oz) / dz;
+		float maxX = (boxes.get(offset + BOX_MAX) - ox) / dx;
+		float maxY = (boxes.get(offset + BOX_MAX + 1) - oy) / dy;
+		float maxZ = (boxes.get(offset + BOX_MAX + 2) - oz) / dz;
+		float t1x = Math.min(minX, maxX);
+		float t1y = Math.min(minY, maxY);
+		float t1z = Math.min(minZ, maxZ);
+
+		float tmin = Math.max(Math.max(t1x, t1y), t1z);
+		float tmax = Math.min(Math.min(Math.max(minX, maxX), Math.max(minY, maxY)), Math.max(minZ, maxZ));
+		// ray origin outside box
+		if (0.0f < tmin && tmin <= tmax && tmin < tFar) {
+			tVec[0] = t1x;
+			tVec[1] = t1y;
+			tVec[2] = t1z;
+			return tmin;
+		}
+
+		// FIXME: ray origin inside box not implemented
+		return -1;
+	}
+
+	/**
+	 * Intersection between a ray and the sphere starting at word <i>offset</i> in <i>spheres</i>.
+	 * @param tNear the minimum distance of a valid intersection
+	 * @param tFar the maximum distance of a valid intersection
+	 * @return the distance of the intersection, or a negative number if there is none
+	 */
+	public static float intersectSphere(FloatBuffer spheres, int offset,
+										float ox, float oy, float oz,
+										float dx, float dy, float dz,
+										float tNear, float tFar) {
+		float radius = spheres.get(offset + SPHERE_RADIUS);
+		float opx = spheres.get(offset + SPHERE_CENTER) - ox;
+		float opy = spheres.get(offset + SPHERE_CENTER + 1) - oy;
+		float opz = spheres.get(offset + SPHERE_CENTER + 2) - oz;
+		float dop = opx * dx + opy * dy + opz * dz;
+		float D = dop * dop - (opx * opx + opy * opy + opz * opz) + radius * radius;
+		if (D < 0)
+			// no intersection
+			return -1;
+
+		float sqrtD = (float) Math.sqrt(D);
+
+		float tmin = dop - sqrtD;
+		// ray origin outside sphere
+		if (tNear < tmin && tmin < tFar)
+			return tmin;
+
+		float tmax = dop + sqrtD;
+		// ray origin inside sphere
+		if (tNear < tmax && tmax < tFar)
+			return tmax;
+
+		// if tmax < 0 the sphere is behind
+		return -1;
+	}
+
+	/**
+	 * Möller–Trumbore intersection between a ray and the triangle starting at word <i>offset</i> in <i>triangles</i>.
+	 * @param vertices the positions referenced by the triangle
+	 * @param tNear the minimum distance of a valid intersection
+	 * @param tFar the maximum distance of a valid intersection
+	 * @return the distance of the intersection, or a negative number if there is none
+	 */
+	public static float intersectTriangle(IntBuffer triangles, int offset, FloatBuffer vertices,
+										  float ox, float oy, float oz,
+										  float dx, float dy, float dz,
+										  float tNear, float tFar) {
+		int v0 = triangles.get(offset + TRIANGLE_VERTICES) * VERTEX_WORDS;
+		int v1 = triangles.get(offset + TRIANGLE_VERTICES + 1) * VERTEX_WORDS;
+		int v2 = triangles.get(offset + TRIANGLE_VERTICES + 2) * VERTEX_WORDS;
+		float ax = vertices.get(v0), ay = vertices.get(v0 + 1), az = vertices.get(v0 + 2);
+		float e1x = vertices.get(v1) - ax, e1y = vertices.get(v1 + 1) - ay, e1z = vertices.get(v1 + 2) - az;
+		float e2x = vertices.get(v2) - ax, e2y = vertices.get(v2 + 1) - ay, e2z = vertices.get(v2 + 2) - az;
+
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0)
+			// ray parallel to the triangle
+			return -1;
+		float invDet = 1 / det;
+
+		float sx = ox - ax, sy = oy - ay, sz = oz - az;
+		float u = (sx * px + sy * py + sz * pz) * invDet;
+		if (u < 0 || u > 1)
+			return -1;
+		float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (v < 0 || u + v > 1)
+			return -1;
+
+		float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+		return tNear < t && t < tFar ? t : -1;
+	}
+
+	/**
+	 * Slab test between a ray and the bounds of the BVH node starting at word <i>offset</i>.
+	 * @return true if the ray enters the node before <i>tFar</i>
+	 */
+	public static boolean intersectNode(FloatBuffer nodes, int offset,
+										float ox, float oy, float oz,
+										float invDx, float invDy, float invDz, float tFar) {
+		float t0x = (nodes.get(offset + NODE_MIN) - ox) * invDx;
+		float t0y = (nodes.get(offset + NODE_MIN + 1) - oy) * invDy;
+		float t0z = (nodes.get(offset + NODE_MIN + 2) - oz) * invDz;
+		float t1x = (nodes.get(offset + NODE_MAX) - ox) * invDx;
+		float t1y = (nodes.get(offset + NODE_MAX + 1) - oy) * invDy;
+		float t1z = (nodes.get(offset + NODE_MAX + 2) - oz) * invDz;
+		float tmin = Math.max(Math.max(Math.min(t0x, t1x), Math.min(t0y, t1y)), Math.max(Math.min(t0z, t1z), 0));
+		float tmax = Math.min(Math.min(Math.max(t0x, t1x), Math.max(t0y, t1y)), Math.min(Math.max(t0z, t1z), tFar));
+		return tmin <= tmax;
+	}
+
+	/**
+	 * Traverses the BVH of the scene to find the closest intersection between
+	 * the ray and the primitives, and stores its information in <i>s</i>.
+	 * @return true if the ray intersects an object, false otherwise
+	 */
+	public boolean intersect(float ox, float oy, float oz,
+							 float dx, float dy, float dz, PathState s) {
+		Bvh bvh = scene.bvh;
+		if (bvh.numNodes == 0)
+			return false;
+
+		FloatBuffer nodes = bvh.nodesF;
+		IntBuffer nodesI = bvh.nodesI;
+		IntBuffer primitives = bvh.primitivesI;
+		FloatBuffer boxes = scene.boxesF;
+		FloatBuffer spheres = scene.spheresF;
+		IntBuffer triangles = scene.trianglesI;
+		FloatBuffer vertices = scene.verticesF;
+		float invDx = 1 / dx, invDy = 1 / dy, invDz = 1 / dz;
+		float tFar = FAR;
+		boolean found = false;
+
+		int[] stack = s.stack;
+		int sp = 0;
+		int node = 0;
+		while (true) {
+			int o = node * NODE_WORDS;
+			if (intersectNode(nodes, o, ox, oy, oz, invDx, invDy, invDz, tFar)) {
+				int count = nodesI.get(o + NODE_COUNT);
+				int offset = nodesI.get(o + NODE_OFFSET);
+				if (count > 0) {
+					for (int i = offset; i < offset + count; i++) {
+						int ref = primitives.get(i);
+						int id = ref & INDEX_MASK;
+						int type = ref >>> TYPE_SHIFT;
+						if (type == BOX) {
+							float t = intersectBox(boxes, id * BOX_WORDS, ox, oy, oz, dx, dy, dz, tFar, s.tVec);
+							if (t > 0) {
+								tFar = t;
+								s.tNear = t;
+								s.tVecX = s.tVec[0];
+								s.tVecY = s.tVec[1];
+								s.tVecZ = s.tVec[2];
+								s.id = id;
+								s.type = BOX;
+								s.instance = -1;
+								found = true;
+							}
+						} else if (type == SPHERE) {
+							float t = intersectSphere(spheres, id * SPHERE_WORDS, ox, oy, oz, dx, dy, dz, NEAR, tFar);
+							if (t > 0) {
+								tFar = t;
+								s.tNear = t;
+								s.id = id;
+								s.type = SPHERE;
+								s.instance = -1;
+								found = true;
+							}
+						} else if (type == INSTANCE) {
+							float t = intersectInstance(id, ox, oy, oz, dx, dy, dz, tFar, s);
+							if (t > 0) {
+								tFar = t;
+								found = true;
+							}
+						} else {
+							float t = intersectTriangle(triangles, id * TRIANGLE_WORDS, vertices,
+									ox, oy, oz, dx, dy, dz, NEAR, tFar);
+							if (t > 0) {
+								tFar = t;
+								s.tNear = t;
+								s.id = id;
+								s.type = TRIANGLE;
+								s.instance = -1;
+								found = true;
+							}
+						}
+					}
+				} else {
+					// visit first the child closer to the origin along the split axis
+					int axis = -count - 1;
+					float d = axis == 0 ? dx : axis == 1 ? dy : dz;
+					if (d < 0) {
+						stack[sp++] = node + 1;
+						node = offset;
+					} else {
+						stack[sp++] = offset;
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if (sp == 0)
+				break;
+			node = stack[--sp];
+		}
+
+		return found;
+	}
+
+	/**
+	 * Traverses the bottom level hierarchy of the geometry of an instance with the ray moved to its object space,
+	 * where the distances along the ray are the same since the direction is not normalized, see {@link scene.Blas}.
+	 * @return the distance of the closest intersection before <i>tFar</i>, whose information is stored in <i>s</i>,
+	 * or a negative number if there is none
+	 */
+	private float intersectInstance(int instance, float ox, float oy, float oz,
+									float dx, float dy, float dz, float tFar, PathState s) {
+		FloatBuffer m = scene.instancesF;
+		int w = instance * INSTANCE_WORDS + INSTANCE_WORLD_TO_OBJECT;
+		float lox = m.get(w) * ox + m.get(w + 1) * oy + m.get(w + 2) * oz + m.get(w + 3);
+		float loy = m.get(w + 4) * ox + m.get(w + 5) * oy + m.get(w + 6) * oz + m.get(w + 7);
+		float loz = m.get(w + 8) * ox + m.get(w + 9) * oy + m.get(w + 10) * oz + m.get(w + 11);
+		float ldx = m.get(w) * dx + m.get(w + 1) * dy + m.get(w + 2) * dz;
+		float ldy = m.get(w + 4) * dx + m.get(w + 5) * dy + m.get(w + 6) * dz;
+		float ldz = m.get(w + 8) * dx + m.get(w + 9) * dy + m.get(w + 10) * dz;
+
+		FloatBuffer nodes = scene.blas.nodesF;
+		IntBuffer nodesI = scene.blas.nodesI;
+		IntBuffer triangles = scene.trianglesI;
+		FloatBuffer vertices = scene.verticesF;
+		float invDx = 1 / ldx, invDy = 1 / ldy, invDz = 1 / ldz;
+		float hit = -1;
+
+		int[] stack = s.instanceStack;
+		int sp = 0;
+		int node = scene.instancesI.get(instance * INSTANCE_WORDS + INSTANCE_ROOT);
+		while (true) {
+			int o = node * NODE_WORDS;
+			if (intersectNode(nodes, o, lox, loy, loz, invDx, invDy, invDz, tFar)) {
+				int count = nodesI.get(o + NODE_COUNT);
+				int offset = nodesI.get(o + NODE_OFFSET);
+				if (count > 0) {
+					// the leaves point straight to the triangles
+					for (int i = offset; i < offset + count; i++) {
+						float t = intersectTriangle(triangles, i * TRIANGLE_WORDS, vertices,
+								lox, loy, loz, ldx, ldy, ldz, NEAR, tFar);
+						if (t > 0) {
+							tFar = t;
+							hit = t;
+							s.tNear = t;
+							s.id = i;
+							s.type = TRIANGLE;
+							s.instance = instance;
+						}
+					}
+				} else {
+					int axis = -count - 1;
+					float d = axis == 0 ? ldx : axis == 1 ? ldy : ldz;
+					if (d < 0) {
+						stack[sp++] = node + 1;
+						node = offset;
+					} else {
+						stack[sp++] = offset;
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if (sp == 0)
+				break;
+			node = stack[--sp];
+		}
+		return hit;
+	}
+
+	/**
+	 * Solve the rendering equation.
+	 * The resulting color is stored in {@link PathState#color}.
+	 * @param seed the seed of the random numbers of the pixel, see {@link Sampler#pixelSeed(int, int)}
+	 * @param index the index of the sample in the pixel
+	 */
+	public void radiance(float ox, float oy, float oz,
+						 float dx, float dy, float dz,
+						 int seed, int index, PathState s) {
+		// amount of incoming light that gets reflected off the surface
+		float ar = 1, ag = 1, ab = 1;
+		float rr = 0, rg = 0, rb = 0;
+		float[] rand = s.rand;
+		float[] dir = s.dir;
+		float pdf = 0; // of the direction of the ray if sampled by a diffuse bounce, 0 otherwise
+
+		int bounce = 0;
+		s.primaryDistance = -1;
+		Arrays.fill(s.guideAlbedo, 0);
+		Arrays.fill(s.guideNormal, 0);
+		while (true) {
+			s.rays++;
+			if (!intersect(ox, oy, oz, dx, dy, dz, s)) {
+				// the ray escaped the scene, it takes the light of the environment
+				Environment environment = scene.environment;
+				if (!environment.isEmpty()) {
+					int texel = environment.texel(dx, dy, dz);
+					float weight = lightSampling && pdf > 0
+							? powerHeuristic(pdf, environment.pdf(texel, dy) / sampledLights()) : 1;
+					rr += ar * environment.radiance(texel, 0) * weight;
+					rg += ag * environment.radiance(texel, 1) * weight;
+					rb += ab * environment.radiance(texel, 2) * weight;
+				}
+				break;
+			}
+			if (bounce == 0)
+				s.primaryDistance = s.tNear;
+
+			float t = s.tNear;
+			float hx = ox + dx * t, hy = oy + dy * t, hz = oz + dz * t;
+			float nx, ny, nz;
+			int m;
+			if (s.type == SPHERE) {
+				FloatBuffer spheres = scene.spheresF;
+				int o = s.id * SPHERE_WORDS;
+				nx = hx - spheres.get(o + SPHERE_CENTER);
+				ny = hy - spheres.get(o + SPHERE_CENTER + 1);
+				nz = hz - spheres.get(o + SPHERE_CENTER + 2);
+				float inv = 1.0f / (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				nx *= inv; ny *= inv; nz *= inv;
+				m = scene.spheresI.get(o + SPHERE_MATERIAL);
+			} else if (s.type == TRIANGLE) {
+				// flat shading, the normal of the plane of the triangle
+				FloatBuffer vertices = scene.verticesF;
+				int o = s.id * TRIANGLE_WORDS;
+				int v0 = scene.trianglesI.get(o + TRIANGLE_VERTICES) * VERTEX_WORDS;
+				int v1 = scene.trianglesI.get(o + TRIANGLE_VERTICES + 1) * VERTEX_WORDS;
+				int v2 = scene.trianglesI.get(o + TRIANGLE_VERTICES + 2) * VERTEX_WORDS;
+				float e1x = vertices.get(v1) - vertices.get(v0);
+				float e1y = vertices.get(v1 + 1) - vertices.get(v0 + 1);
+				float e1z = vertices.get(v1 + 2) - vertices.get(v0 + 2);
+				float e2x = vertices.get(v2) - vertices.get(v0);
+				float e2y = vertices.get(v2 + 1) - vertices.get(v0 + 1);
+				float e2z = vertices.get(v2 + 2) - vertices.get(v0 + 2);
+				nx = e1y * e2z - e1z * e2y;
+				ny = e1z * e2x - e1x * e2z;
+				nz = e1x * e2y - e1y * e2x;
+				m = scene.trianglesI.get(o + TRIANGLE_MATERIAL);
+				if (s.instance >= 0) {
+					// normals move to the world with the transpose of the inverse of the transform
+					FloatBuffer w = scene.instancesF;
+					int i = s.instance * INSTANCE_WORDS + INSTANCE_WORLD_TO_OBJECT;
+					float x = nx, y = ny, z = nz;
+					nx = w.get(i) * x + w.get(i + 4) * y + w.get(i + 8) * z;
+					ny = w.get(i + 1) * x + w.get(i + 5) * y + w.get(i + 9) * z;
+					nz = w.get(i + 2) * x + w.get(i + 6) * y + w.get(i + 10) * z;
+					m = scene.instancesI.get(s.instance * INSTANCE_WORDS + INSTANCE_MATERIAL);
+				}
+				float inv = 1.0f / (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				nx *= inv; ny *= inv; nz *= inv;
+			} else {
+				nx = s.tVecX == t ? Math.signum(-dx) : 0;
+				ny = s.tVecY == t ? Math.signum(-dy) : 0;
+				nz = s.tVecZ == t ? Math.signum(-dz) : 0;
+				m = scene.boxesI.get(s.id * BOX_WORDS + BOX_MATERIAL);
+			}
+			FloatBuffer materials = scene.materialsF;
+			m *= MATERIAL_WORDS;
+			float cr = materials.get(m + MATERIAL_COLOR);
+			float cg = materials.get(m + MATERIAL_COLOR + 1);
+			float cb = materials.get(m + MATERIAL_COLOR + 2);
+			float emission = materials.get(m + MATERIAL_EMISSION);
+			int material = scene.materialsI.get(m + MATERIAL_TYPE);
+			// the first surface that is neither a mirror nor glass guides the denoiser, see path.glsl
+			if (s.guideAlbedo[3] == 0 && material != SPECULAR && material != REFRACTIVE) {
+				float facing = dx * nx + dy * ny + dz * nz < 0 ? 1 : -1;
+				s.guideAlbedo[0] = cr;
+				s.guideAlbedo[1] = cg;
+				s.guideAlbedo[2] = cb;
+				s.guideAlbedo[3] = 1;
+				s.guideNormal[0] = nx * facing;
+				s.guideNormal[1] = ny * facing;
+				s.guideNormal[2] = nz * facing;
+				s.guideNormal[3] = 1;
+			}
+			float weight = emissionWeight(ox, oy, oz, pdf, s);
+			rr += ar * emission * weight;
+			rg += ag * emission * weight;
+			rb += ab * emission * weight;
+			ar *= cr;
+			ag *= cg;
+			ab *= cb;
+			if (bounce == maxBounces)
+				break;
+
+			// two dimension blocks per bounce, SCATTER_BLOCK and LIGHT_BLOCK of path.glsl
+			Sampler.sample(sampler, seed, index, 2 * bounce, rand);
+			// russian roulette
+			if (bounce >= rouletteBounce) {
+				float prob = Math.max(Math.max(cr, cg), cb);
+				if (rand[3] > prob) {
+					break;
+				}
+			}
+
+			// flip the normal in case the ray originated inside the object
+			boolean outToIn = dx * nx + dy * ny + dz * nz < 0;
+			if (!outToIn) {
+				nx = -nx; ny = -ny; nz = -nz;
+			}
+
+			/*
+			 * Set the hit point as the origin of the bounce ray.
+			 * Because of float precision the hit point may be a tad inside the sphere,
+			 * so move the origin a bit along the normal to be sure we are outside the object.
+			 */
+			ox = hx + nx * 1E-3f;
+			oy = hy + ny * 1E-3f;
+			oz = hz + nz * 1E-3f;
+
+			if (material == SPECULAR) {
+				idealSpecularReflect(dx, dy, dz, nx, ny, nz, dir);
+				pdf = 0;
+			} else if (material == REFRACTIVE) {
+				idealSpecularTransmit(dx, dy, dz, nx, ny, nz, outToIn, rand, dir);
+				ox = hx - nx * 1E-5f;
+				oy = hy - ny * 1E-5f;
+				oz = hz - nz * 1E-5f;
+				ar *= dir[3];
+				ag *= dir[3];
+				ab *= dir[3];
+				pdf = 0;
+			} else {
+				if (lightSampling && sampledLights() > 0) {
+					Sampler.sample(sampler, seed, index, 2 * bounce + 1, s.lightRand);
+					sampleLights(ox, oy, oz, nx, ny, nz, s);
+					rr += ar * s.light[0];
+					rg += ag * s.light[1];
+					rb += ab * s.light[2];
+				}
+				diffuseReflect(nx, ny, nz, rand, dir);
+				pdf = (dir[0] * nx + dir[1] * ny + dir[2] * nz) / PI;
+			}
+			dx = dir[0];
+			dy = dir[1];
+			dz = dir[2];
+
+			bounce++;
+		}
+
+		s.color[0] = rr;
+		s.color[1] = rg;
+		s.color[2] = rb;
+	}
+
+	public static float powerHeuristic(float pdf, float otherPdf) {
+		float a = pdf * pdf;
+		return a / (a + otherPdf * otherPdf);
+	}
+
+	/**
+	 * @return the number of lights chosen from by the light samples: the emissive spheres and the environment
+	 */
+	private int sampledLights() {
+		return scene.numLights + (scene.environment.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * @param sphere the index of the emissive sphere
+	 * @return the pdf over the solid angle of sampling a direction from the origin towards the light,
+	 * 0 if the origin is inside it
+	 */
+	private float lightPdf(float ox, float oy, float oz, int sphere) {
+		FloatBuffer spheres = scene.spheresF;
+		int o = sphere * SPHERE_WORDS;
+		float ax = spheres.get(o + SPHERE_CENTER) - ox;
+		float ay = spheres.get(o + SPHERE_CENTER + 1) - oy;
+		float az = spheres.get(o + SPHERE_CENTER + 2) - oz;
+		float radius = spheres.get(o + SPHERE_RADIUS);
+		float sin2Max = radius * radius / (ax * ax + ay * ay + az * az);
+		if (sin2Max >= 1)
+			return 0;
+		// 1 - cosMax without the cancellation of the small cones
+		float solidAngle = TWO_PI * sin2Max / (1 + (float) Math.sqrt(1 - sin2Max));
+		return 1 / (sampledLights() * solidAngle);
+	}
+
+	/**
+	 * @param pdf the pdf of the direction of the ray, 0 if it was not sampled by a diffuse bounce
+	 * @param s the state holding the closest hit of the ray starting at (ox, oy, oz)
+	 * @return the MIS weight of the light emitted at the hit, which the previous bounce may also have sampled
+	 */
+	private float emissionWeight(float ox, float oy, float oz, float pdf, PathState s) {
+		// non-emissive spheres get a weight too, but they emit nothing
+		if (lightSampling && pdf > 0 && s.type == SPHERE && scene.numLights > 0)
+			return powerHeuristic(pdf, lightPdf(ox, oy, oz, s.id));
+		return 1;
+	}
+
+	/**
+	 * Next event estimation, as in <i>path.glsl</i>: samples a direction towards a random light and traces
+	 * a shadow ray. The point lit (ox, oy, oz) is just off the diffuse surface, whose normal (nx, ny, nz)
+	 * is on its side. Stores in {@link PathState#light} the light reaching the point from the sampled direction,
+	 * reflected by a white diffuse surface and weighted with MIS against the diffuse bounce.
+	 * Overwrites the hit information of <i>s</i>.
+	 */
+	private void sampleLights(float ox, float oy, float oz, float nx, float ny, float nz, PathState s) {
+		int count = sampledLights();
+		int light = Math.min((int) (s.lightRand[2] * count), count - 1);
+		if (light == scene.numLights)
+			sampleEnvironment(ox, oy, oz, nx, ny, nz, s);
+		else
+			Arrays.fill(s.light, sampleSphere(ox, oy, oz, nx, ny, nz, scene.lightsI.get(light), s));
+	}
+
+	/**
+	 * Samples a direction towards an emissive sphere, uniformly in the cone it subtends, see {@link #sampleLights}.
+	 * @param id the index of the sphere
+	 * @return the light reaching the point, the same for the three channels
+	 */
+	private float sampleSphere(float ox, float oy, float oz, float nx, float ny, float nz, int id, PathState s) {
+		float[] rand = s.lightRand;
+		FloatBuffer spheres = scene.spheresF;
+		int o = id * SPHERE_WORDS;
+		float ax = spheres.get(o + SPHERE_CENTER) - ox;
+		float ay = spheres.get(o + SPHERE_CENTER + 1) - oy;
+		float az = spheres.get(o + SPHERE_CENTER + 2) - oz;
+		float radius = spheres.get(o + SPHERE_RADIUS);
+		float distance2 = ax * ax + ay * ay + az * az;
+		float sin2Max = radius * radius / distance2;
+		if (sin2Max >= 1)
+			return 0;
+		float inv = 1 / (float) Math.sqrt(distance2);
+		float[] dir = s.lightDir;
+		sampleCone(ax * inv, ay * inv, az * inv, (float) Math.sqrt(1 - sin2Max), rand, dir);
+		float cosTheta = dir[0] * nx + dir[1] * ny + dir[2] * nz;
+		if (cosTheta <= 0)
+			return 0;
+
+		// the light is visible if it is the closest hit
+		s.rays++;
+		if (!intersect(ox, oy, oz, dir[0], dir[1], dir[2], s) || s.type != SPHERE || s.id != id)
+			return 0;
+
+		// the diffuse BRDF is color / PI, the color is already in the albedo
+		float pdf = lightPdf(ox, oy, oz, id);
+		float bsdfPdf = cosTheta / PI;
+		int m = scene.spheresI.get(o + SPHERE_MATERIAL) * MATERIAL_WORDS;
+		return scene.materialsF.get(m + MATERIAL_EMISSION) * bsdfPdf / pdf * powerHeuristic(pdf, bsdfPdf);
+	}
+
+	/**
+	 * Samples a direction towards the environment in proportion to the luminance of its texels,
+	 * see {@link #sampleLights}.
+	 */
+	private void sampleEnvironment(float ox, float oy, float oz, float nx, float ny, float nz, PathState s) {
+		Environment environment = scene.environment;
+		float[] light = s.light;
+		float[] dir = s.lightDir;
+		Arrays.fill(light, 0);
+		int texel = environment.sample(s.lightRand[0], s.lightRand[1], dir);
+		float pdf = environment.pdf(texel, dir[1]) / sampledLights();
+		float cosTheta = dir[0] * nx + dir[1] * ny + dir[2] * nz;
+		if (pdf == 0 || cosTheta <= 0)
+			return;
+
+		// the environment is visible if nothing is hit
+		s.rays++;
+		if (intersect(ox, oy, oz, dir[0], dir[1], dir[2], s))
+			return;
+
+		float bsdfPdf = cosTheta / PI;
+		float weight = bsdfPdf / pdf * powerHeuristic(pdf, bsdfPdf);
+		for (int k = 0; k < 3; k++)
+			light[k] = environment.radiance(texel, k) * weight;
+	}
+
+	/**
+	 * Traces samples of a pixel and adds them to the running sum of the framebuffer,
+	 * as done by the main function of the shader, without going past {@link TraceBackend#MAX_SAMPLES}.
+	 * The running variance of the luminance is also updated with Welford's algorithm.
+	 * @param frameRays the eye position and the four corner rays,
+	 *                  at offsets {@link #EYE}, {@link #RAY00}, ...
+	 * @param samples the number of samples to trace, indexed by the number of samples the pixel accumulated before them
+	 * @param threshold the relative standard error under which the pixel is converged, 0 to never converge
+	 * @param framebuffer RGBA framebuffer, rows ordered bottom to top like an OpenGL texture,
+	 *                    with the sum of the samples of each pixel and their number in the alpha channel
+	 * @param counts the number of samples of each pixel, copied in the alpha channel of the framebuffer
+	 * @param reprojected the history fading out as the samples are traced, see {@link #reprojectPixel}
+	 * @param variance sum of the squared differences from the mean luminance (M2) of each pixel
+	 * @param depth distance of the first hit along the primary ray of each pixel, negative on a miss
+	 * @param albedo RGBA sums of the albedo guiding the denoiser, with their number in the alpha channel
+	 * @param normal RGBA sums of the normal guiding the denoiser, with their number in the alpha channel
+	 * @return true if the pixel converged
+	 */
+	public boolean tracePixel(int x, int y, int width, int height,
+							  float[] frameRays, int samples, float threshold,
+							  float[] framebuffer, int[] counts, float[] reprojected, float[] variance, float[] depth,
+							  float[] albedo, float[] normal, PathState s) {
+		int p = y * width + x;
+		int n = counts[p];
+		// the rest of the tile may still be active
+		if (n >= TraceBackend.MAX_SAMPLES)
+			return true;
+		samples = Math.min(samples, TraceBackend.MAX_SAMPLES - n);
+
+		primaryDirection(x, y, width, height, frameRays, s.primary);
+		float dx = s.primary[0], dy = s.primary[1], dz = s.primary[2];
+		int i = p * 4;
+		// the sum of the traced samples, exact once the history faded out
+		float weight = historyWeight(reprojected, p, n);
+		float tr = framebuffer[i] - reprojected[i] * weight;
+		float tg = framebuffer[i + 1] - reprojected[i + 1] * weight;
+		float tb = framebuffer[i + 2] - reprojected[i + 2] * weight;
+		float mean = n > 0 ? luminance(tr, tg, tb) / n : 0;
+		float m2 = variance[p];
+		// summed locally first, so the stored sum is rounded once per call
+		float r = 0, g = 0, b = 0;
+		int seed = Sampler.pixelSeed(x + pixelOffsetX, y + pixelOffsetY);
+		for (int k = 0; k < samples; k++) {
+			radiance(frameRays[EYE], frameRays[EYE + 1], frameRays[EYE + 2],
+					dx, dy, dz, seed, n + sampleOffset, s);
+			r += s.color[0];
+			g += s.color[1];
+			b += s.color[2];
+			for (int c = 0; c < 4; c++) {
+				albedo[i + c] += s.guideAlbedo[c];
+				normal[i + c] += s.guideNormal[c];
+			}
+			n++;
+			float l = luminance(s.color[0], s.color[1], s.color[2]);
+			float delta = l - mean;
+			mean += delta / n;
+			m2 += delta * (l - mean);
+		}
+		weight = historyWeight(reprojected, p, n);
+		framebuffer[i] = tr + r + reprojected[i] * weight;
+		framebuffer[i + 1] = tg + g + reprojected[i + 1] * weight;
+		framebuffer[i + 2] = tb + b + reprojected[i + 2] * weight;
+		framebuffer[i + 3] = n + weight;
+		counts[p] = n;
+		variance[p] = m2;
+		depth[p] = s.primaryDistance;
+		s.samples += samples;
+		return converged(mean, m2, n, threshold);
+	}
+
+	/**
+	 * Normalizes the pixel position in [0, 1] and interpolates the corner rays.
+	 * @param direction the array in which to store the normalized direction
+	 */
+	private static void primaryDirection(int x, int y, int width, int height, float[] frameRays, float[] direction) {
+		float wx = (float) x / (width - 1);
+		float wy = (float) y / (height - 1);
+		float dx = mix(mix(frameRays[RAY00], frameRays[RAY01], wy), mix(frameRays[RAY10], frameRays[RAY11], wy), wx);
+		float dy = mix(mix(frameRays[RAY00 + 1], frameRays[RAY01 + 1], wy), mix(frameRays[RAY10 + 1], frameRays[RAY11 + 1], wy), wx);
+		float dz = mix(mix(frameRays[RAY00 + 2], frameRays[RAY01 + 2], wy), mix(frameRays[RAY10 + 2], frameRays[RAY11 + 2], wy), wx);
+		float inv = 1.0f / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		direction[0] = dx * inv;
+		direction[1] = dy * inv;
+		direction[2] = dz * inv;
+	}
+
+	/**
+	 * @return the samples the history of pixel p still counts as, after n samples were traced, see <i>history.glsl</i>
+	 */
+	private static float historyWeight(float[] reprojected, int p, int n) {
+		return Math.max(reprojected[p * 4 + 3] - n, 0);
+	}
+
+	/**
+	 * Starts the accumulation of a pixel after the camera moved, as done by <i>reproject.glsl</i>:
+	 * the first hit of the new primary ray is projected in the image accumulated from the previous
+	 * camera, whose average stands for at most {@link #HISTORY_SAMPLES} samples if the previous
+	 * first hit through that pixel is the same point. The pixel starts again from zero samples,
+	 * the average is kept apart and fades out as they are traced.
+	 * @param frameRays the rays of the new camera
+	 * @param previous the camera of the history
+	 * @param history the framebuffer accumulated from the previous camera
+	 * @param historyDepth the depth of the history
+	 * @param framebuffer the framebuffer in which to store the reprojected pixel
+	 * @param counts the number of samples of each pixel, see {@link #tracePixel}
+	 * @param reprojected the RGB average and the samples it stands for of each pixel
+	 */
+	public void reprojectPixel(int x, int y, int width, int height, float[] frameRays, CameraSnapshot previous,
+							   float[] history, float[] historyDepth,
+							   float[] framebuffer, int[] counts, float[] reprojected,
+							   float[] variance, float[] depth, PathState s) {
+		int p = y * width + x;
+		float r = 0, g = 0, b = 0, n = 0, d = -1;
+		primaryDirection(x, y, width, height, frameRays, s.primary);
+		float ex = frameRays[EYE], ey = frameRays[EYE + 1], ez = frameRays[EYE + 2];
+		float dx = s.primary[0], dy = s.primary[1], dz = s.primary[2];
+		if (intersect(ex, ey, ez, dx, dy, dz, s)) {
+			d = s.tNear;
+			float hx = ex + dx * d, hy = ey + dy * d, hz = ez + dz * d;
+
+			// the pixel of the previous image through which the point was seen
+			Matrix4f m = previous.viewProjMatrix;
+			float w = m.m03() * hx + m.m13() * hy + m.m23() * hz + m.m33();
+			if (w > 0) {
+				float cx = (m.m00() * hx + m.m10() * hy + m.m20() * hz + m.m30()) / w;
+				float cy = (m.m01() * hx + m.m11() * hy + m.m21() * hz + m.m31()) / w;
+				int qx = Math.round((cx + 1) * 0.5f * (width - 1));
+				int qy = Math.round((cy + 1) * 0.5f * (height - 1));
+				if (qx >= 0 && qx < width && qy >= 0 && qy < height) {
+					// the previous first hit through that pixel, as in Camera.update
+					int q = qy * width + qx;
+					float previousDepth = historyDepth[q];
+					Matrix4f inv = previous.invViewProjMatrix;
+					float nx = (float) qx / (width - 1) * 2 - 1, ny = (float) qy / (height - 1) * 2 - 1;
+					float nw = inv.m03() * nx + inv.m13() * ny + inv.m33();
+					float px = (inv.m00() * nx + inv.m10() * ny + inv.m30()) / nw - previous.position.x;
+					float py = (inv.m01() * nx + inv.m11() * ny + inv.m31()) / nw - previous.position.y;
+					float pz = (inv.m02() * nx + inv.m12() * ny + inv.m32()) / nw - previous.position.z;
+					float scale = previousDepth / (float) Math.sqrt(px * px + py * py + pz * pz);
+					float ox = previous.position.x + px * scale - hx;
+					float oy = previous.position.y + py * scale - hy;
+					float oz = previous.position.z + pz * scale - hz;
+
+					float count = history[q * 4 + 3];
+					// a different point was visible, e.g. the new one was occluded
+					if (previousDepth > 0 && count > 0
+							&& Math.sqrt(ox * ox + oy * oy + oz * oz) < MAX_DISTANCE * d) {
+						n = Math.min(count, HISTORY_SAMPLES);
+						r = history[q * 4] / count;
+						g = history[q * 4 + 1] / count;
+						b = history[q * 4 + 2] / count;
+					}
+				}
+			}
+		}
+
+		reprojected[p * 4] = r;
+		reprojected[p * 4 + 1] = g;
+		reprojected[p * 4 + 2] = b;
+		reprojected[p * 4 + 3] = n;
+		framebuffer[p * 4] = r * n;
+		framebuffer[p * 4 + 1] = g * n;
+		framebuffer[p * 4 + 2] = b * n;
+		framebuffer[p * 4 + 3] = n;
+		counts[p] = 0;
+		variance[p] = 0;
+		depth[p] = d;
+	}
+
+	public static float luminance(float r, float g, float b) {
+		return 0.2126f * r + 0.7152f * g + 0.0722f * b;
+	}
+
+	/**
+	 * @return true if the standard error of the mean luminance is below the threshold, relative to the mean,
+	 * or if the pixel accumulated {@link TraceBackend#MAX_SAMPLES} samples
+	 */
+	public static boolean converged(float mean, float m2, int samples, float threshold) {
+		if (samples >= TraceBackend.MAX_SAMPLES)
+			return true;
+		if (samples < MIN_SAMPLES)
+			return false;
+		float n = samples;
+		float error = (float) Math.sqrt(m2 / (n * (n - 1)));
+		return error < threshold * Math.max(mean, 1E-2f);
+	}
+
+	/**
+	 * @return x * (1-a) + y * a, as the GLSL mix function
+	 */
+	public static float mix(float x, float y, float a) {
+		return x * (1 - a) + y * a;
+	}
+}
@@ -0,0 +1,157 @@
+package cpu;
+
+/**
+ * Java port of <i>random.glsl</i> and <i>bounce.glsl</i>.
+ * Vectors are passed as float components and results are written
+ * into caller provided arrays, so that no object is allocated per ray.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Sampling {
+	public static final float PI = 3.14159265359f;
+	public static final float TWO_PI = 6.28318530718f;
+
+	public static final float N_OUT = 1.0f; // vacuum refractive index
+	public static final float N_IN = 1.5f;  // glass refractive index
+
+	/**
+	 * Samples a cosine weighted random point on the hemisphere around the
+	 * z axis and stores it in <i>out</i>.
+	 * source: https://stackoverflow.com/q/24758507
+	 */
+	public static void cosWeightedSampleOnHemisphere(float rx, float ry, float[] out) {
+		float cosTheta = (float) Math.sqrt(1.0f - rx);
+		float sinTheta = (float) Math.sqrt(rx);
+		float phi = TWO_PI * ry;
+
+		out[0] = sinTheta * (float) Math.cos(phi);
+		out[1] = sinTheta * (float) Math.sin(phi);
+		out[2] = cosTheta;
+	}
+
+	/**
+	 * Transforms the direction (sx, sy, sz) from the frame whose z axis is the normal (nx, ny, nz) to world space.
+	 * @param out the array in which to store the normalized direction
+	 */
+	public static void localToWorld(float sx, float sy, float sz, float nx, float ny, float nz, float[] out) {
+		float hx = nx, hy = ny, hz = nz;
+		float ax = Math.abs(hx), ay = Math.abs(hy), az = Math.abs(hz);
+		if (ax <= ay && ax <= az)
+			hx = 1.0f;
+		else if (ay <= ax && ay <= az)
+			hy = 1.0f;
+		else
+			hz = 1.0f;
+
+		// u = normalize(cross(h, normal))
+		float ux = hy * nz - hz * ny;
+		float uy = hz * nx - hx * nz;
+		float uz = hx * ny - hy * nx;
+		float inv = 1.0f / (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+		ux *= inv; uy *= inv; uz *= inv;
+
+		// v = normalize(cross(u, normal))
+		float vx = uy * nz - uz * ny;
+		float vy = uz * nx - ux * nz;
+		float vz = ux * ny - uy * nx;
+		inv = 1.0f / (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+		vx *= inv; vy *= inv; vz *= inv;
+
+		float dx = sx * ux + sy * vx + sz * nx;
+		float dy = sx * uy + sy * vy + sz * ny;
+		float dz = sx * uz + sy * vz + sz * nz;
+		inv = 1.0f / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		out[0] = dx * inv;
+		out[1] = dy * inv;
+		out[2] = dz * inv;
+	}
+
+	/**
+	 * Cosine weighted direction around the normal (nx, ny, nz).
+	 * @param rand the random numbers, only the first two are used
+	 * @param out the array in which to store the normalized direction
+	 */
+	public static void diffuseReflect(float nx, float ny, float nz, float[] rand, float[] out) {
+		cosWeightedSampleOnHemisphere(rand[0], rand[1], out);
+		localToWorld(out[0], out[1], out[2], nx, ny, nz, out);
+	}
+
+	/**
+	 * Uniformly distributed direction in the cone around the axis (ax, ay, az),
+	 * whose pdf is 1 / (2 * PI * (1 - cosMax)) over the solid angle.
+	 * @param cosMax the cosine of the half-angle of the cone
+	 * @param rand the random numbers, only the first two are used
+	 * @param out the array in which to store the normalized direction
+	 */
+	public static void sampleCone(float ax, float ay, float az, float cosMax, float[] rand, float[] out) {
+		float cosTheta = 1.0f - rand[0] * (1.0f - cosMax);
+		float sinTheta = (float) Math.sqrt(Math.max(0.0f, 1.0f - cosTheta * cosTheta));
+		float phi = TWO_PI * rand[1];
+		localToWorld(sinTheta * (float) Math.cos(phi), sinTheta * (float) Math.sin(phi), cosTheta, ax, ay, az, out);
+	}
+
+	/**
+	 * Reflection of an ideally reflecting material (mirror)
+	 */
+	public static void idealSpecularReflect(float dx, float dy, float dz,
+											float nx, float ny, float nz, float[] out) {
+		float k = 2.0f * (dx * nx + dy * ny + dz * nz);
+		out[0] = dx - k * nx;
+		out[1] = dy - k * ny;
+		out[2] = dz - k * nz;
+	}
+
+	/*
+	 * Refraction effect of refractive material (glass)
+	 */
+	public static float reflectance0(float n1, float n2) {
+		float sqrtR0 = (n1 - n2) / (n1 + n2);
+		return sqrtR0 * sqrtR0;
+	}
+
+	public static float schlickReflectance(float n1, float n2, float c) {
+		float R0 = reflectance0(n1, n2);
+		return R0 + (1.0f - R0) * c * c * c * c * c;
+	}
+
+	/**
+	 * Chooses between reflection and refraction on a glass surface.
+	 * @param rand the random numbers, only the third one is used
+	 * @param out the array in which to store the direction (0-2) and its weight (3)
+	 */
+	public static void idealSpecularTransmit(float dx, float dy, float dz,
+											 float nx, float ny, float nz,
+											 boolean outToIn, float[] rand, float[] out) {
+		idealSpecularReflect(dx, dy, dz, nx, ny, nz, out);
+		float nn = outToIn ? N_OUT / N_IN : N_IN / N_OUT;
+		float cosTheta = dx * nx + dy * ny + dz * nz;
+		float cos2Phi = 1.0f - nn * nn * (1.0f - cosTheta * cosTheta);
+
+		// total internal reflection
+		if (cos2Phi < 0) {
+			out[3] = 1.0f;
+			return;
+		}
+
+		float k = nn * cosTheta + (float) Math.sqrt(cos2Phi);
+		float tx = nn * dx - nx * k;
+		float ty = nn * dy - ny * k;
+		float tz = nn * dz - nz * k;
+		float inv = 1.0f / (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+		tx *= inv; ty *= inv; tz *= inv;
+		float c = 1.0f - (outToIn ? -cosTheta : -(tx * nx + ty * ny + tz * nz));
+
+		float Re = schlickReflectance(N_OUT, N_IN, c);
+		float pRe = 0.25f + 0.5f * Re;
+		if (rand[2] < pRe) {
+			out[3] = Re / pRe;
+		} else {
+			float Tr = 1.0f - Re;
+			float pTr = 1.0f - pRe;
+			out[0] = tx;
+			out[1] = ty;
+			out[2] = tz;
+			out[3] = Tr / pTr;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package distributed;
+
+import render.TraceBackend;
+import runner.Options;
+import utils.ImageWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Splits the image in tiles and the samples per pixel in ranges, and distributes the jobs,
+ * a range of samples of a tile each, among the {@link Worker}s connected to its TCP port.
+ * Workers can join at any time. The sums of the samples they send back are added into the
+ * image along with the number of samples of each pixel, so the ranges traced by different
+ * workers add up: since a worker indexes the samples of a job from its first one, the image
+ * has the same samples it would have if traced by a single process.
+ * <p>
+ * Each worker has up to {@link #JOBS_PER_WORKER} jobs in flight, so it starts the next one while
+ * the result of the previous one is sent. See {@link JobQueue} for the stealing of the jobs of
+ * slow workers and the jobs given back by the workers which disconnect.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Coordinator {
+	public static final int TILE_SIZE = 128;
+	public static final int JOB_SAMPLES = 32; // samples per pixel of a job
+	public static final int JOBS_PER_WORKER = 2;
+
+	private final Options options;
+	private final int width, height;
+	private final float[] image; // RGBA sums of the samples, with their number in alpha
+	private JobQueue queue;
+	private ServerSocket server;
+
+	/**
+	 * @param options the scene, the size of the image, the samples per pixel, the port and the output
+	 */
+	public Coordinator(Options options) {
+		this.options = options;
+		this.width = options.width;
+		this.height = options.height;
+		this.image = new float[width * height * 4];
+	}
+
+	/**
+	 * @return the jobs covering the image, all the tiles of a range of samples before the next range
+	 */
+	private List<Job> split() {
+		List<Job> jobs = new ArrayList<>();
+		int[] columns = bounds(width), rows = bounds(height);
+		for (int first = 0; first < options.spp; first += JOB_SAMPLES) {
+			int samples = Math.min(JOB_SAMPLES, options.spp - first);
+			for (int j = 0; j + 1 < rows.length; j++)
+				for (int i = 0; i + 1 < columns.length; i++)
+					jobs.add(new Job(jobs.size(), columns[i], rows[j],
+							columns[i + 1] - columns[i], rows[j + 1] - rows[j], first, samples));
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return the first pixel of each tile along a side of the image and the size of the side,
+	 * a last tile of a single pixel is merged with the previous one since the corner rays need two
+	 */
+	private static int[] bounds(int size) {
+		int tiles = (size + TILE_SIZE - 1) / TILE_SIZE;
+		if (tiles > 1 && size % TILE_SIZE == 1)
+			tiles--;
+		int[] bounds = new int[tiles + 1];
+		for (int i = 0; i < tiles; i++)
+			bounds[i] = i * TILE_SIZE;
+		bounds[tiles] = size;
+		return bounds;
+	}
+
+	/**
+	 * Serves a worker until all the jobs are done or the connection fails,
+	 * in which case its jobs are given back to the queue.
+	 */
+	private void serve(Socket socket) {
+		String name = socket.getRemoteSocketAddress().toString();
+		List<Job> inFlight = new ArrayList<>();
+		int completed = 0;
+		try (Socket s = socket) {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+			Protocol.writeMagic(out);
+			out.writeUTF(options.scene);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.flush();
+			Protocol.readMagic(in);
+			name += " (" + in.readUTF() + ")";
+			System.out.println("Worker " + name + " connected");
+
+			ByteBuffer buffer = ByteBuffer.allocate(TILE_SIZE * 2 * TILE_SIZE * 2 * 4 * Float.BYTES);
+			while (true) {
+				// only wait for a job, possibly stolen, when the worker is idle
+				for (Job job; inFlight.size() < JOBS_PER_WORKER
+						&& (job = inFlight.isEmpty() ? queue.take(inFlight) : queue.poll()) != null; ) {
+					Protocol.writeJob(out, job);
+					inFlight.add(job);
+				}
+				out.flush();
+				if (inFlight.isEmpty())
+					break;
+
+				if (in.readInt() != Protocol.RESULT)
+					throw new IOException("Unexpected message");
+				int id = in.readInt();
+				Job job = inFlight.stream().filter(j -> j.id == id).findFirst()
+						.orElseThrow(() -> new IOException("Result of an unknown job " + id));
+				FloatBuffer sums = Protocol.readResult(in, job, buffer);
+				inFlight.remove(job);
+				if (merge(job, sums))
+					completed++;
+			}
+			out.writeInt(Protocol.STOP);
+			out.flush();
+			System.out.printf("Worker %s completed %d jobs%n", name, completed);
+		} catch (IOException e) {
+			System.out.printf("Worker %s failed after %d jobs, %d given back: %s%n",
+					name, completed, inFlight.size(), e.getMessage());
+			queue.fail(inFlight);
+		} catch (InterruptedException e) {
+			queue.fail(inFlight);
+		}
+	}
+
+	/**
+	 * Adds the sums of the samples of a job to the image, unless another copy of the job was already added.
+	 * The job is completed while holding the image, so the image is only read once all the jobs are in it.
+	 * @return true if the sums were added
+	 */
+	private boolean merge(Job job, FloatBuffer sums) {
+		synchronized (image) {
+			if (!queue.complete(job))
+				return false;
+			for (int y = 0, k = 0; y < job.height; y++) {
+				for (int x = 0, i = ((job.y + y) * width + job.x) * 4; x < job.width; x++, i += 4) {
+					image[i] += sums.get(k++);
+					image[i + 1] += sums.get(k++);
+					image[i + 2] += sums.get(k++);
+					image[i + 3] += sums.get(k++);
+				}
+			}
+		}
+		return true;
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				Thread thread = new Thread(() -> serve(socket), "coordinator-" + socket.getPort());
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				// the server was closed
+			}
+		}
+	}
+
+	private void render() throws IOException, InterruptedException {
+		if (options.spp == 0)
+			throw new IllegalArgumentException("The coordinator needs the samples per pixel, --time is not supported");
+		List<Job> jobs = split();
+		queue = new JobQueue(jobs);
+		server = new ServerSocket(options.coordinatorPort);
+		Thread acceptor = new Thread(this::accept, "coordinator-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		System.out.printf("Waiting for workers on port %d: %d jobs of %d samples per pixel of %dx%d tiles%n",
+				server.getLocalPort(), jobs.size(), JOB_SAMPLES, TILE_SIZE, TILE_SIZE);
+
+		long start = System.nanoTime();
+		queue.awaitDone();
+		double seconds = (System.nanoTime() - start) / 1E9;
+		// the workers still connected get their STOP message from their threads
+		server.close();
+
+		float[] pixels = getImage();
+		TraceBackend.normalize(pixels);
+		StringJoiner files = new StringJoiner(" and ");
+		for (ImageWriter.Format format : options.formats) {
+			File file = new File(options.output + "." + format.extension);
+			ImageWriter.write(format, FloatBuffer.wrap(pixels), width, height, false, file);
+			files.add(file.getPath());
+		}
+		System.out.printf("%dx%d, %d spp in %.2f s, %d jobs stolen by idle workers, %d given back by failed workers%n",
+				width, height, options.spp, seconds, queue.getStolen(), queue.getRedispatched());
+		System.out.println("Saved " + files);
+	}
+
+	/**
+	 * @return the jobs of the render, null before it starts
+	 */
+	JobQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * @return a copy of the RGBA sums of the samples merged so far, with their number in alpha
+	 */
+	float[] getImage() {
+		synchronized (image) {
+			return image.clone();
+		}
+	}
+
+	/**
+	 * Renders and saves the image, printing any error.
+	 * @return true if the image was saved, false otherwise
+	 */
+	public boolean run() {
+		try {
+			render();
+			return true;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package distributed;
+
+/**
+ * A unit of work of a distributed render: a range of samples of a tile of the image.
+ * Coordinates are in pixels, rows counted from the bottom like the framebuffer.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Job {
+	public final int id;
+	public final int x, y, width, height;
+	public final int firstSample, samples; // index of the first sample of each pixel, number of samples
+
+	int copies; // workers tracing the job, updated by the JobQueue
+
+	public Job(int id, int x, int y, int width, int height, int firstSample, int samples) {
+		this.id = id;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.firstSample = firstSample;
+		this.samples = samples;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("job %d: %dx%d at (%d, %d), samples %d-%d",
+				id, width, height, x, y, firstSample, firstSample + samples - 1);
+	}
+}
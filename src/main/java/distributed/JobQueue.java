@@ -0,0 +1,143 @@
+package distributed;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The jobs of a distributed render, shared by the threads serving the workers.
+ * Workers pull the jobs, so the fast ones simply take more of them. Once no job is left
+ * to start, an idle worker steals a job still running on another one and traces it
+ * again: whichever copy completes first is merged, the other one is discarded.
+ * The jobs of a worker that fails go back to the front of the queue, unless another
+ * copy is still running.
+ *
+ * @author Marco Di Rienzo
+ */
+public class JobQueue {
+	public static final int MAX_COPIES = 2; // of a job running at the same time
+
+	private final Deque<Job> pending = new ArrayDeque<>();
+	private final Set<Job> running = new LinkedHashSet<>(); // oldest dispatched first
+	private final boolean[] done;
+	private int remaining;
+	private int stolen, redispatched;
+
+	/**
+	 * @param jobs all the jobs of the render, with ids from 0 to jobs.size() - 1, in the order to dispatch them
+	 */
+	public JobQueue(List<Job> jobs) {
+		pending.addAll(jobs);
+		done = new boolean[jobs.size()];
+		remaining = jobs.size();
+	}
+
+	/**
+	 * Takes the next job to start, stealing one if none is left, and waits if none can be stolen.
+	 * @param owned the jobs already running on the worker, which are never stolen by it
+	 * @return the job, or null once all the jobs are done
+	 */
+	public synchronized Job take(Collection<Job> owned) throws InterruptedException {
+		while (remaining > 0) {
+			Job job = poll();
+			if (job == null)
+				job = steal(owned);
+			if (job != null)
+				return job;
+			wait();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the next job to start without stealing, or null if none is left
+	 */
+	public synchronized Job poll() {
+		Job job = pending.poll();
+		if (job != null)
+			dispatch(job);
+		return job;
+	}
+
+	/**
+	 * @return the oldest running job with the fewest copies not owned by the worker, null if none
+	 */
+	private Job steal(Collection<Job> owned) {
+		Job best = null;
+		for (Job job : running)
+			if (job.copies < MAX_COPIES && !owned.contains(job) && (best == null || job.copies < best.copies))
+				best = job;
+		if (best != null) {
+			best.copies++;
+			stolen++;
+		}
+		return best;
+	}
+
+	private void dispatch(Job job) {
+		job.copies++;
+		running.add(job);
+	}
+
+	/**
+	 * Records the result of a copy of the job.
+	 * @return true if it is the first one, to be merged in the image, false if it must be discarded
+	 */
+	public synchronized boolean complete(Job job) {
+		job.copies--;
+		if (done[job.id])
+			return false;
+		done[job.id] = true;
+		running.remove(job);
+		remaining--;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Gives back the jobs of a worker which failed, they are started again if no other copy is running.
+	 */
+	public synchronized void fail(Collection<Job> jobs) {
+		for (Job job : jobs) {
+			job.copies--;
+			if (!done[job.id] && job.copies == 0) {
+				running.remove(job);
+				pending.addFirst(job);
+				redispatched++;
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits for all the jobs to be done.
+	 */
+	public synchronized void awaitDone() throws InterruptedException {
+		while (remaining > 0)
+			wait();
+	}
+
+	/**
+	 * @return the number of jobs left to complete
+	 */
+	public synchronized int getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * @return the number of copies of running jobs started by idle workers
+	 */
+	public synchronized int getStolen() {
+		return stolen;
+	}
+
+	/**
+	 * @return the number of jobs started again after their worker failed
+	 */
+	public synchronized int getRedispatched() {
+		return redispatched;
+	}
+}
@@ -0,0 +1,90 @@
+package distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The binary messages exchanged by the {@link Coordinator} and its {@link Worker}s over TCP,
+ * all integers and floats big-endian as written by DataOutputStream.
+ * <pre>
+ * coordinator hello: MAGIC, VERSION, scene path (UTF), image width, image height
+ * worker hello:      MAGIC, VERSION, description of the worker (UTF)
+ * job:               JOB, id, x, y, width, height, first sample, samples
+ * stop:              STOP
+ * result:            RESULT, id, width * height * 4 floats
+ * </pre>
+ * A result holds the RGBA sums of the samples of the pixels of the tile, rows from the bottom,
+ * as accumulated by the backend of the worker: the number of samples of each pixel is in alpha.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Protocol {
+	public static final int MAGIC = 0x50545243; // "PTRC"
+	public static final int VERSION = 2;
+	public static final int JOB = 1, STOP = 2, RESULT = 3;
+	public static final int DEFAULT_PORT = 7077;
+
+	/**
+	 * Checks the first fields of a hello message.
+	 * @throws IOException if the peer is not speaking this protocol or another version of it
+	 */
+	static void readMagic(DataInputStream in) throws IOException {
+		int magic = in.readInt(), version = in.readInt();
+		if (magic != MAGIC)
+			throw new IOException("Not a path tracer peer");
+		if (version != VERSION)
+			throw new IOException("Protocol version " + version + ", expected " + VERSION);
+	}
+
+	static void writeMagic(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	static void writeJob(DataOutputStream out, Job job) throws IOException {
+		out.writeInt(JOB);
+		out.writeInt(job.id);
+		out.writeInt(job.x);
+		out.writeInt(job.y);
+		out.writeInt(job.width);
+		out.writeInt(job.height);
+		out.writeInt(job.firstSample);
+		out.writeInt(job.samples);
+	}
+
+	/**
+	 * Reads the fields of a job after its type.
+	 */
+	static Job readJob(DataInputStream in) throws IOException {
+		return new Job(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+				in.readInt(), in.readInt());
+	}
+
+	/**
+	 * @param sums the RGBA sums of the pixels of the job, 4 floats each, possibly followed by unused ones
+	 * @param buffer of at least sums.length floats, reused by the calls
+	 */
+	static void writeResult(DataOutputStream out, Job job, float[] sums, ByteBuffer buffer) throws IOException {
+		int floats = job.width * job.height * 4;
+		out.writeInt(RESULT);
+		out.writeInt(job.id);
+		buffer.clear();
+		buffer.asFloatBuffer().put(sums, 0, floats);
+		out.write(buffer.array(), 0, floats * Float.BYTES);
+	}
+
+	/**
+	 * Reads the sums of a result after its type and id.
+	 * @param buffer of at least width * height * 4 floats, reused by the calls
+	 * @return the view of the buffer holding the sums
+	 */
+	static FloatBuffer readResult(DataInputStream in, Job job, ByteBuffer buffer) throws IOException {
+		int size = job.width * job.height * 4 * Float.BYTES;
+		in.readFully(buffer.array(), 0, size);
+		buffer.clear().limit(size);
+		return buffer.asFloatBuffer();
+	}
+}
@@ -0,0 +1,179 @@
+package distributed;
+
+import cpu.CpuBackend;
+import render.Camera;
+import render.GpuBackend;
+import render.TraceBackend;
+import render.WindowManager;
+import runner.Options;
+import scene.Scene;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.glFinish;
+
+/**
+ * Traces the jobs of a {@link Coordinator} headless, on the CPU or on the GPU as chosen by the options,
+ * and sends back the sums of their samples with their number. The scene and the size of the image are given by the
+ * coordinator, the scene file must be readable by the worker at the same path.
+ * <p>
+ * A job is traced by a backend of the size of its tile, whose camera only sees the tile,
+ * with the samples indexed from the first one of the job, see {@link TraceBackend#setSampleOffset}.
+ * The backends are kept by size, since all the tiles but the ones on the edges have the same.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Worker {
+	private final Options options;
+	private final String host;
+	private final int port;
+
+	private Scene scene;
+	private int width, height; // of the whole image
+	private final Map<Long, TraceBackend> backends = new HashMap<>();
+	private WindowManager windowManager; // holds the OpenGL context of the GPU backends
+
+	/**
+	 * @param options the backend and its settings, and the address of the coordinator
+	 */
+	public Worker(Options options) {
+		this.options = options;
+		String address = options.worker;
+		int colon = address.lastIndexOf(':');
+		this.host = colon >= 0 ? address.substring(0, colon) : address;
+		this.port = colon >= 0 ? Integer.parseInt(address.substring(colon + 1)) : Protocol.DEFAULT_PORT;
+	}
+
+	/**
+	 * @return a backend for the tiles of the given size, created on first use
+	 */
+	private TraceBackend backend(int tileWidth, int tileHeight) throws IOException {
+		long key = (long) tileWidth << 32 | tileHeight;
+		TraceBackend backend = backends.get(key);
+		if (backend != null)
+			return backend;
+		if (options.cpu) {
+			CpuBackend cpu = new CpuBackend(scene, tileWidth, tileHeight, options.threads);
+			cpu.setLightSampling(options.lightSampling);
+			cpu.setSampler(options.sampler);
+			cpu.setMaxBounces(options.maxBounces);
+			cpu.setRouletteBounce(options.rouletteBounce);
+			backend = cpu;
+		} else {
+			if (windowManager == null) {
+				windowManager = new WindowManager(tileWidth, tileHeight, "Ray Tracing");
+				windowManager.createOffscreenWindow();
+			}
+			backend = new GpuBackend(scene, GpuBackend.createFramebufferTexture(tileWidth, tileHeight),
+					tileWidth, tileHeight, options.programCache(), options.shaderDefines(), false, options.wavefront);
+		}
+		// every job starts from zero samples
+		backend.setReprojection(false);
+		backends.put(key, backend);
+		return backend;
+	}
+
+	/**
+	 * Traces the samples of the job.
+	 * @param sums where to store the RGBA sums of the samples of each pixel, with their number in alpha
+	 */
+	private void trace(Job job, Camera camera, Camera tileCamera, float[] sums) throws IOException {
+		TraceBackend backend = backend(job.width, job.height);
+		tileCamera.setTile(camera, job.x, job.y, job.width, job.height, width, height);
+		backend.setSampleOffset(job.x, job.y, job.firstSample);
+		backend.reset();
+		for (int traced = 0; traced < job.samples; ) {
+			int samples = Math.min(options.samplesPerDispatch, job.samples - traced);
+			backend.setSamplesPerDispatch(samples);
+			if (backend.trace(tileCamera))
+				traced += samples;
+			else
+				// the device is busy with the queued frames
+				glFinish();
+		}
+
+		backend.readSums(sums);
+	}
+
+	private void work() throws IOException {
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			Protocol.readMagic(in);
+			String scenePath = in.readUTF();
+			width = in.readInt();
+			height = in.readInt();
+			Protocol.writeMagic(out);
+			out.writeUTF(options.cpu ? "CPU, " + options.threads + " threads" : "GPU");
+			out.flush();
+
+			scene = Scene.load(scenePath);
+			Camera camera = scene.camera;
+			camera.update(width, height);
+			Camera tileCamera = new Camera();
+			System.out.printf("Tracing %s at %dx%d for %s:%d%n", scenePath, width, height, host, port);
+
+			int capacity = Coordinator.TILE_SIZE * 2 * Coordinator.TILE_SIZE * 2;
+			float[] sums = new float[capacity * 4];
+			ByteBuffer buffer = ByteBuffer.allocate(sums.length * Float.BYTES);
+			int jobs = 0;
+			for (int type; (type = readType(in)) != Protocol.STOP; jobs++) {
+				if (type != Protocol.JOB)
+					throw new IOException("Unexpected message");
+				Job job = Protocol.readJob(in);
+				trace(job, camera, tileCamera, sums);
+				Protocol.writeResult(out, job, sums, buffer);
+				out.flush();
+			}
+			System.out.printf("Done, %d jobs traced%n", jobs);
+		}
+	}
+
+	/**
+	 * @return the type of the next message, STOP if the coordinator closed the connection,
+	 * e.g. once the image is done while the worker was tracing a job stolen by another one
+	 */
+	private static int readType(DataInputStream in) throws IOException {
+		try {
+			return in.readInt();
+		} catch (EOFException e) {
+			return Protocol.STOP;
+		}
+	}
+
+	private void destroy() {
+		for (TraceBackend backend : backends.values())
+			backend.destroy();
+		backends.clear();
+		if (windowManager != null) {
+			windowManager.destroyWindow();
+			windowManager.terminate();
+		}
+	}
+
+	/**
+	 * Traces the jobs until the coordinator stops the worker, printing any error.
+	 * @return true if the worker was stopped by the coordinator, false otherwise
+	 */
+	public boolean run() {
+		try {
+			work();
+			return true;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			destroy();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package metrics;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Periodically writes the {@link RenderMetrics} as JSON lines, either appended to a file
+ * or sent to every client connected to a TCP port on the loopback interface,
+ * so that long-running renders can be scraped by external tools.
+ * Runs on a daemon thread and never slows down the render loop.
+ *
+ * @author Marco Di Rienzo
+ */
+public class MetricsReporter implements Closeable {
+	private final RenderMetrics metrics;
+	private final long interval; // milliseconds
+	private final Thread thread;
+
+	private Writer file;
+	private ServerSocket server;
+	private final List<Writer> clients = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param metrics the metrics to report
+	 * @param destination a TCP port number or the path of the file to append to
+	 * @param interval the time between two reports in seconds
+	 * @throws IOException if the file cannot be opened or the port cannot be bound
+	 */
+	public MetricsReporter(RenderMetrics metrics, String destination, float interval) throws IOException {
+		this.metrics = metrics;
+		this.interval = Math.max((long) (interval * 1000), 1);
+
+		int port = -1;
+		try {
+			port = Integer.parseInt(destination);
+		} catch (NumberFormatException ignored) {
+		}
+		if (port >= 0) {
+			server = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+			Thread acceptor = new Thread(this::accept, "metrics-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		} else {
+			file = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(destination, true), StandardCharsets.UTF_8));
+		}
+
+		thread = new Thread(this::report, "metrics-reporter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				socket.shutdownInput();
+				clients.add(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+			} catch (IOException e) {
+				// the server was closed
+			}
+		}
+	}
+
+	private void report() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(interval);
+				write(metrics.snapshot().toJson());
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	private synchronized void write(String line) {
+		if (file != null) {
+			try {
+				file.write(line);
+				file.write('\n');
+				file.flush();
+			} catch (IOException e) {
+				System.err.println("Cannot write the metrics: " + e.getMessage());
+			}
+		}
+		for (Writer client : clients) {
+			try {
+				client.write(line);
+				client.write('\n');
+				client.flush();
+			} catch (IOException e) {
+				// the client disconnected
+				clients.remove(client);
+			}
+		}
+	}
+
+	/**
+	 * Writes the final metrics and releases the file or the port.
+	 */
+	@Override
+	public void close() throws IOException {
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		write(metrics.snapshot().toJson());
+
+		if (file != null)
+			file.close();
+		if (server != null) {
+			server.close();
+			for (Writer client : clients) {
+				try {
+					client.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+}
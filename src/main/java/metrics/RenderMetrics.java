@@ -0,0 +1,195 @@
+package metrics;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Rolling statistics of the last {@link #WINDOW} frames of a render:
+ * percentiles of the frame time and of the time spent by the device in each stage,
+ * and the rates of traced samples and rays.
+ * Since the image may be presented less often than it is traced, the shares of the
+ * wall-clock time the device spent tracing and presenting are also estimated, to tell
+ * whether the tracer saturates the device.
+ * Frames and presentations are recorded by the render loop and the statistics can be polled
+ * from any thread with {@link #snapshot()}.
+ *
+ * @author Marco Di Rienzo
+ */
+public class RenderMetrics {
+	public static final int WINDOW = 256;
+
+	private final long start = System.nanoTime();
+	private final Window frameTimes = new Window(), traceTimes = new Window(), presentTimes = new Window();
+	// timestamps and cumulative counters of the frames in the window, to compute the rates
+	private final long[] times = new long[WINDOW], samples = new long[WINDOW], rays = new long[WINDOW];
+	private int frames;
+	private int activePixels;
+	private long firstFrame; // start time of the first recorded frame
+	// sums of the measured device times and number of passes, to estimate the shares of the device time
+	private long traceTotal, presentTotal;
+	private int tracesMeasured, presents, presentsMeasured;
+
+	/**
+	 * Durations in nanoseconds of the last {@link #WINDOW} measurements of a stage.
+	 */
+	private static final class Window {
+		final long[] values = new long[WINDOW];
+		int count, next;
+
+		void add(long value) {
+			values[next] = value;
+			next = (next + 1) % WINDOW;
+			count = Math.min(count + 1, WINDOW);
+		}
+
+		/**
+		 * @return the 50th, 90th and 99th percentiles in milliseconds, NaN if there are no measurements
+		 */
+		double[] percentiles() {
+			double[] p = {Double.NaN, Double.NaN, Double.NaN};
+			if (count == 0)
+				return p;
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			double[] ranks = {0.5, 0.9, 0.99};
+			for (int i = 0; i < ranks.length; i++) {
+				// nearest rank
+				int index = (int) Math.ceil(ranks[i] * count) - 1;
+				p[i] = sorted[Math.max(index, 0)] / 1E6;
+			}
+			return p;
+		}
+	}
+
+	/**
+	 * Immutable copy of the statistics at a point in time.
+	 * Times are in milliseconds, NaN when a stage was never measured.
+	 */
+	public static final class Snapshot {
+		public final double uptime; // seconds
+		public final int frames;
+		public final double[] frameTime, traceTime, presentTime; // 50th, 90th, 99th percentiles
+		public final double samplesPerSecond, raysPerSecond;
+		public final long samples, rays;
+		public final int activePixels;
+		public final int presents;
+		// fractions of the wall-clock time since the first frame the device spent in each stage
+		public final double traceShare, presentShare;
+
+		private Snapshot(RenderMetrics m) {
+			uptime = (System.nanoTime() - m.start) / 1E9;
+			frames = m.frames;
+			frameTime = m.frameTimes.percentiles();
+			traceTime = m.traceTimes.percentiles();
+			presentTime = m.presentTimes.percentiles();
+			activePixels = m.activePixels;
+
+			int last = (m.frames - 1 + WINDOW) % WINDOW;
+			int first = m.frames > WINDOW ? m.frames % WINDOW : 0;
+			samples = m.frames > 0 ? m.samples[last] : 0;
+			rays = m.frames > 0 ? m.rays[last] : 0;
+			double seconds = (m.times[last] - m.times[first]) / 1E9;
+			samplesPerSecond = seconds > 0 ? (samples - m.samples[first]) / seconds : 0;
+			raysPerSecond = seconds > 0 ? (rays - m.rays[first]) / seconds : 0;
+
+			presents = m.presents;
+			double elapsed = m.frames > 0 ? System.nanoTime() - m.firstFrame : 0;
+			traceShare = share(m.traceTotal, m.tracesMeasured, m.frames, elapsed);
+			presentShare = share(m.presentTotal, m.presentsMeasured, m.presents, elapsed);
+		}
+
+		/**
+		 * @return the average measured time times the number of passes, over the elapsed time
+		 */
+		private static double share(long total, int measured, int passes, double elapsed) {
+			if (measured == 0 || elapsed <= 0)
+				return Double.NaN;
+			return Math.min((double) total / measured * passes / elapsed, 1);
+		}
+
+		/**
+		 * @return the statistics as a single line JSON object
+		 */
+		public String toJson() {
+			return String.format(Locale.ROOT,
+					"{\"uptime\":%.3f,\"frames\":%d,\"frameMs\":%s,\"traceMs\":%s,\"presentMs\":%s,"
+							+ "\"samplesPerSecond\":%.1f,\"raysPerSecond\":%.1f,\"samples\":%d,\"rays\":%d,"
+							+ "\"activePixels\":%d,\"presents\":%d,\"traceShare\":%s,\"presentShare\":%s}",
+					uptime, frames, json(frameTime), json(traceTime), json(presentTime),
+					samplesPerSecond, raysPerSecond, samples, rays, activePixels,
+					presents, json(traceShare), json(presentShare));
+		}
+
+		private static String json(double value) {
+			return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.4f", value);
+		}
+
+		private static String json(double[] percentiles) {
+			if (Double.isNaN(percentiles[0]))
+				return "null";
+			return String.format(Locale.ROOT, "{\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f}",
+					percentiles[0], percentiles[1], percentiles[2]);
+		}
+
+		@Override
+		public String toString() {
+			String s = String.format(Locale.ROOT,
+					"frame %.2f/%.2f/%.2f ms, trace %.2f/%.2f/%.2f ms (p50/p90/p99), %.3f Msamples/s, %.3f Mrays/s",
+					frameTime[0], frameTime[1], frameTime[2], traceTime[0], traceTime[1], traceTime[2],
+					samplesPerSecond / 1E6, raysPerSecond / 1E6);
+			if (!Double.isNaN(traceShare))
+				s += String.format(Locale.ROOT, ", device %.1f%% tracing", traceShare * 100);
+			if (!Double.isNaN(presentShare))
+				s += String.format(Locale.ROOT, " %.1f%% presenting", presentShare * 100);
+			return s;
+		}
+	}
+
+	/**
+	 * Records a traced frame.
+	 * @param frameTime the wall-clock duration of the frame on the host in nanoseconds
+	 * @param traceTime the time spent tracing on the device, or -1 if not measured in this frame
+	 * @param totalSamples the number of samples traced since the start
+	 * @param totalRays the number of rays traced since the start
+	 * @param activePixels the number of pixels which did not converge yet
+	 */
+	public synchronized void recordFrame(long frameTime, long traceTime,
+										 long totalSamples, long totalRays, int activePixels) {
+		frameTimes.add(frameTime);
+		if (traceTime >= 0) {
+			traceTimes.add(traceTime);
+			traceTotal += traceTime;
+			tracesMeasured++;
+		}
+
+		int i = frames % WINDOW;
+		times[i] = System.nanoTime();
+		if (frames == 0)
+			firstFrame = times[i] - frameTime;
+		samples[i] = totalSamples;
+		rays[i] = totalRays;
+		this.activePixels = activePixels;
+		frames++;
+	}
+
+	/**
+	 * Records that the image was presented on the screen.
+	 * @param presentTime the time spent rendering the image on the device by this or by
+	 *                    a previous presentation, or -1 if no new measurement is available
+	 */
+	public synchronized void recordPresent(long presentTime) {
+		presents++;
+		if (presentTime >= 0) {
+			presentTimes.add(presentTime);
+			presentTotal += presentTime;
+			presentsMeasured++;
+		}
+	}
+
+	/**
+	 * @return the current statistics
+	 */
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+}
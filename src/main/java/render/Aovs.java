@@ -0,0 +1,27 @@
+package render;
+
+/**
+ * The auxiliary buffers a {@link TraceBackend} accumulates next to the image, which guide the denoiser.
+ * Same layout of the textures of the GPU backend, rows ordered bottom to top.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Aovs {
+	public final int width, height;
+	/**
+	 * RGBA, the albedo and the normal (facing the primary ray) of the first surface along each path
+	 * that is neither a mirror nor glass, summed over the samples, with their number in the alpha channel
+	 */
+	public final float[] albedo, normal;
+	public final float[] depth; // distance of the first hit along the primary ray, negative on a miss
+	public final float[] variance; // sum of the squared differences from the mean luminance (M2)
+
+	public Aovs(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.albedo = new float[width * height * 4];
+		this.normal = new float[width * height * 4];
+		this.depth = new float[width * height];
+		this.variance = new float[width * height];
+	}
+}
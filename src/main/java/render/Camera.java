@@ -0,0 +1,163 @@
+package render;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Pinhole camera described by the eye frame and a perspective projection.
+ * Computes the four corner rays of the viewing frustum that every tracing
+ * backend interpolates to find the direction of the ray through a pixel.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Camera {
+	/*
+	 * Vectors defining the Eye.
+	 * Representation of the eye frame as described in
+	 * Lecture 03-B "Frames in Graphics", slide 25.
+	 */
+	public final Vector3f position = new Vector3f(3.0f, 3.5f, 2.0f);
+	public final Vector3f lookAt = new Vector3f(3.0f, 1.5f, 16.0f);
+	public final Vector3f up = new Vector3f(0.0f, 1.0f, 0.0f);
+
+	private float fov = 45.0f; // [0, 180] degrees
+	private final float Z_NEAR = 1f, Z_FAR = 2f;
+	private final Matrix4f viewMatrix = new Matrix4f();
+	private final Matrix4f projMatrix = new Matrix4f();
+	private final Matrix4f viewProjMatrix = new Matrix4f();
+	private final Matrix4f invViewProjMatrix = new Matrix4f();
+
+	// corner rays of the frustum (world coordinates), updated by update(...)
+	public final Vector3f ray00 = new Vector3f();
+	public final Vector3f ray01 = new Vector3f();
+	public final Vector3f ray10 = new Vector3f();
+	public final Vector3f ray11 = new Vector3f();
+
+	/**
+	 * Recomputes the view and projection matrices and the frustum corner rays.
+	 * @param width the width of the image in pixels
+	 * @param height the height of the image in pixels
+	 */
+	public void update(int width, int height) {
+		// set the viewProjMatrix as we did in the labs
+		projMatrix.setPerspective(
+				(float) Math.toRadians(fov),
+				(float) width / height,
+				Z_NEAR, Z_FAR);
+		viewMatrix.setLookAt(position, lookAt, up);
+
+		/*
+		 * Our frustum is defined by the four rays originating from the eye and passing
+		 * through the near plane corners as described in:
+		 * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29#camera
+		 * The corners of our window are in normalized device coordinates introduced in
+		 * Lecture 04-B "Camera Model: Projection", so they would be: (-1,-1), (-1,1), (1,-1) and (1,1)
+		 * Thus we must first convert them to world coordinates to then find the rays.
+		 * We know that (norm dev coord) = ProjMatrix * ViewMatrix * (world coord)
+		 * => (world coord) = (ProjMatrix * ViewMatrix)^(-1) * (norm dev coord)
+		 * we also need to divide them by the 4th coordinate because it is not necessarily one:
+		 * (world coord affine) = (world coord) / w.
+		 * Finally, we subtract the corner and the eye to obtain the ray vector.
+		 */
+
+		// invViewProjMatrix = (projMatrix * viewMatrix)^(-1)
+		viewProjMatrix.set(projMatrix).mul(viewMatrix);
+		invViewProjMatrix.set(viewProjMatrix).invert();
+		// corner (-1,-1): invViewProjMatrix * corner; corner /= corner.w; ray = corner - eye
+		ray00.set(-1, -1, 0).mulProject(invViewProjMatrix).sub(position);
+
+		// do the same for all the corners
+		ray01.set(-1, 1, 0).mulProject(invViewProjMatrix).sub(position);
+		ray10.set(1, -1, 0).mulProject(invViewProjMatrix).sub(position);
+		ray11.set(1, 1, 0).mulProject(invViewProjMatrix).sub(position);
+	}
+
+	/**
+	 * Makes this camera see a tile of the image of another one: the eye is the same and the
+	 * corner rays pass through the corner pixels of the tile, so that an image of the size
+	 * of the tile has the same primary rays of the pixels of the tile.
+	 * @param camera the camera of the whole image, updated for its size
+	 * @param x the first column of the tile
+	 * @param y the first row of the tile, counted from the bottom
+	 * @param tileWidth the width of the tile, at least 2 pixels
+	 * @param tileHeight the height of the tile, at least 2 pixels
+	 * @param width the width of the whole image
+	 * @param height the height of the whole image
+	 */
+	public void setTile(Camera camera, int x, int y, int tileWidth, int tileHeight, int width, int height) {
+		position.set(camera.position);
+		lookAt.set(camera.lookAt);
+		up.set(camera.up);
+		fov = camera.fov;
+		viewMatrix.set(camera.viewMatrix);
+		projMatrix.set(camera.projMatrix);
+		viewProjMatrix.set(camera.viewProjMatrix);
+		invViewProjMatrix.set(camera.invViewProjMatrix);
+
+		// the weights of the corner pixels, as computed by primaryDirection in camera.glsl
+		float u0 = (float) x / (width - 1), u1 = (float) (x + tileWidth - 1) / (width - 1);
+		float v0 = (float) y / (height - 1), v1 = (float) (y + tileHeight - 1) / (height - 1);
+		camera.interpolate(u0, v0, ray00);
+		camera.interpolate(u0, v1, ray01);
+		camera.interpolate(u1, v0, ray10);
+		camera.interpolate(u1, v1, ray11);
+	}
+
+	/**
+	 * Interpolates the corner rays like the tracers do, without normalizing the result.
+	 */
+	private void interpolate(float u, float v, Vector3f dest) {
+		Vector3f left = new Vector3f(ray00).lerp(ray01, v);
+		Vector3f right = new Vector3f(ray10).lerp(ray11, v);
+		dest.set(left.lerp(right, u));
+	}
+
+	/**
+	 * Moves this camera to the point of view of another one: the position, the look at point,
+	 * the up vector and the field of view. The rays are computed by the next {@link #update(int, int)}.
+	 */
+	public void set(Camera camera) {
+		position.set(camera.position);
+		lookAt.set(camera.lookAt);
+		up.set(camera.up);
+		fov = camera.fov;
+	}
+
+	/**
+	 * @return true if the cameras have the same point of view, see {@link #set(Camera)}
+	 */
+	public boolean sameView(Camera camera) {
+		return position.equals(camera.position) && lookAt.equals(camera.lookAt) && up.equals(camera.up)
+				&& fov == camera.fov;
+	}
+
+	/**
+	 * @return the field of view in degrees
+	 */
+	public float getFov() {
+		return fov;
+	}
+
+	/**
+	 * @param fov the field of view in degrees, in [0, 180]
+	 */
+	public void setFov(float fov) {
+		this.fov = fov;
+	}
+
+	/**
+	 * @return projMatrix * viewMatrix as computed by the last
+	 * call to {@link #update(int, int)}
+	 */
+	public Matrix4f getViewProjMatrix() {
+		return viewProjMatrix;
+	}
+
+	/**
+	 * @return (projMatrix * viewMatrix)^(-1) as computed by the last
+	 * call to {@link #update(int, int)}
+	 */
+	public Matrix4f getInvViewProjMatrix() {
+		return invViewProjMatrix;
+	}
+}
@@ -0,0 +1,96 @@
+package render;
+
+import org.joml.Vector3f;
+
+import static org.lwjgl.glfw.GLFW.*;
+
+/**
+ * Moves a {@link Camera} with the keyboard and the mouse of a window:
+ * W A S D move on the horizontal plane, Space and Left Control up and down,
+ * Shift moves faster, dragging with the left button turns the camera around.
+ * The camera is only modified while some input is held down, so that the
+ * accumulated image is not reset when the user does nothing.
+ *
+ * @author Marco Di Rienzo
+ */
+public class CameraController {
+	public static final float SPEED = 2f; // units per second
+	public static final float FAST_SPEED = 8f; // with Shift held down
+	public static final float SENSITIVITY = 0.2f; // degrees per pixel dragged
+	private static final float MAX_PITCH = 89f; // degrees, looking straight up or down would flip the frame
+
+	private final WindowManager windowManager;
+	private final Camera camera;
+	private float yaw, pitch; // degrees, yaw 0 looks towards +z
+
+	private final double[] cursor = new double[2];
+	private double lastX, lastY;
+	private boolean dragging;
+
+	private final Vector3f direction = new Vector3f();
+	private final Vector3f right = new Vector3f();
+	private final Vector3f move = new Vector3f();
+
+	/**
+	 * @param windowManager the window whose input is read
+	 * @param camera the camera to move, its current direction is kept
+	 */
+	public CameraController(WindowManager windowManager, Camera camera) {
+		this.windowManager = windowManager;
+		this.camera = camera;
+		camera.lookAt.sub(camera.position, direction).normalize();
+		yaw = (float) Math.toDegrees(Math.atan2(direction.x, direction.z));
+		pitch = (float) Math.toDegrees(Math.asin(direction.y));
+	}
+
+	/**
+	 * Applies the input held down since the last call.
+	 * @param dt the time elapsed since the last call in seconds
+	 * @return true if the camera moved
+	 */
+	public boolean update(float dt) {
+		boolean turned = false;
+		if (windowManager.isMouseButtonDown(GLFW_MOUSE_BUTTON_LEFT)) {
+			windowManager.getCursorPosition(cursor);
+			if (dragging && (cursor[0] != lastX || cursor[1] != lastY)) {
+				// dragging right turns right, dragging down looks down
+				yaw -= (float) (cursor[0] - lastX) * SENSITIVITY;
+				pitch -= (float) (cursor[1] - lastY) * SENSITIVITY;
+				pitch = Math.max(-MAX_PITCH, Math.min(MAX_PITCH, pitch));
+				turned = true;
+			}
+			lastX = cursor[0];
+			lastY = cursor[1];
+			dragging = true;
+		} else
+			dragging = false;
+
+		double y = Math.toRadians(yaw), p = Math.toRadians(pitch);
+		direction.set((float) (Math.cos(p) * Math.sin(y)), (float) Math.sin(p), (float) (Math.cos(p) * Math.cos(y)));
+		// the horizontal axes of the movement
+		direction.cross(camera.up, right).normalize();
+		move.zero();
+		if (windowManager.isKeyDown(GLFW_KEY_W))
+			move.add(direction.x, 0, direction.z);
+		if (windowManager.isKeyDown(GLFW_KEY_S))
+			move.sub(direction.x, 0, direction.z);
+		if (windowManager.isKeyDown(GLFW_KEY_D))
+			move.add(right);
+		if (windowManager.isKeyDown(GLFW_KEY_A))
+			move.sub(right);
+		if (windowManager.isKeyDown(GLFW_KEY_SPACE))
+			move.add(camera.up);
+		if (windowManager.isKeyDown(GLFW_KEY_LEFT_CONTROL))
+			move.sub(camera.up);
+
+		boolean moved = move.lengthSquared() > 0;
+		if (!moved && !turned)
+			return false;
+		if (moved) {
+			float speed = windowManager.isKeyDown(GLFW_KEY_LEFT_SHIFT) ? FAST_SPEED : SPEED;
+			camera.position.add(move.normalize().mul(speed * dt));
+		}
+		camera.position.add(direction, camera.lookAt);
+		return true;
+	}
+}
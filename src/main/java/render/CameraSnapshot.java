@@ -0,0 +1,50 @@
+package render;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Copy of the state of a {@link Camera} as of a traced frame.
+ * The backends keep the camera of their last frame to notice when it moves,
+ * and to reproject the image accumulated from that point of view.
+ *
+ * @author Marco Di Rienzo
+ */
+public class CameraSnapshot {
+	public final Vector3f position = new Vector3f();
+	public final Vector3f ray00 = new Vector3f(), ray01 = new Vector3f();
+	public final Vector3f ray10 = new Vector3f(), ray11 = new Vector3f();
+	public final Matrix4f viewProjMatrix = new Matrix4f();
+	public final Matrix4f invViewProjMatrix = new Matrix4f();
+	private boolean empty = true;
+
+	/**
+	 * @return true if a camera was copied and the given one sees the scene differently
+	 */
+	public boolean differs(Camera camera) {
+		return !empty && !(position.equals(camera.position)
+				&& ray00.equals(camera.ray00) && ray01.equals(camera.ray01)
+				&& ray10.equals(camera.ray10) && ray11.equals(camera.ray11));
+	}
+
+	/**
+	 * Copies the position, the corner rays and the matrices of the camera.
+	 */
+	public void set(Camera camera) {
+		position.set(camera.position);
+		ray00.set(camera.ray00);
+		ray01.set(camera.ray01);
+		ray10.set(camera.ray10);
+		ray11.set(camera.ray11);
+		viewProjMatrix.set(camera.getViewProjMatrix());
+		invViewProjMatrix.set(camera.getInvViewProjMatrix());
+		empty = false;
+	}
+
+	/**
+	 * Forgets the copied camera, the next one is not compared to it.
+	 */
+	public void clear() {
+		empty = true;
+	}
+}
@@ -0,0 +1,1131 @@
+package render;
+
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL30C;
+import org.lwjgl.opengl.GL42C;
+import sampler.Sampler;
+import scene.Scene;
+import scene.SceneUpdate;
+import utils.ProgramCache;
+import utils.ShaderPreprocessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL15C.GL_READ_WRITE;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.GL_R32F;
+import static org.lwjgl.opengl.GL30.GL_R32UI;
+import static org.lwjgl.opengl.GL30.GL_RED;
+import static org.lwjgl.opengl.GL30.GL_RED_INTEGER;
+import static org.lwjgl.opengl.GL30.GL_RGBA32F;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL30.glUniform1ui;
+import static org.lwjgl.opengl.GL31.GL_COPY_READ_BUFFER;
+import static org.lwjgl.opengl.GL31.GL_COPY_WRITE_BUFFER;
+import static org.lwjgl.opengl.GL31.glCopyBufferSubData;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL42.glBindImageTexture;
+import static org.lwjgl.opengl.GL42C.GL_BUFFER_UPDATE_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42C.GL_COMMAND_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42C.GL_SHADER_IMAGE_ACCESS_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42C.GL_TEXTURE_UPDATE_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42C.glMemoryBarrier;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_WORK_GROUP_SIZE;
+import static org.lwjgl.opengl.GL43.glCopyImageSubData;
+import static org.lwjgl.opengl.GL43.glDispatchCompute;
+import static org.lwjgl.opengl.GL43.GL_DISPATCH_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BARRIER_BIT;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43C.glDispatchComputeIndirect;
+import static render.ModelManager.initSSBO;
+import static utils.Utils.*;
+
+/**
+ * {@link TraceBackend} running the <i>raytracing</i> compute shader.
+ * The program runs a
+ * <a href="https://www.khronos.org/opengl/wiki/Compute_Shader">compute shader</a>,
+ * so also hold the number of threads per work group to be later used to
+ * compute the total number of work groups, just like we would do in CUDA.
+ * <p>
+ * Every work group traces a tile of the image. The tiles with pixels that did not
+ * converge yet are kept in two lists in shader storage buffers: the shader reads
+ * the current one and appends to the other, which is then used as the parameters of
+ * the next glDispatchComputeIndirect, so the host never needs to read the list.
+ * <p>
+ * With a frame budget the list is traced a slice of tiles per frame instead, as many as a
+ * {@link TileScheduler} expects to fit in the budget, and the lists are swapped once the last
+ * slice is done: a pass over the list may then span several frames, but every tile is traced once per pass.
+ * <p>
+ * The host never waits for the device either: at most {@link #MAX_FRAMES_IN_FLIGHT} frames
+ * are submitted and not completed, each one followed by a fence sync. The counters of the frame
+ * ending a pass are copied aside by the device and read once its fence is signaled, while more frames
+ * are traced back to back.
+ * <p>
+ * The shader is specialized at compile time with the defines given by the caller,
+ * e.g. the maximum number of bounces, and with the kinds of primitives in the scene.
+ * The size of the work groups can also be tuned on the device, by timing a few frames
+ * with each of {@link #WORK_GROUP_SIZES} and keeping the fastest program.
+ * <p>
+ * When the camera moves the <i>reproject</i> compute shader replaces the accumulated image
+ * with the previous one seen from the new camera, using the first hit distances written by the tracer.
+ * <p>
+ * Instead of the megakernel, which follows every path to its end in a thread, the frames can be
+ * traced by a {@link WavefrontPipeline}, which advances all the paths a bounce at a time.
+ * <p>
+ * A new version of the scene only uploads the ranges of the buffers that differ, with glBufferSubData,
+ * and the programs can be compiled again one by one when their shaders change, see {@link #reloadShaders(Set)}.
+ *
+ * @author Marco Di Rienzo
+ */
+public class GpuBackend implements TraceBackend {
+	private int width, height;
+	private final int texture;
+
+	private int program;
+	private int u_Eye, u_Ray00, u_Ray01, u_Ray10, u_Ray11;
+	private int u_NumNodes, u_NumLights;
+	private Scene scene; // the version in the storage buffers
+	private int numNodes, numLights;
+	private int u_SamplesPerDispatch;
+	private int u_PixelOffset, u_SampleOffset;
+	private int pixelOffsetX, pixelOffsetY, sampleOffset;
+	private int samplesPerDispatch = 1;
+	private int frameNumber;
+	private int workGroupSizeX, workGroupSizeY; // in CUDA this would be the block size
+
+	// binding points of the shader storage blocks declared in raytracing.glsl
+	public static final int MATERIALS_BINDING = 0, BOXES_BINDING = 1, SPHERES_BINDING = 2;
+	public static final int BVH_BINDING = 3, PRIMITIVES_BINDING = 4;
+	public static final int VERTICES_BINDING = 5, TRIANGLES_BINDING = 6, LIGHTS_BINDING = 11;
+	public static final int SOBOL_BINDING = 12; // direction numbers of sampler.glsl
+	public static final int INSTANCES_BINDING = 13, BLAS_BINDING = 14;
+	public static final int ENVIRONMENT_BINDING = 15, ALIAS_BINDING = 16; // see environment.glsl
+	private final int materialsSSBO, primitivesSSBO, instancesSSBO, blasSSBO, environmentSSBO, aliasSSBO;
+	private final RingBufferedSSBO boxesSSBO, spheresSSBO, bvhSSBO; // moved by the animation every frame
+	private final int verticesSSBO, trianglesSSBO, lightsSSBO, sobolSSBO;
+
+	// adaptive sampling, see raytracing.glsl
+	public static final int CURRENT_TILES_BINDING = 7, NEXT_TILES_BINDING = 8;
+	private static final int TILES_HEADER_WORDS = 6; // numGroups[3], activePixels, samples, rays
+	private final int varianceTexture;
+	private final int samplesTexture; // the number of samples of each pixel, copied in the alpha channel of the image
+	private int tilesX, numTiles;
+	private final int[] tilesSSBOs = new int[2];
+	private int currentTiles;
+	private final IntBuffer emptyHeader = BufferUtils.createIntBuffer(TILES_HEADER_WORDS);
+	private final IntBuffer counters = BufferUtils.createIntBuffer(TILES_HEADER_WORDS);
+	private int u_Threshold;
+	private float threshold;
+	private int activePixels;
+
+	// frame budget, see TileScheduler
+	private TileScheduler scheduler; // null to trace the whole list every frame
+	private int u_TileOffset;
+	private int nextTile; // index in the current list of the first tile of the next frame
+	private int listTiles; // at least the length of the current list, read back with the counters
+
+	// frames submitted and not completed yet, in a ring of fences and of slots of counters
+	public static final int MAX_FRAMES_IN_FLIGHT = 3;
+	private static final int COUNTERS_SIZE = TILES_HEADER_WORDS * 4; // the header of the next list
+	private final long[] fences = new long[MAX_FRAMES_IN_FLIGHT];
+	private final boolean[] passEnds = new boolean[MAX_FRAMES_IN_FLIGHT]; // the frame copied its counters
+	private final int countersSSBO;
+	private int oldestFrame, framesInFlight;
+	private int staleFrames; // in flight frames traced before the tiles were reset
+
+	// temporal reprojection, see reproject.glsl
+	private static final int REPROJECT_GROUP_X = 16, REPROJECT_GROUP_Y = 8;
+	private final int depthTexture;
+	private int historyTexture, historyDepthTexture; // created with the program on the first camera move
+	private final int reprojectedTexture; // the history fading out as the new samples are traced, see history.glsl
+	private int reprojectProgram;
+	private final String reprojectSource;
+	private final CameraSnapshot previousCamera = new CameraSnapshot();
+	private final FloatBuffer matrix = BufferUtils.createFloatBuffer(16);
+	private boolean reprojection = true;
+
+	private final Map<String, String> sceneDefines = new LinkedHashMap<>();
+	private final Map<String, String> defines; // of the traced program, the scene ones included
+	private final ProgramCache programCache;
+
+	private WavefrontPipeline wavefront; // null to trace with the megakernel
+
+	// guides of the denoiser, see Aovs, only written if the shader is compiled with DENOISER_GUIDES
+	private final int albedoTexture, normalTexture;
+	private GpuDenoiser denoiser; // created when first presenting a denoised image
+	private int denoiseProgram; // compiled when first presenting a denoised image, kept when resizing
+	private final String denoiseSource;
+
+	private PixelReadback readback; // created with the first snapshot
+
+	private final GpuTimer timer = new GpuTimer(MAX_FRAMES_IN_FLIGHT + 1);
+	private long traceTime = -1;
+	private long samples, rays;
+
+	public static final ShaderPreprocessor PREPROCESSOR = new ShaderPreprocessor();
+	public static final String TRACE_SHADER = "shaders/raytracing.glsl";
+	public static final String REPROJECT_SHADER = "shaders/reproject.glsl";
+	public static final String DENOISE_SHADER = "shaders/denoise.glsl";
+	// the shapes tried when tuning, all within the minimum limits of OpenGL 4.3
+	public static final int[][] WORK_GROUP_SIZES = {{8, 4}, {8, 8}, {16, 4}, {16, 8}, {16, 16}, {32, 4}, {32, 8}};
+	private static final int TUNING_FRAMES = 4;
+
+	/**
+	 * Creates the OpenGL program that runs the ray tracing compute shader.
+	 * This program is responsible for coloring the texture which will then
+	 * be mapped on the full-screen quad.
+	 * The scene is uploaded once in shader storage buffers.
+	 * @param scene the scene to trace
+	 * @param texture the RGBA32F texture the program writes into
+	 * @param width the width of the texture
+	 * @param height the height of the texture
+	 * @param programCache the cache of the program binary, null to always compile the shaders
+	 * @param defines the macros specializing the shader, see the top of raytracing.glsl
+	 * @param autoTune whether to choose the size of the work groups by timing them on the scene,
+	 *                 instead of using the one in the defines
+	 * @param wavefront whether to trace with a {@link WavefrontPipeline} instead of the megakernel,
+	 *                  the tiles still have the size of the work groups of the megakernel
+	 * @throws IOException if the shader sources cannot be read
+	 */
+	public GpuBackend(Scene scene, int texture, int width, int height, ProgramCache programCache,
+					  Map<String, String> defines, boolean autoTune, boolean wavefront) throws IOException {
+		this.texture = texture;
+		this.width = width;
+		this.height = height;
+		this.programCache = programCache;
+		this.scene = scene;
+		this.numNodes = scene.bvh.numNodes;
+		this.numLights = scene.numLights;
+
+		materialsSSBO = initStorageBuffer(scene.materials);
+		// a copy for each frame in flight and one for the next
+		boxesSSBO = new RingBufferedSSBO(scene.boxes, MAX_FRAMES_IN_FLIGHT + 1);
+		spheresSSBO = new RingBufferedSSBO(scene.spheres, MAX_FRAMES_IN_FLIGHT + 1);
+		bvhSSBO = new RingBufferedSSBO(scene.bvh.nodes, MAX_FRAMES_IN_FLIGHT + 1);
+		primitivesSSBO = initStorageBuffer(scene.bvh.primitives);
+		verticesSSBO = initStorageBuffer(scene.vertices);
+		trianglesSSBO = initStorageBuffer(scene.triangles);
+		lightsSSBO = initStorageBuffer(scene.lights);
+		instancesSSBO = initStorageBuffer(scene.instances);
+		blasSSBO = initStorageBuffer(scene.blas.nodes);
+		environmentSSBO = initStorageBuffer(scene.environment.image);
+		aliasSSBO = initStorageBuffer(scene.environment.aliases);
+		sobolSSBO = initStorageBuffer(Sampler.sobolBuffer());
+
+		// no work groups, 1 in y and z, no active pixels, samples nor rays
+		emptyHeader.put(0, 0).put(1, 1).put(2, 1);
+		// resized to the number of tiles when a program is used
+		ByteBuffer header = BufferUtils.createByteBuffer(TILES_HEADER_WORDS * 4);
+		tilesSSBOs[0] = initSSBO(header, GL_DYNAMIC_COPY);
+		tilesSSBOs[1] = initSSBO(header, GL_DYNAMIC_COPY);
+		countersSSBO = initSSBO(BufferUtils.createByteBuffer(MAX_FRAMES_IN_FLIGHT * COUNTERS_SIZE), GL_STREAM_READ);
+		varianceTexture = createTexture(width, height, GL_R32F, GL_RED);
+		samplesTexture = createTexture(width, height, GL_R32UI, GL_RED_INTEGER);
+		reprojectedTexture = createTexture(width, height, GL_RGBA32F, GL_RGBA);
+		depthTexture = createTexture(width, height, GL_R32F, GL_RED);
+		albedoTexture = createTexture(width, height, GL_RGBA32F, GL_RGBA);
+		normalTexture = createTexture(width, height, GL_RGBA32F, GL_RGBA);
+
+		sceneDefines.putAll(sceneDefines(scene));
+		Map<String, String> variant = new LinkedHashMap<>(defines);
+		variant.putAll(sceneDefines);
+		String source = PREPROCESSOR.load(TRACE_SHADER);
+		reprojectSource = PREPROCESSOR.load(REPROJECT_SHADER);
+		denoiseSource = PREPROCESSOR.load(DENOISE_SHADER);
+
+		if (autoTune) {
+			autoTune(scene, source, variant, programCache);
+		} else {
+			program = compile(source, variant, programCache);
+			useProgram(scene);
+		}
+
+		// the programs compiled again keep the size of the work groups
+		variant.put("WORK_GROUP_SIZE_X", Integer.toString(workGroupSizeX));
+		variant.put("WORK_GROUP_SIZE_Y", Integer.toString(workGroupSizeY));
+		this.defines = variant;
+		if (wavefront)
+			this.wavefront = new WavefrontPipeline(width, height, numNodes, numLights, programCache, variant);
+	}
+
+	/**
+	 * @return the defines specializing the shaders for the kinds of primitives in the scene
+	 */
+	private static Map<String, String> sceneDefines(Scene scene) {
+		Map<String, String> defines = new LinkedHashMap<>();
+		defines.put("HAS_BOXES", scene.numBoxes > 0 ? "1" : "0");
+		defines.put("HAS_SPHERES", scene.numSpheres > 0 ? "1" : "0");
+		defines.put("HAS_TRIANGLES", scene.triangles.hasRemaining() ? "1" : "0");
+		defines.put("HAS_INSTANCES", scene.numInstances > 0 ? "1" : "0");
+		defines.put("HAS_ENVIRONMENT", scene.environment.isEmpty() ? "0" : "1");
+		return defines;
+	}
+
+	static int compile(String source, Map<String, String> defines, ProgramCache programCache) {
+		String directives = ShaderPreprocessor.defines(defines);
+		if (programCache != null)
+			return programCache.createComputeProgram(directives, source);
+		return createComputeProgram(ShaderPreprocessor.insertDefines(source, directives));
+	}
+
+	/**
+	 * Compiles a shader again after its source changed, e.g. edited on disk.
+	 * @return the new program, or 0 if the source cannot be read or compiled, the error is printed
+	 */
+	static int recompile(String path, Map<String, String> defines, ProgramCache programCache) {
+		try {
+			return compile(PREPROCESSOR.load(path), defines, programCache);
+		} catch (IOException | AssertionError e) {
+			System.err.println("Cannot reload " + path + ": " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Makes {@link #program} the traced program: reads its work group size and uniform
+	 * locations, and resizes the lists of tiles accordingly.
+	 */
+	private void useProgram(Scene scene) {
+		glUseProgram(program);
+
+		// get the number of threads per work group that we specified in the shader
+		IntBuffer workGroupSize = BufferUtils.createIntBuffer(3);
+		glGetProgramiv(program, GL_COMPUTE_WORK_GROUP_SIZE, workGroupSize);
+		workGroupSizeX = workGroupSize.get(0);
+		workGroupSizeY = workGroupSize.get(1);
+
+		// save uniform variables location
+		u_Eye = glGetUniformLocation(program, "u_Eye");
+		u_Ray00 = glGetUniformLocation(program, "u_Ray00");
+		u_Ray01 = glGetUniformLocation(program, "u_Ray01");
+		u_Ray10 = glGetUniformLocation(program, "u_Ray10");
+		u_Ray11 = glGetUniformLocation(program, "u_Ray11");
+		u_SamplesPerDispatch = glGetUniformLocation(program, "u_SamplesPerDispatch");
+		u_PixelOffset = glGetUniformLocation(program, "u_PixelOffset");
+		u_SampleOffset = glGetUniformLocation(program, "u_SampleOffset");
+		u_Threshold = glGetUniformLocation(program, "u_Threshold");
+		u_TileOffset = glGetUniformLocation(program, "u_TileOffset");
+		u_NumNodes = glGetUniformLocation(program, "u_NumNodes");
+		u_NumLights = glGetUniformLocation(program, "u_NumLights");
+
+		// the hierarchy and the lights only change with the scene
+		glUniform1i(u_NumNodes, numNodes);
+		glUniform1i(u_NumLights, numLights);
+		glUseProgram(0);
+
+		allocateTiles();
+	}
+
+	/**
+	 * Resizes the lists of tiles for the size of the image and of the work groups, and activates all the tiles.
+	 */
+	private void allocateTiles() {
+		// a tile for each work group
+		tilesX = (width + workGroupSizeX - 1) / workGroupSizeX;
+		numTiles = tilesX * ((height + workGroupSizeY - 1) / workGroupSizeY);
+		for (int tiles : tilesSSBOs) {
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, tiles);
+			glBufferData(GL_SHADER_STORAGE_BUFFER, (TILES_HEADER_WORDS + numTiles) * 4L, GL_DYNAMIC_COPY);
+		}
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+		activateAllTiles();
+	}
+
+	/**
+	 * Compiles a variant of the shader for each of {@link #WORK_GROUP_SIZES}, traces a few frames
+	 * of the scene with each one and keeps the fastest.
+	 * The image traced in the meantime is discarded.
+	 */
+	private void autoTune(Scene scene, String source, Map<String, String> defines, ProgramCache programCache) {
+		Camera camera = scene.camera;
+		camera.update(width, height);
+		long bestTime = Long.MAX_VALUE;
+		int best = 0;
+		for (int[] size : WORK_GROUP_SIZES) {
+			Map<String, String> variant = new LinkedHashMap<>(defines);
+			variant.put("WORK_GROUP_SIZE_X", Integer.toString(size[0]));
+			variant.put("WORK_GROUP_SIZE_Y", Integer.toString(size[1]));
+			program = compile(source, variant, programCache);
+			useProgram(scene);
+
+			// the first frame also pays for the lazy initialization in the driver
+			trace(camera);
+			glFinish();
+			long start = System.nanoTime();
+			int last = frameNumber + TUNING_FRAMES;
+			while (frameNumber < last)
+				trace(camera);
+			glFinish();
+			long time = (System.nanoTime() - start) / TUNING_FRAMES;
+			System.out.printf("Work group %dx%d: %.2f ms/frame%n", size[0], size[1], time / 1E6);
+
+			if (time < bestTime) {
+				glDeleteProgram(best);
+				best = program;
+				bestTime = time;
+			} else {
+				glDeleteProgram(program);
+			}
+		}
+
+		program = best;
+		useProgram(scene);
+		System.out.printf("Using work groups of %dx%d%n", workGroupSizeX, workGroupSizeY);
+		clear(texture, GL_RGBA32F, GL_RGBA);
+		clear(varianceTexture, GL_R32F, GL_RED);
+		clear(samplesTexture, GL_R32UI, GL_RED_INTEGER);
+		clear(reprojectedTexture, GL_RGBA32F, GL_RGBA);
+		clear(albedoTexture, GL_RGBA32F, GL_RGBA);
+		clear(normalTexture, GL_RGBA32F, GL_RGBA);
+		collectFrames();
+		timer.poll();
+		traceTime = -1;
+		frameNumber = 0;
+		samples = rays = 0;
+	}
+
+	/**
+	 * Starts the accumulation again after the image was cleared or reprojected:
+	 * the guides are not reprojected, they restart with the new samples.
+	 */
+	private void restart() {
+		clear(albedoTexture, GL_RGBA32F, GL_RGBA);
+		clear(normalTexture, GL_RGBA32F, GL_RGBA);
+		if (wavefront != null)
+			wavefront.restart();
+		activateAllTiles();
+		frameNumber = 0;
+	}
+
+	@Override
+	public void reset() {
+		clear(texture, GL_RGBA32F, GL_RGBA);
+		clear(varianceTexture, GL_R32F, GL_RED);
+		clear(samplesTexture, GL_R32UI, GL_RED_INTEGER);
+		clear(reprojectedTexture, GL_RGBA32F, GL_RGBA);
+		restart();
+	}
+
+	/**
+	 * Uploads the ranges of the scene buffers that differ from the previous version, or the whole buffers
+	 * whose size changed. If the kinds of primitives in the scene changed, the programs specialized for
+	 * them are compiled again.
+	 */
+	@Override
+	public boolean setScene(Scene scene) {
+		Scene previous = this.scene;
+		this.scene = scene;
+		if (scene.sameContent(previous))
+			return false;
+
+		long uploaded = 0;
+		uploaded += update(materialsSSBO, previous.materials, scene.materials);
+		uploaded += boxesSSBO.update(scene.boxes, Scene.changedRange(previous.boxes, scene.boxes));
+		uploaded += spheresSSBO.update(scene.spheres, Scene.changedRange(previous.spheres, scene.spheres));
+		uploaded += bvhSSBO.update(scene.bvh.nodes, Scene.changedRange(previous.bvh.nodes, scene.bvh.nodes));
+		uploaded += update(primitivesSSBO, previous.bvh.primitives, scene.bvh.primitives);
+		uploaded += update(verticesSSBO, previous.vertices, scene.vertices);
+		uploaded += update(trianglesSSBO, previous.triangles, scene.triangles);
+		uploaded += update(lightsSSBO, previous.lights, scene.lights);
+		uploaded += update(instancesSSBO, previous.instances, scene.instances);
+		uploaded += update(blasSSBO, previous.blas.nodes, scene.blas.nodes);
+		uploaded += update(environmentSSBO, previous.environment.image, scene.environment.image);
+		uploaded += update(aliasSSBO, previous.environment.aliases, scene.environment.aliases);
+		long total = scene.materials.remaining() + scene.boxes.remaining() + scene.spheres.remaining()
+				+ scene.bvh.nodes.remaining() + scene.bvh.primitives.remaining() + scene.vertices.remaining()
+				+ scene.triangles.remaining() + scene.lights.remaining() + scene.instances.remaining()
+				+ scene.blas.nodes.remaining() + scene.environment.image.remaining()
+				+ scene.environment.aliases.remaining();
+		System.out.printf("Scene updated, %.1f of %.1f KB uploaded%n", uploaded / 1024.0, total / 1024.0);
+
+		numNodes = scene.bvh.numNodes;
+		numLights = scene.numLights;
+		Map<String, String> kinds = sceneDefines(scene);
+		if (!kinds.equals(sceneDefines)) {
+			sceneDefines.putAll(kinds);
+			defines.putAll(kinds);
+			Set<String> shaders = new HashSet<>(Arrays.asList(TRACE_SHADER, REPROJECT_SHADER));
+			if (wavefront != null)
+				for (String stage : new String[]{"generate", "extend", "shade", "accumulate"})
+					shaders.add(WavefrontPipeline.path(stage));
+			recompile(shaders);
+		}
+		setNumNodes(scene.bvh.numNodes);
+		reset();
+		return true;
+	}
+
+	/**
+	 * Updates the uniforms holding the size of the scene, e.g. after the BVH was built again.
+	 */
+	private void setNumNodes(int numNodes) {
+		this.numNodes = numNodes;
+		glUseProgram(program);
+		glUniform1i(u_NumNodes, numNodes);
+		glUniform1i(u_NumLights, numLights);
+		if (reprojectProgram != 0) {
+			glUseProgram(reprojectProgram);
+			glUniform1i(glGetUniformLocation(reprojectProgram, "u_NumNodes"), numNodes);
+		}
+		glUseProgram(0);
+		if (wavefront != null)
+			wavefront.setScene(numNodes, numLights);
+	}
+
+	/**
+	 * Uploads the moved primitives and BVH nodes into the next copies of their rings of storage
+	 * buffers, which the next frame reads while the frames in flight go on reading the other copies.
+	 * A rebuilt BVH is uploaded whole.
+	 */
+	@Override
+	public void updateScene(SceneUpdate update) {
+		if (update.isEmpty())
+			return;
+		boxesSSBO.update(scene.boxes, update.boxes);
+		spheresSSBO.update(scene.spheres, update.spheres);
+		if (update.rebuilt) {
+			bvhSSBO.set(scene.bvh.nodes);
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, primitivesSSBO);
+			glBufferData(GL_SHADER_STORAGE_BUFFER, scene.bvh.primitives, GL_STATIC_DRAW);
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+			setNumNodes(scene.bvh.numNodes);
+		} else {
+			bvhSSBO.update(scene.bvh.nodes, update.nodes);
+		}
+		reset();
+	}
+
+	/**
+	 * Uploads the range of a scene buffer that differs from its previous version.
+	 * @return the number of bytes uploaded
+	 */
+	private static long update(int ssbo, ByteBuffer previous, ByteBuffer data) {
+		int[] range = Scene.changedRange(previous, data);
+		if (range == null)
+			return 0;
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, ssbo);
+		if (previous.remaining() != data.remaining()) {
+			// OpenGL cannot bind empty buffers, see initStorageBuffer
+			glBufferData(GL_SHADER_STORAGE_BUFFER, data.hasRemaining() ? data : BufferUtils.createByteBuffer(32),
+					GL_STATIC_DRAW);
+		} else {
+			ByteBuffer changed = data.duplicate();
+			changed.position(data.position() + range[0]).limit(data.position() + range[1]);
+			glBufferSubData(GL_SHADER_STORAGE_BUFFER, range[0], changed.slice());
+		}
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+		return range[1] - range[0];
+	}
+
+	/**
+	 * Compiles again the programs whose shaders changed, e.g. edited on disk and reloaded by
+	 * {@link ShaderPreprocessor#reload}: a program which fails to compile is kept, the error is printed.
+	 * The accumulation starts again if a program tracing the frames was replaced.
+	 * @param shaders the paths of the changed shaders, the ones not used by this backend are ignored
+	 * @return true if the accumulation restarted
+	 */
+	public boolean reloadShaders(Set<String> shaders) {
+		if (!recompile(shaders))
+			return false;
+		reset();
+		return true;
+	}
+
+	/**
+	 * @return true if a program tracing the frames was replaced
+	 */
+	private boolean recompile(Set<String> shaders) {
+		boolean traced = false;
+		if (shaders.contains(TRACE_SHADER)) {
+			int reloaded = recompile(TRACE_SHADER, defines, programCache);
+			if (reloaded != 0) {
+				// the frames in flight are done with the previous program once it is deleted
+				glDeleteProgram(program);
+				program = reloaded;
+				useProgram(scene);
+				traced = true;
+			}
+		}
+		if (wavefront != null && wavefront.reload(shaders, defines))
+			traced = true;
+
+		// the history is reprojected and the image denoised, the accumulated samples stay valid
+		if (shaders.contains(REPROJECT_SHADER)) {
+			int reloaded = recompile(REPROJECT_SHADER, sceneDefines, programCache);
+			if (reloaded != 0) {
+				if (reprojectProgram != 0)
+					glDeleteProgram(reprojectProgram);
+				reprojectProgram = reloaded;
+				glUseProgram(reprojectProgram);
+				glUniform1i(glGetUniformLocation(reprojectProgram, "u_NumNodes"), numNodes);
+				glUseProgram(0);
+			}
+		}
+		if (shaders.contains(DENOISE_SHADER)) {
+			int reloaded = recompile(DENOISE_SHADER, Collections.emptyMap(), programCache);
+			if (reloaded != 0) {
+				if (denoiseProgram != 0)
+					glDeleteProgram(denoiseProgram);
+				denoiseProgram = reloaded;
+				if (denoiser != null)
+					denoiser.setProgram(denoiseProgram);
+			}
+		}
+		return traced;
+	}
+
+	/**
+	 * Reallocates the framebuffer texture given to the constructor along with all the images
+	 * and buffers of the size of the image. The denoiser and the snapshot ring are created again
+	 * when next needed, the pending snapshots are handed to their consumers first.
+	 */
+	@Override
+	public void resize(int width, int height) {
+		if (width == this.width && height == this.height)
+			return;
+		flushSnapshots();
+		if (readback != null) {
+			readback.destroy();
+			readback = null;
+		}
+		if (denoiser != null) {
+			denoiser.destroy();
+			denoiser = null;
+		}
+
+		this.width = width;
+		this.height = height;
+		clear(texture, GL_RGBA32F, GL_RGBA);
+		clear(varianceTexture, GL_R32F, GL_RED);
+		clear(samplesTexture, GL_R32UI, GL_RED_INTEGER);
+		clear(reprojectedTexture, GL_RGBA32F, GL_RGBA);
+		clear(depthTexture, GL_R32F, GL_RED);
+		if (historyTexture != 0) {
+			clear(historyTexture, GL_RGBA32F, GL_RGBA);
+			clear(historyDepthTexture, GL_R32F, GL_RED);
+		}
+		if (wavefront != null)
+			wavefront.resize(width, height);
+		// the previous image cannot be reprojected
+		previousCamera.clear();
+		allocateTiles();
+		restart();
+	}
+
+	@Override
+	public void setSampleOffset(int pixelX, int pixelY, int sample) {
+		pixelOffsetX = pixelX;
+		pixelOffsetY = pixelY;
+		sampleOffset = sample;
+		if (wavefront != null)
+			wavefront.setSampleOffset(pixelX, pixelY, sample);
+	}
+
+	/**
+	 * Fills the current list of tiles with all the tiles of the image.
+	 */
+	private void activateAllTiles() {
+		IntBuffer tiles = BufferUtils.createIntBuffer(TILES_HEADER_WORDS + numTiles);
+		tiles.put(numTiles).put(1).put(1).put(width * height).put(0).put(0);
+		for (int i = 0; i < numTiles; i++)
+			tiles.put((i / tilesX) << 16 | (i % tilesX));
+		tiles.flip();
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, tilesSSBOs[currentTiles]);
+		glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, tiles);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+		activePixels = width * height;
+		staleFrames = framesInFlight;
+		nextTile = 0;
+		listTiles = numTiles;
+	}
+
+	/**
+	 * Reads the counters of the passes over the tiles completed by the device, oldest first, without waiting.
+	 */
+	private void collectFrames() {
+		while (framesInFlight > 0) {
+			long fence = fences[oldestFrame];
+			if (glGetSynci(fence, GL_SYNC_STATUS, null) != GL_SIGNALED)
+				break;
+			glDeleteSync(fence);
+
+			boolean stale = staleFrames > 0;
+			if (stale)
+				staleFrames--;
+			if (passEnds[oldestFrame]) {
+				glBindBuffer(GL_COPY_READ_BUFFER, countersSSBO);
+				glGetBufferSubData(GL_COPY_READ_BUFFER, (long) oldestFrame * COUNTERS_SIZE, counters);
+				glBindBuffer(GL_COPY_READ_BUFFER, 0);
+				if (!stale) {
+					activePixels = counters.get(3);
+					// the lists only get shorter, so the current one is at most as long as this one
+					listTiles = Math.min(listTiles, counters.get(0));
+				}
+				samples += counters.get(4) & 0xFFFFFFFFL;
+				rays += counters.get(5) & 0xFFFFFFFFL;
+			}
+
+			oldestFrame = (oldestFrame + 1) % MAX_FRAMES_IN_FLIGHT;
+			framesInFlight--;
+		}
+	}
+
+	/**
+	 * Uploads a scene buffer, OpenGL cannot bind empty buffers so
+	 * at least a zeroed struct is stored.
+	 */
+	private static int initStorageBuffer(ByteBuffer data) {
+		if (!data.hasRemaining())
+			data = BufferUtils.createByteBuffer(32);
+		return initSSBO(data, GL_STATIC_DRAW);
+	}
+
+	/**
+	 * Creates a texture object that will serve as the framebuffer
+	 * of the compute shader, initialized to all black and zero samples.
+	 * @param width the width of the texture
+	 * @param height the height of the texture
+	 * @return the texture id
+	 */
+	public static int createFramebufferTexture(int width, int height) {
+		return createTexture(width, height, GL_RGBA32F, GL_RGBA);
+	}
+
+	/**
+	 * Reallocates a texture created by {@link #createFramebufferTexture(int, int)} for a new size,
+	 * all black and zero samples.
+	 */
+	public static void resizeFramebufferTexture(int texture, int width, int height) {
+		clear(texture, width, height, GL_RGBA32F, GL_RGBA);
+	}
+
+	private static int createTexture(int width, int height, int internalFormat, int format) {
+		int texture = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D, texture);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glBindTexture(GL_TEXTURE_2D, 0);
+		clear(texture, width, height, internalFormat, format);
+		return texture;
+	}
+
+	private void clear(int texture, int internalFormat, int format) {
+		clear(texture, width, height, internalFormat, format);
+	}
+
+	/**
+	 * Fills a texture with zeros, the shader accumulates into it so it must start from actual zeros.
+	 * The channels are 32 bit floats, or unsigned integers for the GL_RED_INTEGER format.
+	 */
+	private static void clear(int texture, int width, int height, int internalFormat, int format) {
+		int channels = format == GL_RGBA ? 4 : 1;
+		int type = format == GL_RED_INTEGER ? GL_UNSIGNED_INT : GL_FLOAT;
+		ByteBuffer zeros = BufferUtils.createByteBuffer(width * height * channels * 4);
+		glBindTexture(GL_TEXTURE_2D, texture);
+		glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, zeros);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Prepares the ray tracing program and runs it, unless {@link #MAX_FRAMES_IN_FLIGHT}
+	 * frames are still running on the device.
+	 */
+	@Override
+	public boolean trace(Camera camera) {
+		collectFrames();
+		if (readback != null)
+			readback.poll(false);
+		long time = timer.poll();
+		if (time >= 0) {
+			traceTime = time;
+			if (scheduler != null)
+				scheduler.record(time, timer.getWork());
+		}
+
+		// the accumulated samples were seen from elsewhere, start again
+		if (previousCamera.differs(camera)) {
+			if (reprojection)
+				reproject(camera);
+			else {
+				clear(texture, GL_RGBA32F, GL_RGBA);
+				clear(varianceTexture, GL_R32F, GL_RED);
+				clear(samplesTexture, GL_R32UI, GL_RED_INTEGER);
+				clear(reprojectedTexture, GL_RGBA32F, GL_RGBA);
+			}
+			restart();
+		}
+		previousCamera.set(camera);
+
+		/*
+		 * Once a completed frame reports no active pixels everything converged,
+		 * the frames still in flight dispatch no work groups.
+		 */
+		if (activePixels == 0 || framesInFlight == MAX_FRAMES_IN_FLIGHT)
+			return false;
+
+		// a new pass over the current list empties the next one
+		int nextTiles = 1 - currentTiles;
+		if (nextTile == 0) {
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, tilesSSBOs[nextTiles]);
+			glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, emptyHeader);
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+			if (frameNumber < Integer.MAX_VALUE)
+				frameNumber++;
+		}
+
+		/*
+		 * The slice of the list traced by this frame: the whole list, whose length is only known
+		 * to the device, or the tiles fitting in the budget. The length of the list known to the host
+		 * may exceed the actual one, the work groups past its end do nothing.
+		 */
+		int firstTile = nextTile;
+		int sliceTiles = scheduler != null ? scheduler.tiles(listTiles - firstTile) : Math.max(1, listTiles - firstTile);
+		boolean wholeList = firstTile == 0 && scheduler == null;
+		nextTile += sliceTiles;
+		boolean passEnd = nextTile >= listTiles;
+
+		bindScene();
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, CURRENT_TILES_BINDING, tilesSSBOs[currentTiles]);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, NEXT_TILES_BINDING, tilesSSBOs[nextTiles]);
+
+		/*
+		 * Bind our texture to the framebuffer (bound in the shader to image unit 0)
+		 * and the variance texture to image unit 1, both are read and then written.
+		 * The first hit distances are only written, to reproject the image when the camera moves.
+		 * The guides of the denoiser are accumulated in image units 3 and 4, the number of samples in unit 5.
+		 * The history reprojected when the camera moved is read from unit 6.
+		 */
+		glBindImageTexture(0, texture, 0, false, 0, GL_READ_WRITE, GL_RGBA32F);
+		glBindImageTexture(1, varianceTexture, 0, false, 0, GL_READ_WRITE, GL_R32F);
+		glBindImageTexture(2, depthTexture, 0, false, 0, GL_WRITE_ONLY, GL_R32F);
+		glBindImageTexture(3, albedoTexture, 0, false, 0, GL_READ_WRITE, GL_RGBA32F);
+		glBindImageTexture(4, normalTexture, 0, false, 0, GL_READ_WRITE, GL_RGBA32F);
+		glBindImageTexture(5, samplesTexture, 0, false, 0, GL_READ_WRITE, GL_R32UI);
+		glBindImageTexture(6, reprojectedTexture, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+
+		/*
+		 * Invoke the compute shader with a work group for each active tile:
+		 * the number of work groups is read from the header of the current list,
+		 * as written by the previous frame, without reading it back on the host.
+		 * Since the tiles on the right and top edges may exceed the window,
+		 * in the shader we must check for boundary conditions, exactly like CUDA.
+		 */
+		timer.begin();
+		if (wavefront != null) {
+			wavefront.trace(tilesSSBOs[currentTiles], firstTile, wholeList ? 0 : sliceTiles,
+					camera, samplesPerDispatch, threshold);
+		} else {
+			glUseProgram(program);
+
+			glUniform1i(u_SamplesPerDispatch, samplesPerDispatch);
+			glUniform2i(u_PixelOffset, pixelOffsetX, pixelOffsetY);
+			glUniform1ui(u_SampleOffset, sampleOffset);
+			glUniform1f(u_Threshold, threshold);
+			glUniform1ui(u_TileOffset, firstTile);
+
+			// set the eye position and frustum uniform variables (world coordinates)
+			glUniform3f(u_Eye, camera.position.x, camera.position.y, camera.position.z);
+			glUniform3f(u_Ray00, camera.ray00.x, camera.ray00.y, camera.ray00.z);
+			glUniform3f(u_Ray01, camera.ray01.x, camera.ray01.y, camera.ray01.z);
+			glUniform3f(u_Ray10, camera.ray10.x, camera.ray10.y, camera.ray10.z);
+			glUniform3f(u_Ray11, camera.ray11.x, camera.ray11.y, camera.ray11.z);
+
+			if (wholeList) {
+				glBindBuffer(GL_DISPATCH_INDIRECT_BUFFER, tilesSSBOs[currentTiles]);
+				glDispatchComputeIndirect(0);
+				glBindBuffer(GL_DISPATCH_INDIRECT_BUFFER, 0);
+			} else {
+				glDispatchCompute(sliceTiles, 1, 1);
+			}
+		}
+
+		/*
+		 * Before proceeding to render the texture on our full-screen quad,
+		 * we need to make sure that the texture is ready, i.e. all the threads
+		 * we started have completed their writing operations on the texture framebuffer.
+		 * To do so, we set a barrier on the shader imageStore.
+		 * The next list of tiles is also going to be read as dispatch parameters and by the host.
+		 * https://www.khronos.org/registry/OpenGL-Refpages/gl4/html/glMemoryBarrier.xhtml
+		 */
+		glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_SHADER_STORAGE_BARRIER_BIT
+				| GL_COMMAND_BARRIER_BIT | GL_BUFFER_UPDATE_BARRIER_BIT);
+		timer.end(sliceTiles);
+
+		// at the end of a pass copy the counters aside, the list is emptied again by the next pass
+		int slot = (oldestFrame + framesInFlight) % MAX_FRAMES_IN_FLIGHT;
+		passEnds[slot] = passEnd;
+		if (passEnd) {
+			glBindBuffer(GL_COPY_READ_BUFFER, tilesSSBOs[nextTiles]);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, countersSSBO);
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, (long) slot * COUNTERS_SIZE, COUNTERS_SIZE);
+			glBindBuffer(GL_COPY_READ_BUFFER, 0);
+			glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+			currentTiles = nextTiles;
+			nextTile = 0;
+		}
+		fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		framesInFlight++;
+		// submit the commands, or the fence may never be signaled
+		glFlush();
+
+		// reset bindings
+		GL42C.glBindImageTexture(0, 0, 0, false, 0, GL_READ_WRITE, GL30C.GL_RGBA32F);
+		GL42C.glBindImageTexture(1, 0, 0, false, 0, GL_READ_WRITE, GL30C.GL_R32F);
+		GL42C.glBindImageTexture(2, 0, 0, false, 0, GL_WRITE_ONLY, GL30C.GL_R32F);
+		GL42C.glBindImageTexture(3, 0, 0, false, 0, GL_READ_WRITE, GL30C.GL_RGBA32F);
+		GL42C.glBindImageTexture(4, 0, 0, false, 0, GL_READ_WRITE, GL30C.GL_RGBA32F);
+		GL42C.glBindImageTexture(5, 0, 0, false, 0, GL_READ_WRITE, GL30C.GL_R32UI);
+		GL42C.glBindImageTexture(6, 0, 0, false, 0, GL_READ_ONLY, GL30C.GL_RGBA32F);
+		glUseProgram(0);
+		return true;
+	}
+
+	/**
+	 * Binds the scene buffers to the binding points of the storage blocks.
+	 */
+	private void bindScene() {
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, MATERIALS_BINDING, materialsSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, BOXES_BINDING, boxesSSBO.front());
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, SPHERES_BINDING, spheresSSBO.front());
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, BVH_BINDING, bvhSSBO.front());
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, PRIMITIVES_BINDING, primitivesSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, VERTICES_BINDING, verticesSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, TRIANGLES_BINDING, trianglesSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, LIGHTS_BINDING, lightsSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, SOBOL_BINDING, sobolSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, INSTANCES_BINDING, instancesSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, BLAS_BINDING, blasSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, ENVIRONMENT_BINDING, environmentSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, ALIAS_BINDING, aliasSSBO);
+	}
+
+	/**
+	 * Replaces the accumulated image with the image of {@link #previousCamera} reprojected to
+	 * the given camera. Runs after the frames already submitted, without waiting for them.
+	 */
+	private void reproject(Camera camera) {
+		if (reprojectProgram == 0) {
+			// only depends on the kinds of primitives in the scene
+			reprojectProgram = compile(reprojectSource, sceneDefines, programCache);
+			glUseProgram(reprojectProgram);
+			glUniform1i(glGetUniformLocation(reprojectProgram, "u_NumNodes"), numNodes);
+		}
+		if (historyTexture == 0) {
+			historyTexture = createTexture(width, height, GL_RGBA32F, GL_RGBA);
+			historyDepthTexture = createTexture(width, height, GL_R32F, GL_RED);
+		}
+
+		// the images written by the last frame are the history
+		glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT);
+		glCopyImageSubData(texture, GL_TEXTURE_2D, 0, 0, 0, 0,
+				historyTexture, GL_TEXTURE_2D, 0, 0, 0, 0, width, height, 1);
+		glCopyImageSubData(depthTexture, GL_TEXTURE_2D, 0, 0, 0, 0,
+				historyDepthTexture, GL_TEXTURE_2D, 0, 0, 0, 0, width, height, 1);
+
+		glUseProgram(reprojectProgram);
+		uniform(reprojectProgram, "u_Eye", camera.position);
+		uniform(reprojectProgram, "u_Ray00", camera.ray00);
+		uniform(reprojectProgram, "u_Ray01", camera.ray01);
+		uniform(reprojectProgram, "u_Ray10", camera.ray10);
+		uniform(reprojectProgram, "u_Ray11", camera.ray11);
+		uniform(reprojectProgram, "u_PrevEye", previousCamera.position);
+		glUniformMatrix4fv(glGetUniformLocation(reprojectProgram, "u_PrevViewProj"), false,
+				previousCamera.viewProjMatrix.get(matrix));
+		glUniformMatrix4fv(glGetUniformLocation(reprojectProgram, "u_PrevInvViewProj"), false,
+				previousCamera.invViewProjMatrix.get(matrix));
+
+		bindScene();
+		glBindImageTexture(0, texture, 0, false, 0, GL_WRITE_ONLY, GL_RGBA32F);
+		glBindImageTexture(1, varianceTexture, 0, false, 0, GL_WRITE_ONLY, GL_R32F);
+		glBindImageTexture(2, depthTexture, 0, false, 0, GL_WRITE_ONLY, GL_R32F);
+		glBindImageTexture(3, historyTexture, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+		glBindImageTexture(4, historyDepthTexture, 0, false, 0, GL_READ_ONLY, GL_R32F);
+		glBindImageTexture(5, samplesTexture, 0, false, 0, GL_WRITE_ONLY, GL_R32UI);
+		glBindImageTexture(6, reprojectedTexture, 0, false, 0, GL_WRITE_ONLY, GL_RGBA32F);
+
+		// a thread for each pixel, the next frame reads what it writes
+		glDispatchCompute((width + REPROJECT_GROUP_X - 1) / REPROJECT_GROUP_X,
+				(height + REPROJECT_GROUP_Y - 1) / REPROJECT_GROUP_Y, 1);
+		glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+
+		for (int unit = 0; unit <= 6; unit++)
+			GL42C.glBindImageTexture(unit, 0, 0, false, 0, GL_READ_ONLY, GL30C.GL_R32F);
+		glUseProgram(0);
+	}
+
+	private static void uniform(int program, String name, Vector3f v) {
+		glUniform3f(glGetUniformLocation(program, name), v.x, v.y, v.z);
+	}
+
+	/**
+	 * The compute shader already writes into the texture, nothing to do.
+	 */
+	@Override
+	public void present(int texture) {
+	}
+
+	/**
+	 * Filters the image with a {@link GpuDenoiser}, the guides are only written
+	 * if the shader was compiled with DENOISER_GUIDES.
+	 */
+	@Override
+	public int presentDenoised(int texture) {
+		if (denoiseProgram == 0)
+			denoiseProgram = compile(denoiseSource, Collections.emptyMap(), programCache);
+		if (denoiser == null)
+			denoiser = new GpuDenoiser(width, height, denoiseProgram);
+		return denoiser.denoise(this.texture, varianceTexture, albedoTexture, normalTexture, depthTexture);
+	}
+
+	@Override
+	public void readPixels(float[] pixels) {
+		readSums(pixels);
+		TraceBackend.normalize(pixels);
+	}
+
+	/**
+	 * Reads the texture back with a synchronous glGetTexImage.
+	 */
+	@Override
+	public void readSums(float[] pixels) {
+		glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT);
+		read(texture, GL_RGBA, pixels);
+	}
+
+	/**
+	 * Copies the texture into a {@link PixelReadback} ring, read when the device gets to it.
+	 */
+	@Override
+	public boolean snapshot(Consumer<Snapshot> consumer) {
+		if (readback == null)
+			readback = new PixelReadback(width, height);
+		return readback.request(texture, frameNumber, consumer);
+	}
+
+	@Override
+	public void flushSnapshots() {
+		if (readback != null)
+			readback.poll(true);
+	}
+
+	@Override
+	public void readAovs(Aovs aovs) {
+		glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT);
+		read(albedoTexture, GL_RGBA, aovs.albedo);
+		read(normalTexture, GL_RGBA, aovs.normal);
+		read(depthTexture, GL_RED, aovs.depth);
+		read(varianceTexture, GL_RED, aovs.variance);
+	}
+
+	private static void read(int texture, int format, float[] pixels) {
+		glBindTexture(GL_TEXTURE_2D, texture);
+		glGetTexImage(GL_TEXTURE_2D, 0, format, GL_FLOAT, pixels);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	@Override
+	public int getFrameNumber() {
+		return frameNumber;
+	}
+
+	@Override
+	public void setSamplesPerDispatch(int samples) {
+		samplesPerDispatch = samples;
+	}
+
+	@Override
+	public void setReprojection(boolean reprojection) {
+		this.reprojection = reprojection;
+	}
+
+	@Override
+	public void setThreshold(float threshold) {
+		this.threshold = threshold;
+		// the converged tiles are checked again against the new threshold
+		activateAllTiles();
+	}
+
+	/**
+	 * @return the active pixels after the last frame completed by the device, without waiting for the others
+	 */
+	@Override
+	public int getActivePixels() {
+		collectFrames();
+		return activePixels;
+	}
+
+	/**
+	 * @return the GPU time of the dispatch of a recent frame, measured without waiting for it
+	 */
+	@Override
+	public long pollTraceTime() {
+		long time = traceTime;
+		traceTime = -1;
+		return time;
+	}
+
+	@Override
+	public void setFrameBudget(float milliseconds) {
+		scheduler = milliseconds > 0 ? new TileScheduler(milliseconds) : null;
+	}
+
+	/**
+	 * @return the samples traced by the frames completed by the device
+	 */
+	@Override
+	public long getSamples() {
+		collectFrames();
+		return samples;
+	}
+
+	/**
+	 * @return the rays traced by the frames completed by the device
+	 */
+	@Override
+	public long getRays() {
+		collectFrames();
+		return rays;
+	}
+
+	@Override
+	public void destroy() {
+		for (; framesInFlight > 0; framesInFlight--) {
+			glDeleteSync(fences[oldestFrame]);
+			oldestFrame = (oldestFrame + 1) % MAX_FRAMES_IN_FLIGHT;
+		}
+		glDeleteProgram(program);
+		glDeleteProgram(reprojectProgram);
+		if (wavefront != null)
+			wavefront.destroy();
+		timer.destroy();
+		if (denoiser != null)
+			denoiser.destroy();
+		glDeleteProgram(denoiseProgram);
+		if (readback != null)
+			readback.destroy();
+		glDeleteTextures(varianceTexture);
+		glDeleteTextures(samplesTexture);
+		glDeleteTextures(reprojectedTexture);
+		glDeleteTextures(depthTexture);
+		glDeleteTextures(albedoTexture);
+		glDeleteTextures(normalTexture);
+		if (historyTexture != 0) {
+			glDeleteTextures(historyTexture);
+			glDeleteTextures(historyDepthTexture);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package render;
+
+import static org.lwjgl.opengl.GL11.glDeleteTextures;
+import static org.lwjgl.opengl.GL15.GL_READ_ONLY;
+import static org.lwjgl.opengl.GL15.GL_WRITE_ONLY;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.GL_R32F;
+import static org.lwjgl.opengl.GL30.GL_RGBA32F;
+import static org.lwjgl.opengl.GL42.GL_SHADER_IMAGE_ACCESS_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42.GL_TEXTURE_FETCH_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42.glBindImageTexture;
+import static org.lwjgl.opengl.GL42.glMemoryBarrier;
+import static org.lwjgl.opengl.GL43.glDispatchCompute;
+
+/**
+ * Runs the edge-avoiding à-trous filter of <i>denoise.glsl</i> on the image of a {@link GpuBackend}:
+ * a pass divides the average of the samples by the albedo, then every iteration is a dispatch
+ * reading one of two textures and writing the other.
+ *
+ * @author Marco Di Rienzo
+ */
+public class GpuDenoiser {
+	public static final int ITERATIONS = 5; // the taps of the last one are 2^(ITERATIONS-1) pixels apart
+	private static final int GROUP_X = 16, GROUP_Y = 8;
+
+	private final int width, height;
+	private int program;
+	private int u_Step, u_Last;
+	private final int[] textures = new int[2];
+
+	/**
+	 * @param program the program of <i>denoise.glsl</i>, owned by the caller
+	 */
+	GpuDenoiser(int width, int height, int program) {
+		this.width = width;
+		this.height = height;
+		setProgram(program);
+		for (int i = 0; i < textures.length; i++)
+			textures[i] = GpuBackend.createFramebufferTexture(width, height);
+	}
+
+	/**
+	 * Replaces the program, e.g. compiled again after <i>denoise.glsl</i> changed.
+	 */
+	void setProgram(int program) {
+		this.program = program;
+		u_Step = glGetUniformLocation(program, "u_Step");
+		u_Last = glGetUniformLocation(program, "u_Last");
+	}
+
+	/**
+	 * Filters the accumulated image, after the frames already submitted, without waiting for them.
+	 * @param framebuffer the sum of the samples, their number in alpha
+	 * @param variance the M2 of the luminance
+	 * @param albedo the sums of the albedo guiding the denoiser
+	 * @param normal the sums of the normal guiding the denoiser
+	 * @param depth the distance of the first hit along the primary rays
+	 * @return the texture holding the filtered average, with 1 in the alpha channel
+	 */
+	int denoise(int framebuffer, int variance, int albedo, int normal, int depth) {
+		glUseProgram(program);
+		glBindImageTexture(2, albedo, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+		glBindImageTexture(3, normal, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+		glBindImageTexture(4, depth, 0, false, 0, GL_READ_ONLY, GL_R32F);
+		glBindImageTexture(5, variance, 0, false, 0, GL_READ_ONLY, GL_R32F);
+
+		pass(framebuffer, textures[0], 0, false);
+		for (int i = 0; i < ITERATIONS; i++)
+			pass(textures[i % 2], textures[(i + 1) % 2], 1 << i, i == ITERATIONS - 1);
+		// the result is sampled by the full-screen quad
+		glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT);
+
+		for (int unit = 0; unit <= 5; unit++)
+			glBindImageTexture(unit, 0, 0, false, 0, GL_READ_ONLY, GL_R32F);
+		glUseProgram(0);
+		return textures[ITERATIONS % 2];
+	}
+
+	/**
+	 * A dispatch with a thread for each pixel, the next one reads what it writes.
+	 */
+	private void pass(int input, int output, int step, boolean last) {
+		glBindImageTexture(0, input, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+		glBindImageTexture(1, output, 0, false, 0, GL_WRITE_ONLY, GL_RGBA32F);
+		glUniform1i(u_Step, step);
+		glUniform1i(u_Last, last ? 1 : 0);
+		glDispatchCompute((width + GROUP_X - 1) / GROUP_X, (height + GROUP_Y - 1) / GROUP_Y, 1);
+		glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+	}
+
+	void destroy() {
+		glDeleteTextures(textures[0]);
+		glDeleteTextures(textures[1]);
+	}
+}
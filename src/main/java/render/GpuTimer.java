@@ -0,0 +1,116 @@
+package render;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+import static org.lwjgl.opengl.GL33.glGetQueryObjecti64;
+
+/**
+ * Measures the GPU time of the commands issued between {@link #begin()} and {@link #end()}
+ * with <a href="https://www.khronos.org/opengl/wiki/Query_Object#Timer_queries">timer queries</a>.
+ * A ring of queries is used in turn, so the result of a frame is read while the next ones
+ * are measured: the host never waits for the GPU, at worst a frame is not measured
+ * when all the queries are still pending.
+ * <p>
+ * Each measurement can be tagged with the amount of work measured, e.g. the number of tiles traced,
+ * which is returned along with its time.
+ *
+ * @author Marco Di Rienzo
+ */
+public class GpuTimer {
+	private final int[] queries;
+	private final boolean[] pending;
+	private final int[] work; // of the pending measurements
+	private int next; // the query to use, also the oldest pending one
+	private boolean running;
+	private long result = -1;
+	private int resultWork, lastWork;
+
+	/**
+	 * @param queries the number of measurements that can be pending at the same time,
+	 *                at least the number of frames the device can lag behind plus one
+	 */
+	public GpuTimer(int queries) {
+		this.queries = new int[queries];
+		this.pending = new boolean[queries];
+		this.work = new int[queries];
+		glGenQueries(this.queries);
+	}
+
+	/**
+	 * Creates a timer for a device at most one frame behind.
+	 */
+	public GpuTimer() {
+		this(2);
+	}
+
+	/**
+	 * Starts measuring, unless all the queries are still waiting for their results.
+	 */
+	public void begin() {
+		collect();
+		running = !pending[next];
+		if (running)
+			glBeginQuery(GL_TIME_ELAPSED, queries[next]);
+	}
+
+	/**
+	 * Stops measuring the commands issued after {@link #begin()}.
+	 */
+	public void end() {
+		end(0);
+	}
+
+	/**
+	 * Stops measuring the commands issued after {@link #begin()}.
+	 * @param work the amount of work measured, returned by {@link #getWork()} along with its time
+	 */
+	public void end(int work) {
+		if (!running)
+			return;
+		glEndQuery(GL_TIME_ELAPSED);
+		pending[next] = true;
+		this.work[next] = work;
+		next = (next + 1) % queries.length;
+		running = false;
+	}
+
+	/**
+	 * Reads the results that are available, oldest first, without waiting.
+	 */
+	private void collect() {
+		for (int k = 0; k < queries.length; k++) {
+			int i = (next + k) % queries.length;
+			if (!pending[i])
+				continue;
+			// queries complete in order, so the following ones are not available either
+			if (glGetQueryObjecti(queries[i], GL_QUERY_RESULT_AVAILABLE) != GL_TRUE)
+				break;
+			result = glGetQueryObjecti64(queries[i], GL_QUERY_RESULT);
+			resultWork = work[i];
+			pending[i] = false;
+		}
+	}
+
+	/**
+	 * @return the GPU time in nanoseconds of the latest measurement completed since the last call,
+	 * or -1 if there is none
+	 */
+	public long poll() {
+		collect();
+		long r = result;
+		lastWork = resultWork;
+		result = -1;
+		return r;
+	}
+
+	/**
+	 * @return the work given to {@link #end(int)} by the measurement last returned by {@link #poll()}
+	 */
+	public int getWork() {
+		return lastWork;
+	}
+
+	public void destroy() {
+		glDeleteQueries(queries);
+	}
+}
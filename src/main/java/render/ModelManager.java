@@ -2,6 +2,7 @@ package render;
 
 import org.lwjgl.BufferUtils;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -10,6 +11,7 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
 
 /**
  * Helper functions to create and load Vertex Array Objects.
@@ -19,6 +21,7 @@ import static org.lwjgl.opengl.GL30.*;
 public class ModelManager {
 	private static final List<Integer> vaos = new ArrayList<>();
 	private static final List<Integer> vbos = new ArrayList<>();
+	private static final List<Integer> ssbos = new ArrayList<>();
 
 	// useful constants for stride and offset parameters of initAttributeVariable(...)
 	public static final int FLOAT_NUM_BYTES; // sizeof(float) in bytes
@@ -76,6 +79,22 @@ public class ModelManager {
 		return vbo;
 	}
 
+	/**
+	 * Generates a Shader Storage Buffer Object and stores the remaining
+	 * bytes of <i>data</i> in it.
+	 * @param data the direct buffer to be stored in the SSBO
+	 * @param usage the expected usage pattern of the data store
+	 * @return the SSBO id
+	 */
+	public static int initSSBO(ByteBuffer data, int usage) {
+		int ssbo = glGenBuffers();
+		ssbos.add(ssbo);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, ssbo);
+		glBufferData(GL_SHADER_STORAGE_BUFFER, data, usage);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+		return ssbo;
+	}
+
 	/**
 	 * Binds the <i>vbo</i> and makes the vertex attribute array at
 	 * the location of the attribute variable <i>aVar</i> point to it,
@@ -95,7 +114,7 @@ public class ModelManager {
 	}
 
 	/**
-	 * Deletes all VAOs and VBOs created with this class methods.
+	 * Deletes all VAOs, VBOs and SSBOs created with this class methods.
 	 */
 	public static void deleteVAOsVBOs() {
 		for (int vao : vaos) {
@@ -104,6 +123,9 @@ public class ModelManager {
 		for (int vbo : vbos) {
 			glDeleteBuffers(vbo);
 		}
+		for (int ssbo : ssbos) {
+			glDeleteBuffers(ssbo);
+		}
 	}
 
 	/**
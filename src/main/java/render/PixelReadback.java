@@ -0,0 +1,131 @@
+package render;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_PACK_BUFFER;
+import static org.lwjgl.opengl.GL30.GL_MAP_READ_BIT;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL42.GL_TEXTURE_UPDATE_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42.glMemoryBarrier;
+
+/**
+ * Reads an RGBA32F texture back without stalling the host, through a ring of
+ * <a href="https://www.khronos.org/opengl/wiki/Pixel_Buffer_Object">pixel buffer objects</a>.
+ * A request only queues the copy of the texture into a free buffer, followed by a fence sync;
+ * once the fence is signaled the buffer is mapped and handed to the consumer as a {@link Snapshot},
+ * which can be read from any thread until it is released, without any other copy.
+ * The released buffers are unmapped by the next call on the thread of the OpenGL context.
+ * When all the buffers are still being copied or read the request is dropped.
+ *
+ * @author Marco Di Rienzo
+ */
+public class PixelReadback {
+	public static final int RING_SIZE = 3;
+
+	private final int width, height;
+	private final long size;
+	private final int[] buffers = new int[RING_SIZE];
+	private final long[] fences = new long[RING_SIZE];
+	private final int[] frames = new int[RING_SIZE];
+	@SuppressWarnings("unchecked")
+	private final Consumer<Snapshot>[] consumers = (Consumer<Snapshot>[]) new Consumer<?>[RING_SIZE];
+	private final boolean[] busy = new boolean[RING_SIZE];
+	private final Queue<Integer> copying = new ArrayDeque<>(); // slots waiting for their fence, oldest first
+	private final Queue<Integer> released = new ConcurrentLinkedQueue<>(); // slots to unmap
+
+	public PixelReadback(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.size = (long) width * height * 4 * Float.BYTES;
+		glGenBuffers(buffers);
+		for (int buffer : buffers) {
+			glBindBuffer(GL_PIXEL_PACK_BUFFER, buffer);
+			glBufferData(GL_PIXEL_PACK_BUFFER, size, GL_STREAM_READ);
+		}
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+	}
+
+	/**
+	 * Queues the copy of the texture, after the commands already submitted.
+	 * @param texture RGBA32F texture of the size given to the constructor
+	 * @param frame the frame number stored in the snapshot
+	 * @param consumer receives the snapshot from a later call to {@link #poll(boolean)}
+	 * @return false if no buffer is free, the request is dropped
+	 */
+	public boolean request(int texture, int frame, Consumer<Snapshot> consumer) {
+		poll(false);
+		int slot = -1;
+		for (int i = 0; i < RING_SIZE && slot < 0; i++)
+			if (!busy[i])
+				slot = i;
+		if (slot < 0)
+			return false;
+
+		// the texture is written by image stores
+		glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT);
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, buffers[slot]);
+		glBindTexture(GL_TEXTURE_2D, texture);
+		// with a pack buffer bound the pointer is an offset into it, the call returns immediately
+		glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_FLOAT, 0L);
+		glBindTexture(GL_TEXTURE_2D, 0);
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+		fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		glFlush();
+
+		busy[slot] = true;
+		frames[slot] = frame;
+		consumers[slot] = consumer;
+		copying.add(slot);
+		return true;
+	}
+
+	/**
+	 * Unmaps the buffers released by the consumers and hands the completed copies to theirs, oldest first.
+	 * @param wait whether to wait for all the pending copies, otherwise only the completed ones are handed
+	 */
+	public void poll(boolean wait) {
+		for (Integer slot; (slot = released.poll()) != null; ) {
+			glBindBuffer(GL_PIXEL_PACK_BUFFER, buffers[slot]);
+			glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+			busy[slot] = false;
+		}
+		glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+		for (Integer slot; (slot = copying.peek()) != null; copying.remove()) {
+			long fence = fences[slot];
+			if (wait)
+				glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, GL_TIMEOUT_IGNORED);
+			else if (glGetSynci(fence, GL_SYNC_STATUS, null) != GL_SIGNALED)
+				break;
+			glDeleteSync(fence);
+
+			glBindBuffer(GL_PIXEL_PACK_BUFFER, buffers[slot]);
+			ByteBuffer pixels = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, size, GL_MAP_READ_BIT);
+			glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+			int s = slot;
+			Consumer<Snapshot> consumer = consumers[s];
+			consumers[s] = null;
+			consumer.accept(new Snapshot(width, height, pixels.order(ByteOrder.nativeOrder()).asFloatBuffer(),
+					frames[s], () -> released.add(s)));
+		}
+	}
+
+	/**
+	 * Deletes the buffers, which must not be read by any consumer anymore.
+	 */
+	public void destroy() {
+		for (Integer slot : copying)
+			glDeleteSync(fences[slot]);
+		copying.clear();
+		// deleting a mapped buffer unmaps it
+		glDeleteBuffers(buffers);
+	}
+}
@@ -0,0 +1,94 @@
+package render;
+
+/**
+ * The fraction of the size of the window at which the image is traced, the quad upscales it.
+ * While the camera moves the scale adapts to hold a target frame rate: since the cost of a frame
+ * grows with the number of pixels, the scale is multiplied by the square root of the ratio between
+ * the target frame time and the measured one. Once the camera stops for {@link #IDLE_SECONDS}
+ * the full scale is restored, so the image converges at the resolution asked for.
+ * <p>
+ * Every change of scale reallocates the images of the backend and restarts the accumulation,
+ * so the scale only changes when it differs from the current one by more than {@link #HYSTERESIS}.
+ *
+ * @author Marco Di Rienzo
+ */
+public class RenderScale {
+	public static final float MIN_SCALE = 0.25f;
+	public static final float HYSTERESIS = 0.1f; // relative change of the scale
+	public static final double IDLE_SECONDS = 0.3;
+	private static final double SMOOTHING = 0.25; // weight of a new frame time
+
+	private final float fullScale;
+	private final double targetFrameTime; // nanoseconds, 0 to keep the full scale
+	private float scale;
+	private float movingScale; // the scale adapted during the last moves, where the next ones start from
+	private double frameTime = -1; // nanoseconds, smoothed over the frames traced at the current scale
+	private boolean settling; // the first frame after a change also pays for the reallocation, it is not measured
+	private long lastMove;
+
+	/**
+	 * @param fullScale the scale when the camera does not move, in (0, 1]
+	 * @param targetFps the frame rate to hold while the camera moves, 0 to always trace at the full scale
+	 */
+	public RenderScale(float fullScale, float targetFps) {
+		this.fullScale = fullScale;
+		this.targetFrameTime = targetFps > 0 ? 1E9 / targetFps : 0;
+		this.scale = fullScale;
+		this.movingScale = fullScale;
+	}
+
+	/**
+	 * Records a traced frame.
+	 * @param time the nanoseconds since the previous traced frame
+	 */
+	public void recordFrame(long time) {
+		if (settling) {
+			settling = false;
+			return;
+		}
+		frameTime = frameTime < 0 ? time : frameTime + SMOOTHING * (time - frameTime);
+	}
+
+	/**
+	 * Chooses the scale of the next frame.
+	 * @param moved whether the camera moved since the previous call
+	 * @param now the current time in nanoseconds
+	 * @return the scale of the next frame
+	 */
+	public float update(boolean moved, long now) {
+		if (targetFrameTime == 0)
+			return scale;
+		if (moved)
+			lastMove = now;
+
+		float next;
+		if (now - lastMove > IDLE_SECONDS * 1E9) {
+			next = fullScale;
+		} else if (scale != movingScale) {
+			// the camera started moving again
+			next = movingScale;
+		} else if (frameTime > 0) {
+			next = (float) (scale * Math.sqrt(targetFrameTime / frameTime));
+			next = Math.max(MIN_SCALE, Math.min(fullScale, next));
+			if (Math.abs(next - scale) <= HYSTERESIS * scale)
+				next = scale;
+			movingScale = next;
+		} else {
+			next = scale;
+		}
+
+		if (next != scale) {
+			scale = next;
+			frameTime = -1;
+			settling = true;
+		}
+		return scale;
+	}
+
+	/**
+	 * @return the scale of the current frame
+	 */
+	public float getScale() {
+		return scale;
+	}
+}
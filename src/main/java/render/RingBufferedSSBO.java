@@ -0,0 +1,99 @@
+package render;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static render.ModelManager.initSSBO;
+
+/**
+ * A scene buffer updated every frame of an animation, e.g. the nodes of a refitted BVH, held in a ring of
+ * shader storage buffers: the frames in flight read the copies they were submitted with while the changes
+ * are written into the next copy, which then becomes the front one. Writing a buffer still read by a queued
+ * dispatch would make the driver wait for it, or copy the whole buffer aside, so with one copy more than
+ * the frames that can be in flight the copy written is never read by any of them.
+ * <p>
+ * Each copy remembers the range it missed since it was last written, so an update only uploads
+ * the range changed by the frame plus the ones changed while the other copies were in front.
+ *
+ * @author Marco Di Rienzo
+ */
+class RingBufferedSSBO {
+	private final int[] buffers;
+	private final int[][] stale; // bytes {first, end} of each copy older than the data, null if none
+	private int front;
+	private int size;
+
+	/**
+	 * @param copies the number of buffers, more than the frames which can be in flight
+	 */
+	RingBufferedSSBO(ByteBuffer data, int copies) {
+		size = data.remaining();
+		buffers = new int[copies];
+		stale = new int[copies][];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = initSSBO(nonEmpty(data), GL_DYNAMIC_DRAW);
+	}
+
+	/**
+	 * OpenGL cannot bind empty buffers, at least a zeroed struct is stored.
+	 */
+	private static ByteBuffer nonEmpty(ByteBuffer data) {
+		return data.hasRemaining() ? data : BufferUtils.createByteBuffer(32);
+	}
+
+	/**
+	 * @return the buffer to bind for the next dispatches
+	 */
+	int front() {
+		return buffers[front];
+	}
+
+	/**
+	 * Uploads a changed range of the data into the next buffer of the ring, which becomes the front one.
+	 * @param data the whole buffer, uploaded again if its size changed
+	 * @param range the bytes {first, end} changed since the previous update, null if none
+	 * @return the number of bytes uploaded
+	 */
+	long update(ByteBuffer data, int[] range) {
+		if (data.remaining() != size)
+			return set(data);
+		if (range == null)
+			return 0;
+		int next = (front + 1) % buffers.length;
+		int[] upload = union(stale[next], range);
+		ByteBuffer changed = data.duplicate();
+		changed.position(data.position() + upload[0]).limit(data.position() + upload[1]);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffers[next]);
+		glBufferSubData(GL_SHADER_STORAGE_BUFFER, upload[0], changed.slice());
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+		for (int i = 0; i < buffers.length; i++)
+			stale[i] = i == next ? null : union(stale[i], range);
+		front = next;
+		return upload[1] - upload[0];
+	}
+
+	/**
+	 * Replaces the whole data of all the buffers, e.g. after the BVH was built again:
+	 * glBufferData gives them new storage, the frames in flight keep reading the previous one.
+	 * @return the number of bytes uploaded
+	 */
+	long set(ByteBuffer data) {
+		size = data.remaining();
+		for (int i = 0; i < buffers.length; i++) {
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffers[i]);
+			glBufferData(GL_SHADER_STORAGE_BUFFER, nonEmpty(data), GL_DYNAMIC_DRAW);
+			stale[i] = null;
+		}
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+		return size;
+	}
+
+	private static int[] union(int[] a, int[] b) {
+		if (a == null)
+			return b;
+		return new int[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])};
+	}
+}
@@ -0,0 +1,43 @@
+package render;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A copy of the accumulated image read back by {@link TraceBackend#snapshot}, which can be
+ * encoded on any thread while the backend keeps tracing. The pixels live in a buffer of the
+ * backend, e.g. a mapped pixel buffer object, which is only reused once {@link #release()} is called.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Snapshot {
+	public final int width, height;
+	/**
+	 * RGBA sums of the samples, with their number in the alpha channel, rows ordered bottom to top
+	 */
+	public final FloatBuffer pixels;
+	public final int frame; // frame number of the backend when the snapshot was taken
+	private final Runnable release;
+	private boolean released;
+
+	/**
+	 * @param release gives the buffer back to the backend, called once by {@link #release()}
+	 */
+	public Snapshot(int width, int height, FloatBuffer pixels, int frame, Runnable release) {
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+		this.frame = frame;
+		this.release = release;
+	}
+
+	/**
+	 * Gives the buffer back to the backend, the pixels must not be read afterwards.
+	 * Can be called from any thread, only the first call has effect.
+	 */
+	public synchronized void release() {
+		if (!released) {
+			released = true;
+			release.run();
+		}
+	}
+}
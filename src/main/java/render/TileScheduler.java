@@ -0,0 +1,55 @@
+package render;
+
+/**
+ * Chooses how many tiles a frame traces so that it fits in a budget of device time,
+ * keeping the desktop responsive and far from the watchdog of the driver at high resolutions.
+ * The cost of a tile is estimated from the measured times of the previous frames,
+ * divided by the number of tiles they traced, and smoothed since the measurements are noisy.
+ * <p>
+ * The backends walk their list of active tiles in order, a frame starting from the tile after
+ * the last one traced by the previous frame, so every tile gets the same samples per pixel.
+ *
+ * @author Marco Di Rienzo
+ */
+public class TileScheduler {
+	public static final int INITIAL_TILES = 16; // traced by the first frames, before any measurement
+	private static final double SMOOTHING = 0.25; // weight of a new measurement
+
+	private final long budget;
+	private double tileTime = -1; // nanoseconds
+
+	/**
+	 * @param milliseconds the device time a frame should take
+	 */
+	public TileScheduler(float milliseconds) {
+		this.budget = (long) (milliseconds * 1E6);
+	}
+
+	/**
+	 * @param remaining the tiles left to trace before the whole image is done
+	 * @return the number of tiles the next frame should trace, at least one
+	 */
+	public int tiles(int remaining) {
+		long tiles = tileTime < 0 ? INITIAL_TILES : (long) (budget / tileTime);
+		return (int) Math.max(1, Math.min(tiles, remaining));
+	}
+
+	/**
+	 * Updates the estimated cost of a tile with the time a frame took.
+	 * @param time the nanoseconds spent by the device
+	 * @param tiles the tiles traced by the frame
+	 */
+	public void record(long time, int tiles) {
+		if (time < 0 || tiles <= 0)
+			return;
+		double perTile = (double) time / tiles;
+		tileTime = tileTime < 0 ? perTile : tileTime + SMOOTHING * (perTile - tileTime);
+	}
+
+	/**
+	 * @return the estimated nanoseconds of device time of a tile, -1 before the first measurement
+	 */
+	public double getTileTime() {
+		return tileTime;
+	}
+}
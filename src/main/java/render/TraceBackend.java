@@ -0,0 +1,208 @@
+package render;
+
+import scene.Scene;
+import scene.SceneUpdate;
+
+import java.util.function.Consumer;
+
+/**
+ * A device able to trace the scene as seen from a {@link Camera} and to
+ * progressively accumulate the results of subsequent frames.
+ * Sampling is adaptive: the image is split in tiles and once the estimated error
+ * of all the pixels of a tile falls under the threshold the tile is no longer traced.
+ * <p>
+ * The accumulated image holds the sum of the samples of each pixel, with their number
+ * in the alpha channel: the average is computed when presenting or reading the image.
+ * The backends count the samples as integers and copy the count in the alpha channel,
+ * which holds it exactly since a pixel accumulates at most {@link #MAX_SAMPLES} samples.
+ *
+ * @author Marco Di Rienzo
+ */
+public interface TraceBackend {
+	/**
+	 * Samples a pixel accumulates at most, then it counts as converged: the float sum of many samples
+	 * rounds away the new ones much smaller than the average, with 2^16 samples those under about 1/256 of it.
+	 * MAX_SAMPLES of tiles.glsl.
+	 */
+	int MAX_SAMPLES = 1 << 16;
+
+	/**
+	 * Traces the samples of a dispatch for each active pixel and adds them to the accumulated image.
+	 * When the camera differs from the one of the previous frame the accumulation is reset first.
+	 * Does nothing once all the pixels converged, or while the device is still busy with
+	 * as many frames as it can queue: the caller is never blocked waiting for the device.
+	 * @param camera the camera whose corner rays define the primary rays
+	 * @return true if a frame was traced or submitted
+	 */
+	boolean trace(Camera camera);
+
+	/**
+	 * Makes the accumulated image available in the given texture
+	 * so it can be rendered on the full-screen quad.
+	 * @param texture the id of an RGBA32F texture of the size of the image
+	 */
+	void present(int texture);
+
+	/**
+	 * Like {@link #present(int)}, but the average of the samples is filtered by the denoiser first,
+	 * guided by the {@link Aovs}. The filter only runs when this is called, never while tracing.
+	 * @param texture the texture given to {@link #present(int)}
+	 * @return the RGBA32F texture holding the filtered average, with 1 in the alpha channel
+	 */
+	int presentDenoised(int texture);
+
+	/**
+	 * Copies the average of the accumulated samples into <i>pixels</i>, waiting for the
+	 * device to complete the pending work.
+	 * @param pixels RGBA array of the size of the image, rows ordered bottom to top,
+	 *               with the number of samples of each pixel in the alpha channel
+	 */
+	void readPixels(float[] pixels);
+
+	/**
+	 * Copies the accumulated image as is, waiting for the device to complete the pending work:
+	 * unlike {@link #readPixels(float[])} the sums are not divided, so images can be added together.
+	 * @param pixels RGBA array of the size of the image, rows ordered bottom to top,
+	 *               with the sums of the samples of each pixel and their number in the alpha channel
+	 */
+	void readSums(float[] pixels);
+
+	/**
+	 * Starts copying the accumulated image without waiting for the device.
+	 * The consumer receives the copy on the calling thread, from this or a later call to
+	 * {@link #trace(Camera)} or {@link #flushSnapshots()}, and must release it, from any thread,
+	 * once done: only a few snapshots can be held at the same time.
+	 * @param consumer receives the sums of the samples, with their number in the alpha channel
+	 * @return false if all the buffers are still held, the snapshot is dropped
+	 */
+	boolean snapshot(Consumer<Snapshot> consumer);
+
+	/**
+	 * Waits for the copies started by {@link #snapshot(Consumer)} and hands them to their consumers.
+	 */
+	void flushSnapshots();
+
+	/**
+	 * Copies the auxiliary buffers accumulated along with the image, waiting for the
+	 * device to complete the pending work.
+	 * @param aovs buffers of the size of the image
+	 */
+	void readAovs(Aovs aovs);
+
+	/**
+	 * @return the number of frames accumulated so far
+	 */
+	int getFrameNumber();
+
+	/**
+	 * Sets how many samples of each active pixel are traced by a frame, 1 by default.
+	 * More samples per frame amortize the cost of submitting the work.
+	 * @param samples the samples per pixel per frame
+	 */
+	void setSamplesPerDispatch(int samples);
+
+	/**
+	 * Sets the relative standard error of the mean luminance under which a pixel
+	 * is considered converged, 0 (the default) never stops sampling.
+	 * All the tiles are traced again at least once to check them against the new threshold.
+	 * @param threshold the error relative to the luminance of the pixel, e.g. 0.01 for 1%
+	 */
+	void setThreshold(float threshold);
+
+	/**
+	 * Sets the time a frame should take on the device, 0 (the default) traces all the active tiles
+	 * every frame. Otherwise a frame only traces the tiles expected to fit in the budget, and the next
+	 * frame goes on from the following tile: a pass over all the active tiles, which adds the samples
+	 * of a dispatch to each of their pixels, may span several frames, so the image is sampled evenly.
+	 * The frame number counts the passes.
+	 * @param milliseconds the budget of a frame, e.g. to keep the desktop responsive
+	 */
+	void setFrameBudget(float milliseconds);
+
+	/**
+	 * Changes the size of the image, reallocating the accumulated image and the auxiliary buffers:
+	 * the accumulation starts again from zero samples. The texture given to {@link #present(int)}
+	 * must have the new size too.
+	 * @param width the new width of the image
+	 * @param height the new height of the image
+	 */
+	void resize(int width, int height);
+
+	/**
+	 * Replaces the traced scene with another version of it, e.g. loaded again after its file was edited:
+	 * only the parts that differ are updated, and the accumulation starts again only if the primitives
+	 * or the materials changed. The camera of the scene is not used, the frames are traced from the
+	 * camera given to {@link #trace(Camera)}.
+	 * @param scene the new version of the scene, with its hierarchy built
+	 * @return true if the scene changed and the accumulation restarted
+	 */
+	boolean setScene(Scene scene);
+
+	/**
+	 * Updates the parts of the traced scene moved by a frame of its animation, see {@link Scene#animate(float)},
+	 * without waiting for the frames in flight. The accumulation starts again.
+	 * @param update what the animation changed in the buffers of the scene given to the backend
+	 */
+	void updateScene(SceneUpdate update);
+
+	/**
+	 * Discards the accumulated image, the next frame starts again from zero samples.
+	 */
+	void reset();
+
+	/**
+	 * Makes the image the tile at (<i>pixelX</i>, <i>pixelY</i>) of a larger one, whose samples are
+	 * indexed from <i>sample</i>: the random numbers of each sample are the ones the larger image
+	 * would use, so tiles and sample ranges traced apart, e.g. by the workers of a distributed
+	 * render, add up to the image traced at once. All zero by default.
+	 */
+	void setSampleOffset(int pixelX, int pixelY, int sample);
+
+	/**
+	 * Sets whether, when the camera moves, the image accumulated from the previous point of view
+	 * is reprojected to the new one as a starting point, true by default.
+	 * Otherwise the accumulation starts again from zero samples.
+	 */
+	void setReprojection(boolean reprojection);
+
+	/**
+	 * @return the number of pixels which did not converge yet, as of the last traced frame
+	 */
+	int getActivePixels();
+
+	/**
+	 * @return the time in nanoseconds spent by the device tracing a recent frame,
+	 * or -1 if no new measurement completed since the last call
+	 */
+	long pollTraceTime();
+
+	/**
+	 * @return the number of samples, i.e. primary rays, traced so far
+	 */
+	long getSamples();
+
+	/**
+	 * @return the number of rays, primary and bounces, traced so far
+	 */
+	long getRays();
+
+	/**
+	 * Releases the resources held by this backend.
+	 */
+	void destroy();
+
+	/**
+	 * Divides the sums of an accumulated RGBA image by the number of samples in the alpha channel,
+	 * pixels without samples are left black.
+	 */
+	static void normalize(float[] pixels) {
+		for (int i = 0; i < pixels.length; i += 4) {
+			float n = pixels[i + 3];
+			if (n > 0) {
+				pixels[i] /= n;
+				pixels[i + 1] /= n;
+				pixels[i + 2] /= n;
+			}
+		}
+	}
+}
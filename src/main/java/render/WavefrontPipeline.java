@@ -0,0 +1,333 @@
+package render;
+
+import org.lwjgl.BufferUtils;
+import utils.ProgramCache;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.Set;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.GL_R32UI;
+import static org.lwjgl.opengl.GL30.GL_RED_INTEGER;
+import static org.lwjgl.opengl.GL30.GL_RGBA32UI;
+import static org.lwjgl.opengl.GL30.GL_RGBA_INTEGER;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL30.glUniform1ui;
+import static org.lwjgl.opengl.GL42C.GL_BUFFER_UPDATE_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42C.GL_COMMAND_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42C.GL_SHADER_IMAGE_ACCESS_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42C.glMemoryBarrier;
+import static org.lwjgl.opengl.GL43.GL_DISPATCH_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.glDispatchCompute;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BARRIER_BIT;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43.glClearBufferData;
+import static org.lwjgl.opengl.GL43.glClearBufferSubData;
+import static org.lwjgl.opengl.GL43C.glDispatchComputeIndirect;
+
+/**
+ * Wavefront alternative to the <i>raytracing</i> megakernel, used by the {@link GpuBackend}
+ * to trace the active tiles of a frame. The paths are kept in a shader storage buffer and
+ * advanced a bounce at a time by four compute shaders, described in <i>wavefront/paths.glsl</i>,
+ * which pass them to each other through queues of path slots read by glDispatchComputeIndirect.
+ * <p>
+ * A frame starts the samples of the pixels of the active tiles, then runs a fixed number of
+ * extend, shade and accumulate iterations: the paths still going on at the end of the frame
+ * are carried over to the next one, so no frame waits for the longest path of the image.
+ * As a consequence the samples of a pixel are added to the image a few frames after they start,
+ * and the active pixels are counted when the frame starts instead of when it ends.
+ * When the list of tiles is traced a slice per frame, only the paths of the slice are started.
+ *
+ * @author Marco Di Rienzo
+ */
+public class WavefrontPipeline {
+	// binding points of the storage blocks declared in wavefront/paths.glsl
+	public static final int PATHS_BINDING = 9, QUEUES_BINDING = 10;
+	private static final int PATH_FIELDS = 8; // vec4 fields of a path
+	private static final int QUEUES = 3, FINISHED_QUEUE = 2;
+	private static final int HEADER_SIZE = 16; // numGroups[3], count
+	// iterations of a frame for each sample per dispatch, paths usually end in fewer bounces
+	public static final int ITERATIONS_PER_SAMPLE = 8;
+	private static final int BARRIERS = GL_SHADER_STORAGE_BARRIER_BIT | GL_SHADER_IMAGE_ACCESS_BARRIER_BIT
+			| GL_COMMAND_BARRIER_BIT | GL_BUFFER_UPDATE_BARRIER_BIT;
+
+	private int generate, extend, shade, accumulate;
+	private int[] generateCamera, accumulateCamera;
+	private int g_SamplesPerDispatch, g_Threshold, g_Restart, g_Queue, g_TileOffset;
+	private int e_Queue, s_Queue, s_NextQueue, a_NextQueue;
+	private final ProgramCache programCache;
+
+	// the uniforms set once, again whenever a program is reloaded
+	private int width, height;
+	private int numNodes, numLights;
+	private int pixelOffsetX, pixelOffsetY, sampleOffset;
+
+	private final int pathsSSBO, queuesSSBO;
+	private final IntBuffer emptyHeader = BufferUtils.createIntBuffer(4);
+	private int rayQueue; // the queue of the rays to extend, the other one is filled meanwhile
+	private boolean restart;
+	private boolean restarting; // the slices of the first pass over the tiles after a restart
+
+	/**
+	 * Compiles the shaders and allocates a path for each pixel of the image.
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param numNodes the number of nodes of the hierarchy of the scene
+	 * @param numLights the number of emissive spheres of the scene
+	 * @param programCache the cache of the program binaries, null to always compile the shaders
+	 * @param defines the macros specializing the shaders, including the work group size of the megakernel,
+	 *                since the tiles of the two must match
+	 * @throws IOException if the shader sources cannot be read
+	 */
+	WavefrontPipeline(int width, int height, int numNodes, int numLights, ProgramCache programCache,
+					  Map<String, String> defines) throws IOException {
+		this.programCache = programCache;
+		this.numNodes = numNodes;
+		this.numLights = numLights;
+		generate = program("generate", defines, programCache);
+		extend = program("extend", defines, programCache);
+		shade = program("shade", defines, programCache);
+		accumulate = program("accumulate", defines, programCache);
+
+		pathsSSBO = glGenBuffers();
+		queuesSSBO = glGenBuffers();
+		// no work groups, 1 in y and z, no slots
+		emptyHeader.put(0, 0).put(1, 1).put(2, 1).put(3, 0);
+		resize(width, height);
+	}
+
+	/**
+	 * Allocates a path for each pixel of an image of the given size, all idle,
+	 * and empties the queues: the paths in flight are discarded.
+	 */
+	void resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		setUniforms();
+
+		long capacity = (long) width * height;
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, pathsSSBO);
+		glBufferData(GL_SHADER_STORAGE_BUFFER, capacity * PATH_FIELDS * 16, GL_DYNAMIC_COPY);
+		// all the slots are idle
+		glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, (IntBuffer) null);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, queuesSSBO);
+		glBufferData(GL_SHADER_STORAGE_BUFFER, QUEUES * (HEADER_SIZE + capacity * 4), GL_DYNAMIC_COPY);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+		for (int queue = 0; queue < QUEUES; queue++)
+			clearQueue(queue);
+		restart = false;
+		restarting = false;
+	}
+
+	private static int program(String name, Map<String, String> defines, ProgramCache programCache) throws IOException {
+		return GpuBackend.compile(GpuBackend.PREPROCESSOR.load(path(name)), defines, programCache);
+	}
+
+	/**
+	 * @return the path in the classpath of the shader of a stage
+	 */
+	static String path(String name) {
+		return "shaders/wavefront/" + name + ".glsl";
+	}
+
+	/**
+	 * Reads the locations of the uniforms and sets the ones which only change with the image and the scene.
+	 */
+	private void setUniforms() {
+		generateCamera = cameraUniforms(generate);
+		accumulateCamera = cameraUniforms(accumulate);
+		g_SamplesPerDispatch = glGetUniformLocation(generate, "u_SamplesPerDispatch");
+		g_Threshold = glGetUniformLocation(generate, "u_Threshold");
+		g_Restart = glGetUniformLocation(generate, "u_Restart");
+		g_Queue = glGetUniformLocation(generate, "u_Queue");
+		g_TileOffset = glGetUniformLocation(generate, "u_TileOffset");
+		e_Queue = glGetUniformLocation(extend, "u_Queue");
+		s_Queue = glGetUniformLocation(shade, "u_Queue");
+		s_NextQueue = glGetUniformLocation(shade, "u_NextQueue");
+		a_NextQueue = glGetUniformLocation(accumulate, "u_NextQueue");
+
+		for (int program : new int[]{generate, extend, shade, accumulate}) {
+			glUseProgram(program);
+			glUniform2i(glGetUniformLocation(program, "u_Size"), width, height);
+		}
+		// extend traces the rays, shade the shadow rays towards the lights
+		for (int program : new int[]{extend, shade}) {
+			glUseProgram(program);
+			glUniform1i(glGetUniformLocation(program, "u_NumNodes"), numNodes);
+			glUniform1i(glGetUniformLocation(program, "u_NumLights"), numLights);
+		}
+		// only the shading samples random numbers
+		glUseProgram(shade);
+		glUniform2i(glGetUniformLocation(shade, "u_PixelOffset"), pixelOffsetX, pixelOffsetY);
+		glUniform1ui(glGetUniformLocation(shade, "u_SampleOffset"), sampleOffset);
+		glUseProgram(0);
+	}
+
+	/**
+	 * Compiles again the stages whose shaders changed, see {@link GpuBackend#reloadShaders}.
+	 * A stage which fails to compile keeps its program.
+	 * @param shaders the paths of the changed shaders
+	 * @param defines the macros specializing the shaders
+	 * @return true if a stage was replaced, the caller must restart the accumulation
+	 */
+	boolean reload(Set<String> shaders, Map<String, String> defines) {
+		int[] before = {generate, extend, shade, accumulate};
+		generate = reload(generate, "generate", shaders, defines);
+		extend = reload(extend, "extend", shaders, defines);
+		shade = reload(shade, "shade", shaders, defines);
+		accumulate = reload(accumulate, "accumulate", shaders, defines);
+		if (generate == before[0] && extend == before[1] && shade == before[2] && accumulate == before[3])
+			return false;
+		setUniforms();
+		return true;
+	}
+
+	private int reload(int program, String name, Set<String> shaders, Map<String, String> defines) {
+		if (!shaders.contains(path(name)))
+			return program;
+		int reloaded = GpuBackend.recompile(path(name), defines, programCache);
+		if (reloaded == 0)
+			return program;
+		glDeleteProgram(program);
+		return reloaded;
+	}
+
+	/**
+	 * Updates the sizes of the hierarchy and of the lights after the scene changed.
+	 */
+	void setScene(int numNodes, int numLights) {
+		this.numNodes = numNodes;
+		this.numLights = numLights;
+		setUniforms();
+	}
+
+	private static int[] cameraUniforms(int program) {
+		return new int[]{
+				glGetUniformLocation(program, "u_Eye"),
+				glGetUniformLocation(program, "u_Ray00"),
+				glGetUniformLocation(program, "u_Ray01"),
+				glGetUniformLocation(program, "u_Ray10"),
+				glGetUniformLocation(program, "u_Ray11")};
+	}
+
+	private static void setCamera(int[] uniforms, Camera camera) {
+		glUniform3f(uniforms[0], camera.position.x, camera.position.y, camera.position.z);
+		glUniform3f(uniforms[1], camera.ray00.x, camera.ray00.y, camera.ray00.z);
+		glUniform3f(uniforms[2], camera.ray01.x, camera.ray01.y, camera.ray01.z);
+		glUniform3f(uniforms[3], camera.ray10.x, camera.ray10.y, camera.ray10.z);
+		glUniform3f(uniforms[4], camera.ray11.x, camera.ray11.y, camera.ray11.z);
+	}
+
+	private void clearQueue(int queue) {
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, queuesSSBO);
+		glClearBufferSubData(GL_SHADER_STORAGE_BUFFER, GL_RGBA32UI, (long) queue * HEADER_SIZE, HEADER_SIZE,
+				GL_RGBA_INTEGER, GL_UNSIGNED_INT, emptyHeader);
+		glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+	}
+
+	/**
+	 * Sets the offsets of the pixels and of the sample indices, see {@link TraceBackend#setSampleOffset}.
+	 */
+	void setSampleOffset(int pixelX, int pixelY, int sample) {
+		pixelOffsetX = pixelX;
+		pixelOffsetY = pixelY;
+		sampleOffset = sample;
+		setUniforms();
+	}
+
+	/**
+	 * Discards the paths in flight at the next frame, e.g. because the camera moved,
+	 * which must start a new pass from the first tile of the list.
+	 */
+	void restart() {
+		restart = true;
+	}
+
+	/**
+	 * Traces a frame, in place of the dispatch of the megakernel: the scene, the lists of tiles
+	 * and the images must already be bound.
+	 * @param currentTiles the buffer of the list of the active tiles, read as dispatch parameters
+	 * @param firstTile the index in the list of the first tile to trace
+	 * @param numTiles the number of tiles to trace, possibly past the end of the list,
+	 *                 0 to trace the whole list as read from the dispatch parameters
+	 * @param camera the camera of the new paths
+	 * @param samplesPerDispatch the samples started for each pixel of the active tiles
+	 * @param threshold the relative standard error under which a pixel is converged
+	 */
+	void trace(int currentTiles, int firstTile, int numTiles, Camera camera, int samplesPerDispatch, float threshold) {
+		// a restart starts a new pass over the list, whose tiles all discard the paths of their pixels
+		if (firstTile == 0) {
+			if (restart) {
+				for (int queue = 0; queue < QUEUES; queue++)
+					clearQueue(queue);
+			}
+			restarting = restart;
+			restart = false;
+		}
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, PATHS_BINDING, pathsSSBO);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, QUEUES_BINDING, queuesSSBO);
+
+		// a work group for each active tile, as the megakernel
+		glUseProgram(generate);
+		setCamera(generateCamera, camera);
+		glUniform1i(g_SamplesPerDispatch, samplesPerDispatch);
+		glUniform1f(g_Threshold, threshold);
+		glUniform1i(g_Restart, restarting ? 1 : 0);
+		glUniform1ui(g_Queue, rayQueue);
+		glUniform1ui(g_TileOffset, firstTile);
+		if (numTiles > 0) {
+			glDispatchCompute(numTiles, 1, 1);
+		} else {
+			glBindBuffer(GL_DISPATCH_INDIRECT_BUFFER, currentTiles);
+			glDispatchComputeIndirect(0);
+		}
+		glMemoryBarrier(BARRIERS);
+
+		// then a thread for each slot in the queue, the number of work groups is kept in its header
+		glUseProgram(accumulate);
+		setCamera(accumulateCamera, camera);
+		glBindBuffer(GL_DISPATCH_INDIRECT_BUFFER, queuesSSBO);
+		int iterations = ITERATIONS_PER_SAMPLE * samplesPerDispatch;
+		for (int i = 0; i < iterations; i++) {
+			int nextQueue = 1 - rayQueue;
+
+			glUseProgram(extend);
+			glUniform1ui(e_Queue, rayQueue);
+			glDispatchComputeIndirect((long) rayQueue * HEADER_SIZE);
+			glMemoryBarrier(BARRIERS);
+
+			glUseProgram(shade);
+			glUniform1ui(s_Queue, rayQueue);
+			glUniform1ui(s_NextQueue, nextQueue);
+			glDispatchComputeIndirect((long) rayQueue * HEADER_SIZE);
+			glMemoryBarrier(BARRIERS);
+
+			glUseProgram(accumulate);
+			glUniform1ui(a_NextQueue, nextQueue);
+			glDispatchComputeIndirect((long) FINISHED_QUEUE * HEADER_SIZE);
+			glMemoryBarrier(BARRIERS);
+
+			clearQueue(rayQueue);
+			clearQueue(FINISHED_QUEUE);
+			rayQueue = nextQueue;
+		}
+		glBindBuffer(GL_DISPATCH_INDIRECT_BUFFER, 0);
+		glUseProgram(0);
+	}
+
+	/**
+	 * Releases the programs and the buffers.
+	 */
+	void destroy() {
+		glDeleteProgram(generate);
+		glDeleteProgram(extend);
+		glDeleteProgram(shade);
+		glDeleteProgram(accumulate);
+		glDeleteBuffers(pathsSSBO);
+		glDeleteBuffers(queuesSSBO);
+	}
+}
@@ -24,7 +24,7 @@ public class WindowManager {
 	 * <ul>
 	 *     <li>created window will be hidden,
 	 *     call {@link #showWindow()} to make it visible</li>
-	 *     <li>created window cannot be resized</li>
+	 *     <li>created window can be resized, see {@link #getFramebufferSize(int[])}</li>
 	 * </ul>
 	 * @param width the width of the window
 	 * @param height the height of the window
@@ -42,7 +42,7 @@ public class WindowManager {
 		glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 4);
 		glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 3);
 		glfwWindowHint(GLFW_VISIBLE, GL_FALSE);
-		glfwWindowHint(GLFW_RESIZABLE, GL_FALSE);
+		glfwWindowHint(GLFW_RESIZABLE, GL_TRUE);
 
 		this.width = width;
 		this.height = height;
@@ -70,6 +70,22 @@ public class WindowManager {
 		GL.createCapabilities();
 	}
 
+	/**
+	 * Creates a window that is never shown and sets it as the current
+	 * OpenGL context, to render offline without a monitor.
+	 * A window system (e.g. Xvfb) is still required by GLFW.
+	 */
+	public void createOffscreenWindow() throws AssertionError {
+		window = glfwCreateWindow(width, height, title, MemoryUtil.NULL, MemoryUtil.NULL);
+		if (window == MemoryUtil.NULL) {
+			throw new AssertionError("Failed to create the GLFW window");
+		}
+
+		glfwMakeContextCurrent(window);
+		glfwSwapInterval(0);
+		GL.createCapabilities();
+	}
+
 	/**
 	 * Makes the created window visible.
 	 */
@@ -82,10 +98,78 @@ public class WindowManager {
 	 * of this window.
 	 */
 	public void update() {
+		pollEvents();
+		swapBuffers();
+	}
+
+	/**
+	 * Processes all pending events without waiting.
+	 */
+	public void pollEvents() {
 		glfwPollEvents();
+	}
+
+	/**
+	 * Swaps the front and back buffers of this window.
+	 */
+	public void swapBuffers() {
 		glfwSwapBuffers(window);
 	}
 
+	/**
+	 * Waits for new events up to <i>timeout</i> seconds and processes them,
+	 * to avoid spinning when there is nothing new to render.
+	 * @param timeout the maximum time to wait in seconds
+	 */
+	public void waitEvents(double timeout) {
+		glfwWaitEventsTimeout(timeout);
+	}
+
+	/**
+	 * @param key a GLFW key token, e.g. {@link org.lwjgl.glfw.GLFW#GLFW_KEY_W}
+	 * @return true if the key is held down, as of the last processed events
+	 */
+	public boolean isKeyDown(int key) {
+		return glfwGetKey(window, key) == GLFW_PRESS;
+	}
+
+	/**
+	 * @param button a GLFW mouse button token, e.g. {@link org.lwjgl.glfw.GLFW#GLFW_MOUSE_BUTTON_LEFT}
+	 * @return true if the button is held down, as of the last processed events
+	 */
+	public boolean isMouseButtonDown(int button) {
+		return glfwGetMouseButton(window, button) == GLFW_PRESS;
+	}
+
+	/**
+	 * Stores the position of the cursor, in screen coordinates relative to
+	 * the top-left corner of the window, in the first two elements of <i>position</i>.
+	 */
+	public void getCursorPosition(double[] position) {
+		double[] x = new double[1], y = new double[1];
+		glfwGetCursorPos(window, x, y);
+		position[0] = x[0];
+		position[1] = y[0];
+	}
+
+	/**
+	 * Stores the size of the framebuffer of the window, in pixels, in the first two elements
+	 * of <i>size</i>: zero while the window is minimized.
+	 */
+	public void getFramebufferSize(int[] size) {
+		int[] w = new int[1], h = new int[1];
+		glfwGetFramebufferSize(window, w, h);
+		size[0] = w[0];
+		size[1] = h[0];
+	}
+
+	/**
+	 * @param title the new title of the window
+	 */
+	public void setTitle(String title) {
+		glfwSetWindowTitle(window, title);
+	}
+
 	/**
 	 * @return the value of {@link org.lwjgl.glfw.GLFW#glfwWindowShouldClose(long)}
 	 * for this window.
@@ -1,31 +1,36 @@
 package runner;
 
+import cpu.CpuBackend;
+import distributed.Coordinator;
+import distributed.Worker;
+import metrics.MetricsReporter;
+import metrics.RenderMetrics;
 import model.Model;
-import org.joml.Matrix4f;
-import org.joml.Vector3f;
-import org.lwjgl.BufferUtils;
-import org.lwjgl.opengl.GL30C;
-import org.lwjgl.opengl.GL42C;
+import render.Camera;
+import render.CameraController;
+import render.GpuBackend;
+import render.GpuTimer;
+import render.RenderScale;
 import render.Renderer;
+import render.TraceBackend;
 import render.WindowManager;
+import scene.Scene;
+import scene.SceneUpdate;
+import utils.FileWatcher;
+import utils.ImageExporter;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import static org.lwjgl.glfw.GLFW.GLFW_KEY_P;
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL15C.GL_READ_WRITE;
 import static org.lwjgl.opengl.GL20.*;
-import static org.lwjgl.opengl.GL20.glGetUniformLocation;
-import static org.lwjgl.opengl.GL20C.glUniform1f;
-import static org.lwjgl.opengl.GL20C.glUniform3f;
-import static org.lwjgl.opengl.GL20C.glUseProgram;
-import static org.lwjgl.opengl.GL30.GL_RGBA32F;
-import static org.lwjgl.opengl.GL42.glBindImageTexture;
-import static org.lwjgl.opengl.GL42C.GL_SHADER_IMAGE_ACCESS_BARRIER_BIT;
-import static org.lwjgl.opengl.GL42C.glMemoryBarrier;
-import static org.lwjgl.opengl.GL43.GL_COMPUTE_WORK_GROUP_SIZE;
-import static org.lwjgl.opengl.GL43C.glDispatchCompute;
 import static utils.Utils.*;
 import static render.ModelManager.*;
 
@@ -37,29 +42,35 @@ import static render.ModelManager.*;
  * @author Marco Di Rienzo
  */
 public class MainLoop {
-	private static final int WIDTH = 1080;
-	private static final int HEIGHT = 720;
 	private static final String TITLE = "Ray Tracing";
+	private static final String QUAD_VERTEX_SHADER = "shaders/quad.vert", QUAD_FRAGMENT_SHADER = "shaders/quad.frag";
 
 	private WindowManager windowManager;
 
-	private final float FOV = 45.0f; // [0, 180] degrees
-	private final float Z_NEAR = 1f, Z_FAR = 2f;
-	private final Matrix4f viewMatrix = new Matrix4f();
-	private final Matrix4f projMatrix = new Matrix4f();
-	private final Matrix4f invViewProjMatrix = new Matrix4f();
-	private final Vector3f tmp = new Vector3f();
-
-	/**
-	 * Struct holding the vectors defining the Eye.<br>
-	 * Representation of the eye frame as described in
-	 * Lecture 03-B "Frames in Graphics", slide 25.
-	 */
-	private static class Eye {
-		public static final Vector3f position = new Vector3f(3.0f, 3.5f, 2.0f);
-		public static final Vector3f lookAt = new Vector3f(3.0f, 1.5f, 16.0f);
-		public static final Vector3f up = new Vector3f(0.0f, 1.0f, 0.0f);
-	}
+	private final Options options;
+	private int width, height; // of the framebuffer of the window
+	private int renderWidth, renderHeight; // of the traced image, upscaled to the window
+	private final RenderScale renderScale;
+	private Camera camera;
+	private CameraController cameraController;
+	private TraceBackend backend;
+
+	private final RenderMetrics metrics = new RenderMetrics();
+	private MetricsReporter metricsReporter;
+	private GpuTimer presentTimer;
+	private ImageExporter exporter; // of the periodic snapshots, null if disabled
+	private int snapshotSpp; // samples per pixel of the last snapshot since the accumulation restarted
+
+	// hot reload of the scene and of the shaders, see reload(...)
+	private FileWatcher watcher; // null if disabled
+	private Path scenePath;
+	private final Camera sceneCamera = new Camera(); // as in the scene file, the one traced is moved by the user
+	private long reloadSaved = -1; // when the files of the last reload were saved, until its first frame is presented
+
+	// playback of the animation of the scene, see animate(...)
+	private Scene scene;
+	private double animationTime; // seconds
+	private boolean paused, pauseKeyDown;
 
 	/**
 	 * Struct to hold the OpenGL <i>quad</i> program and its variables.
@@ -73,22 +84,6 @@ public class MainLoop {
 		public static Model model;
 	}
 
-	/**
-	 * Struct to hold the OpenGL <i>raytracing</i> program and its variables.
-	 * The program runs a
-	 * <a href="https://www.khronos.org/opengl/wiki/Compute_Shader">compute shader</a>,
-	 * so also hold the number of threads per work group to be later used to
-	 * compute the total number of work groups, just like we would do in CUDA.
-	 */
-	private static class RayTracingProgram {
-		public static int program;
-		public static int u_Eye, u_Ray00, u_Ray01, u_Ray10, u_Ray11;
-		public static int u_Time;
-		public static int u_BlendingFactor;
-		public static int frameNumber;
-		public static int workGroupSizeX, workGroupSizeY; // in CUDA this would be the block size
-	}
-
 	/**
 	 * Creates a quadrilateral which occupies the entire window.
 	 * @param aVar the shader attribute variable location
@@ -116,170 +111,242 @@ public class MainLoop {
 	 */
 	private void createQuadProgram() throws IOException {
 		QuadProgram.program = createProgram(
-				readFile("shaders/quad.vert"),
-				readFile("shaders/quad.frag"));
+				GpuBackend.PREPROCESSOR.load(QUAD_VERTEX_SHADER),
+				GpuBackend.PREPROCESSOR.load(QUAD_FRAGMENT_SHADER));
 
 		// save attribute variable location and make it point to the quad model
 		QuadProgram.aPosition = glGetAttribLocation(QuadProgram.program, "a_Position");
 		QuadProgram.model = createFullScreenQuad(QuadProgram.aPosition);
 
 		// create a texture object that will serve as our framebuffer
-		QuadProgram.texture = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, QuadProgram.texture);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-		ByteBuffer black = null; // init the texture to all black
-		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA32F, WIDTH, HEIGHT, 0, GL_RGBA, GL_FLOAT, black);
-		glBindTexture(GL_TEXTURE_2D, 0);
-	}
-
-	/**
-	 * Creates the OpenGL program that runs the ray tracing compute shader.
-	 * This program is responsible for coloring the texture which will then
-	 * be mapped on the full-screen quad.
-	 */
-	private void createRayTracingProgram() throws IOException {
-		RayTracingProgram.program = createComputeProgram(
-				readFile("shaders/random.glsl"),
-				readFile("shaders/bounce.glsl"),
-				readFile("shaders/raytracing.glsl"));
-		glUseProgram(RayTracingProgram.program);
-
-		// get the number of threads per work group that we specified in the shader
-		IntBuffer workGroupSize = BufferUtils.createIntBuffer(3);
-		glGetProgramiv(RayTracingProgram.program, GL_COMPUTE_WORK_GROUP_SIZE, workGroupSize);
-		RayTracingProgram.workGroupSizeX = workGroupSize.get(0);
-		RayTracingProgram.workGroupSizeY = workGroupSize.get(1);
-
-		// save uniform variables location
-		RayTracingProgram.u_Eye = glGetUniformLocation(RayTracingProgram.program, "u_Eye");
-		RayTracingProgram.u_Ray00 = glGetUniformLocation(RayTracingProgram.program, "u_Ray00");
-		RayTracingProgram.u_Ray01 = glGetUniformLocation(RayTracingProgram.program, "u_Ray01");
-		RayTracingProgram.u_Ray10 = glGetUniformLocation(RayTracingProgram.program, "u_Ray10");
-		RayTracingProgram.u_Ray11 = glGetUniformLocation(RayTracingProgram.program, "u_Ray11");
-		RayTracingProgram.u_Time = glGetUniformLocation(RayTracingProgram.program, "u_Time");
-		RayTracingProgram.u_BlendingFactor = glGetUniformLocation(RayTracingProgram.program, "u_BlendingFactor");
-		glUseProgram(0);
+		QuadProgram.texture = GpuBackend.createFramebufferTexture(renderWidth, renderHeight);
 	}
 
 	private void init() throws IOException {
-		windowManager = new WindowManager(WIDTH, HEIGHT, TITLE);
+		windowManager = new WindowManager(width, height, TITLE);
 		windowManager.createWindow();
+		int[] size = new int[2];
+		windowManager.getFramebufferSize(size);
+		width = size[0];
+		height = size[1];
+		renderWidth = scaled(width);
+		renderHeight = scaled(height);
+
+		scene = Scene.load(options.scene);
+		System.out.println(scene.bvh);
+		if (scene.numGeometries > 0)
+			System.out.println(scene.blas);
+		if (!scene.environment.isEmpty())
+			System.out.println(scene.environment);
+		camera = scene.camera;
+		sceneCamera.set(camera);
+		cameraController = new CameraController(windowManager, camera);
 
 		createQuadProgram();
-		createRayTracingProgram();
+		if (options.cpu) {
+			CpuBackend cpu = new CpuBackend(scene, renderWidth, renderHeight, options.threads);
+			cpu.setLightSampling(options.lightSampling);
+			cpu.setMaxBounces(options.maxBounces);
+			cpu.setRouletteBounce(options.rouletteBounce);
+			cpu.setSampler(options.sampler);
+			backend = cpu;
+		} else
+			backend = new GpuBackend(scene, QuadProgram.texture, renderWidth, renderHeight, options.programCache(),
+					options.shaderDefines(), options.autoTune, options.wavefront);
+		backend.setSamplesPerDispatch(options.samplesPerDispatch);
+		backend.setThreshold(options.threshold);
+		backend.setReprojection(options.reprojection);
+		backend.setFrameBudget(options.frameBudget);
+
+		presentTimer = new GpuTimer();
+		exporter = options.snapshotExporter();
+		if (options.metrics != null)
+			metricsReporter = new MetricsReporter(metrics, options.metrics, options.metricsInterval);
+		if (options.watch)
+			watch();
 
 		windowManager.showWindow();
 	}
 
 	/**
-	 * Prepares the ray tracing program and runs it.
+	 * Starts watching the scene file and the directory of the shaders, if they are read from the file system.
 	 */
-	private void trace(float time) {
-		glUseProgram(RayTracingProgram.program);
-
-		// set the viewProjMatrix as we did in the labs
-		projMatrix.setPerspective(
-				(float) Math.toRadians(FOV),
-				(float) WIDTH / HEIGHT,
-				Z_NEAR, Z_FAR);
-		viewMatrix.setLookAt(Eye.position, Eye.lookAt, Eye.up);
-
-		glUniform1f(RayTracingProgram.u_Time, time);
-
-		/*
-		 * Instead of blending more samples for each single frame,
-		 * we compute the weighted average of subsequent frames.
-		 * Starting with a black texture, the initial samples are going to be of most
-		 * importance wrt the average since are those which will discover the shapes in the scene,
-		 * while the late ones are going to fill in the details.
-		 * bf = n/(n+1) for n frame number
-		 * newAverage = currentFrame * (1-bf) + oldAverage * bf.
-		 */
-		float blendingFactor = RayTracingProgram.frameNumber / (RayTracingProgram.frameNumber + 1.0f);
-		glUniform1f(RayTracingProgram.u_BlendingFactor, blendingFactor);
-
-		if (RayTracingProgram.frameNumber < Integer.MAX_VALUE)
-			RayTracingProgram.frameNumber++;
-
-		// set the eye position and frustum uniform variables (world coordinates)
-		glUniform3f(RayTracingProgram.u_Eye, Eye.position.x, Eye.position.y, Eye.position.z);
-
-		/*
-		 * Our frustum is defined by the four rays originating from the eye and passing
-		 * through the near plane corners as described in:
-		 * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29#camera
-		 * The corners of our window are in normalized device coordinates introduced in
-		 * Lecture 04-B "Camera Model: Projection", so they would be: (-1,-1), (-1,1), (1,-1) and (1,1)
-		 * Thus we must first convert them to world coordinates to then find the rays.
-		 * We know that (norm dev coord) = ProjMatrix * ViewMatrix * (world coord)
-		 * => (world coord) = (ProjMatrix * ViewMatrix)^(-1) * (norm dev coord)
-		 * we also need to divide them by the 4th coordinate because it is not necessarily one:
-		 * (world coord affine) = (world coord) / w.
-		 * Finally, we subtract the corner and the eye to obtain the ray vector.
-		 */
-
-		// corner (-1,-1)
-		tmp.set(-1, -1, 0);
-		// invViewProjMatrix = (projMatrix * viewMatrix)^(-1)
-		invViewProjMatrix.set(projMatrix).mul(viewMatrix).invert();
-		// invViewProjMatrix * corner; corner /= corner.w
-		tmp.mulProject(invViewProjMatrix);
-		// ray = corner - eye
-		tmp.sub(Eye.position);
-		// push to shader
-		glUniform3f(RayTracingProgram.u_Ray00, tmp.x, tmp.y, tmp.z);
-
-		// do the same for all the corners
-		tmp.set(-1, 1, 0).mulProject(invViewProjMatrix).sub(Eye.position);
-		glUniform3f(RayTracingProgram.u_Ray01, tmp.x, tmp.y, tmp.z);
-		tmp.set(1, -1, 0).mulProject(invViewProjMatrix).sub(Eye.position);
-		glUniform3f(RayTracingProgram.u_Ray10, tmp.x, tmp.y, tmp.z);
-		tmp.set(1, 1, 0).mulProject(invViewProjMatrix).sub(Eye.position);
-		glUniform3f(RayTracingProgram.u_Ray11, tmp.x, tmp.y, tmp.z);
-
-		// bind our texture to the framebuffer (bound in the shader to image unit 0)
-		glBindImageTexture(0, QuadProgram.texture, 0, false, 0, GL_WRITE_ONLY, GL_RGBA32F);
-
-		/*
-		 * Compute the total number of work groups:
-		 * calculating a pixel color is independent of every other pixel, thus we can assign
-		 * each pixel to a different thread to obtain max parallelization, to do this
-		 * we divide the window dimension by the size of the work group to obtain the
-		 * number of work groups needed to cover the entire image.
-		 * Since this number must be an integer, we round up the result, but this will likely
-		 * produce a number of threads greater than the total number of pixels in the window,
-		 * so in the shader we must check for boundary conditions and terminate the thread
-		 * in case its assigned pixel is out of the window. This is again exactly like CUDA.
-		 */
-		int numWorkGroupsX = (int) Math.ceil((double) WIDTH / RayTracingProgram.workGroupSizeX);
-		int numWorkGroupsY = (int) Math.ceil((double) HEIGHT / RayTracingProgram.workGroupSizeY);
-
-		// invoke the compute shader with calculated size
-		glDispatchCompute(numWorkGroupsX, numWorkGroupsY, 1);
-
-		/*
-		 * Before proceeding to render the texture on our full-screen quad,
-		 * we need to make sure that the texture is ready, i.e. all the threads
-		 * we started have completed their writing operations on the texture framebuffer.
-		 * To do so, we set a barrier on the shader imageStore, which we use as
-		 * the last instruction of our shader.
-		 * https://www.khronos.org/registry/OpenGL-Refpages/gl4/html/glMemoryBarrier.xhtml
-		 */
-		glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
-
-		// reset bindings
-		GL42C.glBindImageTexture(0, 0, 0, false, 0, GL_READ_WRITE, GL30C.GL_RGBA32F);
-		glUseProgram(0);
+	private void watch() throws IOException {
+		watcher = new FileWatcher();
+		scenePath = Paths.get(options.scene).toAbsolutePath().normalize();
+		if (Files.isRegularFile(scenePath))
+			watcher.watchFile(scenePath);
+		else
+			System.out.println("The scene is read from the classpath, it is not watched");
+		Path shaders = GpuBackend.PREPROCESSOR.getDirectory();
+		if (shaders != null)
+			watcher.watchTree(shaders);
+		else
+			System.out.println("The shaders are read from the classpath, pass --shader-dir to watch them");
+	}
+
+	/**
+	 * Applies the changes of the watched files: a new version of the scene replaces the traced one
+	 * and the programs whose shaders changed are compiled again, see {@link TraceBackend#setScene}
+	 * and {@link GpuBackend#reloadShaders}. The camera is only moved if the one in the file changed.
+	 * Files which cannot be parsed or compiled are reported and the previous version is kept.
+	 * @param files the changed files
+	 */
+	private void reload(Set<Path> files) {
+		long start = System.nanoTime();
+		StringJoiner changes = new StringJoiner(", ");
+		boolean restarted = false;
+
+		if (files.contains(scenePath)) {
+			try {
+				Scene scene = Scene.load(options.scene);
+				if (!scene.camera.sameView(sceneCamera)) {
+					sceneCamera.set(scene.camera);
+					camera.set(scene.camera);
+					cameraController = new CameraController(windowManager, camera);
+					changes.add("camera");
+				}
+				if (backend.setScene(scene)) {
+					restarted = true;
+					changes.add("scene");
+				}
+				this.scene = scene;
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Cannot reload " + options.scene + ": " + e.getMessage());
+			}
+		}
+
+		Path directory = GpuBackend.PREPROCESSOR.getDirectory();
+		List<String> paths = new ArrayList<>();
+		for (Path file : files)
+			if (directory != null && file.startsWith(directory))
+				paths.add(directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"));
+		Set<String> shaders = GpuBackend.PREPROCESSOR.reload(paths);
+		if (shaders.contains(QUAD_VERTEX_SHADER) || shaders.contains(QUAD_FRAGMENT_SHADER))
+			reloadQuadProgram();
+		if (backend instanceof GpuBackend && ((GpuBackend) backend).reloadShaders(shaders))
+			restarted = true;
+		for (String shader : shaders)
+			changes.add(shader.substring(shader.lastIndexOf('/') + 1));
+
+		if (changes.length() == 0)
+			return;
+		System.out.printf("Reloaded %s in %.1f ms, %s%n", changes, (System.nanoTime() - start) / 1E6,
+				restarted ? "accumulation restarted" : "accumulated samples kept");
+		reloadSaved = lastModified(files);
+	}
+
+	/**
+	 * @return the time the last of the files was modified, in milliseconds since the epoch
+	 */
+	private static long lastModified(Set<Path> files) {
+		long time = 0;
+		for (Path file : files) {
+			try {
+				time = Math.max(time, Files.getLastModifiedTime(file).toMillis());
+			} catch (IOException e) {
+				// deleted
+			}
+		}
+		return time > 0 ? time : System.currentTimeMillis();
+	}
+
+	private void reloadQuadProgram() {
+		try {
+			int program = createProgram(
+					GpuBackend.PREPROCESSOR.load(QUAD_VERTEX_SHADER),
+					GpuBackend.PREPROCESSOR.load(QUAD_FRAGMENT_SHADER));
+			glDeleteProgram(QuadProgram.program);
+			QuadProgram.program = program;
+		} catch (IOException | AssertionError e) {
+			System.err.println("Cannot reload the quad program: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the size of a side of the traced image, for the side of the window and the current render scale
+	 */
+	private int scaled(int size) {
+		return Math.max(2, Math.round(size * renderScale.getScale()));
+	}
+
+	/**
+	 * Follows the size of the window and the render scale, reallocating the images of the backend
+	 * and the texture of the quad when the size of the traced image changes.
+	 * @return false while the window is minimized, there is nothing to trace into
+	 */
+	private boolean resize() {
+		int[] size = new int[2];
+		windowManager.getFramebufferSize(size);
+		if (size[0] == 0 || size[1] == 0)
+			return false;
+		if (size[0] != width || size[1] != height) {
+			width = size[0];
+			height = size[1];
+			glViewport(0, 0, width, height);
+		}
+		int w = scaled(width), h = scaled(height);
+		if (w != renderWidth || h != renderHeight) {
+			renderWidth = w;
+			renderHeight = h;
+			GpuBackend.resizeFramebufferTexture(QuadProgram.texture, renderWidth, renderHeight);
+			backend.resize(renderWidth, renderHeight);
+		}
+		return true;
+	}
+
+	/**
+	 * Updates the camera rays and lets the backend trace a new frame,
+	 * the backend resets the accumulation if the camera moved.
+	 * @return true if a frame was traced
+	 */
+	private boolean trace() {
+		camera.update(renderWidth, renderHeight);
+		return backend.trace(camera);
+	}
+
+	/**
+	 * Plays the animation of the scene, if any, in real time: the primitives and the camera are moved
+	 * once per traced frame, and the BVH refitted, see {@link Scene#animate(float)}.
+	 * The P key pauses and resumes the animation.
+	 * @param dt the seconds since the previous call
+	 * @param traced whether the previous frame was traced, otherwise the backend is busy
+	 *               and the next update waits for it
+	 * @return true if something moved
+	 */
+	private boolean animate(float dt, boolean traced) {
+		boolean keyDown = windowManager.isKeyDown(GLFW_KEY_P);
+		if (keyDown && !pauseKeyDown)
+			paused = !paused;
+		pauseKeyDown = keyDown;
+		if (scene.animation == null || paused)
+			return false;
+		animationTime += dt;
+		if (!traced)
+			return false;
+
+		SceneUpdate update = scene.animate((float) animationTime);
+		backend.updateScene(update);
+		if (update.rebuilt)
+			System.out.printf("At %.2f s %s%n", animationTime, update);
+		if (scene.animation.movesCamera())
+			camera.set(scene.camera);
+		return !update.isEmpty() || scene.animation.movesCamera();
 	}
 
 	/**
-	 * Render the texture computed by the ray tracing program on the full-screen quad.
+	 * Render the texture computed by the ray tracing program on the full-screen quad,
+	 * filtered by the denoiser if enabled.
 	 */
 	private void renderQuad() {
+		int texture = QuadProgram.texture;
+		if (options.denoise)
+			texture = backend.presentDenoised(texture);
+		else
+			backend.present(texture);
 		glUseProgram(QuadProgram.program);
 
-		glBindTexture(GL_TEXTURE_2D, QuadProgram.texture);
+		glBindTexture(GL_TEXTURE_2D, texture);
 		Renderer.render(QuadProgram.model);
 		glBindTexture(GL_TEXTURE_2D, 0);
 
@@ -287,17 +354,124 @@ public class MainLoop {
 	}
 
 	/**
-	 * Every new frame, color the texture based on our scene and map
-	 * it on the full-screen quad, then update the window.
+	 * Every new frame, color the texture based on our scene, then map
+	 * it on the full-screen quad and update the window.
+	 * With a present rate frames are traced back to back and the quad is only
+	 * presented at that rate, so the presentation does not steal device time from the tracer.
+	 * The backends never block the loop: while the device is busy, or once all the pixels
+	 * converged, only the window events are processed.
+	 * While the camera or the animation moves the render scale may lower the resolution of the traced image,
+	 * see {@link RenderScale}.
 	 */
 	private void loop() {
+		long presentInterval = options.presentRate > 0 ? (long) (1E9 / options.presentRate) : 0;
+		long lastPresent = 0;
+		boolean presented = false; // the last traced frame is on the screen
+		long lastTitleUpdate = 0;
+		long frameStart = System.nanoTime();
+		long lastInput = frameStart;
+		boolean traced = true;
 		while (!windowManager.shouldClose()) {
-			trace(System.nanoTime() / 1E9f);
-			renderQuad();
-			windowManager.update();
+			if (watcher != null) {
+				Set<Path> changed = watcher.poll();
+				if (!changed.isEmpty()) {
+					reload(changed);
+					// also show the changes which kept the accumulated image, e.g. of the quad
+					presented = false;
+				}
+			}
+
+			long inputTime = System.nanoTime();
+			float dt = (inputTime - lastInput) / 1E9f;
+			boolean moved = cameraController.update(dt);
+			moved |= animate(dt, traced);
+			lastInput = inputTime;
+			renderScale.update(moved, inputTime);
+			if (!resize()) {
+				windowManager.waitEvents(0.1);
+				frameStart = System.nanoTime();
+				continue;
+			}
+			traced = trace();
+			long now = System.nanoTime();
+			if (traced) {
+				renderScale.recordFrame(now - frameStart);
+				metrics.recordFrame(now - frameStart, backend.pollTraceTime(),
+						backend.getSamples(), backend.getRays(), backend.getActivePixels());
+				frameStart = now;
+				presented = false;
+				if (exporter != null)
+					snapshot();
+			}
+
+			if (!presented && now - lastPresent >= presentInterval) {
+				presentTimer.begin();
+				renderQuad();
+				presentTimer.end();
+				windowManager.swapBuffers();
+				metrics.recordPresent(presentTimer.poll());
+				lastPresent = now;
+				presented = true;
+				if (reloadSaved >= 0) {
+					System.out.printf("First frame after the reload presented %d ms after the files were saved%n",
+							System.currentTimeMillis() - reloadSaved);
+					reloadSaved = -1;
+				}
+			}
+
+			if (traced) {
+				windowManager.pollEvents();
+			} else if (backend.getActivePixels() == 0) {
+				// everything converged, wait for the user
+				windowManager.waitEvents(0.1);
+				frameStart = System.nanoTime();
+			} else {
+				// the device is busy with the queued frames
+				windowManager.waitEvents(0.001);
+			}
+
+			if (now - lastTitleUpdate > 1E9) {
+				lastTitleUpdate = now;
+				RenderMetrics.Snapshot m = metrics.snapshot();
+				String title = String.format("%s - frame %d, %.1f%% active pixels, %.2f Msamples/s", TITLE,
+						backend.getFrameNumber(), 100.0 * backend.getActivePixels() / (renderWidth * renderHeight),
+						m.samplesPerSecond / 1E6);
+				if (!Double.isNaN(m.traceShare) && !Double.isNaN(m.presentShare))
+					title += String.format(", device %.0f%% tracing, %.0f%% presenting",
+							m.traceShare * 100, m.presentShare * 100);
+				if (scene.animation != null)
+					title += String.format(", %.1f s%s", animationTime, paused ? " paused" : "");
+				if (renderWidth != width || renderHeight != height)
+					title += String.format(", %dx%d upscaled", renderWidth, renderHeight);
+				windowManager.setTitle(title);
+			}
 		}
 	}
 
+	/**
+	 * Saves the image in the background every --snapshot-every samples per pixel
+	 * since the accumulation last restarted.
+	 */
+	private void snapshot() {
+		int spp = backend.getFrameNumber() * options.samplesPerDispatch;
+		if (spp < snapshotSpp)
+			// the camera moved
+			snapshotSpp = 0;
+		if (spp - snapshotSpp < options.snapshotEvery)
+			return;
+		snapshotSpp = spp - spp % options.snapshotEvery;
+		String path = options.snapshotPath(spp);
+		if (!backend.snapshot(snapshot -> exporter.submit(snapshot, path)))
+			exporter.drop();
+	}
+
+	/**
+	 * @return the statistics of the render, which can be polled from any thread
+	 */
+	public RenderMetrics getMetrics() {
+		return metrics;
+	}
+
 	private void run() {
 		try {
 			init();
@@ -307,12 +481,70 @@ public class MainLoop {
 		} catch (Throwable e) {
 			e.printStackTrace();
 		} finally {
+			if (metricsReporter != null) {
+				try {
+					metricsReporter.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			// the writers read the buffers of the backend
+			if (exporter != null)
+				exporter.close();
+			if (presentTimer != null)
+				presentTimer.destroy();
+			if (backend != null)
+				backend.destroy();
 			deleteVAOsVBOs();
 			windowManager.terminate();
 		}
 	}
 
+	/**
+	 * @param options the command line options
+	 */
+	public MainLoop(Options options) {
+		this.options = options;
+		this.width = options.width;
+		this.height = options.height;
+		this.renderScale = new RenderScale(options.renderScale, options.targetFps);
+	}
+
+	/**
+	 * Opens the window, or renders offline when <i>--headless</i> is given,
+	 * or takes part in a distributed render with <i>--coordinator</i> or <i>--worker</i>.
+	 * @see Options
+	 */
 	public static void main(String[] args) {
-		new MainLoop().run();
+		Options options;
+		try {
+			options = Options.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(Options.USAGE);
+			System.exit(1);
+			return;
+		}
+		if (options.shaderDirectory != null)
+			GpuBackend.PREPROCESSOR.setDirectory(Paths.get(options.shaderDirectory).toAbsolutePath().normalize());
+
+		if (options.coordinatorPort >= 0) {
+			if (!new Coordinator(options).run())
+				System.exit(1);
+		} else if (options.worker != null) {
+			if (!new Worker(options).run())
+				System.exit(1);
+		} else if (options.headless) {
+			if (!new OfflineRenderer(options).run())
+				System.exit(1);
+		} else
+			new MainLoop(options).run();
 	}
 }
@@ -0,0 +1,270 @@
+package runner;
+
+import cpu.CpuBackend;
+import cpu.CpuDenoiser;
+import metrics.MetricsReporter;
+import metrics.RenderMetrics;
+import render.Aovs;
+import render.Camera;
+import render.GpuBackend;
+import render.TraceBackend;
+import render.WindowManager;
+import scene.Scene;
+import scene.SceneUpdate;
+import utils.ImageExporter;
+import utils.ImageWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.StringJoiner;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.lwjgl.opengl.GL11.glFinish;
+
+/**
+ * Renders the scene without showing a window until the requested number
+ * of samples per pixel or the wall-clock budget is reached, or until all
+ * the pixels converged when adaptive sampling is enabled, then saves the
+ * accumulated image and reports the throughput. With --denoise the image is
+ * filtered by a {@link CpuDenoiser} first, whichever backend traced it.
+ * With --snapshot-every the image is also saved periodically by an {@link ImageExporter},
+ * which encodes the snapshots read back by the backend on its own threads.
+ * With --frames the animation of the scene is rendered as a sequence of images instead, one every
+ * 1/--fps seconds of animation, each traced to the same stopping criterion: between two frames the
+ * primitives are moved and the BVH refitted, see {@link Scene#animate(float)}, which costs far less than
+ * loading the scene and building its BVH again for every frame.
+ * The CPU backend does not need any window or OpenGL context.
+ *
+ * @author Marco Di Rienzo
+ */
+public class OfflineRenderer {
+	private final Options options;
+	private final RenderMetrics metrics = new RenderMetrics();
+
+	/**
+	 * @param options the command line options
+	 */
+	public OfflineRenderer(Options options) {
+		this.options = options;
+	}
+
+	private void render() throws IOException {
+		int width = options.width, height = options.height;
+		WindowManager windowManager = null;
+		TraceBackend backend = null;
+		MetricsReporter metricsReporter = null;
+		ImageExporter exporter = null;
+		try {
+			Scene scene = Scene.load(options.scene);
+			System.out.println(scene.bvh);
+			if (scene.numGeometries > 0)
+				System.out.println(scene.blas);
+			if (!scene.environment.isEmpty())
+				System.out.println(scene.environment);
+			if (options.cpu) {
+				CpuBackend cpu = new CpuBackend(scene, width, height, options.threads);
+				cpu.setLightSampling(options.lightSampling);
+				cpu.setMaxBounces(options.maxBounces);
+				cpu.setRouletteBounce(options.rouletteBounce);
+				cpu.setSampler(options.sampler);
+				backend = cpu;
+			} else {
+				windowManager = new WindowManager(width, height, "Ray Tracing");
+				windowManager.createOffscreenWindow();
+				backend = new GpuBackend(scene, GpuBackend.createFramebufferTexture(width, height), width, height,
+						options.programCache(), options.shaderDefines(), options.autoTune, options.wavefront);
+			}
+
+			backend.setThreshold(options.threshold);
+			if (options.spp > TraceBackend.MAX_SAMPLES)
+				System.err.printf("The pixels stop at %d samples, fewer than the %d requested%n",
+						TraceBackend.MAX_SAMPLES, options.spp);
+			if (options.metrics != null)
+				metricsReporter = new MetricsReporter(metrics, options.metrics, options.metricsInterval);
+			Camera camera = scene.camera;
+			camera.update(width, height);
+			if (options.frames > 0) {
+				renderSequence(scene, backend, width, height);
+				return;
+			}
+
+			exporter = options.snapshotExporter();
+			long elapsed = accumulate(backend, camera, exporter);
+			if (exporter != null) {
+				backend.flushSnapshots();
+				exporter.close();
+				System.out.printf("%d snapshots saved, %d dropped%n", exporter.getWritten(), exporter.getDropped());
+				exporter = null;
+			}
+
+			float[] pixels = new float[width * height * 4];
+			readImage(backend, pixels, width, height);
+			String files = save(pixels, width, height, options.output);
+
+			// with adaptive sampling each pixel has its own number of samples, stored in the alpha channel
+			double paths = 0;
+			for (int i = 3; i < pixels.length; i += 4)
+				paths += pixels[i];
+			double seconds = elapsed / 1E9;
+			int frames = backend.getFrameNumber();
+			double spp = paths / (width * height);
+			System.out.printf("%s backend: %dx%d, %d frames, %.1f average spp in %.2f s%n",
+					options.cpu ? "CPU" : "GPU", width, height, frames, spp, seconds);
+			System.out.printf("%.2f spp/s, %.3f Mpaths/s%n", spp / seconds, paths / seconds / 1E6);
+			System.out.println(metrics.snapshot());
+			if (options.threshold > 0)
+				System.out.printf("%.2f%% pixels converged%n",
+						100 - 100.0 * backend.getActivePixels() / (width * height));
+			System.out.println("Saved " + files);
+		} finally {
+			// the writers read the buffers of the backend
+			if (exporter != null)
+				exporter.close();
+			if (metricsReporter != null)
+				metricsReporter.close();
+			if (backend != null)
+				backend.destroy();
+			if (windowManager != null) {
+				windowManager.destroyWindow();
+				windowManager.terminate();
+			}
+		}
+	}
+
+	/**
+	 * Traces frames until the requested samples per pixel or the time budget are reached,
+	 * or until all the pixels converged.
+	 * @param exporter the writers of the periodic snapshots, null if disabled
+	 * @return the nanoseconds spent
+	 */
+	private long accumulate(TraceBackend backend, Camera camera, ImageExporter exporter) {
+		long budget = (long) (options.time * 1E9);
+		long start = System.nanoTime();
+		long elapsed = 0;
+		int dispatched = 0; // samples per pixel
+		int nextSnapshot = options.snapshotEvery;
+		do {
+			int samples = options.spp > 0
+					? Math.min(options.samplesPerDispatch, options.spp - dispatched)
+					: options.samplesPerDispatch;
+			backend.setSamplesPerDispatch(samples);
+			dispatched += samples;
+			long frameStart = System.nanoTime();
+			boolean traced = backend.trace(camera);
+			if (!options.cpu)
+				// wait for the dispatch so the budget is measured on completed work
+				glFinish();
+			long now = System.nanoTime();
+			if (traced)
+				metrics.recordFrame(now - frameStart, backend.pollTraceTime(),
+						backend.getSamples(), backend.getRays(), backend.getActivePixels());
+			elapsed = now - start;
+			if (exporter != null && dispatched >= nextSnapshot) {
+				snapshot(backend, exporter, dispatched);
+				nextSnapshot = dispatched - dispatched % options.snapshotEvery + options.snapshotEvery;
+			}
+		} while ((options.spp == 0 || dispatched < options.spp)
+				&& (budget == 0 || elapsed < budget)
+				&& backend.getActivePixels() > 0);
+		return elapsed;
+	}
+
+	/**
+	 * Renders the frames of the animation of the scene, saved as <i>output-frame</i>.
+	 * Each frame moves the scene and its camera, then accumulates its samples from zero.
+	 */
+	private void renderSequence(Scene scene, TraceBackend backend, int width, int height) throws IOException {
+		if (scene.animation == null)
+			System.out.println("The scene has no animation, all the frames are the same");
+		float[] pixels = new float[width * height * 4];
+		long start = System.nanoTime();
+		long updateTime = 0, traceTime = 0;
+		int rebuilds = 0;
+		// the frames never start from the previous one, even when only the camera moved
+		backend.setReprojection(false);
+		for (int frame = 0; frame < options.frames; frame++) {
+			SceneUpdate update = scene.animate(frame / options.fps);
+			backend.updateScene(update);
+			// updateScene only starts the accumulation again if the animation moved something
+			backend.reset();
+			scene.camera.update(width, height);
+			updateTime += update.time;
+			rebuilds += update.rebuilt ? 1 : 0;
+
+			long frameStart = System.nanoTime();
+			accumulate(backend, scene.camera, null);
+			readImage(backend, pixels, width, height);
+			long elapsed = System.nanoTime() - frameStart;
+			traceTime += elapsed;
+			String files = save(pixels, width, height, options.framePath(frame));
+			System.out.printf("Frame %d: %s, traced in %.1f ms, saved %s%n", frame, update, elapsed / 1E6, files);
+		}
+		double seconds = (System.nanoTime() - start) / 1E9;
+		System.out.printf("%d frames in %.2f s, %.2f frames/s: %.1f ms per frame updating the scene "
+						+ "(%d BVH rebuilds), %.1f ms tracing%n", options.frames, seconds, options.frames / seconds,
+				updateTime / 1E6 / options.frames, rebuilds, traceTime / 1E6 / options.frames);
+		System.out.println(metrics.snapshot());
+	}
+
+	/**
+	 * Reads the average of the accumulated samples, filtered by the denoiser with --denoise.
+	 */
+	private void readImage(TraceBackend backend, float[] pixels, int width, int height) {
+		backend.readPixels(pixels);
+		if (options.denoise) {
+			long denoiseStart = System.nanoTime();
+			Aovs aovs = new Aovs(width, height);
+			backend.readAovs(aovs);
+			ForkJoinPool pool = new ForkJoinPool(options.threads);
+			new CpuDenoiser(width, height, pool).denoise(pixels, aovs);
+			pool.shutdown();
+			System.out.printf("Denoised in %.1f ms%n", (System.nanoTime() - denoiseStart) / 1E6);
+		}
+	}
+
+	/**
+	 * Writes the image in all the requested formats.
+	 * @param path the path of the files without extension
+	 * @return the paths of the files written
+	 */
+	private String save(float[] pixels, int width, int height, String path) throws IOException {
+		StringJoiner files = new StringJoiner(" and ");
+		for (ImageWriter.Format format : options.formats) {
+			File file = new File(path + "." + format.extension);
+			ImageWriter.write(format, FloatBuffer.wrap(pixels), width, height, false, file);
+			files.add(file.getPath());
+		}
+		return files.toString();
+	}
+
+	/**
+	 * Starts reading the image back, to be saved by the exporter while the tracing goes on.
+	 */
+	private void snapshot(TraceBackend backend, ImageExporter exporter, int spp) {
+		String path = options.snapshotPath(spp);
+		if (!backend.snapshot(snapshot -> exporter.submit(snapshot, path)))
+			exporter.drop();
+	}
+
+	/**
+	 * @return the statistics of the render, which can be polled from any thread
+	 */
+	public RenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Renders and saves the image, printing any error.
+	 * @return true if the image was saved, false otherwise
+	 */
+	public boolean run() {
+		try {
+			render();
+			return true;
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package runner;
+
+import cpu.CpuTracer;
+import render.PixelReadback;
+import sampler.Sampler;
+import scene.Scene;
+import utils.ImageExporter;
+import utils.ImageWriter;
+import utils.ProgramCache;
+
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command line options of the program.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Options {
+	public static final String USAGE = String.join("\n",
+			"Usage: java -jar lwjgl-opengl-pathtracer.jar [options]",
+			"  --scene <path>      scene file to render (default: the Cornell box)",
+			"  --cpu               trace on the CPU instead of running the compute shader",
+			"  --threads <n>       number of CPU threads (default: all the processors)",
+			"  --width <pixels>    image width (default: 1080)",
+			"  --height <pixels>   image height (default: 720)",
+			"  --shader-cache <dir> directory of the cache of the compiled shaders",
+			"                      (default: ~/.cache/lwjgl-opengl-pathtracer/programs)",
+			"  --no-shader-cache   always compile the shaders",
+			"  --shader-dir <dir>  read the shaders from a directory before the classpath,",
+			"                      e.g. src/main/resources to edit them without rebuilding",
+			"  --watch             reload the scene file and the shaders of --shader-dir when they",
+			"                      change, restarting the accumulation only if the image changed",
+			"  --max-bounces <n>   maximum number of bounces of a path (default: no limit, paths",
+			"                      are ended by russian roulette)",
+			"  --roulette-bounce <n> first bounce at which russian roulette may end a path (default: 4)",
+			"  --work-group <XxY>  size of the work groups of the compute shader (default: 16x8)",
+			"  --auto-tune         choose the size of the work groups by timing them on the scene",
+			"  --wavefront         trace with the wavefront pipeline instead of the megakernel shader",
+			"  --no-light-sampling find the lights only by bouncing off the surfaces, instead of",
+			"                      also sampling them at every diffuse hit",
+			"  --sampler <name>    random numbers of the paths: sobol, Owen scrambled per pixel,",
+			"                      or pcg, a hash of the pixel and the sample (default: sobol)",
+			"  --denoise           filter the image with an edge-avoiding a-trous wavelet transform",
+			"                      guided by the albedo, normal and depth when showing or saving it",
+			"  --present-rate <hz> show the image at most this many times per second while tracing",
+			"                      back to back (default: after every frame)",
+			"  --frame-budget <ms> trace only the tiles fitting in this time per frame, going on",
+			"                      from the next tile in the following frames (default: all tiles)",
+			"  --render-scale <s>  fraction of the size of the window at which the image is traced,",
+			"                      in (0, 1], the image is upscaled to the window (default: 1)",
+			"  --target-fps <fps>  lower the render scale while the camera moves to hold this frame",
+			"                      rate, back to the full scale once it stops (default: fixed scale)",
+			"  --samples-per-dispatch <n>  samples traced for each pixel by a frame (default: 1)",
+			"  --threshold <error> relative standard error under which a pixel stops being sampled,",
+			"                      e.g. 0.01 (default: 0, never stop)",
+			"  --no-reprojection   restart from zero samples when the camera moves, instead of",
+			"                      reprojecting the image accumulated so far",
+			"  --headless          render offline without showing a window and save the image",
+			"  --spp <n>           samples per pixel to accumulate in headless mode",
+			"  --time <seconds>    wall-clock budget in headless mode",
+			"  --output <path>     output path without extension (default: render)",
+			"  --formats <list>    comma separated files written for the image: png, pfm, exr",
+			"                      (default: png,pfm)",
+			"  --frames <n>        render n frames of the animation of the scene in headless mode,",
+			"                      as <output>-<frame>, each to the --spp or --time given",
+			"  --fps <f>           frames per second of animation of --frames (default: 30)",
+			"  --snapshot-every <n> also save the image every n samples per pixel, as",
+			"                      <output>-<spp>, encoded in the background while tracing",
+			"  --coordinator <port> distribute the render to the workers connecting to the port,",
+			"                      merge their samples and save the image",
+			"  --worker <host:port> trace the jobs of the coordinator at the address headless,",
+			"                      with the backend chosen by the other options",
+			"  --metrics <dest>    write the render metrics as JSON lines to a file,",
+			"                      or to the clients of a local TCP port if dest is a number",
+			"  --metrics-interval <seconds>  time between two metrics lines (default: 1)");
+
+	public String scene = Scene.DEFAULT_SCENE;
+	public boolean cpu = false;
+	public int threads = Runtime.getRuntime().availableProcessors();
+	public int width = 1080;
+	public int height = 720;
+	public int samplesPerDispatch = 1;
+	public float presentRate = 0; // 0 to present every frame
+	public float frameBudget = 0; // milliseconds, 0 to trace all the active tiles every frame
+	public float renderScale = 1; // of the size of the window
+	public float targetFps = 0; // 0 to keep the render scale while the camera moves
+	public float threshold = 0;
+	public boolean reprojection = true;
+	public String shaderCache = ProgramCache.defaultDirectory().toString(); // null to disable the cache
+	public String shaderDirectory = null; // null to only read the shaders from the classpath
+	public boolean watch = false;
+	public int maxBounces = -1; // negative for no limit
+	public int rouletteBounce = CpuTracer.ROULETTE_BOUNCE;
+	public int workGroupSizeX = 0, workGroupSizeY = 0; // 0 for the default of the shader
+	public boolean autoTune = false;
+	public boolean wavefront = false;
+	public boolean lightSampling = true;
+	public int sampler = Sampler.SOBOL;
+	public boolean denoise = false;
+	public boolean headless = false;
+	public int spp = 0;
+	public float time = 0;
+	public String output = "render";
+	public Set<ImageWriter.Format> formats = EnumSet.of(ImageWriter.Format.PNG, ImageWriter.Format.PFM);
+	public int frames = 0; // of the animation, 0 to render a single image
+	public float fps = 30;
+	public int snapshotEvery = 0; // samples per pixel, 0 to save the image only at the end
+	public int coordinatorPort = -1; // negative unless rendering as the coordinator
+	public String worker = null; // address of the coordinator, null unless rendering as a worker
+	public String metrics = null;
+	public float metricsInterval = 1;
+
+	/**
+	 * @return the cache of the compiled shaders, null if disabled
+	 */
+	public ProgramCache programCache() {
+		return shaderCache != null ? new ProgramCache(Paths.get(shaderCache)) : null;
+	}
+
+	/**
+	 * @return the background writers of the periodic snapshots, null if disabled.
+	 * Two writers and a queued snapshot hold the {@link PixelReadback#RING_SIZE} buffers of the readback.
+	 */
+	public ImageExporter snapshotExporter() {
+		return snapshotEvery > 0 ? new ImageExporter(formats, 2, PixelReadback.RING_SIZE - 2) : null;
+	}
+
+	/**
+	 * @return the path of the snapshot of the image with the given samples per pixel, without extension
+	 */
+	public String snapshotPath(int spp) {
+		return String.format("%s-%05d", output, spp);
+	}
+
+	/**
+	 * @return the path of a frame of the animation, without extension
+	 */
+	public String framePath(int frame) {
+		return String.format("%s-%04d", output, frame);
+	}
+
+	/**
+	 * @return the defines specializing the compute shader, see raytracing.glsl
+	 */
+	public Map<String, String> shaderDefines() {
+		Map<String, String> defines = new LinkedHashMap<>();
+		if (maxBounces >= 0)
+			defines.put("MAX_BOUNCES", Integer.toString(maxBounces));
+		if (rouletteBounce != CpuTracer.ROULETTE_BOUNCE)
+			defines.put("ROULETTE_BOUNCE", Integer.toString(rouletteBounce));
+		if (!lightSampling)
+			defines.put("LIGHT_SAMPLING", "0");
+		if (sampler == Sampler.PCG)
+			defines.put("SAMPLER", "SAMPLER_PCG");
+		if (denoise)
+			defines.put("DENOISER_GUIDES", "1");
+		if (workGroupSizeX > 0) {
+			defines.put("WORK_GROUP_SIZE_X", Integer.toString(workGroupSizeX));
+			defines.put("WORK_GROUP_SIZE_Y", Integer.toString(workGroupSizeY));
+		}
+		return defines;
+	}
+
+	/**
+	 * Parses the command line arguments.
+	 * @param args the arguments passed to the main method
+	 * @return the parsed options
+	 * @throws IllegalArgumentException if an argument is unknown or has an invalid value
+	 */
+	public static Options parse(String[] args) throws IllegalArgumentException {
+		Options options = new Options();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--scene":
+					options.scene = value(args, ++i);
+					break;
+				case "--cpu":
+					options.cpu = true;
+					break;
+				case "--threads":
+					options.threads = positiveInt(args, ++i);
+					break;
+				case "--width":
+					options.width = positiveInt(args, ++i);
+					break;
+				case "--height":
+					options.height = positiveInt(args, ++i);
+					break;
+				case "--shader-cache":
+					options.shaderCache = value(args, ++i);
+					break;
+				case "--no-shader-cache":
+					options.shaderCache = null;
+					break;
+				case "--shader-dir":
+					options.shaderDirectory = value(args, ++i);
+					break;
+				case "--watch":
+					options.watch = true;
+					break;
+				case "--max-bounces":
+					options.maxBounces = nonNegativeInt(args, ++i);
+					break;
+				case "--roulette-bounce":
+					options.rouletteBounce = nonNegativeInt(args, ++i);
+					break;
+				case "--work-group": {
+					String value = value(args, ++i);
+					String[] size = value.split("x");
+					try {
+						options.workGroupSizeX = Integer.parseInt(size[0]);
+						options.workGroupSizeY = size.length == 2 ? Integer.parseInt(size[1]) : 0;
+					} catch (NumberFormatException ignored) {
+					}
+					if (size.length != 2 || options.workGroupSizeX <= 0 || options.workGroupSizeY <= 0)
+						throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + value);
+					break;
+				}
+				case "--auto-tune":
+					options.autoTune = true;
+					break;
+				case "--wavefront":
+					options.wavefront = true;
+					break;
+				case "--no-light-sampling":
+					options.lightSampling = false;
+					break;
+				case "--sampler": {
+					String value = value(args, ++i);
+					if (value.equals("sobol"))
+						options.sampler = Sampler.SOBOL;
+					else if (value.equals("pcg"))
+						options.sampler = Sampler.PCG;
+					else
+						throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + value);
+					break;
+				}
+				case "--denoise":
+					options.denoise = true;
+					break;
+				case "--present-rate":
+					options.presentRate = positiveFloat(args, ++i);
+					break;
+				case "--frame-budget":
+					options.frameBudget = positiveFloat(args, ++i);
+					break;
+				case "--render-scale":
+					options.renderScale = positiveFloat(args, ++i);
+					if (options.renderScale > 1)
+						throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + args[i]);
+					break;
+				case "--target-fps":
+					options.targetFps = positiveFloat(args, ++i);
+					break;
+				case "--samples-per-dispatch":
+					options.samplesPerDispatch = positiveInt(args, ++i);
+					break;
+				case "--threshold":
+					options.threshold = positiveFloat(args, ++i);
+					break;
+				case "--no-reprojection":
+					options.reprojection = false;
+					break;
+				case "--headless":
+					options.headless = true;
+					break;
+				case "--spp":
+					options.spp = positiveInt(args, ++i);
+					break;
+				case "--time":
+					options.time = positiveFloat(args, ++i);
+					break;
+				case "--output":
+					options.output = value(args, ++i);
+					break;
+				case "--formats": {
+					String value = value(args, ++i);
+					options.formats = EnumSet.noneOf(ImageWriter.Format.class);
+					for (String name : value.split(",")) {
+						try {
+							options.formats.add(ImageWriter.Format.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+						} catch (IllegalArgumentException e) {
+							throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + value);
+						}
+					}
+					break;
+				}
+				case "--frames":
+					options.frames = positiveInt(args, ++i);
+					break;
+				case "--fps":
+					options.fps = positiveFloat(args, ++i);
+					break;
+				case "--snapshot-every":
+					options.snapshotEvery = positiveInt(args, ++i);
+					break;
+				case "--coordinator":
+					options.coordinatorPort = nonNegativeInt(args, ++i);
+					break;
+				case "--worker":
+					options.worker = value(args, ++i);
+					break;
+				case "--metrics":
+					options.metrics = value(args, ++i);
+					break;
+				case "--metrics-interval":
+					options.metricsInterval = positiveFloat(args, ++i);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		// without a stopping criterion render a reasonably converged image
+		if ((options.headless || options.coordinatorPort >= 0) && options.spp == 0 && options.time == 0)
+			options.spp = 256;
+		return options;
+	}
+
+	private static String value(String[] args, int i) {
+		if (i >= args.length)
+			throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+		return args[i];
+	}
+
+	private static int positiveInt(String[] args, int i) {
+		String value = value(args, i);
+		try {
+			int n = Integer.parseInt(value);
+			if (n > 0)
+				return n;
+		} catch (NumberFormatException ignored) {
+		}
+		throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + value);
+	}
+
+	private static int nonNegativeInt(String[] args, int i) {
+		String value = value(args, i);
+		try {
+			int n = Integer.parseInt(value);
+			if (n >= 0)
+				return n;
+		} catch (NumberFormatException ignored) {
+		}
+		throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + value);
+	}
+
+	private static float positiveFloat(String[] args, int i) {
+		String value = value(args, i);
+		try {
+			float n = Float.parseFloat(value);
+			if (n > 0)
+				return n;
+		} catch (NumberFormatException ignored) {
+		}
+		throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + value);
+	}
+}
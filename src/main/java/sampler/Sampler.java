@@ -0,0 +1,168 @@
+package sampler;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Random numbers of the path tracer, Java port of <i>sampler.glsl</i>.
+ * <p>
+ * A sample is addressed by integers only: the pixel, the index of the sample in the pixel
+ * (the number of samples it already accumulated) and a dimension block, two per bounce.
+ * Each block holds 4 dimensions of a Sobol sequence with hash-based Owen scrambling,
+ * the index is shuffled and each dimension scrambled with seeds hashed from the pixel and
+ * the block, so pixels and bounces are decorrelated while the samples of a pixel stay stratified.
+ * source: Burley, Practical Hash-based Owen Scrambling, JCGT 2020
+ * <p>
+ * The Sobol direction numbers are generated here and uploaded once by the GPU backend,
+ * the PCG fallback hashes the same integers with pcg4d and needs no table.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Sampler {
+	// values of the SAMPLER macro of sampler.glsl
+	public static final int SOBOL = 0;
+	public static final int PCG = 1;
+
+	public static final int DIMENSIONS = 4; // of a block, the first ones of the Sobol sequence
+	public static final int BITS = 32;      // direction numbers of each dimension
+
+	/*
+	 * Primitive polynomials and initial direction numbers of the dimensions after the first one,
+	 * source: Joe and Kuo, new-joe-kuo-6.21201, https://web.maths.unsw.edu.au/~fkuo/sobol/
+	 */
+	private static final int[] DEGREE = {1, 2, 3};
+	private static final int[] COEFFICIENTS = {0, 1, 1};
+	private static final int[][] INITIAL = {{1}, {1, 3}, {1, 3, 1}};
+
+	private static final int[] MATRICES = directionNumbers();
+
+	/**
+	 * @return the direction numbers of the first DIMENSIONS dimensions of the Sobol sequence,
+	 * the ones of bit i of the index at i * DIMENSIONS, so a sample reads contiguous numbers
+	 */
+	private static int[] directionNumbers() {
+		int[] v = new int[BITS * DIMENSIONS];
+		// the first dimension is the van der Corput sequence
+		for (int i = 0; i < BITS; i++)
+			v[i * DIMENSIONS] = 1 << (BITS - 1 - i);
+
+		for (int d = 1; d < DIMENSIONS; d++) {
+			int s = DEGREE[d - 1], a = COEFFICIENTS[d - 1];
+			for (int i = 0; i < s; i++)
+				v[i * DIMENSIONS + d] = INITIAL[d - 1][i] << (BITS - 1 - i);
+			for (int i = s; i < BITS; i++) {
+				int x = v[(i - s) * DIMENSIONS + d];
+				x ^= x >>> s;
+				for (int k = 1; k < s; k++)
+					if (((a >>> (s - 1 - k)) & 1) != 0)
+						x ^= v[(i - k) * DIMENSIONS + d];
+				v[i * DIMENSIONS + d] = x;
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * @return the direction numbers as a std430 uvec4 array, for the storage buffer of <i>sampler.glsl</i>
+	 */
+	public static ByteBuffer sobolBuffer() {
+		ByteBuffer buffer = BufferUtils.createByteBuffer(MATRICES.length * Integer.BYTES);
+		IntBuffer ints = buffer.asIntBuffer();
+		ints.put(MATRICES);
+		return buffer;
+	}
+
+	/**
+	 * Hashes the bits of <i>x</i> so that each one only depends on the less significant ones.
+	 * source: Laine and Karras, Stratified Sampling for Stochastic Transparency, 2011
+	 */
+	private static int laineKarrasPermutation(int x, int seed) {
+		x += seed;
+		x ^= x * 0x6c50b47c;
+		x ^= x * 0xb82f1e52;
+		x ^= x * 0xc7afe638;
+		x ^= x * 0x8d22f6e6;
+		return x;
+	}
+
+	/**
+	 * @return <i>x</i> Owen scrambled: each bit flipped by a hash of the more significant ones
+	 */
+	public static int nestedUniformScramble(int x, int seed) {
+		return Integer.reverse(laineKarrasPermutation(Integer.reverse(x), seed));
+	}
+
+	/**
+	 * Integer hash with low bias, source: https://nullprogram.com/blog/2018/07/31/
+	 */
+	public static int hash(int x) {
+		x ^= x >>> 16;
+		x *= 0x7feb352d;
+		x ^= x >>> 15;
+		x *= 0x846ca68b;
+		x ^= x >>> 16;
+		return x;
+	}
+
+	/**
+	 * @return the seed of a pixel, combined with the index of a dimension block by sample(...)
+	 */
+	public static int pixelSeed(int x, int y) {
+		return hash(x + hash(y));
+	}
+
+	/**
+	 * @return the 32 bit fraction <i>x</i> as a float in [0,1)
+	 */
+	private static float toFloat(int x) {
+		return (x >>> 8) * 0x1p-24f;
+	}
+
+	/**
+	 * Stores the 4 random numbers in [0,1) of a dimension block of a sample in <i>out</i>.
+	 * @param sampler SOBOL or PCG
+	 * @param pixelSeed see pixelSeed(...)
+	 * @param index of the sample in the pixel
+	 * @param block of the dimensions of the sample
+	 */
+	public static void sample(int sampler, int pixelSeed, int index, int block, float[] out) {
+		if (sampler == PCG) {
+			pcg4d(pixelSeed, index, block, 0, out);
+			return;
+		}
+		int seed = hash(pixelSeed + hash(block));
+		// the Sobol sample, as 32 bit fractions: the direction numbers of the set bits of the index
+		int x0 = 0, x1 = 0, x2 = 0, x3 = 0;
+		for (int i = nestedUniformScramble(index, seed); i != 0; i &= i - 1) {
+			int o = Integer.numberOfTrailingZeros(i) * DIMENSIONS;
+			x0 ^= MATRICES[o];
+			x1 ^= MATRICES[o + 1];
+			x2 ^= MATRICES[o + 2];
+			x3 ^= MATRICES[o + 3];
+		}
+		out[0] = toFloat(nestedUniformScramble(x0, hash(seed)));
+		if (out.length > 1) out[1] = toFloat(nestedUniformScramble(x1, hash(seed + 1)));
+		if (out.length > 2) out[2] = toFloat(nestedUniformScramble(x2, hash(seed + 2)));
+		if (out.length > 3) out[3] = toFloat(nestedUniformScramble(x3, hash(seed + 3)));
+	}
+
+	/**
+	 * Hashes 4 integers into 4 random numbers in [0,1).
+	 * source: Jarzynski and Olano, Hash Functions for GPU Rendering, JCGT 2020
+	 */
+	private static void pcg4d(int x, int y, int z, int w, float[] out) {
+		x = x * 1664525 + 1013904223;
+		y = y * 1664525 + 1013904223;
+		z = z * 1664525 + 1013904223;
+		w = w * 1664525 + 1013904223;
+		x += y * w; y += z * x; z += x * y; w += y * z;
+		x ^= x >>> 16; y ^= y >>> 16; z ^= z >>> 16; w ^= w >>> 16;
+		x += y * w; y += z * x; z += x * y; w += y * z;
+		out[0] = toFloat(x);
+		if (out.length > 1) out[1] = toFloat(y);
+		if (out.length > 2) out[2] = toFloat(z);
+		if (out.length > 3) out[3] = toFloat(w);
+	}
+}
@@ -0,0 +1,200 @@
+package scene;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static scene.Scene.*;
+
+/**
+ * The motion of some spheres, boxes and of the camera of a {@link Scene}, declared in the scene file:
+ * <pre>
+ * keyframe   sphere|box  index  time  dx dy dz   # offset from the declared position at the time, in seconds
+ * orbit      sphere|box  index  cx cz  period    # turns around the vertical axis through (cx, cz)
+ * orbit      camera  cx cz  period                # also turns the look at point, e.g. for a turntable
+ * </pre>
+ * The offsets are interpolated linearly between the keyframes of a primitive, which start over
+ * past the last one, and added to the position turned by the orbit, if any. Boxes keep their size.
+ * <p>
+ * The positions are computed from the declared ones, kept aside, so the animation can be evaluated
+ * at any time, in any order, e.g. by the frames of a sequence traced apart.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Animation {
+	public static final int CAMERA = -1; // the type of the track of the camera, the others are Bvh.BOX and Bvh.SPHERE
+
+	/**
+	 * The motion of a primitive or of the camera.
+	 */
+	private static final class Track {
+		final int type, index;
+		final List<float[]> keyframes = new ArrayList<>(); // time, dx, dy, dz, in order of time
+		float orbitX, orbitZ, period; // period 0 if it does not orbit
+		final float[] base = new float[6]; // declared position: sphere center, box min and max, camera position and look at
+
+		Track(int type, int index) {
+			this.type = type;
+			this.index = index;
+		}
+	}
+
+	private final List<Track> tracks = new ArrayList<>();
+	private final float[] offset = new float[3];
+	private final float[] center = new float[3], point = new float[3];
+
+	/**
+	 * @return the motion of the primitive, created empty on first use
+	 */
+	private Track track(int type, int index) {
+		for (Track track : tracks)
+			if (track.type == type && track.index == index)
+				return track;
+		Track track = new Track(type, index);
+		tracks.add(track);
+		return track;
+	}
+
+	/**
+	 * Adds a keyframe to the motion of a primitive, after its previous keyframes.
+	 * @param type {@link Bvh#BOX} or {@link Bvh#SPHERE}
+	 * @throws IllegalArgumentException if the time is before the previous keyframe of the primitive
+	 */
+	void keyframe(int type, int index, float time, float dx, float dy, float dz) {
+		List<float[]> keyframes = track(type, index).keyframes;
+		if (!keyframes.isEmpty() && keyframes.get(keyframes.size() - 1)[0] > time)
+			throw new IllegalArgumentException("keyframes must be in order of time");
+		keyframes.add(new float[]{time, dx, dy, dz});
+	}
+
+	/**
+	 * Makes a primitive, or the camera, turn around a vertical axis.
+	 * @param type {@link Bvh#BOX}, {@link Bvh#SPHERE} or {@link #CAMERA}
+	 * @param period the seconds of a turn
+	 */
+	void orbit(int type, int index, float centerX, float centerZ, float period) {
+		Track track = track(type, index);
+		track.orbitX = centerX;
+		track.orbitZ = centerZ;
+		track.period = period;
+	}
+
+	/**
+	 * Keeps the declared positions of the animated primitives and of the camera.
+	 */
+	void setBase(Scene scene) {
+		for (Track track : tracks) {
+			if (track.type == Bvh.SPHERE) {
+				for (int k = 0; k < 3; k++)
+					track.base[k] = scene.spheresF.get(track.index * SPHERE_WORDS + SPHERE_CENTER + k);
+			} else if (track.type == Bvh.BOX) {
+				for (int k = 0; k < 3; k++) {
+					track.base[k] = scene.boxesF.get(track.index * BOX_WORDS + BOX_MIN + k);
+					track.base[3 + k] = scene.boxesF.get(track.index * BOX_WORDS + BOX_MAX + k);
+				}
+			} else {
+				track.base[0] = scene.camera.position.x;
+				track.base[1] = scene.camera.position.y;
+				track.base[2] = scene.camera.position.z;
+				track.base[3] = scene.camera.lookAt.x;
+				track.base[4] = scene.camera.lookAt.y;
+				track.base[5] = scene.camera.lookAt.z;
+			}
+		}
+	}
+
+	/**
+	 * @return the primitive references, as stored by the {@link Bvh}, of the moving primitives
+	 */
+	int[] references() {
+		return tracks.stream().filter(track -> track.type != CAMERA)
+				.mapToInt(track -> track.type << Bvh.TYPE_SHIFT | track.index).toArray();
+	}
+
+	/**
+	 * @return true if the camera moves
+	 */
+	public boolean movesCamera() {
+		return tracks.stream().anyMatch(track -> track.type == CAMERA);
+	}
+
+	/**
+	 * Moves the primitives and the camera to where they are at the given time.
+	 * @param spheres the range of the spheres moved, {first, end}, updated
+	 * @param boxes the range of the boxes moved, {first, end}, updated
+	 */
+	void apply(Scene scene, float time, int[] spheres, int[] boxes) {
+		for (Track track : tracks) {
+			// the point turned by the orbit: the center of the primitive or the position of the camera
+			for (int k = 0; k < 3; k++)
+				center[k] = track.type == Bvh.BOX ? 0.5f * (track.base[k] + track.base[3 + k]) : track.base[k];
+			System.arraycopy(center, 0, point, 0, 3);
+			float angle = track.period > 0 ? (float) (2 * Math.PI * (time / track.period)) : 0;
+			turn(point, track, angle);
+			offset(track, time, offset);
+			for (int k = 0; k < 3; k++)
+				offset[k] += point[k] - center[k];
+
+			if (track.type == Bvh.SPHERE) {
+				for (int k = 0; k < 3; k++)
+					scene.spheresF.put(track.index * SPHERE_WORDS + SPHERE_CENTER + k, track.base[k] + offset[k]);
+				grow(spheres, track.index);
+			} else if (track.type == Bvh.BOX) {
+				for (int k = 0; k < 3; k++) {
+					scene.boxesF.put(track.index * BOX_WORDS + BOX_MIN + k, track.base[k] + offset[k]);
+					scene.boxesF.put(track.index * BOX_WORDS + BOX_MAX + k, track.base[3 + k] + offset[k]);
+				}
+				grow(boxes, track.index);
+			} else {
+				scene.camera.position.set(track.base[0] + offset[0], track.base[1] + offset[1], track.base[2] + offset[2]);
+				System.arraycopy(track.base, 3, point, 0, 3);
+				turn(point, track, angle);
+				scene.camera.lookAt.set(point[0], point[1], point[2]);
+			}
+		}
+	}
+
+	/**
+	 * Interpolates the keyframes of a track.
+	 */
+	private static void offset(Track track, float time, float[] out) {
+		out[0] = out[1] = out[2] = 0;
+		List<float[]> keyframes = track.keyframes;
+		if (keyframes.isEmpty())
+			return;
+		float duration = keyframes.get(keyframes.size() - 1)[0];
+		if (duration > 0)
+			time -= (float) Math.floor(time / duration) * duration;
+		float[] previous = keyframes.get(0);
+		if (time <= previous[0]) {
+			System.arraycopy(previous, 1, out, 0, 3);
+			return;
+		}
+		for (float[] next : keyframes) {
+			if (next[0] >= time) {
+				float t = (time - previous[0]) / (next[0] - previous[0]);
+				for (int k = 0; k < 3; k++)
+					out[k] = previous[1 + k] + t * (next[1 + k] - previous[1 + k]);
+				return;
+			}
+			previous = next;
+		}
+		System.arraycopy(previous, 1, out, 0, 3);
+	}
+
+	/**
+	 * Turns a point around the vertical axis of the orbit of the track.
+	 */
+	private static void turn(float[] p, Track track, float angle) {
+		if (angle == 0)
+			return;
+		float x = p[0] - track.orbitX, z = p[2] - track.orbitZ;
+		float cos = (float) Math.cos(angle), sin = (float) Math.sin(angle);
+		p[0] = track.orbitX + x * cos + z * sin;
+		p[2] = track.orbitZ - x * sin + z * cos;
+	}
+
+	private static void grow(int[] range, int index) {
+		range[0] = Math.min(range[0], index);
+		range[1] = Math.max(range[1], index + 1);
+	}
+}
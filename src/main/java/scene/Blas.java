@@ -0,0 +1,153 @@
+package scene;
+
+import org.joml.Matrix4x3f;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static scene.Bvh.*;
+import static scene.Scene.*;
+
+/**
+ * The bottom level hierarchies of the geometries shared by instances: a {@link Bvh} over the triangles
+ * of each geometry, in object space, all flattened into the same buffer of BvhNode structs.
+ * An instance only holds the transform from the world to the object space of its geometry,
+ * the index of the root of its hierarchy and its material, so a geometry placed many times takes
+ * the memory of its triangles and of its hierarchy once. The instances are the leaves of the top
+ * level, the {@link Bvh} of the scene.
+ * <p>
+ * The triangles of each geometry are reordered as the references of the leaves of its hierarchy,
+ * so the leaves point straight to a range of the triangles buffer, and the offsets of the nodes
+ * are indices in the whole buffers.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Blas {
+	public final ByteBuffer nodes;
+	public final FloatBuffer nodesF;
+	public final IntBuffer nodesI;
+	public final int numNodes;
+	public final int[] roots; // of the hierarchy of each geometry
+	public final long buildTime; // nanoseconds
+
+	private final long instancedBytes; // of the triangles and nodes of the geometries, as shared
+	private final long flattenedBytes; // if every instance had its own copy of them
+	private final int numInstances, numGeometries;
+
+	private Blas(ByteBuffer nodes, int numNodes, int[] roots, long buildTime,
+				 long instancedBytes, long flattenedBytes, int numInstances, int numGeometries) {
+		this.nodes = nodes;
+		this.nodesF = nodes.asFloatBuffer();
+		this.nodesI = nodes.asIntBuffer();
+		this.numNodes = numNodes;
+		this.roots = roots;
+		this.buildTime = buildTime;
+		this.instancedBytes = instancedBytes;
+		this.flattenedBytes = flattenedBytes;
+		this.numInstances = numInstances;
+		this.numGeometries = numGeometries;
+	}
+
+	/**
+	 * Builds the hierarchy of each geometry of the scene, reorders its triangles,
+	 * and stores the roots in the instances.
+	 * @param scene the scene, whose triangles and instances are updated
+	 * @return the flattened hierarchies
+	 */
+	public static Blas build(Scene scene) {
+		long start = System.nanoTime();
+		Bvh[] trees = new Bvh[scene.numGeometries];
+		int[] roots = new int[scene.numGeometries];
+		int numNodes = 0;
+		for (int g = 0; g < scene.numGeometries; g++) {
+			trees[g] = Bvh.build(scene, scene.geometries[2 * g], scene.geometries[2 * g + 1]);
+			roots[g] = numNodes;
+			numNodes += trees[g].numNodes;
+		}
+
+		ByteBuffer nodes = allocate(numNodes * NODE_WORDS * 4);
+		IntBuffer nodesI = nodes.asIntBuffer();
+		int[] words = new int[TRIANGLE_WORDS];
+		long[] triangleCounts = new long[scene.numGeometries];
+		for (int g = 0; g < scene.numGeometries; g++) {
+			Bvh tree = trees[g];
+			int first = scene.geometries[2 * g], count = scene.geometries[2 * g + 1];
+			triangleCounts[g] = count;
+
+			// the triangles in the order of the references of the leaves
+			int[] reordered = new int[count * TRIANGLE_WORDS];
+			for (int p = 0; p < count; p++) {
+				int triangle = tree.primitivesI.get(p) & INDEX_MASK;
+				scene.trianglesI.position(triangle * TRIANGLE_WORDS);
+				scene.trianglesI.get(words);
+				System.arraycopy(words, 0, reordered, p * TRIANGLE_WORDS, TRIANGLE_WORDS);
+			}
+			scene.trianglesI.position(first * TRIANGLE_WORDS);
+			scene.trianglesI.put(reordered);
+			scene.trianglesI.rewind();
+
+			for (int node = 0; node < tree.numNodes; node++) {
+				int o = node * NODE_WORDS, r = (roots[g] + node) * NODE_WORDS;
+				for (int w = 0; w < NODE_WORDS; w++)
+					nodesI.put(r + w, tree.nodesI.get(o + w));
+				int offset = tree.nodesI.get(o + NODE_OFFSET);
+				// leaves point to the reordered triangles, interior nodes to their right child
+				nodesI.put(r + NODE_OFFSET, offset + (tree.nodesI.get(o + NODE_COUNT) > 0 ? first : roots[g]));
+			}
+		}
+
+		long instancedBytes = 0, flattenedBytes = 0;
+		for (int i = 0; i < scene.numInstances; i++) {
+			int g = scene.instancesI.get(i * INSTANCE_WORDS + INSTANCE_GEOMETRY);
+			scene.instancesI.put(i * INSTANCE_WORDS + INSTANCE_ROOT, roots[g]);
+			flattenedBytes += triangleCounts[g] * TRIANGLE_WORDS * 4 + (long) trees[g].numNodes * NODE_WORDS * 4;
+		}
+		for (int g = 0; g < scene.numGeometries; g++)
+			instancedBytes += triangleCounts[g] * TRIANGLE_WORDS * 4 + (long) trees[g].numNodes * NODE_WORDS * 4;
+		instancedBytes += (long) scene.numInstances * INSTANCE_WORDS * 4;
+		return new Blas(nodes, numNodes, roots, System.nanoTime() - start,
+				instancedBytes, flattenedBytes, scene.numInstances, scene.numGeometries);
+	}
+
+	/**
+	 * Bounds an instance in world space: the corners of the root of the hierarchy of its geometry
+	 * are moved to the world and bounded again.
+	 * @param box the array in which to store the min(3) and max(3) corners
+	 */
+	static void instanceBounds(Scene scene, int instance, float[] box) {
+		int o = instance * INSTANCE_WORDS;
+		FloatBuffer f = scene.instancesF;
+		Matrix4x3f objectToWorld = new Matrix4x3f(
+				f.get(o), f.get(o + 4), f.get(o + 8),
+				f.get(o + 1), f.get(o + 5), f.get(o + 9),
+				f.get(o + 2), f.get(o + 6), f.get(o + 10),
+				f.get(o + 3), f.get(o + 7), f.get(o + 11)).invert();
+		int root = scene.instancesI.get(o + INSTANCE_ROOT) * NODE_WORDS;
+		FloatBuffer nodes = scene.blas.nodesF;
+		for (int k = 0; k < 3; k++) {
+			box[k] = Float.POSITIVE_INFINITY;
+			box[3 + k] = Float.NEGATIVE_INFINITY;
+		}
+		for (int corner = 0; corner < 8; corner++) {
+			float x = nodes.get(root + ((corner & 1) == 0 ? NODE_MIN : NODE_MAX));
+			float y = nodes.get(root + ((corner & 2) == 0 ? NODE_MIN : NODE_MAX) + 1);
+			float z = nodes.get(root + ((corner & 4) == 0 ? NODE_MIN : NODE_MAX) + 2);
+			float[] p = {
+					objectToWorld.m00() * x + objectToWorld.m10() * y + objectToWorld.m20() * z + objectToWorld.m30(),
+					objectToWorld.m01() * x + objectToWorld.m11() * y + objectToWorld.m21() * z + objectToWorld.m31(),
+					objectToWorld.m02() * x + objectToWorld.m12() * y + objectToWorld.m22() * z + objectToWorld.m32()};
+			for (int k = 0; k < 3; k++) {
+				box[k] = Math.min(box[k], p[k]);
+				box[3 + k] = Math.max(box[3 + k], p[k]);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BLAS: %d geometries, %d nodes, built in %.2f ms, %d instances in %.1f KB "
+						+ "instead of %.1f KB with a copy each", numGeometries, numNodes, buildTime / 1E6,
+				numInstances, instancedBytes / 1024.0, flattenedBytes / 1024.0);
+	}
+}
@@ -0,0 +1,507 @@
+package scene;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static scene.Scene.*;
+
+/**
+ * Bounding volume hierarchy over the primitives of a {@link Scene},
+ * built with the surface area heuristic evaluated on a fixed number of bins
+ * (<a href="https://www.sci.utah.edu/~wald/Publications/2007/ParallelBVHBuild/fastbuild.pdf">Wald, 2007</a>).
+ * <p>
+ * The tree is flattened in depth-first order into a buffer with the std430
+ * layout of the BvhNode struct of <i>raytracing.glsl</i>, so the left child
+ * of an interior node always follows its parent:
+ * <pre>
+ * struct BvhNode {
+ *     vec3 min;
+ *     int offset; // interior: index of the right child, leaf: first primitive reference
+ *     vec3 max;
+ *     int count;  // leaf: number of primitives, interior: -(split axis + 1)
+ * };
+ * </pre>
+ * Leaves point to a range of the primitive references buffer, where every
+ * reference holds the type of the primitive in the upper bits and its index
+ * in the buffer of that type in the lower ones.
+ * <p>
+ * The instances are leaves of this tree too, bounded by their geometry moved to the world:
+ * the tree is the top level over the bottom level hierarchies of the geometries, see {@link Blas}.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Bvh {
+	public static final int NODE_WORDS = 8;
+	public static final int NODE_MIN = 0, NODE_OFFSET = 3, NODE_MAX = 4, NODE_COUNT = 7;
+
+	// primitive references
+	public static final int TYPE_SHIFT = 28;
+	public static final int INDEX_MASK = (1 << TYPE_SHIFT) - 1;
+	public static final int BOX = 0, SPHERE = 1, TRIANGLE = 2, INSTANCE = 3;
+
+	// no path from the root to a leaf is longer, so traversal stacks of this size never overflow
+	public static final int MAX_DEPTH = 64;
+
+	private static final int BINS = 16;
+	private static final int MAX_LEAF_SIZE = 8;
+	static final float TRAVERSAL_COST = 1.0f; // relative to the cost of a primitive intersection
+	private static final int PARALLEL_SUBTREE = 1 << 12; // fork subtrees with more primitives
+	private static final int PARALLEL_SCAN = 1 << 16; // split scans of ranges with more primitives
+
+	public final ByteBuffer nodes, primitives;
+	public final FloatBuffer nodesF;
+	public final IntBuffer nodesI, primitivesI;
+	public final int numNodes, numLeaves, depth;
+	public final float sahCost;
+	public final long buildTime; // nanoseconds
+
+	private Bvh(ByteBuffer nodes, ByteBuffer primitives, int numNodes, int numLeaves,
+				int depth, float sahCost, long buildTime) {
+		this.nodes = nodes;
+		this.primitives = primitives;
+		this.nodesF = nodes.asFloatBuffer();
+		this.nodesI = nodes.asIntBuffer();
+		this.primitivesI = primitives.asIntBuffer();
+		this.numNodes = numNodes;
+		this.numLeaves = numLeaves;
+		this.depth = depth;
+		this.sahCost = sahCost;
+		this.buildTime = buildTime;
+	}
+
+	/**
+	 * Builds the hierarchy over all the boxes, spheres, triangles and instances of the scene
+	 * using all the available processors.
+	 * The bottom level hierarchies of the instances must be built first, see {@link Blas#build(Scene)}.
+	 * @param scene the scene
+	 * @return the flattened hierarchy
+	 */
+	public static Bvh build(Scene scene) {
+		long start = System.nanoTime();
+		int n = scene.numBoxes + scene.numSpheres + scene.numTriangles + scene.numInstances;
+		int[] references = new int[n];
+		float[] bounds = new float[6 * n];
+
+		for (int i = 0; i < scene.numBoxes; i++) {
+			int o = i * BOX_WORDS;
+			for (int k = 0; k < 3; k++) {
+				bounds[6 * i + k] = scene.boxesF.get(o + BOX_MIN + k);
+				bounds[6 * i + 3 + k] = scene.boxesF.get(o + BOX_MAX + k);
+			}
+			references[i] = BOX << TYPE_SHIFT | i;
+		}
+		for (int i = 0; i < scene.numSpheres; i++) {
+			int o = i * SPHERE_WORDS;
+			int p = scene.numBoxes + i;
+			float radius = scene.spheresF.get(o + SPHERE_RADIUS);
+			for (int k = 0; k < 3; k++) {
+				float center = scene.spheresF.get(o + SPHERE_CENTER + k);
+				bounds[6 * p + k] = center - radius;
+				bounds[6 * p + 3 + k] = center + radius;
+			}
+			references[p] = SPHERE << TYPE_SHIFT | i;
+		}
+		for (int i = 0; i < scene.numTriangles; i++) {
+			int p = scene.numBoxes + scene.numSpheres + i;
+			triangleBounds(scene, i, bounds, 6 * p);
+			references[p] = TRIANGLE << TYPE_SHIFT | i;
+		}
+		float[] box = new float[6];
+		for (int i = 0; i < scene.numInstances; i++) {
+			int p = scene.numBoxes + scene.numSpheres + scene.numTriangles + i;
+			Blas.instanceBounds(scene, i, box);
+			System.arraycopy(box, 0, bounds, 6 * p, 6);
+			references[p] = INSTANCE << TYPE_SHIFT | i;
+		}
+
+		return new Builder(bounds, references).build(start);
+	}
+
+	/**
+	 * Builds the hierarchy over a range of the triangles of the scene, e.g. the triangles of a geometry
+	 * shared by instances, whose references hold their index in the whole buffer.
+	 */
+	static Bvh build(Scene scene, int firstTriangle, int numTriangles) {
+		long start = System.nanoTime();
+		int[] references = new int[numTriangles];
+		float[] bounds = new float[6 * numTriangles];
+		for (int p = 0; p < numTriangles; p++) {
+			triangleBounds(scene, firstTriangle + p, bounds, 6 * p);
+			references[p] = TRIANGLE << TYPE_SHIFT | firstTriangle + p;
+		}
+		return new Builder(bounds, references).build(start);
+	}
+
+	/**
+	 * Stores the min(3) and max(3) corners of the bounds of a triangle at <i>offset</i> in <i>bounds</i>.
+	 */
+	private static void triangleBounds(Scene scene, int triangle, float[] bounds, int offset) {
+		int o = triangle * TRIANGLE_WORDS;
+		for (int k = 0; k < 3; k++) {
+			bounds[offset + k] = Float.POSITIVE_INFINITY;
+			bounds[offset + 3 + k] = Float.NEGATIVE_INFINITY;
+		}
+		for (int v = 0; v < 3; v++) {
+			int vertex = scene.trianglesI.get(o + TRIANGLE_VERTICES + v) * VERTEX_WORDS;
+			for (int k = 0; k < 3; k++) {
+				float x = scene.verticesF.get(vertex + k);
+				bounds[offset + k] = Math.min(bounds[offset + k], x);
+				bounds[offset + 3 + k] = Math.max(bounds[offset + 3 + k], x);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BVH: %d nodes (%d leaves), depth %d, SAH cost %.2f, built in %.2f ms",
+				numNodes, numLeaves, depth, sahCost, buildTime / 1E6);
+	}
+
+	/**
+	 * Builds the tree in temporary arrays, where the children of a node are
+	 * allocated in pairs, then flattens it in depth-first order.
+	 */
+	private static final class Builder {
+		private final float[] bounds; // per primitive min(3), max(3)
+		private final float[] centroids;
+		private final int[] references;
+		private final int[] order; // primitive indices, partitioned in place during the build
+
+		// temporary nodes
+		private final float[] nodeBounds;
+		private final int[] child, first, count, axis, size;
+		private final AtomicInteger nextNode = new AtomicInteger(1);
+
+		private final ThreadLocal<float[]> binsScratch = ThreadLocal.withInitial(() -> new float[3 * BINS * 7]);
+
+		Builder(float[] bounds, int[] references) {
+			int n = references.length;
+			this.bounds = bounds;
+			this.references = references;
+			this.centroids = new float[3 * n];
+			this.order = new int[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+				for (int k = 0; k < 3; k++)
+					centroids[3 * i + k] = 0.5f * (bounds[6 * i + k] + bounds[6 * i + 3 + k]);
+			}
+
+			int maxNodes = Math.max(2 * n - 1, 1);
+			nodeBounds = new float[6 * maxNodes];
+			child = new int[maxNodes];
+			first = new int[maxNodes];
+			count = new int[maxNodes];
+			axis = new int[maxNodes];
+			size = new int[maxNodes];
+		}
+
+		Bvh build(long start) {
+			int n = references.length;
+			if (n > 0)
+				ForkJoinPool.commonPool().invoke(new NodeTask(0, 0, n, 0));
+			return flatten(start);
+		}
+
+		private final class NodeTask extends RecursiveAction {
+			private final int node, start, end, depth;
+
+			NodeTask(int node, int start, int end, int depth) {
+				this.node = node;
+				this.start = start;
+				this.end = end;
+				this.depth = depth;
+			}
+
+			@Override
+			protected void compute() {
+				buildNode(node, start, end, depth);
+			}
+		}
+
+		/**
+		 * Computes the bounds of the primitives and of their centroids in the range.
+		 * @param out min(3), max(3) of the primitives, min(3), max(3) of the centroids
+		 */
+		private void scanBounds(int start, int end, float[] out) {
+			for (int k = 0; k < 3; k++) {
+				out[k] = out[6 + k] = Float.POSITIVE_INFINITY;
+				out[3 + k] = out[9 + k] = Float.NEGATIVE_INFINITY;
+			}
+			for (int i = start; i < end; i++) {
+				int p = order[i];
+				for (int k = 0; k < 3; k++) {
+					out[k] = Math.min(out[k], bounds[6 * p + k]);
+					out[3 + k] = Math.max(out[3 + k], bounds[6 * p + 3 + k]);
+					out[6 + k] = Math.min(out[6 + k], centroids[3 * p + k]);
+					out[9 + k] = Math.max(out[9 + k], centroids[3 * p + k]);
+				}
+			}
+		}
+
+		/**
+		 * Distributes the primitives of the range in the bins of every axis.
+		 * @param out for each axis and bin: min(3), max(3), count
+		 */
+		private void scanBins(int start, int end, float[] centroidBounds, float[] out) {
+			for (int b = 0; b < 3 * BINS; b++) {
+				int o = 7 * b;
+				out[o] = out[o + 1] = out[o + 2] = Float.POSITIVE_INFINITY;
+				out[o + 3] = out[o + 4] = out[o + 5] = Float.NEGATIVE_INFINITY;
+				out[o + 6] = 0;
+			}
+			for (int i = start; i < end; i++) {
+				int p = order[i];
+				for (int a = 0; a < 3; a++) {
+					int o = 7 * (a * BINS + bin(p, a, centroidBounds));
+					for (int k = 0; k < 3; k++) {
+						out[o + k] = Math.min(out[o + k], bounds[6 * p + k]);
+						out[o + 3 + k] = Math.max(out[o + 3 + k], bounds[6 * p + 3 + k]);
+					}
+					out[o + 6]++;
+				}
+			}
+		}
+
+		private int bin(int p, int a, float[] centroidBounds) {
+			float min = centroidBounds[6 + a];
+			float extent = centroidBounds[9 + a] - min;
+			if (extent <= 0)
+				return 0;
+			int b = (int) ((centroids[3 * p + a] - min) * (BINS / extent));
+			return Math.min(b, BINS - 1);
+		}
+
+		/**
+		 * Runs {@link #scanBounds} or {@link #scanBins} over the range, splitting
+		 * big ranges among the threads of the pool and merging their results.
+		 */
+		private void scan(int start, int end, float[] centroidBounds, float[] out) {
+			int n = end - start;
+			int chunks = Math.min(ForkJoinPool.getCommonPoolParallelism(), n / PARALLEL_SCAN);
+			if (chunks <= 1) {
+				if (centroidBounds == null)
+					scanBounds(start, end, out);
+				else
+					scanBins(start, end, centroidBounds, out);
+				return;
+			}
+
+			float[][] partial = new float[chunks][out.length];
+			RecursiveAction[] tasks = new RecursiveAction[chunks];
+			for (int c = 0; c < chunks; c++) {
+				final int from = start + (int) ((long) n * c / chunks);
+				final int to = start + (int) ((long) n * (c + 1) / chunks);
+				final float[] result = partial[c];
+				tasks[c] = new RecursiveAction() {
+					@Override
+					protected void compute() {
+						if (centroidBounds == null)
+							scanBounds(from, to, result);
+						else
+							scanBins(from, to, centroidBounds, result);
+					}
+				};
+			}
+			RecursiveAction.invokeAll(tasks);
+
+			// bounds and bins are both groups of min(3), max(3) and possibly a count
+			int group = centroidBounds == null ? 6 : 7;
+			System.arraycopy(partial[0], 0, out, 0, out.length);
+			for (int c = 1; c < chunks; c++) {
+				for (int o = 0; o < out.length; o += group) {
+					for (int k = 0; k < 3; k++) {
+						out[o + k] = Math.min(out[o + k], partial[c][o + k]);
+						out[o + 3 + k] = Math.max(out[o + 3 + k], partial[c][o + 3 + k]);
+					}
+					if (group == 7)
+						out[o + 6] += partial[c][o + 6];
+				}
+			}
+		}
+
+		private static float halfArea(float[] b, int o) {
+			float dx = b[o + 3] - b[o], dy = b[o + 4] - b[o + 1], dz = b[o + 5] - b[o + 2];
+			return dx * dy + dy * dz + dz * dx;
+		}
+
+		private void makeLeaf(int node, int start, int end) {
+			child[node] = -1;
+			first[node] = start;
+			count[node] = end - start;
+			size[node] = 1;
+		}
+
+		private void buildNode(int node, int start, int end, int depth) {
+			int n = end - start;
+			float[] nodeScan = new float[12];
+			scan(start, end, null, nodeScan);
+			System.arraycopy(nodeScan, 0, nodeBounds, 6 * node, 6);
+
+			if (n == 1 || depth >= MAX_DEPTH - 1) {
+				makeLeaf(node, start, end);
+				return;
+			}
+
+			// evaluate the cost of splitting between each pair of bins of each axis
+			float[] bins = n > PARALLEL_SCAN ? new float[3 * BINS * 7] : binsScratch.get();
+			scan(start, end, nodeScan, bins);
+
+			float bestCost = Float.POSITIVE_INFINITY;
+			int bestAxis = -1, bestSplit = 0;
+			float[] leftArea = new float[BINS];
+			int[] leftCount = new int[BINS];
+			float[] box = new float[6];
+			for (int a = 0; a < 3; a++) {
+				if (nodeScan[9 + a] - nodeScan[6 + a] <= 0)
+					continue;
+
+				// sweep from the left, leftArea[i] covers bins [0, i)
+				resetBox(box);
+				int c = 0;
+				for (int b = 1; b < BINS; b++) {
+					int o = 7 * (a * BINS + b - 1);
+					growBox(box, bins, o);
+					c += (int) bins[o + 6];
+					leftArea[b] = c > 0 ? halfArea(box, 0) : 0;
+					leftCount[b] = c;
+				}
+				// sweep from the right, evaluating the split between bins b-1 and b
+				resetBox(box);
+				c = 0;
+				for (int b = BINS - 1; b > 0; b--) {
+					int o = 7 * (a * BINS + b);
+					growBox(box, bins, o);
+					c += (int) bins[o + 6];
+					if (c == 0 || leftCount[b] == 0)
+						continue;
+					float cost = leftArea[b] * leftCount[b] + halfArea(box, 0) * c;
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestAxis = a;
+						bestSplit = b;
+					}
+				}
+			}
+
+			int mid;
+			float area = halfArea(nodeScan, 0);
+			float splitCost = TRAVERSAL_COST + (area > 0 ? bestCost / area : n);
+			if (bestAxis < 0 || splitCost >= n) {
+				// splitting does not pay off, or all the centroids are in the same point
+				if (n <= MAX_LEAF_SIZE) {
+					makeLeaf(node, start, end);
+					return;
+				}
+				bestAxis = bestAxis < 0 ? 0 : bestAxis;
+				mid = -1;
+			} else {
+				mid = partition(start, end, bestAxis, bestSplit, nodeScan);
+			}
+			if (mid <= start || mid >= end)
+				// split in the middle when the bins fail to separate the primitives
+				mid = (start + end) >>> 1;
+
+			int left = nextNode.getAndAdd(2);
+			child[node] = left;
+			axis[node] = bestAxis;
+			count[node] = 0;
+			if (n > PARALLEL_SUBTREE) {
+				RecursiveAction.invokeAll(
+						new NodeTask(left, start, mid, depth + 1),
+						new NodeTask(left + 1, mid, end, depth + 1));
+			} else {
+				buildNode(left, start, mid, depth + 1);
+				buildNode(left + 1, mid, end, depth + 1);
+			}
+			size[node] = 1 + size[left] + size[left + 1];
+		}
+
+		/**
+		 * Moves the primitives whose centroid falls in the bins before <i>split</i> to the front.
+		 * @return the index of the first primitive of the right half
+		 */
+		private int partition(int start, int end, int a, int split, float[] centroidBounds) {
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (bin(order[i], a, centroidBounds) < split) {
+					i++;
+				} else {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j--] = tmp;
+				}
+			}
+			return i;
+		}
+
+		private static void resetBox(float[] box) {
+			box[0] = box[1] = box[2] = Float.POSITIVE_INFINITY;
+			box[3] = box[4] = box[5] = Float.NEGATIVE_INFINITY;
+		}
+
+		private static void growBox(float[] box, float[] b, int o) {
+			for (int k = 0; k < 3; k++) {
+				box[k] = Math.min(box[k], b[o + k]);
+				box[3 + k] = Math.max(box[3 + k], b[o + 3 + k]);
+			}
+		}
+
+		/**
+		 * Writes the temporary nodes in depth-first order and computes the statistics.
+		 */
+		private Bvh flatten(long start) {
+			int n = references.length;
+			int numNodes = n > 0 ? size[0] : 0;
+			ByteBuffer nodes = allocate(Math.max(numNodes, 1) * NODE_WORDS * 4);
+			ByteBuffer primitives = allocate(Math.max(n, 1) * 4);
+			for (int i = 0; i < n; i++)
+				primitives.putInt(4 * i, references[order[i]]);
+
+			int numLeaves = 0, maxDepth = 0;
+			double cost = 0;
+			if (numNodes > 0) {
+				float rootArea = halfArea(nodeBounds, 0);
+				int[] stack = new int[2 * MAX_DEPTH];
+				int[] depths = new int[2 * MAX_DEPTH];
+				int sp = 0, position = 0;
+				stack[sp] = 0;
+				depths[sp++] = 0;
+				while (sp > 0) {
+					int node = stack[--sp];
+					int depth = depths[sp];
+					int o = position * NODE_WORDS * 4;
+					for (int k = 0; k < 3; k++) {
+						nodes.putFloat(o + 4 * (NODE_MIN + k), nodeBounds[6 * node + k]);
+						nodes.putFloat(o + 4 * (NODE_MAX + k), nodeBounds[6 * node + 3 + k]);
+					}
+					float relativeArea = rootArea > 0 ? halfArea(nodeBounds, 6 * node) / rootArea : 1;
+					if (child[node] < 0) {
+						nodes.putInt(o + 4 * NODE_OFFSET, first[node]);
+						nodes.putInt(o + 4 * NODE_COUNT, count[node]);
+						numLeaves++;
+						maxDepth = Math.max(maxDepth, depth);
+						cost += relativeArea * count[node];
+					} else {
+						int left = child[node];
+						nodes.putInt(o + 4 * NODE_OFFSET, position + 1 + size[left]);
+						nodes.putInt(o + 4 * NODE_COUNT, -(axis[node] + 1));
+						cost += relativeArea * TRAVERSAL_COST;
+						// the left child is popped first, so it is written right after its parent
+						stack[sp] = left + 1;
+						depths[sp++] = depth + 1;
+						stack[sp] = left;
+						depths[sp++] = depth + 1;
+					}
+					position++;
+				}
+			}
+
+			return new Bvh(nodes, primitives, numNodes, numLeaves, maxDepth, (float) cost,
+					System.nanoTime() - start);
+		}
+	}
+}
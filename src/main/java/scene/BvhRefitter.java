@@ -0,0 +1,230 @@
+package scene;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static scene.Bvh.*;
+import static scene.Scene.*;
+
+/**
+ * Updates the bounds of the nodes of a {@link Bvh} after some of its primitives moved, keeping the tree:
+ * the leaves holding a moving primitive are bounded again, then their ancestors, bottom-up.
+ * The subtrees without moving primitives are skipped, and the big subtrees are refitted in parallel.
+ * <p>
+ * A refit is much cheaper than a build, but the tree gets slower to trace as the primitives move away
+ * from where they were when it was built: the SAH cost of the refitted tree tells when to build it again.
+ *
+ * @author Marco Di Rienzo
+ */
+public class BvhRefitter {
+	private static final int PARALLEL_SUBTREE = 1 << 12; // fork subtrees with more nodes
+
+	private final Bvh bvh;
+	private final Scene scene;
+	private final boolean[] moving; // the subtree of the node holds a moving primitive
+	private final int[] end; // the node after the subtree of each node, in depth-first order
+	private final double staticCost; // of the nodes whose bounds never change, not divided by the root area
+	private float cost;
+	private int firstChanged, endChanged;
+
+	/**
+	 * @param bvh the hierarchy over the primitives of the scene
+	 * @param scene the scene, whose buffers are read by every refit
+	 * @param references the primitive references, as stored by the hierarchy, of the moving primitives
+	 */
+	public BvhRefitter(Bvh bvh, Scene scene, int[] references) {
+		this.bvh = bvh;
+		this.scene = scene;
+		this.cost = bvh.sahCost;
+		int n = bvh.numNodes;
+		moving = new boolean[n];
+		end = new int[n];
+
+		int[] sorted = references.clone();
+		Arrays.sort(sorted);
+		double cost = 0;
+		// the children follow their parent
+		for (int node = n - 1; node >= 0; node--) {
+			int o = node * NODE_WORDS;
+			int count = bvh.nodesI.get(o + NODE_COUNT), offset = bvh.nodesI.get(o + NODE_OFFSET);
+			if (count > 0) {
+				for (int i = offset; i < offset + count && !moving[node]; i++)
+					moving[node] = Arrays.binarySearch(sorted, bvh.primitivesI.get(i)) >= 0;
+				end[node] = node + 1;
+			} else {
+				moving[node] = moving[node + 1] || moving[offset];
+				end[node] = end[offset];
+			}
+			if (!moving[node])
+				cost += halfArea(node) * (count > 0 ? count : TRAVERSAL_COST);
+		}
+		staticCost = cost;
+	}
+
+	private float halfArea(int node) {
+		int o = node * NODE_WORDS;
+		float dx = bvh.nodesF.get(o + NODE_MAX) - bvh.nodesF.get(o + NODE_MIN);
+		float dy = bvh.nodesF.get(o + NODE_MAX + 1) - bvh.nodesF.get(o + NODE_MIN + 1);
+		float dz = bvh.nodesF.get(o + NODE_MAX + 2) - bvh.nodesF.get(o + NODE_MIN + 2);
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Bounds again the nodes holding moving primitives, after the primitives were moved in the buffers of the scene.
+	 */
+	public void refit() {
+		firstChanged = endChanged = 0;
+		if (bvh.numNodes == 0 || !moving[0])
+			return;
+		Result result = ForkJoinPool.commonPool().invoke(new RefitTask(0));
+		float rootArea = halfArea(0);
+		cost = rootArea > 0 ? (float) ((staticCost + result.cost) / rootArea) : 1;
+		firstChanged = result.first;
+		endChanged = result.end;
+	}
+
+	/**
+	 * The nodes changed by a subtree and their contribution to the SAH cost.
+	 */
+	private static final class Result {
+		int first = Integer.MAX_VALUE, end = Integer.MIN_VALUE;
+		double cost;
+
+		void add(Result other) {
+			first = Math.min(first, other.first);
+			end = Math.max(end, other.end);
+			cost += other.cost;
+		}
+	}
+
+	private final class RefitTask extends RecursiveTask<Result> {
+		private final int node;
+
+		RefitTask(int node) {
+			this.node = node;
+		}
+
+		@Override
+		protected Result compute() {
+			Result result = new Result();
+			refit(node, result);
+			return result;
+		}
+	}
+
+	/**
+	 * Bounds again a node holding moving primitives, after its children.
+	 */
+	private void refit(int node, Result result) {
+		int o = node * NODE_WORDS;
+		int count = bvh.nodesI.get(o + NODE_COUNT), offset = bvh.nodesI.get(o + NODE_OFFSET);
+		float[] box = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		if (count > 0) {
+			for (int i = offset; i < offset + count; i++)
+				growPrimitive(bvh.primitivesI.get(i), box);
+		} else {
+			int left = node + 1, right = offset;
+			if (moving[left] && moving[right] && end[node] - node > PARALLEL_SUBTREE) {
+				RefitTask task = new RefitTask(right);
+				task.fork();
+				refit(left, result);
+				result.add(task.join());
+			} else {
+				if (moving[left])
+					refit(left, result);
+				if (moving[right])
+					refit(right, result);
+			}
+			growNode(left, box);
+			growNode(right, box);
+		}
+
+		boolean changed = false;
+		for (int k = 0; k < 3; k++) {
+			changed |= bvh.nodesF.get(o + NODE_MIN + k) != box[k] || bvh.nodesF.get(o + NODE_MAX + k) != box[3 + k];
+			bvh.nodesF.put(o + NODE_MIN + k, box[k]);
+			bvh.nodesF.put(o + NODE_MAX + k, box[3 + k]);
+		}
+		if (changed) {
+			result.first = Math.min(result.first, node);
+			result.end = Math.max(result.end, node + 1);
+		}
+		result.cost += halfArea(node) * (count > 0 ? count : TRAVERSAL_COST);
+	}
+
+	private void growNode(int node, float[] box) {
+		int o = node * NODE_WORDS;
+		for (int k = 0; k < 3; k++) {
+			box[k] = Math.min(box[k], bvh.nodesF.get(o + NODE_MIN + k));
+			box[3 + k] = Math.max(box[3 + k], bvh.nodesF.get(o + NODE_MAX + k));
+		}
+	}
+
+	private void growPrimitive(int reference, float[] box) {
+		int index = reference & INDEX_MASK;
+		switch (reference >>> TYPE_SHIFT) {
+			case BOX: {
+				int o = index * BOX_WORDS;
+				for (int k = 0; k < 3; k++) {
+					box[k] = Math.min(box[k], scene.boxesF.get(o + BOX_MIN + k));
+					box[3 + k] = Math.max(box[3 + k], scene.boxesF.get(o + BOX_MAX + k));
+				}
+				break;
+			}
+			case SPHERE: {
+				int o = index * SPHERE_WORDS;
+				float radius = scene.spheresF.get(o + SPHERE_RADIUS);
+				for (int k = 0; k < 3; k++) {
+					float center = scene.spheresF.get(o + SPHERE_CENTER + k);
+					box[k] = Math.min(box[k], center - radius);
+					box[3 + k] = Math.max(box[3 + k], center + radius);
+				}
+				break;
+			}
+			case INSTANCE: {
+				float[] bounds = new float[6];
+				Blas.instanceBounds(scene, index, bounds);
+				for (int k = 0; k < 3; k++) {
+					box[k] = Math.min(box[k], bounds[k]);
+					box[3 + k] = Math.max(box[3 + k], bounds[3 + k]);
+				}
+				break;
+			}
+			default: {
+				int o = index * TRIANGLE_WORDS;
+				for (int v = 0; v < 3; v++) {
+					int vertex = scene.trianglesI.get(o + TRIANGLE_VERTICES + v) * VERTEX_WORDS;
+					for (int k = 0; k < 3; k++) {
+						float x = scene.verticesF.get(vertex + k);
+						box[k] = Math.min(box[k], x);
+						box[3 + k] = Math.max(box[3 + k], x);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the SAH cost of the tree after the last refit, comparable to {@link Bvh#sahCost}
+	 */
+	public float getCost() {
+		return cost;
+	}
+
+	/**
+	 * @return the index of the first node changed by the last refit, see {@link #getEndChanged()}
+	 */
+	public int getFirstChanged() {
+		return firstChanged;
+	}
+
+	/**
+	 * @return the index after the last node changed by the last refit, equal to {@link #getFirstChanged()}
+	 * if none changed
+	 */
+	public int getEndChanged() {
+		return endChanged;
+	}
+}
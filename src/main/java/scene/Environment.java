@@ -0,0 +1,414 @@
+package scene;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static scene.Scene.allocate;
+
+/**
+ * An HDR image lighting the scene from infinitely far away, in the equirectangular projection:
+ * the columns span the angle around the y axis, the rows the angle from the top, so the rays escaping
+ * the scene take the radiance of the texel in their direction.
+ * <p>
+ * A map with a small and bright sun would take a huge number of samples to converge if the paths found it
+ * only by escaping, so the diffuse hits sample its texels in proportion to their luminance, see
+ * <i>environment.glsl</i>. Walker's alias method samples a discrete distribution in constant time:
+ * entry i of a table keeps i with its probability, otherwise it yields its alias. The marginal table picks
+ * the row, in proportion to the luminance of the row times the sine of its polar angle, which is how much
+ * the rows shrink towards the poles, then the conditional table of the row picks the column.
+ * The tables of the rows are built in parallel, with Vose's algorithm:
+ * https://www.keithschwarz.com/darts-dice-coins/
+ *
+ * @author Marco Di Rienzo
+ */
+public class Environment {
+	// header of the EnvironmentBuffer of environment.glsl, followed by the texels: ivec2 size; float rotation;
+	public static final int HEADER_WORDS = 4;
+	public static final int ENVIRONMENT_WIDTH = 0, ENVIRONMENT_HEIGHT = 1, ENVIRONMENT_ROTATION = 2;
+	// vec4 texels[], rgb: radiance, a: pdf of sampling the texel over the unit square of the image
+	public static final int TEXEL_WORDS = 4;
+	public static final int TEXEL_RADIANCE = 0, TEXEL_PDF = 3;
+	// struct Alias { float probability; uint alias; }, the table of the rows then the one of each row
+	public static final int ALIAS_WORDS = 2;
+	public static final int ALIAS_PROBABILITY = 0, ALIAS_INDEX = 1;
+
+	private static final int PARALLEL_ROWS = 16; // split the rows among the threads down to this many
+
+	public final ByteBuffer image, aliases;
+	public final FloatBuffer imageF, aliasesF;
+	public final IntBuffer imageI, aliasesI;
+	public final int width, height;
+	public final float rotation; // radians around the y axis
+	public final long buildTime; // of the alias tables, nanoseconds
+
+	/**
+	 * @param rgb the radiance of the texels, row by row from the top
+	 * @param rotation the radians the image is turned by around the y axis
+	 */
+	Environment(float[] rgb, int width, int height, float rotation) {
+		this.width = width;
+		this.height = height;
+		this.rotation = rotation;
+		int texels = width * height;
+		image = allocate(texels > 0 ? (HEADER_WORDS + texels * TEXEL_WORDS) * 4 : 0);
+		aliases = allocate((height + texels) * ALIAS_WORDS * 4);
+		imageF = image.asFloatBuffer();
+		imageI = image.asIntBuffer();
+		aliasesF = aliases.asFloatBuffer();
+		aliasesI = aliases.asIntBuffer();
+		if (texels == 0) {
+			buildTime = 0;
+			return;
+		}
+
+		long start = System.nanoTime();
+		imageI.put(ENVIRONMENT_WIDTH, width);
+		imageI.put(ENVIRONMENT_HEIGHT, height);
+		imageF.put(ENVIRONMENT_ROTATION, rotation);
+		float[] luminance = new float[texels];
+		float[] rows = new float[height];
+		forEachRow(y -> {
+			double sum = 0;
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				for (int k = 0; k < 3; k++)
+					imageF.put(HEADER_WORDS + i * TEXEL_WORDS + TEXEL_RADIANCE + k, rgb[3 * i + k]);
+				luminance[i] = 0.2126f * rgb[3 * i] + 0.7152f * rgb[3 * i + 1] + 0.0722f * rgb[3 * i + 2];
+				sum += luminance[i];
+			}
+			buildAlias(luminance, y * width, width, sum, height + y * width);
+			rows[y] = (float) (sum * sinTheta(y));
+		});
+		double sum = 0;
+		for (float row : rows)
+			sum += row;
+		double total = sum;
+		buildAlias(rows, 0, height, total, 0);
+
+		// the pdf of a texel over the unit square is its probability divided by its area, 1 / texels
+		double scale = total > 0 ? texels / total : 0;
+		forEachRow(y -> {
+			double rowScale = scale * sinTheta(y);
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				imageF.put(HEADER_WORDS + i * TEXEL_WORDS + TEXEL_PDF, total > 0 ? (float) (luminance[i] * rowScale) : 1);
+			}
+		});
+		buildTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * @return an environment without texels, which lights nothing
+	 */
+	static Environment none() {
+		return new Environment(new float[0], 0, 0, 0);
+	}
+
+	/**
+	 * @return true if the scene has no environment
+	 */
+	public boolean isEmpty() {
+		return width == 0;
+	}
+
+	private double sinTheta(int row) {
+		return Math.sin(Math.PI * (row + 0.5) / height);
+	}
+
+	private interface RowAction {
+		void run(int row);
+	}
+
+	private void forEachRow(RowAction action) {
+		ForkJoinPool.commonPool().invoke(new RowsTask(0, height, action));
+	}
+
+	/**
+	 * Recursively splits a range of rows among the threads of the pool.
+	 */
+	private static final class RowsTask extends RecursiveAction {
+		private final int from, to;
+		private final RowAction action;
+
+		RowsTask(int from, int to, RowAction action) {
+			this.from = from;
+			this.to = to;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > PARALLEL_ROWS) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RowsTask(from, mid, action), new RowsTask(mid, to, action));
+				return;
+			}
+			for (int row = from; row < to; row++)
+				action.run(row);
+		}
+	}
+
+	/**
+	 * Builds the alias table of a discrete distribution with Vose's algorithm: the entries below the average
+	 * weight are topped up by an entry above it, which becomes their alias, until all of them are full.
+	 * @param weights the weights, proportional to the probabilities
+	 * @param from the index of the first weight
+	 * @param n the number of weights
+	 * @param sum the sum of the weights, if 0 the distribution is uniform
+	 * @param first the index of the first entry of the table in {@link #aliases}
+	 */
+	private void buildAlias(float[] weights, int from, int n, double sum, int first) {
+		double[] scaled = new double[n];
+		int[] small = new int[n], large = new int[n];
+		int numSmall = 0, numLarge = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = sum > 0 ? weights[from + i] * n / sum : 1;
+			if (scaled[i] < 1)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall], l = large[--numLarge];
+			putAlias(first + s, (float) scaled[s], l);
+			scaled[l] -= 1 - scaled[s];
+			if (scaled[l] < 1)
+				small[numSmall++] = l;
+			else
+				large[numLarge++] = l;
+		}
+		// the rest are full, up to rounding errors
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			putAlias(first + l, 1, l);
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			putAlias(first + s, 1, s);
+		}
+	}
+
+	private void putAlias(int entry, float probability, int alias) {
+		aliasesF.put(entry * ALIAS_WORDS + ALIAS_PROBABILITY, probability);
+		aliasesI.put(entry * ALIAS_WORDS + ALIAS_INDEX, alias);
+	}
+
+	/*
+	 * Lookups and sampling, as in environment.glsl
+	 */
+
+	/**
+	 * @return the index of the texel in the direction, which must be normalized
+	 */
+	public int texel(float dx, float dy, float dz) {
+		float u = (float) (0.5 + (Math.atan2(dx, dz) - rotation) / (2 * Math.PI));
+		u -= (float) Math.floor(u);
+		float v = (float) (Math.acos(Math.max(-1, Math.min(1, dy))) / Math.PI);
+		int x = Math.min((int) (u * width), width - 1);
+		int y = Math.min((int) (v * height), height - 1);
+		return y * width + x;
+	}
+
+	/**
+	 * @param channel 0 for red, 1 for green, 2 for blue
+	 * @return the radiance of a texel
+	 */
+	public float radiance(int texel, int channel) {
+		return imageF.get(HEADER_WORDS + texel * TEXEL_WORDS + TEXEL_RADIANCE + channel);
+	}
+
+	/**
+	 * @param texel the texel in the direction
+	 * @param dy the y component of the normalized direction, the cosine of its polar angle
+	 * @return the pdf over the solid angle of sampling the direction with {@link #sample(float, float, float[])}
+	 */
+	public float pdf(int texel, float dy) {
+		float sinTheta = (float) Math.sqrt(Math.max(0, 1 - dy * dy));
+		if (sinTheta == 0)
+			return 0;
+		return imageF.get(HEADER_WORDS + texel * TEXEL_WORDS + TEXEL_PDF) / (2 * (float) (Math.PI * Math.PI) * sinTheta);
+	}
+
+	/**
+	 * Samples a direction in proportion to the luminance of the texels, see {@link #pdf(int, float)}.
+	 * @param u1 a uniform random number in [0, 1), choosing the column
+	 * @param u2 a uniform random number in [0, 1), choosing the row
+	 * @param direction the array in which to store the normalized direction
+	 * @return the index of the sampled texel
+	 */
+	public int sample(float u1, float u2, float[] direction) {
+		double row = sampleAlias(0, height, u2);
+		int y = (int) row;
+		double column = sampleAlias(height + y * width, width, u1);
+		int x = (int) column;
+		double phi = (column / width - 0.5) * 2 * Math.PI + rotation;
+		double theta = row / height * Math.PI;
+		double sinTheta = Math.sin(theta);
+		direction[0] = (float) (sinTheta * Math.sin(phi));
+		direction[1] = (float) Math.cos(theta);
+		direction[2] = (float) (sinTheta * Math.cos(phi));
+		return y * width + x;
+	}
+
+	/**
+	 * Picks an entry of an alias table, the part of the random number left after choosing the entry
+	 * and the coin is reused to place the sample in the entry.
+	 * @return the index of the entry plus a uniform random number in [0, 1)
+	 */
+	private double sampleAlias(int first, int n, float u) {
+		double scaled = (double) u * n;
+		int i = Math.min((int) scaled, n - 1);
+		double f = Math.min(scaled - i, Math.nextDown(1.0));
+		int o = (first + i) * ALIAS_WORDS;
+		float probability = aliasesF.get(o + ALIAS_PROBABILITY);
+		if (f < probability)
+			return i + f / probability;
+		return aliasesI.get(o + ALIAS_INDEX) + Math.min((f - probability) / (1 - probability), Math.nextDown(1.0));
+	}
+
+	/**
+	 * Loads a Radiance RGBE image, the .hdr files usually found for environment maps,
+	 * flat or run-length encoded, and builds its alias tables.
+	 * @param file the .hdr file
+	 * @param intensity the factor the radiance of the texels is multiplied by
+	 * @param rotation the degrees the image is turned by around the y axis
+	 * @return the environment
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static Environment load(Path file, float intensity, float rotation) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(file + ": images larger than 2GB are not supported");
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			String name = file.getFileName().toString().toLowerCase();
+			if (!name.endsWith(".hdr") && !name.endsWith(".pic"))
+				throw new IOException(file + ": unknown image format, expected a Radiance .hdr file");
+			try {
+				return loadRadiance(file, data, intensity, (float) Math.toRadians(rotation));
+			} catch (BufferUnderflowException e) {
+				throw new IOException(file + ": unexpected end of the image");
+			}
+		}
+	}
+
+	private static Environment loadRadiance(Path file, ByteBuffer data, float intensity, float rotation)
+			throws IOException {
+		if (!readLine(data).startsWith("#?"))
+			throw new IOException(file + ": not a Radiance HDR file");
+		String line;
+		while (!(line = readLine(data)).isEmpty()) {
+			if (line.startsWith("FORMAT=") && !line.equals("FORMAT=32-bit_rle_rgbe"))
+				throw new IOException(file + ": only RGBE images are supported, not " + line.substring(7));
+		}
+		String[] resolution = readLine(data).trim().split("\\s+");
+		if (resolution.length != 4 || !resolution[0].equals("-Y") || !resolution[2].equals("+X"))
+			throw new IOException(file + ": only images stored from the top left corner are supported");
+		int width, height;
+		try {
+			height = Integer.parseInt(resolution[1]);
+			width = Integer.parseInt(resolution[3]);
+		} catch (NumberFormatException e) {
+			throw new IOException(file + ": invalid image size");
+		}
+		if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE / (HEADER_WORDS * TEXEL_WORDS))
+			throw new IOException(file + ": invalid image size " + width + "x" + height);
+
+		float[] rgb = new float[width * height * 3];
+		byte[] scanline = new byte[width * 4];
+		for (int y = 0; y < height; y++) {
+			readScanline(file, data, scanline, width);
+			for (int x = 0; x < width; x++) {
+				int e = scanline[4 * x + 3] & 0xFF;
+				// the mantissas are in the middle of their steps
+				float f = e == 0 ? 0 : Math.scalb(intensity, e - (128 + 8));
+				for (int k = 0; k < 3; k++)
+					rgb[(y * width + x) * 3 + k] = e == 0 ? 0 : ((scanline[4 * x + k] & 0xFF) + 0.5f) * f;
+			}
+		}
+		return new Environment(rgb, width, height, rotation);
+	}
+
+	private static String readLine(ByteBuffer data) {
+		int start = data.position();
+		while (data.get() != '\n');
+		byte[] line = new byte[data.position() - 1 - start];
+		data.position(start);
+		data.get(line);
+		data.get();
+		return new String(line, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Reads a scanline as RGBE bytes: the run-length encoding stores the four components of the pixels
+	 * one after the other, each as runs of a repeated byte and of literal bytes.
+	 */
+	private static void readScanline(Path file, ByteBuffer data, byte[] scanline, int width) throws IOException {
+		int start = data.position();
+		if (width < 8 || width > 0x7FFF || data.get() != 2 || data.get() != 2 || (data.get() & 0x80) != 0) {
+			data.position(start);
+			readFlatScanline(file, data, scanline, width);
+			return;
+		}
+		data.position(start + 2);
+		if (((data.get() & 0xFF) << 8 | data.get() & 0xFF) != width)
+			throw new IOException(file + ": wrong length of an encoded scanline");
+		for (int c = 0; c < 4; c++) {
+			for (int x = 0; x < width; ) {
+				int count = data.get() & 0xFF;
+				boolean run = count > 128;
+				if (run)
+					count -= 128;
+				if (count == 0 || x + count > width)
+					throw new IOException(file + ": run past the end of a scanline");
+				if (run) {
+					byte value = data.get();
+					for (; count > 0; count--)
+						scanline[4 * x++ + c] = value;
+				} else {
+					for (; count > 0; count--)
+						scanline[4 * x++ + c] = data.get();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a scanline of RGBE pixels, where the pixels (1, 1, 1, n) repeat the previous one
+	 * n times, shifted left by 8 bits for each such pixel before.
+	 */
+	private static void readFlatScanline(Path file, ByteBuffer data, byte[] scanline, int width) throws IOException {
+		int shift = 0;
+		for (int x = 0; x < width; ) {
+			data.get(scanline, 4 * x, 4);
+			if (scanline[4 * x] == 1 && scanline[4 * x + 1] == 1 && scanline[4 * x + 2] == 1) {
+				int count = (scanline[4 * x + 3] & 0xFF) << shift;
+				if (x == 0 || count == 0 || x + count > width)
+					throw new IOException(file + ": invalid run in a scanline");
+				for (; count > 0; count--, x++)
+					System.arraycopy(scanline, 4 * (x - 1), scanline, 4 * x, 4);
+				shift += 8;
+			} else {
+				x++;
+				shift = 0;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Environment: %dx%d, alias tables built in %.2f ms, %.1f KB", width, height,
+				buildTime / 1E6, (image.capacity() + aliases.capacity()) / 1024.0);
+	}
+}
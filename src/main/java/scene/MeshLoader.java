@@ -0,0 +1,434 @@
+package scene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static scene.Scene.*;
+
+/**
+ * Loads triangle meshes from Wavefront OBJ and binary PLY files into the
+ * vertex and triangle buffers of a {@link Scene}.
+ * Files are memory-mapped and parsed in place; vertices with the same position
+ * are merged through an open addressing hash table of primitive ints, so only the
+ * indexed data ends up in memory. Only positions are read, polygons with more than
+ * three vertices are split in a fan of triangles.
+ *
+ * @author Marco Di Rienzo
+ */
+final class MeshLoader {
+	private static final int EMPTY = -1;
+
+	private final StructBuffer vertices, triangles;
+
+	// transform applied to the positions and material of the triangles
+	private float scale, tx, ty, tz;
+	private int material;
+
+	// scene index of each vertex of the file
+	private int[] remap = new int[1024];
+	private int numFileVertices;
+
+	// hash table of the scene indices of the unique vertices of the current file
+	private int[] table;
+	private int tableSize;
+
+	private int[] polygon = new int[16];
+	private final byte[] token = new byte[64];
+	private int tokenLength;
+
+	/**
+	 * @param vertices the buffer of the vertex positions
+	 * @param triangles the buffer of the triangles
+	 */
+	MeshLoader(StructBuffer vertices, StructBuffer triangles) {
+		this.vertices = vertices;
+		this.triangles = triangles;
+	}
+
+	/**
+	 * Appends the triangles of a mesh file, the format is chosen by the extension.
+	 * @param file the .obj or .ply file
+	 * @param material the material of all the triangles
+	 * @param scale the uniform scale applied to the positions
+	 * @param tx the translation applied to the positions after scaling
+	 * @param ty the translation applied to the positions after scaling
+	 * @param tz the translation applied to the positions after scaling
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	void load(Path file, int material, float scale, float tx, float ty, float tz) throws IOException {
+		this.material = material;
+		this.scale = scale;
+		this.tx = tx;
+		this.ty = ty;
+		this.tz = tz;
+		numFileVertices = 0;
+		table = new int[1 << 16];
+		Arrays.fill(table, EMPTY);
+		tableSize = 0;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(file + ": mesh files larger than 2GB are not supported");
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			String name = file.getFileName().toString().toLowerCase();
+			if (name.endsWith(".obj"))
+				loadObj(file, data);
+			else if (name.endsWith(".ply"))
+				loadPly(file, data);
+			else
+				throw new IOException(file + ": unknown mesh format, expected .obj or .ply");
+		}
+		table = null;
+	}
+
+	/*
+	 * Vertices and triangles
+	 */
+
+	private void addVertex(float x, float y, float z) {
+		// adding 0 turns -0 into +0, so they have the same bits
+		x = x * scale + tx + 0.0f;
+		y = y * scale + ty + 0.0f;
+		z = z * scale + tz + 0.0f;
+
+		int mask = table.length - 1;
+		int h = hash(x, y, z) & mask;
+		ByteBuffer v = vertices.data();
+		int index;
+		while ((index = table[h]) != EMPTY) {
+			int o = 12 * index;
+			if (v.getFloat(o) == x && v.getFloat(o + 4) == y && v.getFloat(o + 8) == z)
+				break;
+			h = (h + 1) & mask;
+		}
+
+		if (index == EMPTY) {
+			ByteBuffer b = vertices.add();
+			index = vertices.count() - 1;
+			b.putFloat(x).putFloat(y).putFloat(z);
+			table[h] = index;
+			if (++tableSize * 2 > table.length)
+				growTable();
+		}
+
+		if (numFileVertices == remap.length)
+			remap = Arrays.copyOf(remap, 2 * remap.length);
+		remap[numFileVertices++] = index;
+	}
+
+	private static int hash(float x, float y, float z) {
+		int h = Float.floatToRawIntBits(x);
+		h = 31 * h + Float.floatToRawIntBits(y);
+		h = 31 * h + Float.floatToRawIntBits(z);
+		return h ^ (h >>> 16);
+	}
+
+	private void growTable() {
+		int[] old = table;
+		table = new int[2 * old.length];
+		Arrays.fill(table, EMPTY);
+		int mask = table.length - 1;
+		ByteBuffer v = vertices.data();
+		for (int index : old) {
+			if (index == EMPTY)
+				continue;
+			int o = 12 * index;
+			int h = hash(v.getFloat(o), v.getFloat(o + 4), v.getFloat(o + 8)) & mask;
+			while (table[h] != EMPTY)
+				h = (h + 1) & mask;
+			table[h] = index;
+		}
+	}
+
+	/**
+	 * Splits the polygon made by the given file vertices in a fan of triangles.
+	 */
+	private void addPolygon(int[] fileVertices, int n) {
+		for (int i = 1; i + 1 < n; i++) {
+			int v0 = remap[fileVertices[0]], v1 = remap[fileVertices[i]], v2 = remap[fileVertices[i + 1]];
+			if (v0 == v1 || v1 == v2 || v2 == v0)
+				// degenerate after merging the vertices
+				continue;
+			ByteBuffer b = triangles.add();
+			int start = b.position();
+			b.putInt(v0).putInt(v1).putInt(v2).putInt(material);
+			triangles.end(start);
+		}
+	}
+
+	/*
+	 * Wavefront OBJ
+	 */
+
+	private int position;
+	private int line;
+
+	private void loadObj(Path file, ByteBuffer data) throws IOException {
+		int limit = data.limit();
+		position = 0;
+		line = 1;
+		while (position < limit) {
+			int c = data.get(position);
+			if (c == 'v' && position + 1 < limit && isBlank(data.get(position + 1))) {
+				position++;
+				float x = objFloat(file, data), y = objFloat(file, data), z = objFloat(file, data);
+				addVertex(x, y, z);
+			} else if (c == 'f' && position + 1 < limit && isBlank(data.get(position + 1))) {
+				position++;
+				int n = 0;
+				while (readToken(data)) {
+					// only the position of v, v/vt, v//vn and v/vt/vn
+					int slash = 0;
+					while (slash < tokenLength && token[slash] != '/')
+						slash++;
+					int index = Numbers.parseInt(token, slash);
+					if (index == Numbers.INVALID_INT || index == 0)
+						throw objError(file, "invalid face index");
+					// indices start from 1, negative ones are relative to the last vertex
+					index = index > 0 ? index - 1 : numFileVertices + index;
+					if (index < 0 || index >= numFileVertices)
+						throw objError(file, "face index out of range");
+					if (n == polygon.length)
+						polygon = Arrays.copyOf(polygon, 2 * n);
+					polygon[n++] = index;
+				}
+				addPolygon(polygon, n);
+			}
+
+			// skip the rest of the line, whatever statement it is
+			while (position < limit && data.get(position) != '\n')
+				position++;
+			position++;
+			line++;
+		}
+	}
+
+	private static boolean isBlank(int c) {
+		return c == ' ' || c == '\t';
+	}
+
+	/**
+	 * Reads the next token of the current line.
+	 * @return false if there are no more tokens in the line
+	 */
+	private boolean readToken(ByteBuffer data) {
+		int limit = data.limit();
+		while (position < limit && isBlank(data.get(position)))
+			position++;
+		tokenLength = 0;
+		int c;
+		while (position < limit && (c = data.get(position)) != '\n' && c != '\r' && !isBlank(c) && c != '#') {
+			if (tokenLength < token.length)
+				token[tokenLength++] = (byte) c;
+			position++;
+		}
+		return tokenLength > 0;
+	}
+
+	private float objFloat(Path file, ByteBuffer data) throws IOException {
+		if (!readToken(data))
+			throw objError(file, "missing coordinate");
+		float value = Numbers.parseFloat(token, tokenLength);
+		if (Float.isNaN(value))
+			throw objError(file, "invalid coordinate");
+		return value;
+	}
+
+	private IOException objError(Path file, String message) {
+		return new IOException(file + " line " + line + ": " + message);
+	}
+
+	/*
+	 * Binary PLY
+	 */
+
+	private static final class PlyProperty {
+		String name;
+		int type; // size in bytes, negative for signed integers, 0x100 | size for floats
+		int countType; // 0 for scalars, type of the count of a list otherwise
+	}
+
+	private static final class PlyElement {
+		String name;
+		int count;
+		final List<PlyProperty> properties = new ArrayList<>();
+	}
+
+	private static int plyType(String type, Path file) throws IOException {
+		switch (type) {
+			case "char": case "int8": return -1;
+			case "uchar": case "uint8": return 1;
+			case "short": case "int16": return -2;
+			case "ushort": case "uint16": return 2;
+			case "int": case "int32": return -4;
+			case "uint": case "uint32": return 4;
+			case "float": case "float32": return 0x100 | 4;
+			case "double": case "float64": return 0x100 | 8;
+			default: throw new IOException(file + ": unknown PLY type " + type);
+		}
+	}
+
+	private static int plySize(int type) {
+		return Math.abs(type) & 0xFF;
+	}
+
+	private static double plyRead(ByteBuffer data, int offset, int type) {
+		switch (type) {
+			case -1: return data.get(offset);
+			case 1: return data.get(offset) & 0xFF;
+			case -2: return data.getShort(offset);
+			case 2: return data.getShort(offset) & 0xFFFF;
+			case -4: return data.getInt(offset);
+			case 4: return data.getInt(offset) & 0xFFFFFFFFL;
+			case 0x100 | 4: return data.getFloat(offset);
+			default: return data.getDouble(offset);
+		}
+	}
+
+	private void loadPly(Path file, ByteBuffer data) throws IOException {
+		// the header is ASCII and small, it is the only part parsed with Strings
+		int end = -1;
+		byte[] marker = "end_header".getBytes(StandardCharsets.US_ASCII);
+		for (int i = 0; i + marker.length < data.limit() && i < 1 << 16; i++) {
+			int k = 0;
+			while (k < marker.length && data.get(i + k) == marker[k])
+				k++;
+			if (k == marker.length) {
+				end = i + k;
+				break;
+			}
+		}
+		if (end < 0)
+			throw new IOException(file + ": missing PLY header");
+		while (end < data.limit() && data.get(end) != '\n')
+			end++;
+		byte[] headerBytes = new byte[end];
+		data.get(headerBytes);
+		String[] header = new String(headerBytes, StandardCharsets.US_ASCII).split("\r?\n");
+		if (!header[0].trim().equals("ply"))
+			throw new IOException(file + ": not a PLY file");
+
+		List<PlyElement> elements = new ArrayList<>();
+		for (String l : header) {
+			String[] t = l.trim().split("\\s+");
+			if (t[0].equals("format")) {
+				if (t[1].equals("binary_little_endian"))
+					data.order(ByteOrder.LITTLE_ENDIAN);
+				else if (t[1].equals("binary_big_endian"))
+					data.order(ByteOrder.BIG_ENDIAN);
+				else
+					throw new IOException(file + ": only binary PLY files are supported");
+			} else if (t[0].equals("element")) {
+				PlyElement e = new PlyElement();
+				e.name = t[1];
+				e.count = Integer.parseInt(t[2]);
+				elements.add(e);
+			} else if (t[0].equals("property") && !elements.isEmpty()) {
+				PlyProperty p = new PlyProperty();
+				if (t[1].equals("list")) {
+					p.countType = plyType(t[2], file);
+					p.type = plyType(t[3], file);
+					p.name = t[4];
+				} else {
+					p.type = plyType(t[1], file);
+					p.name = t[2];
+				}
+				elements.get(elements.size() - 1).properties.add(p);
+			}
+		}
+
+		int offset = end + 1;
+		boolean verticesRead = false;
+		for (PlyElement e : elements) {
+			if (e.name.equals("vertex")) {
+				offset = readPlyVertices(file, data, e, offset);
+				verticesRead = true;
+			} else if (e.name.equals("face")) {
+				if (!verticesRead)
+					throw new IOException(file + ": PLY faces before vertices are not supported");
+				offset = readPlyFaces(file, data, e, offset);
+			} else {
+				int size = 0;
+				for (PlyProperty p : e.properties) {
+					if (p.countType != 0)
+						// cannot skip an element of unknown size, nothing else is needed after the faces
+						return;
+					size += plySize(p.type);
+				}
+				offset += size * e.count;
+			}
+		}
+	}
+
+	private int readPlyVertices(Path file, ByteBuffer data, PlyElement e, int offset) throws IOException {
+		int stride = 0;
+		int[] xyz = {-1, -1, -1};
+		int[] types = new int[3];
+		for (PlyProperty p : e.properties) {
+			if (p.countType != 0)
+				throw new IOException(file + ": PLY vertices with list properties are not supported");
+			int k = "xyz".indexOf(p.name);
+			if (p.name.length() == 1 && k >= 0) {
+				xyz[k] = stride;
+				types[k] = p.type;
+			}
+			stride += plySize(p.type);
+		}
+		if (xyz[0] < 0 || xyz[1] < 0 || xyz[2] < 0)
+			throw new IOException(file + ": PLY vertices without x, y, z");
+		if ((long) offset + (long) stride * e.count > data.limit())
+			throw new IOException(file + ": truncated PLY vertices");
+
+		for (int i = 0; i < e.count; i++, offset += stride) {
+			addVertex((float) plyRead(data, offset + xyz[0], types[0]),
+					(float) plyRead(data, offset + xyz[1], types[1]),
+					(float) plyRead(data, offset + xyz[2], types[2]));
+		}
+		return offset;
+	}
+
+	private int readPlyFaces(Path file, ByteBuffer data, PlyElement e, int offset) throws IOException {
+		int limit = data.limit();
+		for (int i = 0; i < e.count; i++) {
+			for (PlyProperty p : e.properties) {
+				if (p.countType == 0) {
+					offset += plySize(p.type);
+					continue;
+				}
+				if (offset + plySize(p.countType) > limit)
+					throw new IOException(file + ": truncated PLY faces");
+				int n = (int) plyRead(data, offset, p.countType);
+				offset += plySize(p.countType);
+				int size = plySize(p.type);
+				if ((long) offset + (long) n * size > limit)
+					throw new IOException(file + ": truncated PLY faces");
+				if (!p.name.equals("vertex_indices") && !p.name.equals("vertex_index")) {
+					offset += n * size;
+					continue;
+				}
+
+				if (n > polygon.length)
+					polygon = new int[Math.max(n, 2 * polygon.length)];
+				for (int k = 0; k < n; k++, offset += size) {
+					long index = (long) plyRead(data, offset, p.type);
+					if (index < 0 || index >= numFileVertices)
+						throw new IOException(file + ": PLY face index out of range");
+					polygon[k] = (int) index;
+				}
+				addPolygon(polygon, n);
+			}
+		}
+		return offset;
+	}
+}
@@ -0,0 +1,102 @@
+package scene;
+
+/**
+ * Parsing of decimal numbers from bytes, without creating Strings,
+ * shared by the scene and mesh parsers.
+ *
+ * @author Marco Di Rienzo
+ */
+final class Numbers {
+	// returned by parseInt(...) when the token is not an integer
+	static final int INVALID_INT = Integer.MIN_VALUE;
+
+	private static final double[] POW10 = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private Numbers() {
+	}
+
+	/**
+	 * Parses an integer like <i>-42</i>.
+	 * @return the integer, or {@link #INVALID_INT} if the token is not an integer
+	 */
+	static int parseInt(byte[] token, int length) {
+		int i = 0;
+		boolean negative = length > 0 && token[0] == '-';
+		if (negative || length > 0 && token[0] == '+')
+			i++;
+		if (i == length || length - i > 9)
+			return INVALID_INT;
+		int value = 0;
+		for (; i < length; i++) {
+			int digit = token[i] - '0';
+			if (digit < 0 || digit > 9)
+				return INVALID_INT;
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a decimal number like <i>-1.5e3</i>.
+	 * @return the number, or NaN if the token is not a number
+	 */
+	static float parseFloat(byte[] token, int length) {
+		int i = 0;
+		boolean negative = length > 0 && token[0] == '-';
+		if (negative || length > 0 && token[0] == '+')
+			i++;
+
+		long mantissa = 0;
+		int exponent = 0, digits = 0;
+		boolean dot = false;
+		for (; i < length; i++) {
+			int c = token[i];
+			if (c == '.' && !dot) {
+				dot = true;
+			} else if (c >= '0' && c <= '9') {
+				// more digits than a long can hold do not change a float
+				if (mantissa < Long.MAX_VALUE / 10 - 9) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (dot)
+						exponent--;
+				} else if (!dot) {
+					exponent++;
+				}
+				digits++;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0)
+			return Float.NaN;
+
+		if (i < length) {
+			if (token[i] != 'e' && token[i] != 'E')
+				return Float.NaN;
+			i++;
+			boolean negativeExponent = i < length && token[i] == '-';
+			if (i < length && (token[i] == '-' || token[i] == '+'))
+				i++;
+			if (i == length)
+				return Float.NaN;
+			int e = 0;
+			for (; i < length; i++) {
+				int digit = token[i] - '0';
+				if (digit < 0 || digit > 9)
+					return Float.NaN;
+				e = Math.min(e * 10 + digit, 1000);
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+
+		double value = mantissa;
+		if (exponent < 0)
+			value = -exponent < POW10.length ? value / POW10[-exponent] : value * Math.pow(10, exponent);
+		else if (exponent > 0)
+			value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+		return (float) (negative ? -value : value);
+	}
+}
@@ -0,0 +1,249 @@
+package scene;
+
+import render.Camera;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The primitives and materials of a scene, packed in direct buffers
+ * with the std430 layout of the structs declared in <i>raytracing.glsl</i>.
+ * The buffers are uploaded as they are to the shader storage buffers,
+ * while the CPU reads them through the float and int views, which share the
+ * same memory. All the offsets below are expressed in 4-byte words.
+ *
+ * @author Marco Di Rienzo
+ */
+public class Scene {
+	// same values of the Material struct in raytracing.glsl
+	public static final int DIFFUSE = 0, SPECULAR = 1, REFRACTIVE = 2;
+
+	// struct MaterialData { vec3 color; float emission; uint type; }
+	public static final int MATERIAL_WORDS = 8;
+	public static final int MATERIAL_COLOR = 0, MATERIAL_EMISSION = 3, MATERIAL_TYPE = 4;
+	// struct Box { vec3 min; uint material; vec3 max; }
+	public static final int BOX_WORDS = 8;
+	public static final int BOX_MIN = 0, BOX_MATERIAL = 3, BOX_MAX = 4;
+	// struct Sphere { vec3 center; float radius; uint material; }
+	public static final int SPHERE_WORDS = 8;
+	public static final int SPHERE_CENTER = 0, SPHERE_RADIUS = 3, SPHERE_MATERIAL = 4;
+	// float vertices[], 3 consecutive floats per position
+	public static final int VERTEX_WORDS = 3;
+	// struct Triangle { uint v0, v1, v2; uint material; }
+	public static final int TRIANGLE_WORDS = 4;
+	public static final int TRIANGLE_VERTICES = 0, TRIANGLE_MATERIAL = 3;
+	// uint lights[], the indices of the emissive spheres
+	public static final int LIGHT_WORDS = 1;
+	// struct Instance { vec4 worldToObject[3]; uint root; uint material; uint geometry; }
+	public static final int INSTANCE_WORDS = 16;
+	public static final int INSTANCE_WORLD_TO_OBJECT = 0, INSTANCE_ROOT = 12, INSTANCE_MATERIAL = 13;
+	public static final int INSTANCE_GEOMETRY = 14;
+
+	public static final String DEFAULT_SCENE = "scenes/cornell.scene";
+	// a refitted BVH is built again once its SAH cost grows past this ratio of the cost of a fresh one
+	public static final float REBUILD_COST_RATIO = 1.5f;
+
+	public final Camera camera = new Camera();
+
+	public final ByteBuffer materials, boxes, spheres, vertices, triangles, lights, instances;
+	public final FloatBuffer materialsF, boxesF, spheresF, verticesF, instancesF;
+	public final IntBuffer materialsI, boxesI, spheresI, trianglesI, lightsI, instancesI;
+	public final int numMaterials, numBoxes, numSpheres, numVertices, numTriangles, numLights, numInstances;
+	// first triangle and number of triangles of each geometry shared by instances, after the triangles of the meshes
+	public final int[] geometries;
+	public final int numGeometries;
+
+	// acceleration structure over all the primitives and the instances, built by load(...)
+	public Bvh bvh;
+	// acceleration structures of the geometries of the instances, built by load(...) before the one above
+	public Blas blas;
+	// the motion of the primitives and of the camera, null if the scene is still
+	public Animation animation;
+	// the image lighting the scene from far away, empty if the rays escaping the scene carry no light
+	public Environment environment = Environment.none();
+	private BvhRefitter refitter;
+
+	/**
+	 * Creates a scene without instances, see {@link #Scene(ByteBuffer, ByteBuffer, ByteBuffer, ByteBuffer,
+	 * ByteBuffer, ByteBuffer, int[])}.
+	 */
+	public Scene(ByteBuffer materials, ByteBuffer boxes, ByteBuffer spheres,
+				 ByteBuffer vertices, ByteBuffer triangles) {
+		this(materials, boxes, spheres, vertices, triangles, allocate(0), new int[0]);
+	}
+
+	/**
+	 * Lists the emissive spheres, which are sampled explicitly by the tracers.
+	 * @param materials the materials, {@link #MATERIAL_WORDS} words each
+	 * @param boxes the boxes, {@link #BOX_WORDS} words each
+	 * @param spheres the spheres, {@link #SPHERE_WORDS} words each
+	 * @param vertices the positions of the vertices of the triangles, {@link #VERTEX_WORDS} words each
+	 * @param triangles the triangles, {@link #TRIANGLE_WORDS} words each: the ones of the meshes,
+	 *                  then the ones of the geometries, in object space
+	 * @param instances the instances, {@link #INSTANCE_WORDS} words each
+	 * @param geometries the first triangle and the number of triangles of each geometry
+	 */
+	public Scene(ByteBuffer materials, ByteBuffer boxes, ByteBuffer spheres,
+				 ByteBuffer vertices, ByteBuffer triangles, ByteBuffer instances, int[] geometries) {
+		this.materials = materials;
+		this.boxes = boxes;
+		this.spheres = spheres;
+		this.vertices = vertices;
+		this.triangles = triangles;
+		this.instances = instances;
+		this.geometries = geometries;
+		this.numMaterials = materials.remaining() / (MATERIAL_WORDS * 4);
+		this.numBoxes = boxes.remaining() / (BOX_WORDS * 4);
+		this.numSpheres = spheres.remaining() / (SPHERE_WORDS * 4);
+		this.numVertices = vertices.remaining() / (VERTEX_WORDS * 4);
+		this.numGeometries = geometries.length / 2;
+		this.numTriangles = numGeometries > 0 ? geometries[0] : triangles.remaining() / (TRIANGLE_WORDS * 4);
+		this.numInstances = instances.remaining() / (INSTANCE_WORDS * 4);
+
+		materialsF = materials.asFloatBuffer();
+		materialsI = materials.asIntBuffer();
+		boxesF = boxes.asFloatBuffer();
+		boxesI = boxes.asIntBuffer();
+		spheresF = spheres.asFloatBuffer();
+		spheresI = spheres.asIntBuffer();
+		verticesF = vertices.asFloatBuffer();
+		trianglesI = triangles.asIntBuffer();
+		instancesF = instances.asFloatBuffer();
+		instancesI = instances.asIntBuffer();
+
+		int count = 0;
+		for (int i = 0; i < numSpheres; i++)
+			count += isEmissive(i) ? 1 : 0;
+		lights = allocate(count * LIGHT_WORDS * 4);
+		for (int i = 0; i < numSpheres; i++) {
+			if (isEmissive(i))
+				lights.putInt(i);
+		}
+		lights.flip();
+		lightsI = lights.asIntBuffer();
+		numLights = count;
+	}
+
+	private boolean isEmissive(int sphere) {
+		int m = spheresI.get(sphere * SPHERE_WORDS + SPHERE_MATERIAL);
+		return materialsF.get(m * MATERIAL_WORDS + MATERIAL_EMISSION) > 0;
+	}
+
+	/**
+	 * Loads a scene file, see {@link SceneParser} for the format,
+	 * and builds the {@link Bvh} over its primitives and instances.
+	 * @param path a path on the file system or, if there is no such file,
+	 *             the path of a resource in the classpath
+	 * @return the loaded scene
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static Scene load(String path) throws IOException {
+		InputStream in;
+		try {
+			in = new FileInputStream(path);
+		} catch (FileNotFoundException e) {
+			in = Scene.class.getClassLoader().getResourceAsStream(path);
+			if (in == null)
+				throw new FileNotFoundException(path);
+		}
+		Scene scene;
+		try {
+			Path directory = Paths.get(path).toAbsolutePath().getParent();
+			if (in instanceof FileInputStream && directory != null)
+				scene = new SceneParser(in, directory).parse();
+			else
+				scene = new SceneParser(in).parse();
+		} finally {
+			in.close();
+		}
+		scene.blas = Blas.build(scene);
+		scene.bvh = Bvh.build(scene);
+		return scene;
+	}
+
+	/**
+	 * Moves the animated primitives and the camera to where they are at the given time, then refits
+	 * the {@link Bvh} over the moved primitives, or builds it again if refitting degraded it too much,
+	 * see {@link #REBUILD_COST_RATIO}.
+	 * @param time the seconds since the start of the animation
+	 * @return the parts of the buffers changed, to upload
+	 */
+	public SceneUpdate animate(float time) {
+		int[] spheres = {Integer.MAX_VALUE, 0}, boxes = {Integer.MAX_VALUE, 0};
+		if (animation != null)
+			animation.apply(this, time, spheres, boxes);
+		if (spheres[1] == 0 && boxes[1] == 0)
+			return new SceneUpdate(null, null, null, false, 0);
+
+		long start = System.nanoTime();
+		if (refitter == null)
+			refitter = new BvhRefitter(bvh, this, animation.references());
+		refitter.refit();
+		boolean rebuilt = refitter.getCost() > REBUILD_COST_RATIO * bvh.sahCost;
+		if (rebuilt) {
+			bvh = Bvh.build(this);
+			refitter = null;
+		}
+		int[] nodes = rebuilt || refitter.getFirstChanged() == refitter.getEndChanged() ? null
+				: bytes(refitter.getFirstChanged(), refitter.getEndChanged(), Bvh.NODE_WORDS);
+		return new SceneUpdate(bytes(boxes[0], boxes[1], BOX_WORDS), bytes(spheres[0], spheres[1], SPHERE_WORDS),
+				nodes, rebuilt, System.nanoTime() - start);
+	}
+
+	/**
+	 * @return the byte range of the structs in [first, end), null if empty
+	 */
+	private static int[] bytes(int first, int end, int words) {
+		return first < end ? new int[]{first * words * 4, end * words * 4} : null;
+	}
+
+	/**
+	 * @return true if the primitives and the materials of the scenes are the same, whatever their cameras
+	 */
+	public boolean sameContent(Scene scene) {
+		return materials.equals(scene.materials) && boxes.equals(scene.boxes) && spheres.equals(scene.spheres)
+				&& vertices.equals(scene.vertices) && triangles.equals(scene.triangles)
+				&& instances.equals(scene.instances) && environment.image.equals(scene.environment.image);
+	}
+
+	/**
+	 * Compares two versions of a buffer of a scene, e.g. before and after the file was edited,
+	 * to only upload the part that changed.
+	 * @return the offsets from the start of <i>after</i> of the first byte that differs and of the byte
+	 * after the last one, the whole buffer if the sizes differ, or null if the buffers are equal
+	 */
+	public static int[] changedRange(ByteBuffer before, ByteBuffer after) {
+		int size = after.remaining();
+		if (before.remaining() != size)
+			return new int[]{0, size};
+		int b = before.position(), a = after.position();
+		int start = 0, end = size;
+		// a long at a time, then the remaining bytes
+		while (start + 8 <= size && before.getLong(b + start) == after.getLong(a + start))
+			start += 8;
+		while (start < size && before.get(b + start) == after.get(a + start))
+			start++;
+		if (start == size)
+			return null;
+		while (end - 8 >= start && before.getLong(b + end - 8) == after.getLong(a + end - 8))
+			end -= 8;
+		while (before.get(b + end - 1) == after.get(a + end - 1))
+			end--;
+		return new int[]{start, end};
+	}
+
+	/**
+	 * @return a direct buffer in native byte order, as expected by OpenGL
+	 */
+	static ByteBuffer allocate(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+}
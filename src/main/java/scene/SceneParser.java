@@ -0,0 +1,378 @@
+package scene;
+
+import org.joml.Matrix4x3f;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static scene.Scene.*;
+
+/**
+ * Streaming parser of the scene text format.
+ * Each line holds a statement, everything following a <i>#</i> is a comment:
+ * <pre>
+ * camera     px py pz  lx ly lz  ux uy uz  fov   # eye position, look at point, up vector, fov in degrees
+ * material   diffuse|specular|refractive  r g b  emission
+ * box        minx miny minz  maxx maxy maxz  material
+ * sphere     cx cy cz  radius  material
+ * mesh       path  material  scale  tx ty tz             # .obj or binary .ply file, scaled then translated
+ * instance   path  material  scale  ry  tx ty tz         # shares the triangles of the file with its other instances,
+ *                                                      # scaled, turned by ry degrees around y, then translated
+ * keyframe   sphere|box  index  time  dx dy dz            # see Animation
+ * orbit      sphere|box  index  cx cz  period
+ * orbit      camera  cx cz  period
+ * environment  path  intensity  rotation                  # Radiance .hdr image in the equirectangular projection,
+ *                                                         # turned by rotation degrees around y, see Environment
+ * </pre>
+ * Materials are referenced by their index, in order of declaration starting from 0,
+ * so they must be declared before the primitives using them.
+ * Likewise the spheres and boxes are referenced by their index in order of declaration,
+ * and must be declared before their motion.
+ * Relative mesh and image paths are resolved against the directory of the scene file,
+ * the meshes are read by {@link MeshLoader}. The file of an instance is read once, by the first
+ * instance referencing it, and its triangles are stored in object space, see {@link Blas}.
+ * The primitives are written straight into the std430 buffers of the {@link Scene}
+ * while the input is read, without creating an object for each of them.
+ *
+ * @author Marco Di Rienzo
+ */
+public class SceneParser {
+	// long enough for the paths of the meshes
+	private static final int TOKEN_LENGTH = 1024;
+
+	private final InputStream in;
+	private final Path directory;
+	private final byte[] buffer = new byte[1 << 16];
+	private int position, limit;
+	private int line = 1;
+
+	private final byte[] token = new byte[TOKEN_LENGTH];
+	private int tokenLength;
+
+	/**
+	 * @param in the stream to read the scene from, not closed by the parser
+	 * @param directory the directory relative mesh paths are resolved against
+	 */
+	public SceneParser(InputStream in, Path directory) {
+		this.in = in;
+		this.directory = directory;
+	}
+
+	/**
+	 * Creates a parser resolving relative mesh paths against the working directory.
+	 * @param in the stream to read the scene from, not closed by the parser
+	 */
+	public SceneParser(InputStream in) {
+		this(in, Paths.get(""));
+	}
+
+	/**
+	 * Reads the whole stream.
+	 * @return the parsed scene
+	 * @throws IOException if the stream cannot be read or is malformed
+	 */
+	public Scene parse() throws IOException {
+		StructBuffer materials = new StructBuffer(MATERIAL_WORDS, 16);
+		StructBuffer boxes = new StructBuffer(BOX_WORDS, 256);
+		StructBuffer spheres = new StructBuffer(SPHERE_WORDS, 256);
+		StructBuffer vertices = new StructBuffer(VERTEX_WORDS, 256);
+		StructBuffer triangles = new StructBuffer(TRIANGLE_WORDS, 256);
+		MeshLoader meshLoader = new MeshLoader(vertices, triangles);
+		StructBuffer instances = new StructBuffer(INSTANCE_WORDS, 16);
+		StructBuffer geometryVertices = new StructBuffer(VERTEX_WORDS, 256);
+		StructBuffer geometryTriangles = new StructBuffer(TRIANGLE_WORDS, 256);
+		MeshLoader geometryLoader = new MeshLoader(geometryVertices, geometryTriangles);
+		Map<Path, Integer> geometryFiles = new HashMap<>();
+		List<int[]> geometries = new ArrayList<>(); // first triangle and number of triangles
+		float[] camera = null;
+		Animation animation = null;
+		Environment environment = null;
+
+		while (skipBlanks() != -1) {
+			if (peek() == '\n') {
+				nextLine();
+				continue;
+			}
+
+			readToken();
+			if (isToken("sphere")) {
+				ByteBuffer b = spheres.add();
+				int start = b.position();
+				for (int i = 0; i < 4; i++)
+					b.putFloat(parseFloat()); // center and radius
+				b.putInt(parseMaterial(materials.count()));
+				spheres.end(start);
+			} else if (isToken("box")) {
+				ByteBuffer b = boxes.add();
+				int start = b.position();
+				b.putFloat(parseFloat()).putFloat(parseFloat()).putFloat(parseFloat());
+				int materialPosition = b.position();
+				b.putInt(0);
+				b.putFloat(parseFloat()).putFloat(parseFloat()).putFloat(parseFloat());
+				b.putInt(materialPosition, parseMaterial(materials.count()));
+				boxes.end(start);
+			} else if (isToken("material")) {
+				readToken();
+				int type;
+				if (isToken("diffuse"))
+					type = DIFFUSE;
+				else if (isToken("specular"))
+					type = SPECULAR;
+				else if (isToken("refractive"))
+					type = REFRACTIVE;
+				else
+					throw error("unknown material type " + new String(token, 0, tokenLength));
+				ByteBuffer b = materials.add();
+				int start = b.position();
+				for (int i = 0; i < 4; i++)
+					b.putFloat(parseFloat()); // color and emission
+				b.putInt(type);
+				materials.end(start);
+			} else if (isToken("mesh")) {
+				readToken();
+				Path file = directory.resolve(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+				int material = parseMaterial(materials.count());
+				float scale = parseFloat();
+				float tx = parseFloat(), ty = parseFloat(), tz = parseFloat();
+				meshLoader.load(file, material, scale, tx, ty, tz);
+			} else if (isToken("instance")) {
+				readToken();
+				Path file = directory.resolve(new String(token, 0, tokenLength, StandardCharsets.UTF_8))
+						.toAbsolutePath().normalize();
+				int material = parseMaterial(materials.count());
+				float scale = parseFloat();
+				if (scale == 0)
+					throw error("the scale of an instance cannot be 0");
+				float ry = parseFloat();
+				float tx = parseFloat(), ty = parseFloat(), tz = parseFloat();
+				Integer geometry = geometryFiles.get(file);
+				if (geometry == null) {
+					int first = geometryTriangles.count();
+					geometryLoader.load(file, material, 1, 0, 0, 0);
+					if (geometryTriangles.count() == first)
+						throw error(file + " has no triangles");
+					geometry = geometries.size();
+					geometries.add(new int[]{first, geometryTriangles.count() - first});
+					geometryFiles.put(file, geometry);
+				}
+				Matrix4x3f worldToObject = new Matrix4x3f().translate(tx, ty, tz)
+						.rotateY((float) Math.toRadians(ry)).scale(scale).invert();
+				float[] m = worldToObject.get(new float[12], 0); // column-major
+				ByteBuffer b = instances.add();
+				int start = b.position();
+				for (int row = 0; row < 3; row++)
+					for (int column = 0; column < 4; column++)
+						b.putFloat(m[3 * column + row]);
+				b.putInt(0); // root, see Blas
+				b.putInt(material);
+				b.putInt(geometry);
+				instances.end(start);
+			} else if (isToken("keyframe")) {
+				if (animation == null)
+					animation = new Animation();
+				readToken();
+				int type = animatedType();
+				int index = parseIndex(type, spheres.count(), boxes.count());
+				float time = parseFloat();
+				float dx = parseFloat(), dy = parseFloat(), dz = parseFloat();
+				try {
+					animation.keyframe(type, index, time, dx, dy, dz);
+				} catch (IllegalArgumentException e) {
+					throw error(e.getMessage());
+				}
+			} else if (isToken("orbit")) {
+				if (animation == null)
+					animation = new Animation();
+				readToken();
+				int type, index;
+				if (isToken("camera")) {
+					type = Animation.CAMERA;
+					index = 0;
+				} else {
+					type = animatedType();
+					index = parseIndex(type, spheres.count(), boxes.count());
+				}
+				float cx = parseFloat(), cz = parseFloat(), period = parseFloat();
+				if (period <= 0)
+					throw error("the period must be positive");
+				animation.orbit(type, index, cx, cz, period);
+			} else if (isToken("environment")) {
+				if (environment != null)
+					throw error("the environment is already declared");
+				readToken();
+				Path file = directory.resolve(new String(token, 0, tokenLength, StandardCharsets.UTF_8));
+				float intensity = parseFloat();
+				if (intensity < 0)
+					throw error("the intensity cannot be negative");
+				environment = Environment.load(file, intensity, parseFloat());
+			} else if (isToken("camera")) {
+				camera = new float[10];
+				for (int i = 0; i < camera.length; i++)
+					camera[i] = parseFloat();
+			} else {
+				throw error("unknown statement " + new String(token, 0, tokenLength));
+			}
+
+			if (skipBlanks() != '\n' && peek() != -1)
+				throw error("unexpected characters at the end of the statement");
+		}
+
+		// the triangles of the geometries follow the ones of the meshes
+		int numVertices = vertices.count(), numTriangles = triangles.count();
+		for (int i = 0; i < geometryVertices.count(); i++) {
+			ByteBuffer b = vertices.add();
+			int start = b.position();
+			for (int k = 0; k < VERTEX_WORDS; k++)
+				b.putInt(geometryVertices.data().getInt((i * VERTEX_WORDS + k) * 4));
+			vertices.end(start);
+		}
+		for (int i = 0; i < geometryTriangles.count(); i++) {
+			ByteBuffer b = triangles.add();
+			int start = b.position();
+			for (int k = 0; k < TRIANGLE_WORDS; k++) {
+				int word = geometryTriangles.data().getInt((i * TRIANGLE_WORDS + k) * 4);
+				b.putInt(k < TRIANGLE_MATERIAL ? word + numVertices : word);
+			}
+			triangles.end(start);
+		}
+		int[] ranges = new int[2 * geometries.size()];
+		for (int g = 0; g < geometries.size(); g++) {
+			ranges[2 * g] = numTriangles + geometries.get(g)[0];
+			ranges[2 * g + 1] = geometries.get(g)[1];
+		}
+
+		Scene scene = new Scene(materials.finish(), boxes.finish(), spheres.finish(),
+				vertices.finish(), triangles.finish(), instances.finish(), ranges);
+		if (camera != null) {
+			scene.camera.position.set(camera[0], camera[1], camera[2]);
+			scene.camera.lookAt.set(camera[3], camera[4], camera[5]);
+			scene.camera.up.set(camera[6], camera[7], camera[8]);
+			scene.camera.setFov(camera[9]);
+		}
+		if (animation != null) {
+			animation.setBase(scene);
+			scene.animation = animation;
+		}
+		if (environment != null)
+			scene.environment = environment;
+		return scene;
+	}
+
+	/**
+	 * @return the type of primitive named by the current token, which can be animated
+	 */
+	private int animatedType() throws IOException {
+		if (isToken("sphere"))
+			return Bvh.SPHERE;
+		if (isToken("box"))
+			return Bvh.BOX;
+		throw error("only spheres, boxes and the camera can be animated");
+	}
+
+	private int parseIndex(int type, int numSpheres, int numBoxes) throws IOException {
+		int index = parseInt();
+		if (index < 0 || index >= (type == Bvh.SPHERE ? numSpheres : numBoxes))
+			throw error((type == Bvh.SPHERE ? "sphere " : "box ") + index + " is not declared");
+		return index;
+	}
+
+	private int parseMaterial(int numMaterials) throws IOException {
+		int material = parseInt();
+		if (material < 0 || material >= numMaterials)
+			throw error("material " + material + " is not declared");
+		return material;
+	}
+
+	private IOException error(String message) {
+		return new IOException("Scene line " + line + ": " + message);
+	}
+
+	/*
+	 * Tokenizer
+	 */
+
+	private int peek() throws IOException {
+		if (position == limit) {
+			limit = in.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position];
+	}
+
+	/**
+	 * Skips spaces and comments.
+	 * @return the next character, without consuming it
+	 */
+	private int skipBlanks() throws IOException {
+		int c;
+		while ((c = peek()) != -1) {
+			if (c == '#') {
+				while ((c = peek()) != -1 && c != '\n')
+					position++;
+				return c;
+			} else if (c == ' ' || c == '\t' || c == '\r') {
+				position++;
+			} else {
+				return c;
+			}
+		}
+		return c;
+	}
+
+	private void nextLine() {
+		position++;
+		line++;
+	}
+
+	private void readToken() throws IOException {
+		tokenLength = 0;
+		int c = skipBlanks();
+		while (c != -1 && c != ' ' && c != '\t' && c != '\r' && c != '\n' && c != '#') {
+			if (tokenLength == TOKEN_LENGTH)
+				throw error("token too long");
+			token[tokenLength++] = (byte) c;
+			position++;
+			c = peek();
+		}
+		if (tokenLength == 0)
+			throw error("missing value");
+	}
+
+	private boolean isToken(String keyword) {
+		if (keyword.length() != tokenLength)
+			return false;
+		for (int i = 0; i < tokenLength; i++) {
+			if (token[i] != keyword.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private int parseInt() throws IOException {
+		readToken();
+		int value = Numbers.parseInt(token, tokenLength);
+		if (value == Numbers.INVALID_INT)
+			throw error("invalid integer");
+		return value;
+	}
+
+	private float parseFloat() throws IOException {
+		readToken();
+		float value = Numbers.parseFloat(token, tokenLength);
+		if (Float.isNaN(value))
+			throw error("invalid number");
+		return value;
+	}
+}
@@ -0,0 +1,35 @@
+package scene;
+
+/**
+ * What a frame of the {@link Animation} changed in the buffers of a {@link Scene},
+ * so that the backends only upload that.
+ * The ranges are offsets in bytes from the start of the buffers, {first, end}, null if nothing changed.
+ *
+ * @author Marco Di Rienzo
+ */
+public class SceneUpdate {
+	public final int[] boxes, spheres;
+	public final int[] nodes; // of the BVH, null also when it was rebuilt
+	public final boolean rebuilt; // the BVH was built again, all its nodes and primitive references changed
+	public final long time; // nanoseconds spent updating the BVH
+
+	SceneUpdate(int[] boxes, int[] spheres, int[] nodes, boolean rebuilt, long time) {
+		this.boxes = boxes;
+		this.spheres = spheres;
+		this.nodes = nodes;
+		this.rebuilt = rebuilt;
+		this.time = time;
+	}
+
+	/**
+	 * @return true if nothing changed
+	 */
+	public boolean isEmpty() {
+		return boxes == null && spheres == null && nodes == null && !rebuilt;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s in %.2f ms", rebuilt ? "BVH rebuilt" : "BVH refitted", time / 1E6);
+	}
+}
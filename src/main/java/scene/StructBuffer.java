@@ -0,0 +1,74 @@
+package scene;
+
+import java.nio.ByteBuffer;
+
+import static scene.Scene.allocate;
+
+/**
+ * Growable direct buffer of structs of a fixed number of 4-byte words,
+ * filled sequentially while a file is parsed.
+ *
+ * @author Marco Di Rienzo
+ */
+final class StructBuffer {
+	private final int bytes;
+	private ByteBuffer data;
+	private int count;
+
+	/**
+	 * @param words the size of a struct in words
+	 * @param initialCount the number of structs the buffer can initially hold
+	 */
+	StructBuffer(int words, int initialCount) {
+		bytes = words * 4;
+		data = allocate(bytes * Math.max(initialCount, 1));
+	}
+
+	/**
+	 * Makes room for a new struct.
+	 * @return the buffer positioned at the start of the new struct
+	 */
+	ByteBuffer add() {
+		if (data.remaining() < bytes) {
+			long capacity = Math.min(2L * data.capacity(), Integer.MAX_VALUE - bytes);
+			if (capacity < data.capacity() + bytes)
+				throw new OutOfMemoryError("Scene buffer larger than 2GB");
+			ByteBuffer grown = allocate((int) (capacity / bytes * bytes));
+			data.flip();
+			grown.put(data);
+			data = grown;
+		}
+		count++;
+		return data;
+	}
+
+	/**
+	 * Moves the buffer position past the struct started with {@link #add()}.
+	 * @param start the position returned by {@link #add()}
+	 */
+	void end(int start) {
+		data.position(start + bytes);
+	}
+
+	/**
+	 * @return the buffer, to read the structs added so far with absolute gets
+	 */
+	ByteBuffer data() {
+		return data;
+	}
+
+	/**
+	 * @return the number of structs added so far
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * @return the buffer holding all the structs, ready to be read
+	 */
+	ByteBuffer finish() {
+		data.flip();
+		return data;
+	}
+}
@@ -0,0 +1,132 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches files and directory trees for changes with a {@link WatchService}, polled by the caller
+ * without blocking, e.g. once per frame by the render loop.
+ * <p>
+ * Editors often save a file with several writes, or by replacing it, so the changes are only
+ * reported once no new event arrived for {@link #QUIET_MILLIS}, all the files changed meanwhile at once.
+ *
+ * @author Marco Di Rienzo
+ */
+public class FileWatcher implements Closeable {
+	public static final long QUIET_MILLIS = 50;
+
+	private final WatchService service;
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	private final Set<Path> files = new HashSet<>(); // watched alone, the other files of their directories are ignored
+	private final Set<Path> trees = new HashSet<>(); // watched with all their files and subdirectories
+	private final Set<Path> changed = new TreeSet<>();
+	private long lastEvent;
+
+	/**
+	 * @throws IOException if the file system cannot be watched
+	 */
+	public FileWatcher() throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Watches a single file, which may not exist yet.
+	 * @throws IOException if the directory of the file cannot be watched
+	 */
+	public void watchFile(Path file) throws IOException {
+		file = file.toAbsolutePath().normalize();
+		files.add(file);
+		register(file.getParent());
+	}
+
+	/**
+	 * Watches all the files of a directory and of its subdirectories, including the ones created later.
+	 * @throws IOException if the directories cannot be watched
+	 */
+	public void watchTree(Path directory) throws IOException {
+		directory = directory.toAbsolutePath().normalize();
+		trees.add(directory);
+		registerTree(directory);
+	}
+
+	private void register(Path directory) throws IOException {
+		WatchKey key = directory.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+		directories.put(key, directory);
+	}
+
+	private void registerTree(Path directory) throws IOException {
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				register(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private boolean isWatched(Path file) {
+		if (files.contains(file))
+			return true;
+		for (Path tree : trees)
+			if (file.startsWith(tree))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Collects the pending events without waiting.
+	 * @return the watched files changed, created or deleted since the last time some were returned,
+	 * empty while none changed or while the files are still being written
+	 */
+	public Set<Path> poll() {
+		long now = System.currentTimeMillis();
+		for (WatchKey key; (key = service.poll()) != null; ) {
+			Path directory = directories.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW || directory == null)
+					continue;
+				Path file = directory.resolve((Path) event.context());
+				if (!isWatched(file))
+					continue;
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+					try {
+						registerTree(file);
+					} catch (IOException e) {
+						System.err.println("Cannot watch " + file + ": " + e.getMessage());
+					}
+				}
+				changed.add(file);
+				lastEvent = now;
+			}
+			if (!key.reset())
+				directories.remove(key);
+		}
+
+		if (changed.isEmpty() || now - lastEvent < QUIET_MILLIS)
+			return new TreeSet<>();
+		Set<Path> result = new TreeSet<>(changed);
+		changed.clear();
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+}
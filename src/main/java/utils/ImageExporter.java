@@ -0,0 +1,139 @@
+package utils;
+
+import render.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes {@link Snapshot}s on background threads, so saving the image while rendering
+ * costs the tracer nothing but starting the readback.
+ * The writers read the pixels straight from the buffers of the backend and release them once
+ * the files are written. The queue is bounded: when it is full, the oldest snapshot waiting in it
+ * is released without being written, since the new one already holds all its samples, and the
+ * caller is never blocked.
+ *
+ * @author Marco Di Rienzo
+ */
+public class ImageExporter implements AutoCloseable {
+	private static final Job STOP = new Job(null, null);
+
+	private static class Job {
+		final Snapshot snapshot;
+		final String path;
+
+		Job(Snapshot snapshot, String path) {
+			this.snapshot = snapshot;
+			this.path = path;
+		}
+	}
+
+	private final Set<ImageWriter.Format> formats;
+	private final BlockingQueue<Job> queue;
+	private final Thread[] writers;
+	private final AtomicInteger written = new AtomicInteger(), dropped = new AtomicInteger();
+
+	/**
+	 * @param formats the files written for each snapshot
+	 * @param threads the number of writer threads
+	 * @param capacity the snapshots which can wait for a writer
+	 */
+	public ImageExporter(Set<ImageWriter.Format> formats, int threads, int capacity) {
+		this.formats = EnumSet.copyOf(formats);
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.writers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			writers[i] = new Thread(this::write, "image-writer-" + i);
+			writers[i].setDaemon(true);
+			writers[i].start();
+		}
+	}
+
+	/**
+	 * Queues the snapshot, replacing the oldest one waiting if the queue is full.
+	 * @param path the path of the files without extension
+	 */
+	public void submit(Snapshot snapshot, String path) {
+		Job job = new Job(snapshot, path);
+		while (!queue.offer(job)) {
+			Job oldest = queue.poll();
+			if (oldest != null) {
+				oldest.snapshot.release();
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Counts a snapshot the backend could not take, see {@link render.TraceBackend#snapshot}.
+	 */
+	public void drop() {
+		dropped.incrementAndGet();
+	}
+
+	private void write() {
+		try {
+			for (Job job; (job = queue.take()) != STOP; ) {
+				Snapshot snapshot = job.snapshot;
+				try {
+					for (ImageWriter.Format format : formats)
+						ImageWriter.write(format, snapshot.pixels, snapshot.width, snapshot.height, true,
+								new File(job.path + "." + format.extension));
+					written.incrementAndGet();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					snapshot.release();
+				}
+			}
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	/**
+	 * @return the number of snapshots written so far
+	 */
+	public int getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return the number of snapshots dropped, by a full queue or by the backend
+	 */
+	public int getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes the snapshots still queued and stops the writers, waiting for them even if the calling
+	 * thread is interrupted, since they read the buffers of the backend: the interrupt is restored once done.
+	 */
+	@Override
+	public void close() {
+		boolean interrupted = false;
+		for (int stops = 0; stops < writers.length; ) {
+			try {
+				queue.put(STOP);
+				stops++;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		for (Thread writer : writers) {
+			while (writer.isAlive()) {
+				try {
+					writer.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,209 @@
+package utils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utility functions to save the RGBA float framebuffer into image files.
+ * The framebuffer rows are ordered bottom to top, like an OpenGL texture.
+ * <p>
+ * The pixels are read straight from a float array or from a buffer, e.g. a mapped pixel buffer
+ * object; with <i>sums</i> set, each pixel is divided by the number of samples in its alpha
+ * channel while encoding, so the accumulated framebuffer never needs to be copied.
+ *
+ * @author Marco Di Rienzo
+ */
+public class ImageWriter {
+	/**
+	 * The supported file formats.
+	 */
+	public enum Format {
+		PNG("png"), PFM("pfm"), EXR("exr");
+
+		public final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+	}
+
+	/**
+	 * Saves the framebuffer in the given format.
+	 * @param pixels the RGBA framebuffer, read with absolute gets
+	 * @param sums whether the pixels hold the sums of the samples, with their number in the alpha channel
+	 * @param file the file to write
+	 * @throws IOException if an I/O error occurs writing the file
+	 */
+	public static void write(Format format, FloatBuffer pixels, int width, int height, boolean sums, File file)
+			throws IOException {
+		switch (format) {
+			case PNG:
+				writePng(pixels, width, height, sums, file);
+				break;
+			case PFM:
+				writePfm(pixels, width, height, sums, file);
+				break;
+			case EXR:
+				writeExr(pixels, width, height, sums, file);
+				break;
+		}
+	}
+
+	/**
+	 * Saves the framebuffer as an 8 bit PNG image.
+	 * Colors are clamped to [0, 1] like the full-screen quad does
+	 * when presenting the texture on the window.
+	 * @param pixels the RGBA framebuffer
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param file the file to write
+	 * @throws IOException if an I/O error occurs writing the file
+	 */
+	public static void writePng(float[] pixels, int width, int height, File file) throws IOException {
+		writePng(FloatBuffer.wrap(pixels), width, height, false, file);
+	}
+
+	/**
+	 * @see #writePng(float[], int, int, File)
+	 * @see #write(Format, FloatBuffer, int, int, boolean, File)
+	 */
+	public static void writePng(FloatBuffer pixels, int width, int height, boolean sums, File file)
+			throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			int i = y * width * 4;
+			for (int x = 0; x < width; x++, i += 4) {
+				float s = scale(pixels, i, sums);
+				row[x] = toByte(pixels.get(i) * s) << 16 | toByte(pixels.get(i + 1) * s) << 8
+						| toByte(pixels.get(i + 2) * s);
+			}
+			// images are stored top to bottom
+			image.setRGB(0, height - 1 - y, width, 1, row, 0, width);
+		}
+		if (!ImageIO.write(image, "png", file))
+			throw new IOException("No PNG writer available");
+	}
+
+	/**
+	 * Saves the linear framebuffer as a
+	 * <a href="http://www.pauldebevec.com/Research/HDR/PFM/">Portable Float Map</a>.
+	 * PFM scanlines are stored bottom to top, same as the framebuffer.
+	 * @param pixels the RGBA framebuffer
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param file the file to write
+	 * @throws IOException if an I/O error occurs writing the file
+	 */
+	public static void writePfm(float[] pixels, int width, int height, File file) throws IOException {
+		writePfm(FloatBuffer.wrap(pixels), width, height, false, file);
+	}
+
+	/**
+	 * @see #writePfm(float[], int, int, File)
+	 * @see #write(Format, FloatBuffer, int, int, boolean, File)
+	 */
+	public static void writePfm(FloatBuffer pixels, int width, int height, boolean sums, File file)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			// a positive scale means big-endian data, which is what DataOutputStream writes
+			out.write(("PF\n" + width + " " + height + "\n1.0\n").getBytes(StandardCharsets.US_ASCII));
+			for (int i = 0; i < width * height * 4; i += 4) {
+				float s = scale(pixels, i, sums);
+				out.writeFloat(pixels.get(i) * s);
+				out.writeFloat(pixels.get(i + 1) * s);
+				out.writeFloat(pixels.get(i + 2) * s);
+			}
+		}
+	}
+
+	/**
+	 * Saves the linear framebuffer as an uncompressed scanline
+	 * <a href="https://openexr.com/en/latest/OpenEXRFileLayout.html">OpenEXR</a> image
+	 * with 32 bit float B, G and R channels. EXR scanlines are stored top to bottom.
+	 * @see #write(Format, FloatBuffer, int, int, boolean, File)
+	 */
+	public static void writeExr(FloatBuffer pixels, int width, int height, boolean sums, File file)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(20000630).putInt(2); // magic number, version 2 with single part scanlines
+		ByteBuffer channels = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+		// sorted by name, each one is FLOAT, not linear, sampled at every pixel
+		for (String name : new String[]{"B", "G", "R"})
+			putString(channels, name).putInt(2).putInt(0).putInt(1).putInt(1);
+		channels.put((byte) 0).flip();
+		attribute(header, "channels", "chlist", channels.remaining()).put(channels);
+		attribute(header, "compression", "compression", 1).put((byte) 0);
+		attribute(header, "dataWindow", "box2i", 16).putInt(0).putInt(0).putInt(width - 1).putInt(height - 1);
+		attribute(header, "displayWindow", "box2i", 16).putInt(0).putInt(0).putInt(width - 1).putInt(height - 1);
+		attribute(header, "lineOrder", "lineOrder", 1).put((byte) 0); // increasing y
+		attribute(header, "pixelAspectRatio", "float", 4).putFloat(1);
+		attribute(header, "screenWindowCenter", "v2f", 8).putFloat(0).putFloat(0);
+		attribute(header, "screenWindowWidth", "float", 4).putFloat(1);
+		header.put((byte) 0).flip();
+
+		int lineSize = 8 + 3 * width * Float.BYTES; // y, size of the data, then the channels one after the other
+		ByteBuffer offsets = ByteBuffer.allocate(height * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		long first = header.remaining() + offsets.capacity();
+		for (int y = 0; y < height; y++)
+			offsets.putLong(first + (long) y * lineSize);
+		offsets.flip();
+
+		ByteBuffer line = ByteBuffer.allocate(lineSize).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(out, header);
+			writeFully(out, offsets);
+			for (int y = 0; y < height; y++) {
+				line.clear();
+				line.putInt(y).putInt(lineSize - 8);
+				int row = (height - 1 - y) * width * 4;
+				for (int c = 2; c >= 0; c--) {
+					for (int x = 0, i = row; x < width; x++, i += 4)
+						line.putFloat(pixels.get(i + c) * scale(pixels, i, sums));
+				}
+				line.flip();
+				writeFully(out, line);
+			}
+		}
+	}
+
+	private static ByteBuffer attribute(ByteBuffer header, String name, String type, int size) {
+		return putString(putString(header, name), type).putInt(size);
+	}
+
+	private static ByteBuffer putString(ByteBuffer buffer, String s) {
+		return buffer.put(s.getBytes(StandardCharsets.US_ASCII)).put((byte) 0);
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			out.write(buffer);
+	}
+
+	/**
+	 * @return the factor of the color of the pixel at index <i>i</i>, 1 / samples for sums
+	 */
+	private static float scale(FloatBuffer pixels, int i, boolean sums) {
+		if (!sums)
+			return 1;
+		float n = pixels.get(i + 3);
+		return n > 0 ? 1 / n : 0;
+	}
+
+	private static int toByte(float c) {
+		return Math.round(Math.min(Math.max(c, 0f), 1f) * 255f);
+	}
+}
@@ -0,0 +1,167 @@
+package utils;
+
+import org.lwjgl.BufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
+
+/**
+ * Disk cache of linked program binaries, to skip compiling and linking the
+ * shaders on every launch.
+ * Entries are keyed by a hash of the sources, the defines and the strings identifying
+ * the driver, since binaries are only valid for the driver that produced them.
+ * A binary rejected by the driver, e.g. after an update that kept the same version string,
+ * is deleted and the program is compiled from the sources again.
+ *
+ * @author Marco Di Rienzo
+ */
+public class ProgramCache {
+	private final Path directory;
+
+	/**
+	 * @param directory the directory of the cached binaries, created if missing
+	 */
+	public ProgramCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return the default directory of the cache, under the cache directory of the user
+	 */
+	public static Path defaultDirectory() {
+		return Paths.get(System.getProperty("user.home"), ".cache", "lwjgl-opengl-pathtracer", "programs");
+	}
+
+	/**
+	 * Loads the compute program from the cache, or creates it and stores its binary.
+	 * @param defines the defines inserted after the #version line of every source, part of the key of the entry
+	 * @param sources the sources of the compute shader
+	 * @return the program object id
+	 */
+	public int createComputeProgram(String defines, String... sources) {
+		long start = System.nanoTime();
+		Path file = directory.resolve(key(defines, sources) + ".bin");
+
+		if (Files.isRegularFile(file)) {
+			int program = load(file);
+			if (program != 0) {
+				System.out.printf("Program cache hit, loaded in %.2f ms%n", (System.nanoTime() - start) / 1E6);
+				return program;
+			}
+			System.out.println("Program cache entry rejected by the driver, recompiling");
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException ignored) {
+			}
+		}
+
+		String[] fullSources = new String[sources.length];
+		for (int i = 0; i < sources.length; i++)
+			fullSources[i] = ShaderPreprocessor.insertDefines(sources[i], defines);
+		int[] types = new int[sources.length];
+		Arrays.fill(types, GL_COMPUTE_SHADER);
+		int program = Utils.createProgram(types, fullSources, true);
+		System.out.printf("Program cache miss, compiled and linked in %.2f ms%n", (System.nanoTime() - start) / 1E6);
+		save(program, file);
+		return program;
+	}
+
+	/**
+	 * @return the hex SHA-256 of the driver strings, the defines and the sources
+	 */
+	private static String key(String defines, String[] sources) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			String[] driver = {glGetString(GL_VENDOR), glGetString(GL_RENDERER), glGetString(GL_VERSION), defines};
+			for (String s : driver) {
+				digest.update(String.valueOf(s).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			for (String s : sources) {
+				digest.update(s.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform supports SHA-256
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * File layout: binary format (int), binary.
+	 * @return the program, or 0 if the file cannot be read or the driver rejects the binary
+	 */
+	private static int load(Path file) {
+		ByteBuffer data;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			data = BufferUtils.createByteBuffer((int) channel.size());
+			while (data.hasRemaining()) {
+				if (channel.read(data) < 0)
+					return 0;
+			}
+			data.flip();
+		} catch (IOException e) {
+			return 0;
+		}
+		if (data.remaining() < 4)
+			return 0;
+
+		int format = data.order(ByteOrder.LITTLE_ENDIAN).getInt();
+		// clear previous errors, to tell if the binary is rejected
+		while (glGetError() != GL_NO_ERROR) {
+		}
+		int program = glCreateProgram();
+		glProgramBinary(program, format, data.slice());
+		if (glGetError() != GL_NO_ERROR || glGetProgrami(program, GL_LINK_STATUS) == 0) {
+			glDeleteProgram(program);
+			return 0;
+		}
+		return program;
+	}
+
+	private void save(int program, Path file) {
+		if (glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) == 0) {
+			System.out.println("The driver does not support program binaries, nothing cached");
+			return;
+		}
+		int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0)
+			return;
+		ByteBuffer data = BufferUtils.createByteBuffer(4 + length).order(ByteOrder.LITTLE_ENDIAN);
+		IntBuffer format = BufferUtils.createIntBuffer(1);
+		data.position(4);
+		glGetProgramBinary(program, null, format, data);
+		data.putInt(0, format.get(0));
+		data.position(0);
+
+		try {
+			// write to a temporary file first, so concurrent launches never read half an entry
+			Files.createDirectories(directory);
+			Path temp = Files.createTempFile(directory, "program", ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (data.hasRemaining())
+					channel.write(data);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Cannot write the program cache: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Minimal preprocessor turning a shader with <i>#include "file"</i> directives
+ * into a single source, since GLSL has no include mechanism.
+ * Paths are resolved in the classpath relative to the including file, every file
+ * is included at most once and the <i>#version</i> directives of the included files
+ * are dropped, so each file can declare what it needs and still compile on its own.
+ * <i>#line</i> directives keep the line numbers of the compiler errors meaningful:
+ * the source string number is the index of the file in the order it was first read.
+ * <p>
+ * The expanded sources are cached, so specialized variants of the same shader
+ * only differ by the defines inserted with {@link #insertDefines(String, String)}.
+ * <p>
+ * The files can also be read from a directory, e.g. <i>src/main/resources</i> while editing the
+ * shaders: {@link #reload(Collection)} then expands again the shaders including the edited files.
+ *
+ * @author Marco Di Rienzo
+ */
+public class ShaderPreprocessor {
+	private final Map<String, String> cache = new HashMap<>();
+	private final Map<String, List<String>> includes = new HashMap<>(); // the files read to expand each shader
+	private Path directory; // read before the classpath, null to only read the classpath
+
+	/**
+	 * Reads the files from a directory when they are there, instead of from the classpath.
+	 * @param directory the directory the paths are relative to, null to only read the classpath
+	 */
+	public synchronized void setDirectory(Path directory) {
+		this.directory = directory;
+		cache.clear();
+		includes.clear();
+	}
+
+	/**
+	 * @return the directory set by {@link #setDirectory(Path)}, null if the files are read from the classpath
+	 */
+	public synchronized Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Reads a shader and recursively expands its includes.
+	 * @param path the path of the shader in the classpath
+	 * @return the expanded source
+	 * @throws IOException if a file cannot be read or an include is malformed
+	 */
+	public synchronized String load(String path) throws IOException {
+		String source = cache.get(path);
+		if (source == null) {
+			StringBuilder out = new StringBuilder();
+			List<String> files = new ArrayList<>();
+			// kept if the expansion fails, so that the shader is reloaded once the file is fixed
+			includes.put(path, files);
+			expand(path, files, out);
+			source = out.toString();
+			cache.put(path, source);
+		}
+		return source;
+	}
+
+	/**
+	 * Expands again the shaders read so far which include any of the given files, e.g. edited on disk.
+	 * A shader which cannot be expanded anymore is dropped from the cache, so that loading it throws.
+	 * @param changed the paths of the files, as given to {@link #load(String)} or to the includes
+	 * @return the paths of the shaders whose expanded source changed
+	 */
+	public synchronized Set<String> reload(Collection<String> changed) {
+		Set<String> reloaded = new TreeSet<>();
+		for (String path : new ArrayList<>(includes.keySet())) {
+			if (Collections.disjoint(includes.get(path), changed))
+				continue;
+			String source = cache.remove(path);
+			try {
+				if (!load(path).equals(source))
+					reloaded.add(path);
+			} catch (IOException e) {
+				reloaded.add(path);
+			}
+		}
+		return reloaded;
+	}
+
+	private String read(String path) throws IOException {
+		if (directory != null) {
+			Path file = directory.resolve(path);
+			if (Files.isRegularFile(file))
+				// the same lines Utils.readFile reads
+				return String.join("\n", Files.readAllLines(file, Charset.defaultCharset()));
+		}
+		return Utils.readFile(path);
+	}
+
+	private void expand(String path, List<String> files, StringBuilder out) throws IOException {
+		int fileNumber = files.size();
+		files.add(path);
+		String[] lines = read(path).split("\n", -1);
+		String directory = path.lastIndexOf('/') >= 0 ? path.substring(0, path.lastIndexOf('/') + 1) : "";
+
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i];
+			String directive = line.trim();
+			if (directive.startsWith("#version")) {
+				if (fileNumber == 0)
+					out.append(line).append('\n');
+				else
+					// keep the numbering of the following lines
+					out.append('\n');
+			} else if (directive.startsWith("#include")) {
+				String argument = directive.substring("#include".length()).trim();
+				if (argument.length() < 2 || argument.charAt(0) != '"' || argument.indexOf('"', 1) < 0)
+					throw new IOException(path + ":" + (i + 1) + ": expected #include \"file\"");
+				String included = normalize(directory + argument.substring(1, argument.indexOf('"', 1)));
+				if (!files.contains(included)) {
+					out.append("#line 1 ").append(files.size()).append('\n');
+					expand(included, files, out);
+					out.append("#line ").append(i + 2).append(' ').append(fileNumber).append('\n');
+				} else {
+					out.append('\n');
+				}
+			} else {
+				out.append(line).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Resolves the <i>.</i> and <i>..</i> segments of a classpath path.
+	 */
+	private static String normalize(String path) {
+		Deque<String> segments = new ArrayDeque<>();
+		for (String segment : path.split("/")) {
+			if (segment.equals("..") && !segments.isEmpty())
+				segments.removeLast();
+			else if (!segment.isEmpty() && !segment.equals("."))
+				segments.addLast(segment);
+		}
+		return String.join("/", segments);
+	}
+
+	/**
+	 * @param defines the names and values of the macros, in iteration order
+	 * @return a <i>#define</i> directive for each macro
+	 */
+	public static String defines(Map<String, ?> defines) {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, ?> define : defines.entrySet())
+			out.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
+		return out.toString();
+	}
+
+	/**
+	 * @param defines the directives returned by {@link #defines(Map)}
+	 * @return the source with the defines right after its #version directive, which must come first
+	 */
+	public static String insertDefines(String source, String defines) {
+		if (defines.isEmpty())
+			return source;
+		int version = source.indexOf("#version");
+		if (version < 0)
+			return defines + source;
+		int lineEnd = source.indexOf('\n', version);
+		if (lineEnd < 0)
+			return source + "\n" + defines;
+		// restore the numbering of the line after #version
+		return source.substring(0, lineEnd + 1) + defines + "#line 2 0\n" + source.substring(lineEnd + 1);
+	}
+}
@@ -7,6 +7,8 @@ import java.util.stream.Collectors;
 
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL20.glGetShaderInfoLog;
+import static org.lwjgl.opengl.GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
+import static org.lwjgl.opengl.GL41.glProgramParameteri;
 import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
 
 // Based on cuon-utils.js (c) 2012 kanda and matsuda
@@ -68,7 +70,11 @@ public class Utils {
 		return shader;
 	}
 
-	private static int createProgram(int[] types, String[] sources) {
+	/**
+	 * Compiles and links a program.
+	 * @param retrievable whether the binary of the program is going to be read with glGetProgramBinary
+	 */
+	static int createProgram(int[] types, String[] sources, boolean retrievable) {
 		if (types.length != sources.length) {
 			throw new IllegalArgumentException("The length of the arguments must match");
 		}
@@ -81,6 +87,8 @@ public class Utils {
 			glAttachShader(program, shaders[i]);
 		}
 
+		if (retrievable)
+			glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
 		glLinkProgram(program);
 		int linked = glGetProgrami(program, GL_LINK_STATUS);
 		if (linked == 0) {
@@ -102,7 +110,7 @@ public class Utils {
 	public static int createProgram(String vShader, String fShader) {
 		return createProgram(
 				new int[]{GL_VERTEX_SHADER, GL_FRAGMENT_SHADER},
-				new String[]{vShader, fShader});
+				new String[]{vShader, fShader}, false);
 	}
 
 	/**
@@ -113,6 +121,6 @@ public class Utils {
 	public static int createComputeProgram(String... cShader) {
 		int[] types = new int[cShader.length];
 		Arrays.fill(types, GL_COMPUTE_SHADER);
-		return createProgram(types, cShader);
+		return createProgram(types, cShader, false);
 	}
 }
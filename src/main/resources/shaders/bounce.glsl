@@ -1,17 +1,14 @@
 #version 330 core
 
+#include "random.glsl"
+
 #define N_OUT  1.0 // vacuum refractive index
 #define N_IN   1.5 // glass refractive index
 
 /**
- * Samples a cosine weighted random point on the hemisphere around the
- * given normal and outputs a vector passing through the point.
- * source: https://stackoverflow.com/q/24758507
+ * Transforms a direction from the frame whose z axis is the given normal to world space.
  */
-vec3 cos_weighted_sample_on_hemisphere(vec2 rand);
-
-vec3 diffuse_reflect(vec3 normal, vec3 rand) {
-    vec3 s = cos_weighted_sample_on_hemisphere(rand.xy);
+vec3 local_to_world(vec3 s, vec3 normal) {
     vec3 h = normal;
     if (abs(h.x) <= abs(h.y) && abs(h.x) <= abs(h.z))
     h.x= 1.0;
@@ -27,6 +24,22 @@ vec3 diffuse_reflect(vec3 normal, vec3 rand) {
     return normalize(direction);
 }
 
+vec3 diffuse_reflect(vec3 normal, vec3 rand) {
+    return local_to_world(cos_weighted_sample_on_hemisphere(rand.xy), normal);
+}
+
+/**
+ * Samples a uniformly distributed direction in the cone around the given axis,
+ * whose pdf is 1 / (2 * PI * (1 - cos_max)) over the solid angle.
+ * @param cos_max the cosine of the half-angle of the cone
+ */
+vec3 sample_cone(vec3 axis, float cos_max, vec2 rand) {
+    float cos_theta = 1.0 - rand.x * (1.0 - cos_max);
+    float sin_theta = sqrt(max(0.0, 1.0 - cos_theta * cos_theta));
+    float phi = TWO_PI * rand.y;
+    return local_to_world(vec3(sin_theta * cos(phi), sin_theta * sin(phi), cos_theta), axis);
+}
+
 /**
  * Reflection of an ideally reflecting material (mirror)
  */
@@ -0,0 +1,37 @@
+#version 430 core
+
+/*
+ * Eye coordinates with respect to world frame
+ * and the four corner rays of our camera's viewing frustum
+ * as suggested in:
+ * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29#camera
+ */
+uniform vec3 u_Eye, u_Ray00, u_Ray01, u_Ray10, u_Ray11;
+
+/**
+ * @return the normalized direction of the ray from the eye through the pixel
+ */
+vec3 primaryDirection(ivec2 pixel, ivec2 size) {
+    /*
+     * As explaned in
+     * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29#camera
+     * to compute the direction of our ray, firstly we linearly interpolate
+     * the corner rays vertically with weight the vertical position of the current pixel,
+     * then we linearly interpolate the results horizontally with weight the horizontal
+     * position of the current pixel.
+     */
+
+    // normalize the pixel position in [0, 1]
+    vec2 weight = vec2(pixel) / vec2(size.x-1, size.y-1);
+
+    /*
+     * mix(x,y,a) = x * (1-a) + y * a
+     * Suppose the current pixel is the bottom-right corner of the window
+     * => weight = (1,0)
+     * => mix(ray00, ray01, weight.y) = mix(ray00, ray01, 0) = ray00
+     * => mix(ray10, ray11, weight.y) = mix(ray10, ray11, 0) = ray10
+     * => direction = mix(ray00, ray10, weight.x) = mix(ray00, ray10, 1) = ray10
+     * which is in fact the ray passing through the bottom-right corner.
+     */
+    return normalize(mix(mix(u_Ray00, u_Ray01, weight.y), mix(u_Ray10, u_Ray11, weight.y), weight.x));
+}
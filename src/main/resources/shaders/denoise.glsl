@@ -0,0 +1,139 @@
+#version 430 core
+
+/*
+ * Edge-avoiding à-trous wavelet filter, run on the accumulated image only when it is presented.
+ * source: Dammertz et al., Edge-Avoiding À-Trous Wavelet Transform for fast Global Illumination Filtering, 2010
+ * with the edge-stopping functions and the variance of SVGF:
+ * Schied et al., Spatiotemporal Variance-Guided Filtering, 2017
+ *
+ * Every iteration blurs the image with a 5x5 B3 spline kernel whose taps are u_Step pixels apart,
+ * the step doubles at each iteration so a few of them cover a wide footprint.
+ * The taps are weighted by how much the normal, the depth and the luminance differ from the ones
+ * of the pixel: the luminance may differ by a few standard errors of the mean, so noise is blurred
+ * while the edges of the lighting are kept. The color is divided by the albedo first and multiplied
+ * back at the end, so the filter never blurs the edges between the materials.
+ * The variance of the luminance is filtered along with the color, which is less noisy after every iteration,
+ * and blurred once more where it scales the luminance weight.
+ * CpuDenoiser.java is the Java port.
+ */
+layout (local_size_x = 16, local_size_y = 8) in;
+
+#define NORMAL_PHI 128.0   // exponent of the cosine between the normals
+#define DEPTH_PHI 0.02     // relative depth difference allowed per pixel of distance
+#define LUMINANCE_PHI 4.0  // standard errors of the luminance allowed
+#define MIN_ALBEDO 1E-3    // smaller components of the albedo are not divided out
+
+// rgb: the color divided by the albedo, a: the variance of its luminance
+layout(binding = 0, rgba32f) readonly uniform image2D u_Input;
+layout(binding = 1, rgba32f) writeonly uniform image2D u_Output;
+// the guides written by the tracer, sums over the samples with their number in alpha
+layout(binding = 2, rgba32f) readonly uniform image2D u_Albedo;
+layout(binding = 3, rgba32f) readonly uniform image2D u_Normal;
+layout(binding = 4, r32f) readonly uniform image2D u_Depth;
+layout(binding = 5, r32f) readonly uniform image2D u_Variance; // M2 of the luminance, see tiles.glsl
+
+uniform int u_Step; // pixels between the taps, 0 to read the framebuffer bound as u_Input
+uniform bool u_Last; // multiply the result by the albedo, with 1 in alpha
+
+const float KERNEL[3] = float[](3.0 / 8.0, 1.0 / 4.0, 1.0 / 16.0);
+const float GAUSSIAN[2] = float[](1.0 / 2.0, 1.0 / 4.0);
+
+float luminance(vec3 color) {
+    return dot(color, vec3(0.2126, 0.7152, 0.0722));
+}
+
+/**
+ * @return the average albedo of the pixel, with the components too small to be divided out set to 1
+ */
+vec3 guide_albedo(ivec2 pixel) {
+    vec4 sum = imageLoad(u_Albedo, pixel);
+    vec3 albedo = sum.a > 0.0 ? sum.rgb / sum.a : vec3(1.0);
+    return mix(albedo, vec3(1.0), lessThan(albedo, vec3(MIN_ALBEDO)));
+}
+
+/**
+ * @return the average normal of the pixel, zero if no sample hit a surface guiding the denoiser
+ */
+vec3 guide_normal(ivec2 pixel) {
+    vec3 sum = imageLoad(u_Normal, pixel).xyz;
+    return dot(sum, sum) > 0.0 ? normalize(sum) : vec3(0.0);
+}
+
+/**
+ * Divides the average of the samples of the framebuffer by the albedo,
+ * the variance of the mean luminance is M2 / (n-1) / n.
+ */
+vec4 demodulate(ivec2 pixel) {
+    vec4 sum = imageLoad(u_Input, pixel);
+    if (sum.a == 0.0)
+        return vec4(0.0);
+    vec3 a = guide_albedo(pixel);
+    // a single sample tells nothing about the variance, the luminance does not stop the filter
+    float variance = sum.a > 1.0 ? imageLoad(u_Variance, pixel).r / ((sum.a - 1.0) * sum.a) : 1E10;
+    float l = luminance(a);
+    return vec4(sum.rgb / sum.a / a, variance / (l * l));
+}
+
+/**
+ * @return the variance around the pixel blurred by a 3x3 gaussian, so that a pixel whose few
+ * samples happen to agree does not reject all its neighbours
+ */
+float blurred_variance(ivec2 pixel, ivec2 size) {
+    float variance = 0.0, weights = 0.0;
+    for (int dy = -1; dy <= 1; dy++) {
+        for (int dx = -1; dx <= 1; dx++) {
+            ivec2 q = pixel + ivec2(dx, dy);
+            if (any(lessThan(q, ivec2(0))) || any(greaterThanEqual(q, size)))
+                continue;
+            float w = GAUSSIAN[abs(dx)] * GAUSSIAN[abs(dy)];
+            variance += w * imageLoad(u_Input, q).a;
+            weights += w;
+        }
+    }
+    return variance / weights;
+}
+
+void main(void) {
+    ivec2 pixel = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(u_Input);
+    if (pixel.x >= size.x || pixel.y >= size.y)
+        return;
+
+    if (u_Step == 0) {
+        imageStore(u_Output, pixel, demodulate(pixel));
+        return;
+    }
+
+    vec4 center = imageLoad(u_Input, pixel);
+    vec3 n = guide_normal(pixel);
+    float z = imageLoad(u_Depth, pixel).r;
+    float l = luminance(center.rgb);
+    float sigma = LUMINANCE_PHI * sqrt(blurred_variance(pixel, size)) + 1E-6;
+
+    vec3 sum = vec3(0.0);
+    float variance = 0.0, weights = 0.0;
+    for (int dy = -2; dy <= 2; dy++) {
+        for (int dx = -2; dx <= 2; dx++) {
+            ivec2 q = pixel + ivec2(dx, dy) * u_Step;
+            if (any(lessThan(q, ivec2(0))) || any(greaterThanEqual(q, size)))
+                continue;
+            vec4 c = imageLoad(u_Input, q);
+            float w = KERNEL[abs(dx)] * KERNEL[abs(dy)];
+            if (dx != 0 || dy != 0) {
+                float pixels = length(vec2(dx, dy)) * float(u_Step);
+                w *= pow(max(dot(n, guide_normal(q)), 0.0), NORMAL_PHI);
+                w *= exp(-abs(z - imageLoad(u_Depth, q).r) / (DEPTH_PHI * abs(z) * pixels + 1E-6));
+                w *= exp(-abs(l - luminance(c.rgb)) / sigma);
+            }
+            sum += w * c.rgb;
+            variance += w * w * c.a;
+            weights += w;
+        }
+    }
+    // the center always has a positive weight
+    vec4 result = vec4(sum / weights, variance / (weights * weights));
+
+    if (u_Last)
+        result = vec4(result.rgb * guide_albedo(pixel), 1.0);
+    imageStore(u_Output, pixel, result);
+}
@@ -0,0 +1,96 @@
+#version 430 core
+
+/*
+ * HDR image lighting the scene from infinitely far away, in the equirectangular projection, see scene.Environment:
+ * the rays escaping the scene take the radiance of the texel in their direction, and the diffuse hits sample
+ * the texels in proportion to their luminance, so a small and bright sun is found by the light samples
+ * instead of by the rare paths escaping towards it.
+ */
+
+#ifndef HAS_ENVIRONMENT
+#define HAS_ENVIRONMENT 0 // 1 if the scene has an environment, defined by the host
+#endif
+
+#include "random.glsl"
+
+layout(std430, binding = 15) readonly buffer EnvironmentBuffer {
+    ivec2 environmentSize;
+    float environmentRotation; // radians around the y axis
+    vec4 texels[]; // rgb: radiance, a: pdf of sampling the texel over the unit square of the image
+};
+
+/*
+ * Walker's alias method samples a discrete distribution in constant time: entry i of a table keeps i
+ * with its probability, otherwise it yields its alias. The first table picks the row of the image,
+ * then the table of the row, following the ones of all the rows before it, picks the column.
+ */
+struct Alias {
+    float probability;
+    uint alias;
+};
+
+layout(std430, binding = 16) readonly buffer AliasBuffer { Alias aliases[]; };
+
+/**
+ * @param direction a normalized direction
+ * @return the index of the texel in the direction
+ */
+int environment_texel(vec3 direction) {
+    float u = fract(0.5 + (atan(direction.x, direction.z) - environmentRotation) / TWO_PI);
+    float v = acos(clamp(direction.y, -1.0, 1.0)) / PI;
+    ivec2 texel = min(ivec2(vec2(u, v) * vec2(environmentSize)), environmentSize - 1);
+    return texel.y * environmentSize.x + texel.x;
+}
+
+/**
+ * @return the radiance coming from the environment along the opposite of the normalized direction
+ */
+vec3 environment(vec3 direction) {
+    return texels[environment_texel(direction)].rgb;
+}
+
+/**
+ * @return the pdf over the solid angle of sampling the normalized direction with sample_environment(...)
+ */
+float environment_pdf(vec3 direction) {
+    // the texels shrink with the sine of the polar angle towards the poles
+    float sin_theta = sqrt(max(0.0, 1.0 - direction.y * direction.y));
+    return sin_theta > 0.0 ? texels[environment_texel(direction)].a / (2.0 * PI * PI * sin_theta) : 0.0;
+}
+
+/**
+ * Picks an entry of an alias table.
+ * @param u a uniform random number in [0, 1), replaced by the part of it left after choosing the entry
+ *          and the coin, another uniform random number in [0, 1)
+ */
+uint sample_alias(uint first, uint n, inout float u) {
+    float scaled = u * float(n);
+    uint i = min(uint(scaled), n - 1u);
+    u = min(scaled - float(i), 0.99999994);
+    Alias a = aliases[first + i];
+    if (u < a.probability) {
+        u /= a.probability;
+        return i;
+    }
+    u = min((u - a.probability) / (1.0 - a.probability), 0.99999994);
+    return a.alias;
+}
+
+/**
+ * Samples a direction in proportion to the luminance of the texels.
+ * @param rand uniform random numbers in [0, 1), y chooses the row and x the column
+ * @param pdf the pdf over the solid angle of the direction, see environment_pdf(...)
+ * @return the normalized direction
+ */
+vec3 sample_environment(vec2 rand, out float pdf) {
+    uint width = uint(environmentSize.x), height = uint(environmentSize.y);
+    uint row = sample_alias(0u, height, rand.y);
+    uint column = sample_alias(height + row * width, width, rand.x);
+    // the rest of the random numbers place the direction in the texel
+    vec2 uv = (vec2(column, row) + rand) / vec2(environmentSize);
+    float phi = (uv.x - 0.5) * TWO_PI + environmentRotation;
+    float theta = uv.y * PI;
+    float sin_theta = sin(theta);
+    pdf = sin_theta > 0.0 ? texels[row * width + column].a / (2.0 * PI * PI * sin_theta) : 0.0;
+    return vec3(sin_theta * sin(phi), cos(theta), sin_theta * cos(phi));
+}
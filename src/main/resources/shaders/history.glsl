@@ -0,0 +1,20 @@
+#version 430 core
+
+/*
+ * The history of temporal reprojection, see reproject.glsl: after the camera moved, the average reprojected
+ * from the previous image stands in for the first samples of a pixel, and fades out as they are traced.
+ * It counts as the samples it was reprojected as, at most HISTORY_SAMPLES, minus the samples traced since,
+ * so it is gone once the pixel traced as many of its own. The framebuffer holds the sum of the traced samples
+ * plus the faded average, which is all its readers see, while the number of samples and the variance only
+ * cover the traced ones: adaptive sampling never trusts the history, and the converged image is not biased by it.
+ */
+#define HISTORY_SAMPLES 8.0
+
+/**
+ * @param reprojected rgb: the reprojected average, a: the samples it was reprojected as
+ * @param n the samples traced since
+ * @return the samples the reprojected average still counts as
+ */
+float history_weight(vec4 reprojected, uint n) {
+    return max(reprojected.a - float(n), 0.0);
+}
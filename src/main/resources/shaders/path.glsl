@@ -0,0 +1,280 @@
+#version 430 core
+
+/*
+ * A bounce of a path, shared by the megakernel and the wavefront shaders.
+ */
+
+#ifndef MAX_BOUNCES
+#define MAX_BOUNCES -1 // negative for no limit, paths are only ended by russian roulette
+#endif
+#ifndef ROULETTE_BOUNCE
+#define ROULETTE_BOUNCE 4 // first bounce at which russian roulette may end a path
+#endif
+#ifndef LIGHT_SAMPLING
+#define LIGHT_SAMPLING 1 // 0 to find the lights only by bouncing off the surfaces
+#endif
+#ifndef DENOISER_GUIDES
+#define DENOISER_GUIDES 0 // 1 to accumulate the albedo and the normal read by denoise.glsl
+#endif
+
+#include "random.glsl"
+#include "sampler.glsl"
+#include "bounce.glsl"
+#include "scene.glsl"
+#include "environment.glsl"
+
+// dimension blocks of the random numbers of a bounce, see sample4(...)
+#define SCATTER_BLOCK(bounce) (2u * (bounce))
+#define LIGHT_BLOCK(bounce)   (2u * (bounce) + 1u)
+
+/**
+ * Finds the normal and the material of the surface at a hit.
+ * @param origin the origin of the ray
+ * @param direction the direction of the ray
+ * @param hit the closest hit of the ray
+ * @param normal the outward normal at the hit point
+ * @param m the index of the material of the surface
+ */
+void surface(vec3 origin, vec3 direction, HitInfo hit, out vec3 normal, out uint m) {
+    normal = vec3(0.0);
+    m = 0u;
+#if HAS_SPHERES
+    if (hit.type == PRIMITIVE_SPHERE) {
+        Sphere s = spheres[hit.id];
+        normal = normalize(origin + hit.t_near * direction - s.center);
+        m = s.material;
+    }
+#endif
+#if HAS_TRIANGLES
+    if (hit.type == PRIMITIVE_TRIANGLE) {
+        // flat shading, the normal of the plane of the triangle
+        Triangle tri = triangles[hit.id];
+        vec3 a = vertex(tri.v0);
+        normal = cross(vertex(tri.v1) - a, vertex(tri.v2) - a);
+        m = tri.material;
+#if HAS_INSTANCES
+        if (hit.instance >= 0) {
+            // normals move to the world with the transpose of the inverse of the transform,
+            // the matrix whose columns are the rows of the world to object transform
+            Instance instance = instances[hit.instance];
+            normal = mat3(instance.worldToObject[0].xyz, instance.worldToObject[1].xyz,
+                          instance.worldToObject[2].xyz) * normal;
+            m = instance.material;
+        }
+#endif
+        normal = normalize(normal);
+    }
+#endif
+#if HAS_BOXES
+    if (hit.type == PRIMITIVE_BOX) {
+        Box b = boxes[hit.id];
+        normal = vec3(equal(hit.t_vec, vec3(hit.t_near))) * sign(-direction);
+        m = b.material;
+    }
+#endif
+}
+
+/**
+ * The denoiser is guided by the albedo and the normal of the first surface along the path
+ * that is neither a mirror nor glass: these show the surfaces they reflect or refract,
+ * whose edges the filter must preserve.
+ * @return true if the material guides the denoiser
+ */
+bool guides_denoiser(uint m) {
+    uint material = materials[m].type;
+    return material != Material.specular && material != Material.refractive;
+}
+
+/*
+ * Next event estimation: at every diffuse hit a direction towards a random spherical light
+ * is sampled and a shadow ray checks whether the light is visible, so the paths find the light
+ * without having to hit it by chance. Since the diffuse bounce may also hit the light, the two
+ * samples are combined with multiple importance sampling, using the power heuristic:
+ * http://www.pbr-book.org/3ed-2018/Monte_Carlo_Integration/Importance_Sampling#MultipleImportanceSampling
+ * The directions towards a sphere are sampled uniformly in the cone it subtends.
+ * The environment, if any, is one more light to choose from, see environment.glsl.
+ */
+
+#define SAMPLED_LIGHTS (u_NumLights + HAS_ENVIRONMENT) // chosen from by the light samples
+
+uint shadow_rays = 0u; // traced by this thread, for the metrics
+
+float power_heuristic(float pdf, float other_pdf) {
+    float a = pdf * pdf;
+    return a / (a + other_pdf * other_pdf);
+}
+
+/**
+ * @return the pdf over the solid angle of sampling a direction from the origin towards the light,
+ * 0 if the origin is inside it
+ */
+float light_pdf(vec3 origin, Sphere s) {
+    vec3 axis = s.center - origin;
+    float sin2_max = s.radius * s.radius / dot(axis, axis);
+    if (sin2_max >= 1.0)
+        return 0.0;
+    // 1 - cos_max without the cancellation of the small cones
+    float solid_angle = TWO_PI * sin2_max / (1.0 + sqrt(1.0 - sin2_max));
+    return 1.0 / (float(SAMPLED_LIGHTS) * solid_angle);
+}
+
+/**
+ * @param origin the origin of the ray
+ * @param hit the closest hit of the ray
+ * @param pdf the pdf of the direction of the ray, 0 if it was not sampled by a diffuse bounce
+ * @return the MIS weight of the light emitted at the hit, which the previous bounce may also have sampled
+ */
+float emission_weight(vec3 origin, HitInfo hit, float pdf) {
+#if LIGHT_SAMPLING && HAS_SPHERES
+    // non-emissive spheres get a weight too, but they emit nothing
+    if (pdf > 0.0 && hit.type == PRIMITIVE_SPHERE && u_NumLights > 0)
+        return power_heuristic(pdf, light_pdf(origin, spheres[hit.id]));
+#endif
+    return 1.0;
+}
+
+/**
+ * @param direction the direction of a ray that escaped the scene
+ * @param pdf the pdf of the direction, 0 if it was not sampled by a diffuse bounce
+ * @return the light of the environment reaching the origin of the ray, weighted with MIS
+ */
+vec3 escaped(vec3 direction, float pdf) {
+#if HAS_ENVIRONMENT
+    float weight = 1.0;
+#if LIGHT_SAMPLING
+    if (pdf > 0.0)
+        weight = power_heuristic(pdf, environment_pdf(direction) / float(SAMPLED_LIGHTS));
+#endif
+    return environment(direction) * weight;
+#else
+    return vec3(0.0);
+#endif
+}
+
+/**
+ * Samples a direction towards the environment in proportion to its luminance, see sample_lights(...).
+ */
+vec3 sample_environment_light(vec3 origin, vec3 normal, vec2 rand) {
+    float pdf;
+    vec3 direction = sample_environment(rand, pdf);
+    pdf /= float(SAMPLED_LIGHTS);
+    float cos_theta = dot(direction, normal);
+    if (pdf == 0.0 || cos_theta <= 0.0)
+        return vec3(0.0);
+
+    // the environment is visible if nothing is hit
+    HitInfo hit;
+    shadow_rays++;
+    if (intersect(origin, direction, hit))
+        return vec3(0.0);
+
+    float bsdf_pdf = cos_theta / PI;
+    return environment(direction) * (bsdf_pdf / pdf * power_heuristic(pdf, bsdf_pdf));
+}
+
+/**
+ * Samples a direction towards a random light and traces a shadow ray.
+ * @param origin the point lit, just off the surface
+ * @param normal the normal of the diffuse surface, on the side of the origin
+ * @param rand uniform random numbers in [0, 1), z chooses the light
+ * @return the light reaching the point from the sampled direction, reflected by a white diffuse
+ * surface and weighted with MIS, to be multiplied by the albedo of the path
+ */
+vec3 sample_lights(vec3 origin, vec3 normal, vec3 rand) {
+    int light = min(int(rand.z * float(SAMPLED_LIGHTS)), SAMPLED_LIGHTS - 1);
+#if HAS_ENVIRONMENT
+    if (light == u_NumLights)
+        return sample_environment_light(origin, normal, rand.xy);
+#endif
+    uint id = lights[light];
+    Sphere s = spheres[id];
+    vec3 axis = s.center - origin;
+    float distance2 = dot(axis, axis);
+    float sin2_max = s.radius * s.radius / distance2;
+    if (sin2_max >= 1.0)
+        return vec3(0.0);
+    vec3 direction = sample_cone(axis * inversesqrt(distance2), sqrt(1.0 - sin2_max), rand.xy);
+    float cos_theta = dot(direction, normal);
+    if (cos_theta <= 0.0)
+        return vec3(0.0);
+
+    // the light is visible if it is the closest hit
+    HitInfo hit;
+    shadow_rays++;
+    if (!intersect(origin, direction, hit) || hit.type != PRIMITIVE_SPHERE || hit.id != int(id))
+        return vec3(0.0);
+
+    // the diffuse BRDF is color / PI, the color is already in the albedo
+    float pdf = light_pdf(origin, s);
+    float bsdf_pdf = cos_theta / PI;
+    return vec3(materials[s.material].emission * bsdf_pdf / pdf * power_heuristic(pdf, bsdf_pdf));
+}
+
+/**
+ * Adds the light emitted by the surface hit by the ray to the path,
+ * then decides whether the path continues and samples the direction of the next ray.
+ * @param origin the origin of the ray, replaced by the origin of the next one
+ * @param direction the direction of the ray, replaced by the direction of the next one
+ * @param albedo amount of incoming light that gets reflected off the surfaces along the path
+ * @param radiance the light gathered by the path
+ * @param pdf the pdf of the direction of the ray, replaced by the one of the next ray,
+ *            0 if the direction was not sampled by a diffuse bounce
+ * @param hit_point the closest hit of the ray
+ * @param normal the outward normal at the hit point
+ * @param m the index of the material of the surface
+ * @param bounce the number of bounces before this ray
+ * @param weight the MIS weight of the light emitted at the hit, see emission_weight(...)
+ * @param rand uniform random numbers in [0, 1), w decides the russian roulette and xyz sample the bounce
+ * @param light_rand uniform random numbers in [0, 1) to sample the lights
+ * @return false if the path ends here
+ */
+bool scatter(inout vec3 origin, inout vec3 direction, inout vec3 albedo, inout vec3 radiance, inout float pdf,
+             vec3 hit_point, vec3 normal, uint m, uint bounce, float weight, vec4 rand, vec3 light_rand) {
+    vec3 color = materials[m].color;
+    float emission = materials[m].emission;
+    uint material = materials[m].type;
+    radiance += albedo * emission * weight;
+    albedo *= color;
+#if MAX_BOUNCES >= 0
+    if (bounce == uint(MAX_BOUNCES))
+        return false;
+#endif
+
+    // russian roulette
+    if (bounce >= uint(ROULETTE_BOUNCE)) {
+        float prob = max(max(color.r, color.g), color.b);
+        if (rand.w > prob) {
+            return false;
+        }
+    }
+
+    // flip the normal in case the ray originated inside the object
+    bool out_to_in = dot(direction, normal) < 0;
+    normal = out_to_in ? normal : -normal;
+
+    /*
+     * Set the hit point as the origin of the bounce ray.
+     * Because of float precision the hit point may be a tad inside the sphere,
+     * so move the origin a bit along the normal to be sure we are outside the object.
+     */
+    origin = hit_point + normal * 1E-3;
+
+    if (material == Material.specular) {
+        direction = ideal_specular_reflect(direction, normal);
+        pdf = 0.0;
+    } else if (material == Material.refractive) {
+        vec4 r = ideal_specular_transmit(direction, normal, out_to_in, rand.xyz);
+        origin = hit_point - normal * 1E-5;
+        direction = r.xyz;
+        albedo *= r.w;
+        pdf = 0.0;
+    } else {
+#if LIGHT_SAMPLING && (HAS_SPHERES || HAS_ENVIRONMENT)
+        if (SAMPLED_LIGHTS > 0)
+            radiance += albedo * sample_lights(origin, normal, light_rand);
+#endif
+        direction = diffuse_reflect(normal, rand.xyz);
+        pdf = dot(direction, normal) / PI;
+    }
+    return true;
+}
@@ -16,6 +16,27 @@ layout(location = 0) out vec4 color;
  */
 layout(binding = 0) uniform sampler2D u_Sampler;
 
+/**
+ * @return the average of the samples of a texel, clamped to the edges of the texture
+ */
+vec3 average(ivec2 texel, ivec2 size) {
+    // the framebuffer holds the sum of the samples, their number in the alpha channel
+    vec4 sum = texelFetch(u_Sampler, clamp(texel, ivec2(0), size - 1), 0);
+    return sum.a > 0.0 ? sum.rgb / sum.a : vec3(0.0);
+}
+
+/*
+ * The image may be traced at a lower resolution than the window, see --render-scale:
+ * the averages of the four nearest texels are interpolated, rather than their sums,
+ * so that pixels with more samples do not weigh more. At full scale the fragment
+ * falls on the center of a texel, whose average is returned as is.
+ */
 void main() {
-    color = texture(u_Sampler, v_TexCoord);
+    ivec2 size = textureSize(u_Sampler, 0);
+    vec2 position = v_TexCoord * vec2(size) - 0.5;
+    ivec2 texel = ivec2(floor(position));
+    vec2 f = position - vec2(texel);
+    vec3 bottom = mix(average(texel, size), average(texel + ivec2(1, 0), size), f.x);
+    vec3 top = mix(average(texel + ivec2(0, 1), size), average(texel + ivec2(1, 1), size), f.x);
+    color = vec4(mix(bottom, top, f.y), 1.0);
 }
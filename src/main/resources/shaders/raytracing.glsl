@@ -1,174 +1,55 @@
 #version 430 core
 
+/*
+ * Compile-time specialization, the host may define these macros
+ * to build a variant of the shader, see ShaderPreprocessor and GpuBackend.
+ */
+#ifndef WORK_GROUP_SIZE_X
+#define WORK_GROUP_SIZE_X 16
+#endif
+#ifndef WORK_GROUP_SIZE_Y
+#define WORK_GROUP_SIZE_Y 8
+#endif
+// MAX_BOUNCES and ROULETTE_BOUNCE are in path.glsl, HAS_BOXES and the like in scene.glsl
+
 /*
  * Specify the number of threads per work group
  * https://www.khronos.org/opengl/wiki/Compute_Shader#Local_size
  */
-layout (local_size_x = 16, local_size_y = 8) in;
+layout (local_size_x = WORK_GROUP_SIZE_X, local_size_y = WORK_GROUP_SIZE_Y) in;
 
 /*
  * Bind the buffer to image unit 0 and set its format
  * same as doing glUniform1i(u_Framebuffer_location, 0) on the host
  * https://www.khronos.org/opengl/wiki/Layout_Qualifier_(GLSL)#Binding_points
  */
-layout(binding = 0, rgba32f) uniform image2D u_Framebuffer;
-
-/*
- * Eye coordinates with respect to world frame
- * and the four corner rays of our camera's viewing frustum
- * as suggested in:
- * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29#camera
- */
-uniform vec3 u_Eye, u_Ray00, u_Ray01, u_Ray10, u_Ray11;
-uniform float u_Time; // useful for random number generation
-uniform float u_BlendingFactor; // weigth of the old average with respect to the new frame
-
-#define NEAR 1E-3
-#define FAR 1E+10
-
-// decleare functions in other files
-vec3 random(vec3 f);
-vec3 diffuse_reflect(vec3 normal, vec3 rand);
-vec3 ideal_specular_reflect(vec3 direction, vec3 normal);
-vec4 ideal_specular_transmit(vec3 d, vec3 n, bool out_to_in, vec3 rand);
-
-ivec2 pixel;
-
-struct HitInfo {
-    float t_near;
-    vec3 t_vec;
-    int id;
-    bool isSphere;
-};
-
-/*
- * Scene, intersect algorithms taken from
- * http://kevinbeason.com/smallpt/
- * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29
- */
-const struct {
-    uint diffuse, specular, refractive;
-} Material = {0, 1, 2};
-
-struct Box {
-    vec3 min, max;
-    vec3 color;
-    float emission;
-};
-struct Sphere {
-    float radius;
-    vec3 center;
-    vec3 color;
-    float emission;
-    uint material;
-};
-
-#define NUM_BOXES 6
-#define NUM_SPHERES 3
-
-float W = 6, H = 5, D = 15;  // room width, height, depth
-const Box boxes[NUM_BOXES] = {
-{ vec3(  W,   0,  0), vec3(W+.1,    H,    D), vec3(.75, .25, .25), 0 },  // left wall
-{ vec3(-.1,   0,  0), vec3(   0,    H,    D), vec3(.25, .25, .75), 0 },  // right wall
-{ vec3(  0,   0,  0), vec3(   W,    H,   .1), vec3(0.0, 0.0, 0.0), 0 },  // back wall
-{ vec3(  0,   0,  D), vec3(   W,    H, D+.1), vec3(.75, .75, .75), 0 },  // front wall
-{ vec3(  0, -.1,  0), vec3(   W,    0,    D), vec3(.75, .75, .75), 0 },  // floor
-{ vec3(  0,   H,  0), vec3(   W, H+.1,    D), vec3(.75, .75, .75), 0 }   // ceiling
-};
-
-const Sphere spheres[NUM_SPHERES] = {
-// color must be max .99 to be sure we eventually exit russian roulette
-{     1, vec3(4.3,  1.0,  12.5), vec3(.99),    0, Material.specular   },  // left sphere
-{     1, vec3(1.7,  1.0,  11.2), vec3(.99),    0, Material.refractive },  // right sphere
-{ 18.03, vec3(W/2, 18+H, D*3/4), vec3(0.0), 30.0, Material.diffuse    }   // light
-};
-
-bool intersectBox(vec3 origin, vec3 direction, const Box b, const vec2 ray_t, out vec3 t_vec, out float t) {
-    vec3 tMin = (b.min - origin) / direction;
-    vec3 tMax = (b.max - origin) / direction;
-    vec3 t1 = min(tMin, tMax);
+layout(binding = 0, rgba32f) uniform image2D u_Framebuffer; // sum of the samples, number of samples in alpha
+layout(binding = 1, r32f) uniform image2D u_Variance; // M2 of the luminance, see tiles.glsl
+layout(binding = 5, r32ui) uniform uimage2D u_Samples; // number of samples, exact unlike a float
+layout(binding = 6, rgba32f) readonly uniform image2D u_Reprojected; // fading out, see history.glsl
 
-    float tmin = max(max(t1.x, t1.y), t1.z);
-    // ray origin outside box
-    if (0.0 < tmin && tmin < ray_t.y) {
-        t_vec = t1;
-        t = tmin;
-        return true;
-    }
-
-    // FIXME: ray origin inside box not implemented
-    // vec3 t2 = max(tMin, tMax);
-    // float tmax = min(min(t2.x, t2.y), t2.z);
-
-    return false;
-}
-
-bool intersectSphere(vec3 origin, vec3 direction, const Sphere s, const vec2 ray_t, out float t) {
-    vec3 op = s.center - origin;
-    float dop = dot(op, direction);
-    float D = dop * dop - dot(op, op) + s.radius * s.radius;
-    if (D < 0)
-        // no intersection
-        return false;
+// distance of the first hit along the primary ray of each pixel, negative on a miss, to reproject the image
+layout(binding = 2, r32f) writeonly uniform image2D u_Depth;
 
-    float sqrtD = sqrt(D);
+// guides of the denoiser, see guides_denoiser(...): sums over the samples, with their number in alpha
+layout(binding = 3, rgba32f) uniform image2D u_Albedo;
+layout(binding = 4, rgba32f) uniform image2D u_Normal; // facing the primary ray
 
-    float tmin = dop - sqrtD;
-    // ray origin outside sphere
-    if (ray_t.x < tmin && tmin < ray_t.y) {
-        t = tmin;
-        return true;
-    }
+shared uint s_ActivePixels, s_Samples, s_Rays;
 
-    float tmax = dop + sqrtD;
-    // ray origin inside sphere
-    if (ray_t.x < tmax && tmax < ray_t.y) {
-        t = tmax;
-        return true;
-    }
+uniform int u_SamplesPerDispatch; // traced for each pixel of an active tile
 
-    // if tmax < 0 the sphere is behind
-    return false;
-}
-
-/**
- * Computes the intersection between the ray and every object and returns
- * information in the 'hit' output varible.
- * @param origin the starting point of the ray
- * @param direction the direction of the ray
- * @param hit the variable in which to save intersection information
- * @return true if the ray intersects an object, false otherwise
- */
-bool intersect(vec3 origin, vec3 direction, out HitInfo hit) {
-    vec2 ray_t = vec2(NEAR, FAR);
-    float t = FAR;
-    vec3 normal;
-    bool found = false;
-
-    for (int i = 0; i < NUM_BOXES; i++) {
-        vec3 t_vec;
-        if (intersectBox(origin, direction, boxes[i], ray_t, t_vec, t)) {
-            ray_t.y = t;
-            hit.t_near = ray_t.y;
-            hit.t_vec = t_vec;
-            hit.id = i;
-            hit.isSphere = false;
-            found = true;
-        }
-    }
-
-    for (int i = 0; i < NUM_SPHERES; i++) {
-        if (intersectSphere(origin, direction, spheres[i], ray_t, t)) {
-            ray_t.y = t;
-            hit.t_near = ray_t.y;
-            hit.id = i;
-            hit.isSphere = true;
-            found = true;
-        }
-    }
+#include "path.glsl"
+#include "tiles.glsl"
+#include "camera.glsl"
+#include "history.glsl"
 
-    return found;
-}
+ivec2 pixel;
+uint rays; // extension rays traced by this thread, the shadow rays are counted by path.glsl
+uint seed; // of the random numbers of the pixel
+uint sampleIndex; // of the sample traced, the number of samples the pixel accumulated before it
+float primaryDistance; // of the first hit of the last path
+vec4 guideAlbedo, guideNormal; // of the last path, w is 1 if it hit a surface guiding the denoiser
 
 /**
  * Solve the rendering equation.
@@ -180,63 +61,36 @@ vec3 radiance(vec3 origin, vec3 direction) {
     vec3 albedo = vec3(1.0); // amount of incoming light that gets reflected off the surface
     vec3 radiance = vec3(0.0);
 
+    float pdf = 0.0; // of the direction of the ray, see scatter(...)
+
     uint bounce = 0;
+    primaryDistance = -1.0;
+    guideAlbedo = guideNormal = vec4(0.0);
     while (true) {
         HitInfo hit;
-        if (!intersect(origin, direction, hit))
+        rays++;
+        if (!intersect(origin, direction, hit)) {
+            radiance += albedo * escaped(direction, pdf);
             break;
-
-        vec3 hit_point = origin + direction * hit.t_near;
-        vec3 normal;
-
-        vec3 color = vec3(1.0);
-        float emission = 0;
-        uint material = Material.diffuse;
-        if (hit.isSphere) {
-            Sphere s = spheres[hit.id];
-            normal = normalize(origin + hit.t_near * direction - s.center);
-            color = s.color;
-            emission = s.emission;
-            material = s.material;
-        } else {
-            Box b = boxes[hit.id];
-            normal = vec3(equal(hit.t_vec, vec3(hit.t_near))) * sign(-direction);
-            color = b.color;
-            emission = b.emission;
-        }
-        radiance += albedo * emission;
-        albedo *= color;
-
-        vec3 rand = random(vec3(pixel+bounce, u_Time));
-        // russian roulette
-        if (bounce > 3) {
-            float prob = max(max(color.r, color.g), color.b);
-            if (rand.x > prob) {
-                break;
-            }
         }
+        if (bounce == 0u)
+            primaryDistance = hit.t_near;
 
-        // flip the normal in case the ray originated inside the object
-        bool out_to_in = dot(direction, normal) < 0;
-        normal = out_to_in ? normal : -normal;
-
-        /*
-         * Set the hit point as the origin of the bounce ray.
-         * Because of float precision the hit point may be a tad inside the sphere,
-         * so move the origin a bit along the normal to be sure we are outside the object.
-         */
-        origin = hit_point + normal * 1E-3;
-
-        if (material == Material.specular) {
-            direction = ideal_specular_reflect(direction, normal);
-        } else if (material == Material.refractive) {
-            vec4 r = ideal_specular_transmit(direction, normal, out_to_in, rand);
-            origin = hit_point - normal * 1E-5;
-            direction = r.xyz;
-            albedo *= r.w;
-        } else {
-            direction = diffuse_reflect(normal, rand);
+        vec3 normal;
+        uint m;
+        surface(origin, direction, hit, normal, m);
+#if DENOISER_GUIDES
+        if (guideAlbedo.w == 0.0 && guides_denoiser(m)) {
+            guideAlbedo = vec4(materials[m].color, 1.0);
+            guideNormal = vec4(faceforward(normal, direction, normal), 1.0);
         }
+#endif
+        float weight = emission_weight(origin, hit, pdf);
+        vec4 rand = sample4(seed, sampleIndex, SCATTER_BLOCK(bounce));
+        vec3 light_rand = sample4(seed, sampleIndex, LIGHT_BLOCK(bounce)).xyz;
+        if (!scatter(origin, direction, albedo, radiance, pdf, origin + direction * hit.t_near, normal, m, bounce,
+                     weight, rand, light_rand))
+            break;
 
         bounce++;
     }
@@ -244,59 +98,105 @@ vec3 radiance(vec3 origin, vec3 direction) {
     return radiance;
 }
 
-void main(void) {
-    /*
-     * The variable gl_GlobalInvocationID gives us this thread position
-     * in the threads matrix. Since we assigned a pixel to each thread
-     * we'll call this a pixel.
-     */
-    pixel = ivec2(gl_GlobalInvocationID.xy);
-
-    // take the size of our window (same size of the texture)
-    ivec2 size = imageSize(u_Framebuffer);
+/**
+ * Traces u_SamplesPerDispatch new samples of the pixel, without going past MAX_SAMPLES, and accumulates them.
+ */
+void tracePixel(ivec2 size) {
+    vec3 direction = primaryDirection(pixel, size);
 
     /*
-     * Check for boundary conditions, if this thread is assigned a pixel
-     * out of our window dimension, terminate it immediately.
+     * The framebuffer holds the running sum of the samples of each pixel and their number,
+     * the average is only computed when presenting: unlike updating a running average,
+     * adding samples never rounds the previous ones again. The samples of a dispatch are
+     * summed locally first, so the stored sum is rounded once per dispatch.
+     * The number of samples is counted in an integer image, and copied in the alpha channel
+     * for the readers of the framebuffer: a float counts exactly up to 2^24, more than MAX_SAMPLES,
+     * past which the pixel stops accumulating. The framebuffer also holds the reprojected history,
+     * which fades out as the samples are traced, see history.glsl.
+     * The luminance is also accumulated into M2 with Welford's algorithm, the variance is M2 / (n-1).
      */
-    if (pixel.x >= size.x || pixel.y >= size.y) {
+    uint n = imageLoad(u_Samples, pixel).r;
+    // the rest of the tile may still be active
+    if (n >= MAX_SAMPLES)
         return;
+    uint samples = min(uint(u_SamplesPerDispatch), MAX_SAMPLES - n);
+    vec4 reprojected = imageLoad(u_Reprojected, pixel);
+    // the sum of the traced samples, exact once the history faded out
+    vec3 traced = imageLoad(u_Framebuffer, pixel).rgb - reprojected.rgb * history_weight(reprojected, n);
+    float m2 = imageLoad(u_Variance, pixel).r;
+    float mean = n > 0u ? luminance(traced) / float(n) : 0.0;
+    vec3 sum = vec3(0.0);
+    vec4 albedoSum = vec4(0.0), normalSum = vec4(0.0);
+    seed = pixel_seed(pixel);
+    for (uint i = 0u; i < samples; i++) {
+        sampleIndex = n;
+        // compute the pixel color shooting the ray from the eye in the calculated direction
+        vec3 color = radiance(u_Eye, direction);
+        sum += color;
+        albedoSum += guideAlbedo;
+        normalSum += guideNormal;
+        n++;
+        float l = luminance(color);
+        float delta = l - mean;
+        mean += delta / float(n);
+        m2 += delta * (l - mean);
     }
 
-    /*
-     * As explaned in
-     * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29#camera
-     * to compute the direction of our ray, firstly we linearly interpolate
-     * the corner rays vertically with weight the vertical position of the current pixel,
-     * then we linearly interpolate the results horizontally with weight the horizontal
-     * position of the current pixel.
-     */
+    // store the color in our texture framebuffer
+    float weight = history_weight(reprojected, n);
+    imageStore(u_Framebuffer, pixel, vec4(traced + sum + reprojected.rgb * weight, float(n) + weight));
+    imageStore(u_Samples, pixel, uvec4(n));
+    imageStore(u_Variance, pixel, vec4(m2));
+    imageStore(u_Depth, pixel, vec4(primaryDistance));
+#if DENOISER_GUIDES
+    imageStore(u_Albedo, pixel, imageLoad(u_Albedo, pixel) + albedoSum);
+    imageStore(u_Normal, pixel, imageLoad(u_Normal, pixel) + normalSum);
+#endif
+
+    if (!converged(mean, m2, n))
+        atomicAdd(s_ActivePixels, 1u);
+    atomicAdd(s_Samples, samples);
+    atomicAdd(s_Rays, rays + shadow_rays);
+}
 
-    // normalize the pixel position in [0, 1]
-    vec2 weight = vec2(pixel) / vec2(size.x-1, size.y-1);
+void main(void) {
+    if (gl_LocalInvocationIndex == 0) {
+        s_ActivePixels = 0;
+        s_Samples = 0;
+        s_Rays = 0;
+    }
+    rays = 0;
+    shadow_rays = 0;
+    barrier();
 
     /*
-     * mix(x,y,a) = x * (1-a) + y * a
-     * Suppose the current pixel is the bottom-right corner of the window
-     * => weight = (1,0)
-     * => mix(ray00, ray01, weight.y) = mix(ray00, ray01, 0) = ray00
-     * => mix(ray10, ray11, weight.y) = mix(ray10, ray11, 0) = ray10
-     * => direction = mix(ray00, ray10, weight.x) = mix(ray00, ray10, 1) = ray10
-     * which is in fact the ray passing through the bottom-right corner.
+     * The work groups are laid out in a line, each one traces the tile of the list at its index.
+     * The position of this thread in the tile gives us its pixel, since we assigned a pixel to each thread.
      */
-    vec3 direction = mix(mix(u_Ray00, u_Ray01, weight.y), mix(u_Ray10, u_Ray11, weight.y), weight.x);
-
-    // compute the pixel color shooting the ray from the eye in the calculated direction
-    vec3 newColor = radiance(u_Eye, normalize(direction));
+    int index = tileIndex();
+    uint tile = index >= 0 ? current.tiles[index] : 0u;
+    pixel = ivec2(tile & 0xFFFFu, tile >> 16) * ivec2(gl_WorkGroupSize.xy) + ivec2(gl_LocalInvocationID.xy);
 
-    // load the previous pixel color
-    vec3 oldColor= vec3(0);
-    if (u_BlendingFactor > 0)
-        oldColor = imageLoad(u_Framebuffer, pixel).rgb;
-
-    // interpolate the new color with the old one
-    vec3 color = mix(newColor, oldColor, u_BlendingFactor);
+    // take the size of our window (same size of the texture)
+    ivec2 size = imageSize(u_Framebuffer);
 
-    // store the color in our texture framebuffer
-    imageStore(u_Framebuffer, pixel, vec4(color, 1.0));
+    /*
+     * Check for boundary conditions, if this thread is assigned a pixel
+     * out of our window dimension it does not trace anything,
+     * but it must still reach the barrier of the work group.
+     * A slice of the list may also go past its end, those work groups trace nothing at all.
+     */
+    if (index >= 0 && pixel.x < size.x && pixel.y < size.y)
+        tracePixel(size);
+    barrier();
+
+    if (gl_LocalInvocationIndex == 0) {
+        if (s_ActivePixels > 0) {
+            uint i = atomicAdd(next.numGroups[0], 1u);
+            next.tiles[i] = tile;
+            atomicAdd(next.activePixels, s_ActivePixels);
+        }
+        atomicAdd(next.samples, s_Samples);
+        atomicAdd(next.rays, s_Rays);
+    }
 }
@@ -0,0 +1,74 @@
+#version 430 core
+
+/*
+ * Temporal reprojection: when the camera moves, the image accumulated from the previous
+ * point of view is reused as a starting point for the new one, instead of starting from zero.
+ * Every pixel finds the first hit of its new primary ray, projects it in the previous image
+ * and takes the average found there, if the previous first hit at that pixel is the same point.
+ * Since the history is approximate, e.g. for view dependent materials, it counts as at most
+ * HISTORY_SAMPLES samples and fades out as the new ones are traced, see history.glsl:
+ * the pixel starts again from zero samples, the history is kept apart and only added to the framebuffer.
+ */
+layout (local_size_x = 16, local_size_y = 8) in;
+
+#define MAX_DISTANCE 0.01 // between the two hit points, relative to the distance from the eye
+
+// the outputs, same images of the raytracing shader
+layout(binding = 0, rgba32f) writeonly uniform image2D u_Framebuffer;
+layout(binding = 1, r32f) writeonly uniform image2D u_Variance;
+layout(binding = 2, r32f) writeonly uniform image2D u_Depth;
+layout(binding = 5, r32ui) writeonly uniform uimage2D u_Samples;
+layout(binding = 6, rgba32f) writeonly uniform image2D u_Reprojected;
+// copies of the framebuffer and of the depth before the camera moved
+layout(binding = 3, rgba32f) readonly uniform image2D u_History;
+layout(binding = 4, r32f) readonly uniform image2D u_HistoryDepth;
+
+// the previous camera, the current one is in camera.glsl
+uniform mat4 u_PrevViewProj, u_PrevInvViewProj;
+uniform vec3 u_PrevEye;
+
+#include "scene.glsl"
+#include "camera.glsl"
+#include "history.glsl"
+
+void main(void) {
+    ivec2 pixel = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(u_Framebuffer);
+    if (pixel.x >= size.x || pixel.y >= size.y)
+        return;
+
+    vec4 reprojected = vec4(0.0); // the average and the samples it stands for
+    float depth = -1.0;
+    vec3 direction = primaryDirection(pixel, size);
+    HitInfo hit;
+    if (intersect(u_Eye, direction, hit)) {
+        depth = hit.t_near;
+        vec3 position = u_Eye + direction * depth;
+
+        // the pixel of the previous image through which the point was seen
+        vec4 clip = u_PrevViewProj * vec4(position, 1.0);
+        if (clip.w > 0.0) {
+            vec2 weight = (clip.xy / clip.w + 1.0) * 0.5;
+            ivec2 previous = ivec2(round(weight * vec2(size - 1)));
+            if (all(greaterThanEqual(previous, ivec2(0))) && all(lessThan(previous, size))) {
+                // the previous first hit through that pixel, as in Camera.update
+                float previousDepth = imageLoad(u_HistoryDepth, previous).r;
+                vec4 near = u_PrevInvViewProj * vec4(vec2(previous) / vec2(size - 1) * 2.0 - 1.0, 0.0, 1.0);
+                vec3 previousPosition = u_PrevEye + normalize(near.xyz / near.w - u_PrevEye) * previousDepth;
+
+                vec4 history = imageLoad(u_History, previous);
+                // a different point was visible, e.g. the new one was occluded
+                if (previousDepth > 0.0 && history.a > 0.0
+                        && distance(position, previousPosition) < MAX_DISTANCE * depth) {
+                    reprojected = vec4(history.rgb / history.a, min(history.a, HISTORY_SAMPLES));
+                }
+            }
+        }
+    }
+
+    imageStore(u_Framebuffer, pixel, vec4(reprojected.rgb * reprojected.a, reprojected.a));
+    imageStore(u_Samples, pixel, uvec4(0u));
+    imageStore(u_Reprojected, pixel, reprojected);
+    imageStore(u_Variance, pixel, vec4(0.0));
+    imageStore(u_Depth, pixel, vec4(depth));
+}
@@ -0,0 +1,116 @@
+#version 430 core
+
+/*
+ * Random numbers of the path tracer, addressed by integers only: the pixel, the index of the sample
+ * in the pixel (the number of samples it already accumulated) and a dimension block, two per bounce.
+ * The default sampler takes each block from the first 4 dimensions of a Sobol sequence with
+ * hash-based Owen scrambling: the index is shuffled and each dimension scrambled with seeds hashed
+ * from the pixel and the block, so pixels and bounces are decorrelated while the samples
+ * of a pixel stay stratified, source: Burley, Practical Hash-based Owen Scrambling, JCGT 2020.
+ * The PCG sampler hashes the same integers instead, see sampler/Sampler.java for the Java port.
+ */
+#define SAMPLER_SOBOL 0
+#define SAMPLER_PCG   1
+#ifndef SAMPLER
+#define SAMPLER SAMPLER_SOBOL
+#endif
+
+#define SOBOL_BITS 32u
+
+// direction numbers of the first 4 dimensions for each bit of the index, uploaded once by the host
+layout(std430, binding = 12) readonly buffer SobolBuffer { uvec4 sobol_matrices[SOBOL_BITS]; };
+
+/**
+ * @return the first 4 dimensions of the sample index of the Sobol sequence, as 32 bit fractions
+ */
+uvec4 sobol(uint index) {
+    uvec4 x = uvec4(0u);
+    for (; index != 0u; index &= index - 1u)
+        x ^= sobol_matrices[findLSB(index)];
+    return x;
+}
+
+/**
+ * Hashes the bits of x so that each one only depends on the less significant ones.
+ * source: Laine and Karras, Stratified Sampling for Stochastic Transparency, 2011
+ */
+uint laine_karras_permutation(uint x, uint seed) {
+    x += seed;
+    x ^= x * 0x6c50b47cu;
+    x ^= x * 0xb82f1e52u;
+    x ^= x * 0xc7afe638u;
+    x ^= x * 0x8d22f6e6u;
+    return x;
+}
+
+/**
+ * @return x Owen scrambled: each bit flipped by a hash of the more significant ones
+ */
+uint nested_uniform_scramble(uint x, uint seed) {
+    return bitfieldReverse(laine_karras_permutation(bitfieldReverse(x), seed));
+}
+
+/**
+ * Integer hash with low bias, source: https://nullprogram.com/blog/2018/07/31/
+ */
+uint hash(uint x) {
+    x ^= x >> 16u;
+    x *= 0x7feb352du;
+    x ^= x >> 15u;
+    x *= 0x846ca68bu;
+    x ^= x >> 16u;
+    return x;
+}
+
+/**
+ * Hashes 4 integers at once.
+ * source: Jarzynski and Olano, Hash Functions for GPU Rendering, JCGT 2020
+ */
+uvec4 pcg4d(uvec4 v) {
+    v = v * 1664525u + 1013904223u;
+    v.x += v.y * v.w; v.y += v.z * v.x; v.z += v.x * v.y; v.w += v.y * v.z;
+    v ^= v >> 16u;
+    v.x += v.y * v.w; v.y += v.z * v.x; v.z += v.x * v.y; v.w += v.y * v.z;
+    return v;
+}
+
+/*
+ * Added to the pixel and to the index of the sample, when the image is a tile of a larger one
+ * traced by a worker of a distributed render: its samples are the ones of the pixels of the full image.
+ */
+uniform ivec2 u_PixelOffset;
+uniform uint u_SampleOffset;
+
+/**
+ * @return the seed of a pixel, combined with the index of a dimension block by sample4(...)
+ */
+uint pixel_seed(ivec2 pixel) {
+    pixel += u_PixelOffset;
+    return hash(uint(pixel.x) + hash(uint(pixel.y)));
+}
+
+/**
+ * @return the 32 bit fractions as floats in [0,1)
+ */
+vec4 to_float(uvec4 x) {
+    return vec4(x >> 8u) * (1.0 / 16777216.0);
+}
+
+/**
+ * @param seed see pixel_seed(...)
+ * @param index of the sample in the pixel
+ * @param block of the dimensions of the sample
+ * @return the 4 random numbers in [0,1) of the block
+ */
+vec4 sample4(uint seed, uint index, uint block) {
+    index += u_SampleOffset;
+#if SAMPLER == SAMPLER_PCG
+    return to_float(pcg4d(uvec4(seed, index, block, 0u)));
+#else
+    seed = hash(seed + hash(block));
+    uvec4 x = sobol(nested_uniform_scramble(index, seed));
+    for (uint d = 0u; d < 4u; d++)
+        x[d] = nested_uniform_scramble(x[d], hash(seed + d));
+    return to_float(x);
+#endif
+}
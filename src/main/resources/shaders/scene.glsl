@@ -0,0 +1,365 @@
+#version 430 core
+
+/*
+ * Scene data and closest hit queries, shared by the compute shaders.
+ */
+
+// 0 to compile out the intersection code of the primitives missing from the scene
+#ifndef HAS_BOXES
+#define HAS_BOXES 1
+#endif
+#ifndef HAS_SPHERES
+#define HAS_SPHERES 1
+#endif
+#ifndef HAS_TRIANGLES
+#define HAS_TRIANGLES 1
+#endif
+#ifndef HAS_INSTANCES
+#define HAS_INSTANCES 1
+#endif
+
+#define NEAR 1E-3
+#define FAR 1E+10
+
+struct HitInfo {
+    float t_near;
+    vec3 t_vec;
+    int id;
+    uint type; // PRIMITIVE_BOX, PRIMITIVE_SPHERE or PRIMITIVE_TRIANGLE
+    int instance; // of the triangle, -1 if it is not instanced
+};
+
+/*
+ * Scene, intersect algorithms taken from
+ * http://kevinbeason.com/smallpt/
+ * https://github.com/LWJGL/lwjgl3-wiki/wiki/2.6.1.-Ray-tracing-with-OpenGL-Compute-Shaders-%28Part-I%29
+ */
+const struct {
+    uint diffuse, specular, refractive;
+} Material = {0, 1, 2};
+
+/*
+ * The scene is loaded from a file by the host and stored in
+ * shader storage buffers with the std430 layout, see scene.Scene.
+ * Materials, boxes and spheres take 32 bytes, triangles 16 bytes.
+ */
+struct MaterialData {
+    vec3 color;
+    float emission;
+    uint type;
+};
+struct Box {
+    vec3 min;
+    uint material;
+    vec3 max;
+};
+struct Sphere {
+    vec3 center;
+    float radius;
+    uint material;
+};
+
+layout(std430, binding = 0) readonly buffer MaterialBuffer { MaterialData materials[]; };
+layout(std430, binding = 1) readonly buffer BoxBuffer { Box boxes[]; };
+layout(std430, binding = 2) readonly buffer SphereBuffer { Sphere spheres[]; };
+
+// indices of the spheres with an emissive material, sampled explicitly at the diffuse hits, see path.glsl
+layout(std430, binding = 11) readonly buffer LightBuffer { uint lights[]; };
+uniform int u_NumLights;
+
+/*
+ * Triangles of the meshes, indexing shared vertex positions
+ * stored as 3 consecutive floats, since an array of vec3 would be padded to 16 bytes.
+ */
+struct Triangle {
+    uint v0, v1, v2;
+    uint material;
+};
+
+layout(std430, binding = 5) readonly buffer VertexBuffer { float vertices[]; };
+layout(std430, binding = 6) readonly buffer TriangleBuffer { Triangle triangles[]; };
+
+vec3 vertex(uint i) {
+    return vec3(vertices[3 * i], vertices[3 * i + 1], vertices[3 * i + 2]);
+}
+
+/*
+ * Bounding volume hierarchy over all the primitives, flattened in depth-first
+ * order so the left child of an interior node always follows its parent,
+ * see scene.Bvh.
+ */
+struct BvhNode {
+    vec3 min;
+    int offset; // interior: index of the right child, leaf: first primitive reference
+    vec3 max;
+    int count;  // leaf: number of primitives, interior: -(split axis + 1)
+};
+
+layout(std430, binding = 3) readonly buffer BvhBuffer { BvhNode nodes[]; };
+// type of the primitive in the upper bits, index in the buffer of that type in the lower ones
+layout(std430, binding = 4) readonly buffer PrimitiveBuffer { uint primitives[]; };
+
+#define TYPE_SHIFT 28
+#define INDEX_MASK 0x0FFFFFFFu
+#define PRIMITIVE_BOX 0u
+#define PRIMITIVE_SPHERE 1u
+#define PRIMITIVE_TRIANGLE 2u
+#define PRIMITIVE_INSTANCE 3u
+#define STACK_SIZE 64 // maximum depth of the hierarchy
+
+uniform int u_NumNodes; // 0 if the scene is empty
+
+/*
+ * Instances of the geometries shared by several objects, see scene.Blas: the BVH above is the top level,
+ * whose leaves reference the instances, each geometry has its own bottom level hierarchy over its
+ * triangles, in object space. The leaves of the bottom level point straight to a range of the triangles.
+ */
+struct Instance {
+    vec4 worldToObject[3]; // rows of the affine transform
+    uint root; // of the hierarchy of the geometry in blasNodes
+    uint material;
+    uint geometry;
+};
+
+layout(std430, binding = 13) readonly buffer InstanceBuffer { Instance instances[]; };
+layout(std430, binding = 14) readonly buffer BlasBuffer { BvhNode blasNodes[]; };
+
+bool intersectBox(vec3 origin, vec3 direction, const Box b, const vec2 ray_t, out vec3 t_vec, out float t) {
+    vec3 tMin = (b.min - origin) / direction;
+    vec3 tMax = (b.max - origin) / direction;
+    vec3 t1 = min(tMin, tMax);
+    vec3 t2 = max(tMin, tMax);
+
+    float tmin = max(max(t1.x, t1.y), t1.z);
+    float tmax = min(min(t2.x, t2.y), t2.z);
+    // ray origin outside box
+    if (0.0 < tmin && tmin <= tmax && tmin < ray_t.y) {
+        t_vec = t1;
+        t = tmin;
+        return true;
+    }
+
+    // FIXME: ray origin inside box not implemented
+
+    return false;
+}
+
+bool intersectSphere(vec3 origin, vec3 direction, const Sphere s, const vec2 ray_t, out float t) {
+    vec3 op = s.center - origin;
+    float dop = dot(op, direction);
+    float D = dop * dop - dot(op, op) + s.radius * s.radius;
+    if (D < 0)
+        // no intersection
+        return false;
+
+    float sqrtD = sqrt(D);
+
+    float tmin = dop - sqrtD;
+    // ray origin outside sphere
+    if (ray_t.x < tmin && tmin < ray_t.y) {
+        t = tmin;
+        return true;
+    }
+
+    float tmax = dop + sqrtD;
+    // ray origin inside sphere
+    if (ray_t.x < tmax && tmax < ray_t.y) {
+        t = tmax;
+        return true;
+    }
+
+    // if tmax < 0 the sphere is behind
+    return false;
+}
+
+/**
+ * Möller–Trumbore intersection between a ray and a triangle.
+ */
+bool intersectTriangle(vec3 origin, vec3 direction, const Triangle tri, const vec2 ray_t, out float t) {
+    vec3 a = vertex(tri.v0);
+    vec3 e1 = vertex(tri.v1) - a;
+    vec3 e2 = vertex(tri.v2) - a;
+
+    vec3 p = cross(direction, e2);
+    float det = dot(e1, p);
+    if (det == 0.0)
+        // ray parallel to the triangle
+        return false;
+    float inv_det = 1.0 / det;
+
+    vec3 s = origin - a;
+    float u = dot(s, p) * inv_det;
+    if (u < 0.0 || u > 1.0)
+        return false;
+    vec3 q = cross(s, e1);
+    float v = dot(direction, q) * inv_det;
+    if (v < 0.0 || u + v > 1.0)
+        return false;
+
+    t = dot(e2, q) * inv_det;
+    return ray_t.x < t && t < ray_t.y;
+}
+
+/**
+ * Slab test between a ray and the bounds of a BVH node.
+ * @return true if the ray enters the node before t_far
+ */
+bool intersectNode(vec3 origin, vec3 inv_direction, const BvhNode n, float t_far) {
+    vec3 t0 = (n.min - origin) * inv_direction;
+    vec3 t1 = (n.max - origin) * inv_direction;
+    vec3 t_small = min(t0, t1);
+    vec3 t_big = max(t0, t1);
+    float tmin = max(max(t_small.x, t_small.y), max(t_small.z, 0.0));
+    float tmax = min(min(t_big.x, t_big.y), min(t_big.z, t_far));
+    return tmin <= tmax;
+}
+
+#if HAS_INSTANCES
+/**
+ * Traverses the bottom level hierarchy of the geometry of an instance with the ray moved to its object space,
+ * where the distances along the ray are the same since the direction is not normalized.
+ * @param ray_t the range of valid distances, whose end is moved to the hit
+ * @param hit updated with the closest hit, if any
+ * @return true if the ray intersects a triangle of the instance before ray_t.y
+ */
+bool intersectInstance(vec3 origin, vec3 direction, int id, inout vec2 ray_t, inout HitInfo hit) {
+    Instance instance = instances[id];
+    vec4 o = vec4(origin, 1.0);
+    origin = vec3(dot(instance.worldToObject[0], o), dot(instance.worldToObject[1], o),
+                  dot(instance.worldToObject[2], o));
+    direction = vec3(dot(instance.worldToObject[0].xyz, direction), dot(instance.worldToObject[1].xyz, direction),
+                     dot(instance.worldToObject[2].xyz, direction));
+    vec3 inv_direction = 1.0 / direction;
+    bool found = false;
+    float t;
+
+    int stack[STACK_SIZE];
+    int sp = 0;
+    int node = int(instance.root);
+    while (true) {
+        BvhNode n = blasNodes[node];
+        if (intersectNode(origin, inv_direction, n, ray_t.y)) {
+            if (n.count > 0) {
+                for (int i = n.offset; i < n.offset + n.count; i++) {
+                    if (intersectTriangle(origin, direction, triangles[i], ray_t, t)) {
+                        ray_t.y = t;
+                        hit.t_near = ray_t.y;
+                        hit.id = i;
+                        hit.type = PRIMITIVE_TRIANGLE;
+                        hit.instance = id;
+                        found = true;
+                    }
+                }
+            } else {
+                int axis = -n.count - 1;
+                if (direction[axis] < 0) {
+                    stack[sp++] = node + 1;
+                    node = n.offset;
+                } else {
+                    stack[sp++] = n.offset;
+                    node = node + 1;
+                }
+                continue;
+            }
+        }
+        if (sp == 0)
+            break;
+        node = stack[--sp];
+    }
+    return found;
+}
+#endif
+
+/**
+ * Traverses the BVH to find the closest intersection between the ray and the
+ * objects and returns information in the 'hit' output varible.
+ * @param origin the starting point of the ray
+ * @param direction the direction of the ray
+ * @param hit the variable in which to save intersection information
+ * @return true if the ray intersects an object, false otherwise
+ */
+bool intersect(vec3 origin, vec3 direction, out HitInfo hit) {
+    vec2 ray_t = vec2(NEAR, FAR);
+    float t = FAR;
+    bool found = false;
+    if (u_NumNodes == 0)
+        return false;
+
+    vec3 inv_direction = 1.0 / direction;
+    int stack[STACK_SIZE];
+    int sp = 0;
+    int node = 0;
+    while (true) {
+        BvhNode n = nodes[node];
+        if (intersectNode(origin, inv_direction, n, ray_t.y)) {
+            if (n.count > 0) {
+                for (int i = n.offset; i < n.offset + n.count; i++) {
+                    uint ref = primitives[i];
+                    int id = int(ref & INDEX_MASK);
+                    uint type = ref >> TYPE_SHIFT;
+#if HAS_BOXES
+                    if (type == PRIMITIVE_BOX) {
+                        vec3 t_vec;
+                        Box b = boxes[id];
+                        if (intersectBox(origin, direction, b, ray_t, t_vec, t)) {
+                            ray_t.y = t;
+                            hit.t_near = ray_t.y;
+                            hit.t_vec = t_vec;
+                            hit.id = id;
+                            hit.type = PRIMITIVE_BOX;
+                            hit.instance = -1;
+                            found = true;
+                        }
+                    }
+#endif
+#if HAS_SPHERES
+                    if (type == PRIMITIVE_SPHERE) {
+                        Sphere s = spheres[id];
+                        if (intersectSphere(origin, direction, s, ray_t, t)) {
+                            ray_t.y = t;
+                            hit.t_near = ray_t.y;
+                            hit.id = id;
+                            hit.type = PRIMITIVE_SPHERE;
+                            hit.instance = -1;
+                            found = true;
+                        }
+                    }
+#endif
+#if HAS_TRIANGLES
+                    if (type == PRIMITIVE_TRIANGLE) {
+                        Triangle tri = triangles[id];
+                        if (intersectTriangle(origin, direction, tri, ray_t, t)) {
+                            ray_t.y = t;
+                            hit.t_near = ray_t.y;
+                            hit.id = id;
+                            hit.type = PRIMITIVE_TRIANGLE;
+                            hit.instance = -1;
+                            found = true;
+                        }
+                    }
+#endif
+#if HAS_INSTANCES
+                    if (type == PRIMITIVE_INSTANCE && intersectInstance(origin, direction, id, ray_t, hit))
+                        found = true;
+#endif
+                }
+            } else {
+                // visit first the child closer to the origin along the split axis
+                int axis = -n.count - 1;
+                if (direction[axis] < 0) {
+                    stack[sp++] = node + 1;
+                    node = n.offset;
+                } else {
+                    stack[sp++] = n.offset;
+                    node = node + 1;
+                }
+                continue;
+            }
+        }
+        if (sp == 0)
+            break;
+        node = stack[--sp];
+    }
+
+    return found;
+}
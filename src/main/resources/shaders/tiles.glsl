@@ -0,0 +1,60 @@
+#version 430 core
+
+/*
+ * Adaptive sampling: the image is split in tiles of the size of a work group
+ * and only the tiles with pixels that did not converge yet are traced.
+ * For each pixel the running variance of the luminance is estimated with Welford's algorithm,
+ * storing the sum of the squared differences from the mean (M2) next to the framebuffer.
+ * The samples of each pixel are counted exactly in an integer image, up to MAX_SAMPLES.
+ */
+uniform float u_Threshold; // relative standard error under which a pixel is converged, 0 to never stop
+#define MIN_SAMPLES 16u // before trusting the variance estimate
+#define MAX_SAMPLES 65536u // of a pixel, then it counts as converged, see TraceBackend.MAX_SAMPLES
+
+/*
+ * Lists of active tiles, the header is read by glDispatchComputeIndirect.
+ * Every work group traces a tile of the current list, then appends it
+ * to the next list if some of its pixels are still active.
+ * A tile is stored as y << 16 | x.
+ * The list can also be traced a slice per frame to fit a budget of device time, see TileScheduler:
+ * work group i then traces the tile at index u_TileOffset + i, if the list is that long.
+ */
+uniform uint u_TileOffset; // index of the tile of the first work group, 0 when tracing the whole list
+layout(std430, binding = 7) readonly buffer ActiveTiles {
+    uint numGroups[3];
+    uint activePixels;
+    uint samples, rays; // traced in the frame that wrote the list, for the metrics
+    uint tiles[];
+} current;
+layout(std430, binding = 8) buffer NextActiveTiles {
+    uint numGroups[3];
+    uint activePixels;
+    uint samples, rays;
+    uint tiles[];
+} next;
+
+/**
+ * @return the index in the current list of the tile of this work group, or -1 past the end of the list
+ */
+int tileIndex() {
+    uint i = u_TileOffset + gl_WorkGroupID.x;
+    return i < current.numGroups[0] ? int(i) : -1;
+}
+
+float luminance(vec3 color) {
+    return dot(color, vec3(0.2126, 0.7152, 0.0722));
+}
+
+/**
+ * @return true if the standard error of the mean luminance is below the threshold, relative to the mean,
+ * or if the pixel accumulated MAX_SAMPLES samples
+ */
+bool converged(float mean, float m2, uint samples) {
+    if (samples >= MAX_SAMPLES)
+        return true;
+    if (samples < MIN_SAMPLES)
+        return false;
+    float n = float(samples);
+    float error = sqrt(m2 / (n * (n - 1.0)));
+    return error < u_Threshold * max(mean, 1E-2);
+}
@@ -0,0 +1,66 @@
+#version 430 core
+
+/*
+ * Last stage of the wavefront pipeline, see paths.glsl.
+ * Adds the ended paths to the sum of the samples of their pixel, as raytracing.glsl does,
+ * and starts the next sample of the pixel in the same slot. Once all the samples of the
+ * dispatch are traced, the sum is added to the framebuffer and the slot becomes idle.
+ */
+#include "paths.glsl"
+
+layout (local_size_x = QUEUE_GROUP_SIZE) in;
+
+layout(binding = 0, rgba32f) uniform image2D u_Framebuffer; // sum of the samples, number of samples in alpha
+layout(binding = 1, r32f) writeonly uniform image2D u_Variance;
+layout(binding = 5, r32ui) uniform uimage2D u_Samples; // number of samples, exact unlike a float
+layout(binding = 6, rgba32f) readonly uniform image2D u_Reprojected; // fading out, see history.glsl
+
+uniform uint u_NextQueue; // of the rays to extend
+
+#include "../tiles.glsl"
+#include "../history.glsl"
+
+shared uint s_Samples;
+
+void main(void) {
+    if (gl_LocalInvocationIndex == 0)
+        s_Samples = 0;
+    barrier();
+
+    uint slot;
+    if (pop(FINISHED_QUEUE, slot)) {
+        vec3 color = FIELD(RADIANCE, slot).rgb;
+        vec3 sum = FIELD(SUM, slot).rgb + color;
+        vec4 welford = FIELD(WELFORD, slot);
+        uvec4 state = loadState(slot);
+        uint n = state.w + 1u; // the samples of the pixel with this one
+
+        float l = luminance(color);
+        float delta = l - welford.x;
+        welford.x += delta / float(n);
+        welford.y += delta * (l - welford.x);
+        atomicAdd(s_Samples, 1u);
+
+        if (state.z > 1u) {
+            FIELD(SUM, slot) = vec4(sum, 0.0);
+            FIELD(WELFORD, slot) = welford;
+            startPath(slot, uvec4(0u, 0u, state.z - 1u, n));
+            push(u_NextQueue, slot);
+        } else {
+            ivec2 pixel = slotPixel(slot);
+            // the samples of the pixel before the dispatch, the history faded out as in raytracing.glsl
+            uint first = imageLoad(u_Samples, pixel).r;
+            vec4 reprojected = imageLoad(u_Reprojected, pixel);
+            vec3 traced = imageLoad(u_Framebuffer, pixel).rgb - reprojected.rgb * history_weight(reprojected, first);
+            float weight = history_weight(reprojected, n);
+            imageStore(u_Framebuffer, pixel, vec4(traced + sum + reprojected.rgb * weight, float(n) + weight));
+            imageStore(u_Samples, pixel, uvec4(n));
+            imageStore(u_Variance, pixel, vec4(welford.y));
+            storeState(slot, uvec4(0u));
+        }
+    }
+    barrier();
+
+    if (gl_LocalInvocationIndex == 0)
+        atomicAdd(next.samples, s_Samples);
+}
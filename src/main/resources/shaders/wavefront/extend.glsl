@@ -0,0 +1,53 @@
+#version 430 core
+
+/*
+ * Stage of the wavefront pipeline finding the closest hit of the rays in a queue, see paths.glsl.
+ * Only traverses the hierarchy, the shading is left to shade.glsl.
+ */
+#include "paths.glsl"
+
+layout (local_size_x = QUEUE_GROUP_SIZE) in;
+
+// distance of the first hit along the primary ray of each pixel, negative on a miss, to reproject the image
+layout(binding = 2, r32f) writeonly uniform image2D u_Depth;
+
+uniform uint u_Queue; // of the rays to extend
+
+#include "../path.glsl"
+#include "../tiles.glsl"
+
+shared uint s_Rays;
+
+void main(void) {
+    if (gl_LocalInvocationIndex == 0)
+        s_Rays = 0;
+    barrier();
+
+    uint slot;
+    if (pop(u_Queue, slot)) {
+        vec3 origin = FIELD(ORIGIN, slot).xyz;
+        vec4 direction = FIELD(DIRECTION, slot);
+        uvec4 state = loadState(slot);
+
+        vec4 record = vec4(0.0, 0.0, 0.0, -1.0);
+        HitInfo hit;
+        if (intersect(origin, direction.xyz, hit)) {
+            vec3 normal;
+            uint m;
+            surface(origin, direction.xyz, hit, normal, m);
+            record = vec4(normal, hit.t_near);
+            state.y = m;
+            storeState(slot, state);
+            // the hit is only known here, shade.glsl reads the weight
+            FIELD(ORIGIN, slot).w = emission_weight(origin, hit, direction.w);
+        }
+        FIELD(HIT, slot) = record;
+        if (state.x == 0u)
+            imageStore(u_Depth, slotPixel(slot), vec4(record.w));
+        atomicAdd(s_Rays, 1u);
+    }
+    barrier();
+
+    if (gl_LocalInvocationIndex == 0)
+        atomicAdd(next.rays, s_Rays);
+}
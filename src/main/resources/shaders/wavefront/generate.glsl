@@ -0,0 +1,79 @@
+#version 430 core
+
+/*
+ * First stage of the wavefront pipeline, see paths.glsl.
+ * Every work group checks a tile of the current list, like raytracing.glsl does,
+ * and starts u_SamplesPerDispatch samples for each of its pixels that is not already tracing.
+ * The tile is appended to the next list unless all its pixels converged, and are idle:
+ * the pixels tracing samples started in the previous frames always count as active.
+ */
+#ifndef WORK_GROUP_SIZE_X
+#define WORK_GROUP_SIZE_X 16
+#endif
+#ifndef WORK_GROUP_SIZE_Y
+#define WORK_GROUP_SIZE_Y 8
+#endif
+layout (local_size_x = WORK_GROUP_SIZE_X, local_size_y = WORK_GROUP_SIZE_Y) in;
+
+layout(binding = 0, rgba32f) readonly uniform image2D u_Framebuffer;
+layout(binding = 1, r32f) readonly uniform image2D u_Variance;
+layout(binding = 5, r32ui) readonly uniform uimage2D u_Samples;
+layout(binding = 6, rgba32f) readonly uniform image2D u_Reprojected;
+
+uniform int u_SamplesPerDispatch;
+uniform bool u_Restart; // the camera moved, the paths in flight were discarded
+uniform uint u_Queue; // of the rays to extend
+
+#include "paths.glsl"
+#include "../tiles.glsl"
+#include "../history.glsl"
+
+shared uint s_ActivePixels;
+
+void main(void) {
+    if (gl_LocalInvocationIndex == 0)
+        s_ActivePixels = 0;
+    barrier();
+
+    // past the end of the list nothing is inside, the work group returns below
+    int index = tileIndex();
+    uint tile = index >= 0 ? current.tiles[index] : 0u;
+    ivec2 pixel = ivec2(tile & 0xFFFFu, tile >> 16) * ivec2(gl_WorkGroupSize.xy) + ivec2(gl_LocalInvocationID.xy);
+    bool inside = index >= 0 && pixel.x < u_Size.x && pixel.y < u_Size.y;
+    uint slot = uint(pixel.y * u_Size.x + pixel.x);
+
+    bool busy = false;
+    uint n;
+    float m2, mean;
+    if (inside) {
+        busy = !u_Restart && loadState(slot).z > 0u;
+        n = imageLoad(u_Samples, pixel).r;
+        m2 = imageLoad(u_Variance, pixel).r;
+        vec4 reprojected = imageLoad(u_Reprojected, pixel);
+        vec3 traced = imageLoad(u_Framebuffer, pixel).rgb - reprojected.rgb * history_weight(reprojected, n);
+        mean = n > 0u ? luminance(traced) / float(n) : 0.0;
+        if (busy || !converged(mean, m2, n))
+            atomicAdd(s_ActivePixels, 1u);
+        else if (u_Restart)
+            storeState(slot, uvec4(0u));
+    }
+    barrier();
+
+    // the whole tile converged
+    if (s_ActivePixels == 0u)
+        return;
+
+    // the rest of the tile may still be active
+    if (inside && !busy && n < MAX_SAMPLES) {
+        FIELD(SUM, slot) = vec4(0.0);
+        FIELD(WELFORD, slot) = vec4(mean, m2, 0.0, 0.0);
+        startPath(slot, uvec4(0u, 0u, min(uint(u_SamplesPerDispatch), MAX_SAMPLES - n), n));
+        push(u_Queue, slot);
+    }
+
+    if (gl_LocalInvocationIndex == 0) {
+        uint i = atomicAdd(next.numGroups[0], 1u);
+        next.tiles[i] = tile;
+        atomicAdd(next.activePixels, s_ActivePixels);
+    }
+}
@@ -0,0 +1,98 @@
+#version 430 core
+
+/*
+ * Wavefront path tracing: instead of following a path to its end in a single thread,
+ * as raytracing.glsl does, the paths are stored in a buffer and advanced a bounce at a time
+ * by a pipeline of kernels, each one running only on the paths that need it:
+ * - generate.glsl starts the paths of the pixels of the active tiles
+ * - extend.glsl finds the closest hit of their rays
+ * - shade.glsl gathers the light emitted at the hits and samples the next rays
+ * - accumulate.glsl adds the finished paths to the image and starts the next sample of their pixel
+ * The kernels pass the paths to each other through queues, so the threads of a work group
+ * always run the same stage on live paths: a path ended early by russian roulette
+ * does not leave its thread idle until the longest path of the work group ends.
+ */
+
+#define QUEUE_GROUP_SIZE 128 // threads of the work groups of the kernels reading a queue
+
+/*
+ * A path for each pixel, pixel (x, y) traces its samples in slot y * width + x, one after the other.
+ * The fields are stored as a structure of arrays: field f of slot i is data[f * capacity + i],
+ * so the threads of a work group access contiguous memory.
+ */
+#define ORIGIN    0u // xyz: origin of the ray, w: MIS weight of the light emitted at its hit, see path.glsl
+#define DIRECTION 1u // xyz: direction of the ray, w: its pdf if sampled by a diffuse bounce, 0 otherwise
+#define ALBEDO    2u // rgb: amount of incoming light that gets reflected off the surfaces along the path,
+                     // a: 1 once the surface guiding the denoiser was hit, see path.glsl
+#define RADIANCE  3u // rgb: light gathered by the path
+#define HIT       4u // xyz: normal at the closest hit of the ray, w: its distance, negative on a miss
+#define STATE     5u // bits of x: bounce, y: material at the hit, z: samples left, 0 if idle,
+                     // w: index of the sample, the number of samples the pixel accumulated before it
+#define SUM       6u // rgb: sum of the samples since the pixel was started
+#define WELFORD   7u // x: running mean of the luminance of the pixel, y: M2, see tiles.glsl
+layout(std430, binding = 9) buffer Paths { vec4 data[]; } paths;
+
+uniform ivec2 u_Size; // of the image
+#define CAPACITY uint(u_Size.x * u_Size.y)
+#define FIELD(f, slot) paths.data[(f) * CAPACITY + (slot)]
+
+/*
+ * Queues of slots, each one with a header read by glDispatchComputeIndirect:
+ * the rays to extend are in queue 0 or 1, in turn read and written, the ended paths in queue 2.
+ * The slots of queue q start at q * capacity.
+ */
+#define FINISHED_QUEUE 2u
+#define QUEUES 3u
+layout(std430, binding = 10) buffer Queues {
+    uint header[QUEUES * 4u]; // numGroups[3], count
+    uint slots[];
+} queues;
+
+#include "../camera.glsl"
+
+uvec4 loadState(uint slot) {
+    return floatBitsToUint(FIELD(STATE, slot));
+}
+
+void storeState(uint slot, uvec4 state) {
+    FIELD(STATE, slot) = uintBitsToFloat(state);
+}
+
+ivec2 slotPixel(uint slot) {
+    return ivec2(slot % uint(u_Size.x), slot / uint(u_Size.x));
+}
+
+/**
+ * Appends a slot to a queue, adding a work group to the header every QUEUE_GROUP_SIZE slots.
+ */
+void push(uint queue, uint slot) {
+    uint i = atomicAdd(queues.header[queue * 4u + 3u], 1u);
+    if (i % QUEUE_GROUP_SIZE == 0u)
+        atomicAdd(queues.header[queue * 4u], 1u);
+    queues.slots[queue * CAPACITY + i] = slot;
+}
+
+/**
+ * @param slot the slot at the index of this thread in the queue
+ * @return false if the index is past the end of the queue
+ */
+bool pop(uint queue, out uint slot) {
+    uint i = gl_GlobalInvocationID.x;
+    if (i >= queues.header[queue * 4u + 3u])
+        return false;
+    slot = queues.slots[queue * CAPACITY + i];
+    return true;
+}
+
+/**
+ * Starts a new path in a slot, shooting the ray from the eye through its pixel.
+ * @param state the samples left and the index of the sample, the bounce is reset
+ */
+void startPath(uint slot, uvec4 state) {
+    FIELD(ORIGIN, slot) = vec4(u_Eye, 0.0);
+    FIELD(DIRECTION, slot) = vec4(primaryDirection(slotPixel(slot), u_Size), 0.0);
+    FIELD(ALBEDO, slot) = vec4(1.0, 1.0, 1.0, 0.0);
+    FIELD(RADIANCE, slot) = vec4(0.0);
+    state.x = 0u;
+    storeState(slot, state);
+}
@@ -0,0 +1,75 @@
+#version 430 core
+
+/*
+ * Stage of the wavefront pipeline shading the hits found by extend.glsl, see paths.glsl.
+ * The paths that go on are appended to the next queue of rays, the others to the finished queue.
+ */
+#include "paths.glsl"
+
+layout (local_size_x = QUEUE_GROUP_SIZE) in;
+
+uniform uint u_Queue, u_NextQueue; // of the rays extended and of the rays to extend
+
+#include "../path.glsl"
+#include "../tiles.glsl"
+
+// guides of the denoiser, as in raytracing.glsl
+layout(binding = 3, rgba32f) uniform image2D u_Albedo;
+layout(binding = 4, rgba32f) uniform image2D u_Normal;
+
+void main(void) {
+    uint slot;
+    if (!pop(u_Queue, slot))
+        return;
+
+    vec4 hit = FIELD(HIT, slot);
+    if (hit.w < 0.0) {
+#if HAS_ENVIRONMENT
+        // the ray escaped the scene, as in raytracing.glsl
+        vec4 ray = FIELD(DIRECTION, slot);
+        FIELD(RADIANCE, slot) += vec4(FIELD(ALBEDO, slot).rgb * escaped(ray.xyz, ray.w), 0.0);
+#endif
+        push(FINISHED_QUEUE, slot);
+        return;
+    }
+
+    vec3 origin = FIELD(ORIGIN, slot).xyz;
+    float weight = FIELD(ORIGIN, slot).w; // written by extend.glsl
+    vec3 direction = FIELD(DIRECTION, slot).xyz;
+    float pdf = FIELD(DIRECTION, slot).w;
+    vec3 albedo = FIELD(ALBEDO, slot).rgb;
+    float guided = FIELD(ALBEDO, slot).a;
+    vec3 radiance = FIELD(RADIANCE, slot).rgb;
+    uvec4 state = loadState(slot);
+
+#if DENOISER_GUIDES
+    // a single path of the pixel is in flight, the sums can be updated without atomics
+    if (guided == 0.0 && guides_denoiser(state.y)) {
+        ivec2 pixel = slotPixel(slot);
+        imageStore(u_Albedo, pixel, imageLoad(u_Albedo, pixel) + vec4(materials[state.y].color, 1.0));
+        imageStore(u_Normal, pixel, imageLoad(u_Normal, pixel) + vec4(faceforward(hit.xyz, direction, hit.xyz), 1.0));
+        guided = 1.0;
+    }
+#endif
+
+    // the same random numbers as the megakernel
+    uint seed = pixel_seed(slotPixel(slot));
+    vec4 rand = sample4(seed, state.w, SCATTER_BLOCK(state.x));
+    vec3 light_rand = sample4(seed, state.w, LIGHT_BLOCK(state.x)).xyz;
+    bool alive = scatter(origin, direction, albedo, radiance, pdf, origin + direction * hit.w, hit.xyz, state.y, state.x,
+                         weight, rand, light_rand);
+    if (shadow_rays > 0u)
+        atomicAdd(next.rays, shadow_rays);
+
+    FIELD(RADIANCE, slot) = vec4(radiance, 0.0);
+    if (alive) {
+        FIELD(ORIGIN, slot) = vec4(origin, 0.0);
+        FIELD(DIRECTION, slot) = vec4(direction, pdf);
+        FIELD(ALBEDO, slot) = vec4(albedo, guided);
+        state.x++;
+        storeState(slot, state);
+        push(u_NextQueue, slot);
+    } else {
+        push(FINISHED_QUEUE, slot);
+    }
+}
@@ -0,0 +1,151 @@
+package distributed;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dispatching, stealing, completing and giving back the jobs of a {@link JobQueue},
+ * with the workers simulated by the lists of the jobs they own.
+ *
+ * @author Marco Di Rienzo
+ */
+public class JobQueueTest {
+	private static List<Job> jobs(int count) {
+		List<Job> jobs = new ArrayList<>();
+		for (int id = 0; id < count; id++)
+			jobs.add(new Job(id, 0, 0, 1, 1, id, 1));
+		return jobs;
+	}
+
+	private static List<Job> owned(Job... jobs) {
+		List<Job> owned = new ArrayList<>();
+		Collections.addAll(owned, jobs);
+		return owned;
+	}
+
+	@Test
+	public void takesTheJobsInOrder() throws InterruptedException {
+		List<Job> jobs = jobs(3);
+		JobQueue queue = new JobQueue(jobs);
+		assertSame(jobs.get(0), queue.take(owned()));
+		assertSame(jobs.get(1), queue.poll());
+		assertSame(jobs.get(2), queue.take(owned()));
+		assertNull(queue.poll());
+		assertEquals(3, queue.getRemaining());
+		assertEquals(0, queue.getStolen());
+	}
+
+	@Test
+	public void stealsTheOldestJobWithTheFewestCopies() throws InterruptedException {
+		List<Job> jobs = jobs(2);
+		JobQueue queue = new JobQueue(jobs);
+		Job first = queue.take(owned()), second = queue.take(owned());
+		assertSame(jobs.get(0), queue.take(owned()));
+		assertSame(jobs.get(1), queue.take(owned()));
+		assertEquals(2, queue.getStolen());
+		assertEquals(JobQueue.MAX_COPIES, first.copies);
+		assertEquals(JobQueue.MAX_COPIES, second.copies);
+	}
+
+	@Test
+	public void neverStealsAJobOwnedByTheWorker() throws InterruptedException {
+		List<Job> jobs = jobs(2);
+		JobQueue queue = new JobQueue(jobs);
+		Job first = queue.take(owned()), second = queue.take(owned());
+		assertSame(second, queue.take(owned(first)));
+		assertEquals(1, queue.getStolen());
+	}
+
+	@Test
+	public void mergesOnlyTheFirstCopyOfAJob() throws InterruptedException {
+		JobQueue queue = new JobQueue(jobs(1));
+		Job job = queue.take(owned());
+		assertSame(job, queue.take(owned()));
+		assertTrue(queue.complete(job));
+		assertEquals(0, queue.getRemaining());
+		assertFalse(queue.complete(job));
+		assertEquals(0, job.copies);
+		assertNull(queue.take(owned()));
+	}
+
+	@Test
+	public void givesBackTheJobsOfAFailedWorker() throws InterruptedException {
+		List<Job> jobs = jobs(3);
+		JobQueue queue = new JobQueue(jobs);
+		Job first = queue.take(owned()), second = queue.poll();
+		queue.fail(owned(first, second));
+		assertEquals(2, queue.getRedispatched());
+		// in front of the jobs never started
+		assertSame(second, queue.poll());
+		assertSame(first, queue.poll());
+		assertSame(jobs.get(2), queue.poll());
+		assertEquals(3, queue.getRemaining());
+	}
+
+	@Test
+	public void keepsAStolenJobRunningWhenOneCopyFails() throws InterruptedException {
+		JobQueue queue = new JobQueue(jobs(1));
+		Job job = queue.take(owned());
+		assertSame(job, queue.take(owned()));
+		queue.fail(owned(job));
+		assertEquals(0, queue.getRedispatched());
+		assertNull(queue.poll());
+		assertTrue(queue.complete(job));
+		assertNull(queue.take(owned()));
+	}
+
+	@Test
+	public void givesBackAStolenJobWhenBothCopiesFail() throws InterruptedException {
+		JobQueue queue = new JobQueue(jobs(1));
+		Job job = queue.take(owned());
+		assertSame(job, queue.take(owned()));
+		queue.fail(owned(job));
+		queue.fail(owned(job));
+		assertEquals(1, queue.getRedispatched());
+		assertSame(job, queue.take(owned()));
+		assertTrue(queue.complete(job));
+	}
+
+	@Test
+	public void neverGivesBackACompletedJob() throws InterruptedException {
+		JobQueue queue = new JobQueue(jobs(1));
+		Job job = queue.take(owned());
+		assertSame(job, queue.take(owned()));
+		assertTrue(queue.complete(job));
+		// the copy still running fails after the image is done
+		queue.fail(owned(job));
+		assertEquals(0, queue.getRedispatched());
+		assertNull(queue.poll());
+		assertNull(queue.take(owned()));
+	}
+
+	@Test(timeout = 10000)
+	public void wakesTheWaitingWorkersOnceAllTheJobsAreDone() throws InterruptedException {
+		JobQueue queue = new JobQueue(jobs(1));
+		Job job = queue.take(owned());
+		queue.take(owned());
+		Job[] taken = {job};
+		// a third worker finds nothing to start nor to steal
+		Thread waiting = new Thread(() -> {
+			try {
+				taken[0] = queue.take(owned());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		waiting.start();
+		assertTrue(queue.complete(job));
+		waiting.join();
+		assertNull(taken[0]);
+		queue.awaitDone();
+	}
+}
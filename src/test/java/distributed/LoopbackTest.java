@@ -0,0 +1,109 @@
+package distributed;
+
+import org.junit.Test;
+import runner.Options;
+import utils.ImageWriter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A distributed render over the loopback interface: a coordinator, two CPU workers and a worker
+ * which disconnects in the middle of its first job. Its jobs must be traced again by the others,
+ * and each job merged exactly once, so every pixel ends up with the requested number of samples.
+ *
+ * @author Marco Di Rienzo
+ */
+public class LoopbackTest {
+	private static final int WIDTH = 260, HEIGHT = 130, SPP = 64; // 3x2 tiles, 2 ranges of samples
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static Options options(String... args) {
+		Options options = Options.parse(args);
+		options.formats = EnumSet.noneOf(ImageWriter.Format.class);
+		return options;
+	}
+
+	/**
+	 * Connects to the coordinator, waiting for it to listen.
+	 */
+	private static Socket connect(int port) throws IOException, InterruptedException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return new Socket("localhost", port);
+			} catch (IOException e) {
+				if (attempt == 100)
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Greets the coordinator like a worker, receives its first job and disconnects without a result.
+	 */
+	private static void failMidJob(int port) throws IOException, InterruptedException {
+		try (Socket socket = connect(port)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			Protocol.readMagic(in);
+			in.readUTF();
+			in.readInt();
+			in.readInt();
+			Protocol.writeMagic(out);
+			out.writeUTF("failing");
+			out.flush();
+			assertEquals(Protocol.JOB, in.readInt());
+			assertNotNull(Protocol.readJob(in));
+		}
+	}
+
+	@Test(timeout = 300000)
+	public void mergesEveryJobOnceDespiteAFailedWorker() throws Exception {
+		int port = freePort();
+		Coordinator coordinator = new Coordinator(options("--coordinator", String.valueOf(port),
+				"--width", String.valueOf(WIDTH), "--height", String.valueOf(HEIGHT), "--spp", String.valueOf(SPP)));
+		boolean[] rendered = new boolean[1];
+		Thread render = new Thread(() -> rendered[0] = coordinator.run(), "coordinator");
+		render.start();
+
+		failMidJob(port);
+		Thread[] workers = new Thread[2];
+		boolean[] stopped = new boolean[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			int w = i;
+			Worker worker = new Worker(options("--worker", "localhost:" + port, "--cpu", "--threads", "2",
+					"--max-bounces", "2"));
+			workers[i] = new Thread(() -> stopped[w] = worker.run(), "worker-" + i);
+			workers[i].start();
+		}
+		render.join();
+		for (Thread worker : workers)
+			worker.join();
+
+		assertTrue(rendered[0]);
+		for (boolean s : stopped)
+			assertTrue(s);
+		JobQueue queue = coordinator.getQueue();
+		assertEquals(0, queue.getRemaining());
+		assertEquals(Coordinator.JOBS_PER_WORKER, queue.getRedispatched());
+		// a job merged twice, or lost, would leave its pixels with another number of samples
+		float[] image = coordinator.getImage();
+		for (int i = 0; i < WIDTH * HEIGHT; i++)
+			assertEquals("samples of pixel " + i, SPP, image[i * 4 + 3], 0);
+	}
+}